@@ -0,0 +1,256 @@
+package Benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import TOOL.TOOL;
+import TOOL.TOOLException;
+import TOOL.Console.Console;
+import TOOL.Data.Frame;
+import TOOL.Data.RobotDef;
+import TOOL.Data.File.FileSet;
+import TOOL.Data.File.FrameLoader;
+import TOOL.Calibrate.ColorTableUpdate;
+import TOOL.Vision.Vision;
+import TOOL.Image.ColorTable;
+import TOOL.Image.RGBImage;
+import TOOL.Image.TOOLImage;
+import TOOL.Image.YCbCrImage;
+import TOOL.Image.YUV422Image;
+
+/**
+ * Stand-alone timing harness for the TOOL, with checks that each
+ * optimized path gives the same answers as the code it replaced.  Build
+ * it with "make benchmark"; it is not part of TOOL.jar.  Then run it from
+ * the TOOL directory with a mode and, for some modes, a list of frames (or
+ * directories of frames):
+ *
+ *     java Benchmark.Benchmarks layout ~/frames/nao/*.NFRM
+ *
+ * A failed check prints what differs and exits with status 1.  The modes
+ * are split by area: ImageBenchmark for images, TableBenchmark for color
+ * tables and DataBenchmark for data sets and the DataManager.  What they
+ * share lives here.
+ *
+ * @author Northern Bites Team
+ */
+public class Benchmarks {
+
+    static final int WARMUP_PASSES = 5;
+    static final int TIMED_PASSES = 20;
+
+    public static void main(String[] args)
+        throws TOOLException, IOException {
+        if (args.length < 1) {
+            System.err.println("usage: Benchmarks <mode> <frame|dir>...");
+            System.err.println("image modes: " + ImageBenchmark.MODES);
+            System.err.println("table modes: " + TableBenchmark.MODES);
+            System.err.println("data modes:  " + DataBenchmark.MODES);
+            return;
+        }
+
+        if (TOOL.CONSOLE == null)
+            TOOL.CONSOLE = new Console(null);
+
+        List<String> paths = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++)
+            collectFrames(new File(args[i]), paths);
+
+        String mode = args[0];
+        if (!ImageBenchmark.run(mode, paths) &&
+            !TableBenchmark.run(mode, paths) &&
+            !DataBenchmark.run(mode, paths))
+            System.err.println("Unknown mode " + mode);
+    }
+
+    // Where timed loops leave their results, so the JIT can't drop them
+    static volatile long sink;
+
+    static void collectFrames(File f, List<String> paths) {
+        if (f.isDirectory()) {
+            File[] files = f.listFiles(FrameLoader.FILTER);
+            if (files != null)
+                for (File child : files)
+                    paths.add(child.getPath());
+        } else if (FrameLoader.acceptableFormat(f))
+            paths.add(f.getPath());
+    }
+
+    static TOOLImage loadImage(String path) throws TOOLException {
+        Frame f = new Frame(null, 0);
+        FrameLoader.loadFrame(path, f);
+        return f.image();
+    }
+
+    static List<TOOLImage> loadImages(List<String> paths)
+        throws TOOLException {
+        List<TOOLImage> images = new ArrayList<TOOLImage>();
+        for (String path : paths)
+            images.add(loadImage(path));
+        return images;
+    }
+
+    /**
+     * @return the number of bytes the current thread has allocated so far.
+     *         Unlike heap usage this is not disturbed by the collector, so
+     *         differences between two calls are exact.
+     */
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Writes images as a set of Nao frames in dir, replacing what was there
+    static FileSet writeFrameSet(File dir, List<TOOLImage> images)
+        throws IOException, TOOLException {
+        dir.mkdirs();
+        for (File f : dir.listFiles())
+            if (f.isFile())
+                f.delete();
+        for (int i = 0; i < images.size(); i++) {
+            java.io.DataOutputStream out = new java.io.DataOutputStream(
+                new java.io.BufferedOutputStream(
+                    new java.io.FileOutputStream(
+                        new File(dir, i + FrameLoader.NAO_EXT))));
+            images.get(i).writeOutputStream(out);
+            for (int k = 0; k < RobotDef.NAO_DEF.numJoints() +
+                     RobotDef.NAO_DEF.numSensors(); k++)
+                out.writeBytes("0.0 ");
+            out.close();
+        }
+        return new FileSet(null, 0, dir.getPath(), "benchmark");
+    }
+
+    // Runs r on the Swing thread, waiting for it
+    static void onSwing(Runnable r) {
+        try {
+            javax.swing.SwingUtilities.invokeAndWait(r);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return a frame of broad, gently shaded regions with a little noise,
+     *         more like a camera frame than randomImage's, for filling
+     */
+    static TOOLImage smoothImage(RobotDef def, Random rand) {
+        int w = def.imageWidth(), h = def.imageHeight();
+        byte[] raw = new byte[def.rawImageSize()];
+        int i = 0;
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x += 2) {
+                int cb = 128 + (int) (40 * Math.sin(y / 70.0));
+                int cr = 128 + (int) (40 * Math.cos(x / 60.0));
+                for (int k = 0; k < 2; k++) {
+                    int luma = 128 + (int) (60 * Math.sin((x + k) / 40.0) *
+                                            Math.cos(y / 50.0));
+                    raw[i + 2 * k] = (byte) (luma + rand.nextInt(9) - 4);
+                }
+                raw[i + 1] = (byte) cb;
+                raw[i + 3] = (byte) cr;
+                i += 4;
+            }
+        return new YUV422Image(raw, w, h);
+    }
+
+    static boolean sameImage(java.awt.image.BufferedImage a,
+                                     java.awt.image.BufferedImage b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+            return false;
+        for (int y = 0; y < a.getHeight(); y++)
+            for (int x = 0; x < a.getWidth(); x++)
+                if (a.getRGB(x, y) != b.getRGB(x, y))
+                    return false;
+        return true;
+    }
+
+    // Paints a random box (even e) or scatter of pixels, soft every third
+    static ColorTableUpdate randomEdit(ColorTable table, Random rand,
+                                              int e, int brush) {
+        ColorTableUpdate u = new ColorTableUpdate((byte)
+            (1 + rand.nextInt(Vision.COLORS.length - 1)));
+        if (e % 2 == 0) {
+            int y0 = rand.nextInt(table.getYDimension() - brush);
+            int u0 = rand.nextInt(table.getUDimension() - brush);
+            int v0 = rand.nextInt(table.getVDimension() - brush);
+            u.addBox(y0, y0 + brush - 1, u0, u0 + brush - 1,
+                     v0, v0 + brush - 1);
+        } else
+            for (int k = 0; k < brush * brush; k++)
+                u.addPixel(new int[] { rand.nextInt(256), rand.nextInt(256),
+                                       rand.nextInt(256) },
+                    Vision.GREY);
+        table.setSoftColors(e % 3 == 0);
+        table.modifyTable(u);
+        return u;
+    }
+
+    /**
+     * @return a large table of a few dozen boxes of color in an otherwise
+     *         undefined table, roughly what a calibrated table looks like,
+     *         with the given fraction of each box's entries left undefined
+     */
+    static ColorTable calibratedTable(Random rand, double holes)
+        throws IOException {
+        ColorTable table = new ColorTable(ColorTable.EMPTY,
+                                          ColorTable.Dimension.LARGE);
+        int[] bin = new int[3];
+        for (int box = 0; box < 40; box++) {
+            byte color = (byte) (1 + rand.nextInt(Vision.COLORS.length - 1));
+            int y0 = rand.nextInt(112), u0 = rand.nextInt(112),
+                v0 = rand.nextInt(112);
+            int size = 4 + rand.nextInt(12);
+            for (bin[0] = y0; bin[0] < y0 + size; bin[0]++)
+                for (bin[1] = v0; bin[1] < v0 + size; bin[1]++)
+                    for (bin[2] = u0; bin[2] < u0 + size; bin[2]++)
+                        table.setRawColor(bin, rand.nextDouble() < holes ?
+                                          Vision.GREY : color);
+        }
+        return table;
+    }
+
+    static ColorTable randomTable(Random rand) throws IOException {
+        ColorTable table = new ColorTable(ColorTable.EMPTY,
+                                          ColorTable.Dimension.LARGE);
+        int[] bin = new int[3];
+        for (bin[0] = 0; bin[0] < table.getYDimension(); bin[0]++)
+            for (bin[1] = 0; bin[1] < table.getUDimension(); bin[1]++)
+                for (bin[2] = 0; bin[2] < table.getVDimension(); bin[2]++)
+                    table.setRawColor(bin, (byte)
+                                      rand.nextInt(Vision.COLORS.length));
+        return table;
+    }
+
+    /**
+     * @return a frame of random pixels of the image class the given robot
+     *         type is loaded as
+     */
+    static TOOLImage randomImage(RobotDef def, Random rand) {
+        int w = def.imageWidth(), h = def.imageHeight();
+        byte[] raw = new byte[def.rawImageSize()];
+        rand.nextBytes(raw);
+
+        if (def == RobotDef.NAO_SIM_DEF)
+            return new RGBImage(raw, w, h);
+        else if (def == RobotDef.NAO_DEF || def == RobotDef.NAO_DEF_HIGH)
+            return new YUV422Image(raw, w, h);
+        else
+            return new YCbCrImage(raw, w, h);
+    }
+}
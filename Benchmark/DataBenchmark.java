@@ -0,0 +1,747 @@
+package Benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import TOOL.TOOLException;
+import TOOL.Data.ColorTableListener;
+import TOOL.Data.ColorTableSnapshotListener;
+import TOOL.Data.DataListener;
+import TOOL.Data.DataManager;
+import TOOL.Data.DataSet;
+import TOOL.Data.Frame;
+import TOOL.Data.FramePrefetcher;
+import TOOL.Data.LRUFrameCache;
+import TOOL.Data.RobotDef;
+import TOOL.Data.File.FileSet;
+import TOOL.Data.File.FrameLoader;
+import TOOL.Calibrate.ColorTableUpdate;
+import TOOL.Calibrate.ReadAhead;
+import TOOL.Image.ColorTable;
+import TOOL.Image.ColorTableSnapshot;
+import TOOL.Image.HistogramEngine;
+import TOOL.Image.ImageOverlay;
+import TOOL.Image.TOOLImage;
+import TOOL.Image.ThresholdEngine;
+import TOOL.Image.ThresholdedImage;
+import TOOL.Image.YUVHistogram;
+
+import static Benchmark.Benchmarks.*;
+
+/**
+ * Benchmarks of data sets and the DataManager: histograms of whole sets,
+ * Calibrate's read-ahead, the frame cache, prefetching, background loading
+ * and listener notification.  Frames are written to a temporary folder
+ * first, so no frames need be given.
+ *
+ * @author Northern Bites Team
+ * @see Benchmarks
+ */
+class DataBenchmark {
+
+    static final String MODES = "histogram readahead framecache prefetch " +
+        "asyncload dispatch";
+
+    /** Runs mode, if it is one of these. */
+    static boolean run(String mode, List<String> paths)
+        throws TOOLException, IOException {
+        if (mode.equals("histogram"))
+            benchmarkHistogram();
+        else if (mode.equals("readahead"))
+            benchmarkReadAhead();
+        else if (mode.equals("framecache"))
+            benchmarkFrameCache();
+        else if (mode.equals("prefetch"))
+            benchmarkPrefetch();
+        else if (mode.equals("asyncload"))
+            benchmarkAsyncLoad();
+        else if (mode.equals("dispatch"))
+            benchmarkDispatch();
+        else
+            return false;
+        return true;
+    }
+
+    /**
+     * Writes a data set of random Nao frames to the temporary directory and
+     * builds its histogram with HistogramEngine: within the default memory
+     * budget, within one too small for more than one worker, and from the
+     * cache.  Checks each against counting getYCbCr of every pixel.  Exits
+     * with status 1 if any differs.
+     */
+    private static void benchmarkHistogram()
+        throws IOException, TOOLException {
+        final int FRAMES = 120;
+        Random rand = new Random(2009);
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                            "benchmark-set");
+        List<TOOLImage> images = new ArrayList<TOOLImage>();
+        for (int i = 0; i < FRAMES; i++)
+            images.add(randomImage(RobotDef.NAO_DEF, rand));
+        FileSet set = writeFrameSet(dir, images);
+        set.load(FRAMES / 2); // one frame is read where the set has it
+        ColorTable table = new ColorTable(ColorTable.EMPTY,
+                                          ColorTable.Dimension.LARGE);
+        HistogramEngine.CACHE_PATH = new File(dir, "cache").getPath();
+
+        long a = System.nanoTime();
+        int[] expected = new int[table.getTableBuffer().length];
+        int[] yCbCr = new int[3];
+        for (int i = 0; i < FRAMES; i++) {
+            Frame f = new Frame(null, i);
+            FrameLoader.loadFrame(set.file(i), f);
+            TOOLImage img = f.image();
+            for (int y = 0; y < img.getHeight(); y++)
+                for (int x = 0; x < img.getWidth(); x++) {
+                    img.getYCbCr(x, y, yCbCr);
+                    expected[table.index(yCbCr[0] >> table.getYShift(),
+                                         yCbCr[2] >> table.getUShift(),
+                                         yCbCr[1] >> table.getVShift())]++;
+                }
+        }
+        long b = System.nanoTime();
+        System.out.printf("serial        %8.2f ms%n", (b - a) / 1e6);
+
+        boolean ok = true;
+        try {
+            long[] budgets = { HistogramEngine.DEFAULT_MEMORY_BUDGET,
+                               16L << 20 };
+            for (long budget : budgets) {
+                a = System.nanoTime();
+                YUVHistogram h = HistogramEngine.build(set, table, budget,
+                                                       false, null);
+                b = System.nanoTime();
+                boolean same = sameCounts(h, expected) &&
+                    h.getFrames() == FRAMES;
+                System.out.printf("budget %3d MB %8.2f ms  %s%n",
+                                  budget >> 20, (b - a) / 1e6,
+                                  same ? "identical" : "DIFFERENT");
+                ok &= same;
+            }
+
+            HistogramEngine.build(set, table, null);
+            File cached = HistogramEngine.cacheFile(
+                HistogramEngine.cacheKey(set, table));
+            a = System.nanoTime();
+            YUVHistogram h = HistogramEngine.build(set, table, null);
+            b = System.nanoTime();
+            boolean same = sameCounts(h, expected);
+            System.out.printf("cached        %8.2f ms  %d KB on disk  %s%n",
+                              (b - a) / 1e6, cached.length() / 1024,
+                              same ? "identical" : "DIFFERENT");
+            ok &= same;
+        } catch (InterruptedException e) {
+            ok = false;
+        }
+        set.unload(FRAMES / 2);
+
+        if (!ok) {
+            System.err.println("HistogramEngine counts differ");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Steps through a data set as Calibrate does, once getting each frame
+     * ready when it is shown and once taking it from a ReadAhead, with a
+     * pause on each frame for the read-ahead to work in.  Checks that every
+     * frame read ahead is the same as the one got ready on the spot, and
+     * that frames read ahead are refused once the table is edited.  Exits
+     * with status 1 if either check fails.
+     */
+    private static void benchmarkReadAhead()
+        throws IOException, TOOLException {
+        final int FRAMES = 40, DWELL = 40;
+        final int thresh = ImageOverlay.DEFAULT_THRESH;
+        Random rand = new Random(2009);
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                            "benchmark-readahead");
+        List<TOOLImage> images = new ArrayList<TOOLImage>();
+        for (int i = 0; i < FRAMES; i++)
+            images.add(smoothImage(RobotDef.NAO_DEF, rand));
+        FileSet set = writeFrameSet(dir, images);
+        ColorTable table = calibratedTable(rand, 0.3);
+
+        // what Calibrate did for each frame as it was shown
+        List<byte[]> expected = new ArrayList<byte[]>();
+        List<java.awt.image.BufferedImage[]> expectedImages =
+            new ArrayList<java.awt.image.BufferedImage[]>();
+        long sync = 0;
+        for (int pass = 0; pass < 2; pass++)
+            for (int i = 0; i < FRAMES; i++) {
+                set.load(i);
+                TOOLImage img = set.get(i).image();
+                long a = System.nanoTime();
+                ThresholdedImage colors = new ThresholdedImage(img, table);
+                colors.thresholdImage(table, img);
+                colors.indexBins();
+                ImageOverlay edges = new ImageOverlay(img.getWidth(),
+                                                      img.getHeight());
+                edges.generateNewEdgeImage(img);
+                java.awt.image.BufferedImage display = img.createImage();
+                long b = System.nanoTime();
+                set.unload(i);
+                if (pass == 0)
+                    continue;
+                sync += b - a;
+                expected.add(colors.getThresholdedBuffer().clone());
+                expectedImages.add(new java.awt.image.BufferedImage[] {
+                        display, edges });
+            }
+
+        ReadAhead readAhead = new ReadAhead();
+        long shown = 0;
+        boolean same = true;
+        for (int i = 0; i < FRAMES; i++) {
+            set.load(i);
+            Frame f = set.get(i);
+            long a = System.nanoTime();
+            ReadAhead.Prepared p = readAhead.take(f, table, thresh);
+            if (p == null) {
+                ColorTableSnapshot snapshot = table.snapshot();
+                p = ReadAhead.prepare(snapshot, thresh, f.image());
+                snapshot.release();
+            }
+            ThresholdedImage colors = new ThresholdedImage(f.image(), table);
+            colors.setThresholded(f.image(), table, p.getVersion(),
+                                  p.getThresholded(),
+                                  p.getBins(f.image()));
+            readAhead.prefetch(f, table, thresh);
+            long b = System.nanoTime();
+            shown += b - a;
+
+            same &= colors.isThresholded(f.image(), table) &&
+                Arrays.equals(p.getThresholded(), expected.get(i)) &&
+                sameImage(p.getDisplay(), expectedImages.get(i)[0]) &&
+                sameImage(p.getEdges(), expectedImages.get(i)[1]);
+            sleep(DWELL);
+            if (i > 0)
+                set.unload(i - 1);
+        }
+        System.out.printf("on the spot   %8.3f ms per frame%n",
+                          sync / 1e6 / FRAMES);
+        System.out.printf("read ahead    %8.3f ms per frame  %d of %d " +
+                          "frames ready  %s%n", shown / 1e6 / FRAMES,
+                          readAhead.getHits(), FRAMES,
+                          same ? "identical" : "DIFFERENT");
+
+        // an edit after the frames around are ready makes them stale
+        set.load(0);
+        readAhead.prefetch(set.get(0), table, thresh);
+        sleep(DWELL * ReadAhead.DEFAULT_RADIUS);
+        randomEdit(table, rand, 0, 12);
+        set.load(1);
+        boolean stale = readAhead.take(set.get(1), table, thresh) == null;
+        readAhead.prefetch(set.get(1), table, thresh);
+        sleep(DWELL * ReadAhead.DEFAULT_RADIUS);
+        set.load(2);
+        ReadAhead.Prepared p = readAhead.take(set.get(2), table, thresh);
+        byte[] now = new byte[p == null ? 0 : p.getThresholded().length];
+        if (p != null)
+            ThresholdEngine.threshold(table, set.get(2).image(), now);
+        boolean fresh = p != null && Arrays.equals(now, p.getThresholded());
+        System.out.printf("after an edit stale frame %s, fresh frame %s%n",
+                          stale ? "refused" : "TAKEN",
+                          fresh ? "current" : "NOT CURRENT");
+        readAhead.clear();
+        set.unload();
+
+        if (!same || !stale || !fresh) {
+            System.err.println("ReadAhead frames differ");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Scrubs back and forth through a data set as the DataManager does,
+     * once with the old cache of the last five frames loaded and once with
+     * an LRUFrameCache budgeted for as many bytes.  Counts the frames each
+     * reads from disk, and checks that every frame stepped to holds the
+     * image written and that the cache never goes over its budget.  Exits
+     * with status 1 if either check fails.
+     */
+    private static void benchmarkFrameCache()
+        throws IOException, TOOLException {
+        final int FRAMES = 40, LIMIT = 5, STEPS = 400;
+        Random rand = new Random(2009);
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                            "benchmark-framecache");
+        List<TOOLImage> images = new ArrayList<TOOLImage>();
+        for (int i = 0; i < FRAMES; i++)
+            images.add(smoothImage(RobotDef.NAO_DEF, rand));
+        writeFrameSet(dir, images);
+        List<byte[]> written = new ArrayList<byte[]>();
+        for (TOOLImage img : images)
+            written.add(img.getByteArray());
+
+        // forwards, backwards, then scrubbing a few frames either way
+        List<Integer> walk = new ArrayList<Integer>();
+        for (int i = 0; i < FRAMES; i++)
+            walk.add(i);
+        for (int i = FRAMES - 1; i >= 0; i--)
+            walk.add(i);
+        int at = FRAMES / 2;
+        for (int k = 0; k < STEPS; k++) {
+            at = Math.max(0, Math.min(FRAMES - 1,
+                                      at + rand.nextInt(7) - 3));
+            walk.add(at);
+        }
+
+        DataSet set = new FileSet(null, 0, dir.getPath(), "benchmark");
+        LinkedList<Frame> old = new LinkedList<Frame>();
+        int oldReads = 0;
+        boolean same = true;
+        long a = System.nanoTime();
+        for (int i : walk) {
+            Frame f = set.get(i);
+            if (!f.loaded()) {
+                if (old.size() >= LIMIT)
+                    old.remove().unload();
+                f.load();
+                old.add(f);
+                oldReads++;
+            }
+            same &= Arrays.equals(f.image().getByteArray(), written.get(i));
+        }
+        long oldTime = System.nanoTime() - a;
+        set.unload();
+
+        set = new FileSet(null, 0, dir.getPath(), "benchmark");
+        long budget = (long) LIMIT * images.get(0).getPixelBuffer().length;
+        LRUFrameCache cache = new LRUFrameCache(budget);
+        DataManager manager = new DataManager(cache);
+        boolean within = true;
+        a = System.nanoTime();
+        for (int i : walk) {
+            same &= manager.safeLoad(set, i, cache) &&
+                Arrays.equals(set.get(i).image().getByteArray(),
+                              written.get(i));
+            within &= cache.bytes() <= budget;
+        }
+        long newTime = System.nanoTime() - a;
+        set.unload();
+
+        System.out.printf("last %d frames  %5d read   %8.3f ms per step%n",
+                          LIMIT, oldReads, oldTime / 1e6 / walk.size());
+        System.out.printf("%4.1f MB budget %5d read   %8.3f ms per step  " +
+                          "%d held, %d restored  %s, %s%n",
+                          budget / 1048576.0, cache.getMisses(),
+                          newTime / 1e6 / walk.size(), cache.getHits(),
+                          cache.getRestores(),
+                          same ? "identical" : "DIFFERENT",
+                          within ? "within budget" : "OVER BUDGET");
+
+        if (!same || !within) {
+            System.err.println("LRUFrameCache frames differ");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Holds down the key for the next frame through a data set, as the
+     * DataManager is driven, once without reading ahead and once with the
+     * FramePrefetcher at its default depth, then jumps about and scrubs
+     * backwards.  Times each step, counts the steps served by the
+     * prefetcher, and checks that every frame stepped to holds the image
+     * written.  Exits with status 1 if it doesn't.
+     */
+    private static void benchmarkPrefetch()
+        throws IOException, TOOLException {
+        final int FRAMES = 60, REPEAT = 30;
+        Random rand = new Random(2009);
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                            "benchmark-prefetch");
+        List<TOOLImage> images = new ArrayList<TOOLImage>();
+        for (int i = 0; i < FRAMES; i++)
+            images.add(smoothImage(RobotDef.NAO_DEF, rand));
+        writeFrameSet(dir, images);
+        List<byte[]> written = new ArrayList<byte[]>();
+        for (TOOLImage img : images)
+            written.add(img.getByteArray());
+
+        boolean same = true;
+        for (int depth : new int[] { 0, FramePrefetcher.DEFAULT_DEPTH }) {
+            DataManager manager = new DataManager();
+            // each step waits for its frame, so times reading it
+            manager.setAsyncLoading(false);
+            FramePrefetcher prefetcher = manager.getPrefetcher();
+            prefetcher.setDepth(depth);
+            manager.useDataSet(new FileSet(null, 0, dir.getPath(),
+                                           "benchmark"));
+            long held = 0;
+            int steps = 0;
+            while (manager.hasElementAfter()) {
+                sleep(REPEAT);
+                long a = System.nanoTime();
+                manager.next();
+                held += System.nanoTime() - a;
+                steps++;
+                same &= Arrays.equals(manager.activeFrame().image()
+                                      .getByteArray(),
+                                      written.get(manager
+                                                  .activeFrameIndex()));
+            }
+            int heldServed = prefetcher.getServed();
+
+            // jump back, then step backwards two at a time
+            manager.set(FRAMES / 4);
+            long scrub = 0;
+            int back = 0;
+            for (int i = FRAMES / 4 + 1; i < FRAMES - 1; i += 7) {
+                manager.set(i);
+                for (int k = 0; k < 3 && manager.activeFrameIndex() > 1;
+                     k++) {
+                    sleep(REPEAT);
+                    long a = System.nanoTime();
+                    manager.advance(-2);
+                    scrub += System.nanoTime() - a;
+                    back++;
+                    same &= Arrays.equals(manager.activeFrame().image()
+                                          .getByteArray(),
+                                          written.get(manager
+                                                      .activeFrameIndex()));
+                }
+            }
+            System.out.printf("depth %d  held key %8.3f ms per step, %2d " +
+                              "of %d read ahead   scrubbing %8.3f ms per " +
+                              "step   %.0f%% of switches read ahead%n",
+                              depth, held / 1e6 / steps, heldServed, steps,
+                              scrub / 1e6 / back,
+                              100 * prefetcher.servedFraction());
+            manager.activeSet().unload();
+        }
+        System.out.println(same ? "identical" : "DIFFERENT");
+
+        if (!same) {
+            System.err.println("Prefetched frames differ");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Drags a slider through a data set whose frames take SLOW ms each to
+     * load, driving the DataManager on the Swing thread, once loading each
+     * frame there and once in the background.
+     * Times how long each step holds up the Swing thread, and counts the
+     * frames listeners are told of.  Checks that every frame they are told
+     * of is loaded, holds the image written, and comes after the one
+     * before, and that the last is the one the user stopped on.  Exits
+     * with status 1 if not.
+     */
+    private static void benchmarkAsyncLoad()
+        throws IOException, TOOLException {
+        final int FRAMES = 30, REPEAT = 30, SLOW = 60;
+        Random rand = new Random(2009);
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                            "benchmark-asyncload");
+        List<TOOLImage> images = new ArrayList<TOOLImage>();
+        for (int i = 0; i < FRAMES; i++)
+            images.add(smoothImage(RobotDef.NAO_DEF, rand));
+        writeFrameSet(dir, images);
+        final List<byte[]> written = new ArrayList<byte[]>();
+        for (TOOLImage img : images)
+            written.add(img.getByteArray());
+
+        boolean ok = true;
+        for (final boolean async : new boolean[] { false, true }) {
+            final DataManager manager = new DataManager();
+            manager.getPrefetcher().setDepth(0);
+            manager.setAsyncLoading(async);
+            final List<Integer> told = new ArrayList<Integer>();
+            final AtomicBoolean same = new AtomicBoolean(true);
+            manager.addDataListener(new DataListener() {
+                    public void notifyDataSet(DataSet s, Frame f) {}
+                    public void notifyFrame(Frame f) {
+                        told.add(f.index());
+                        byte[] expected = written.get(f.index());
+                        same.compareAndSet(true, f.loaded() &&
+                                           Arrays.equals(f.image()
+                                                         .getByteArray(),
+                                                         expected));
+                    }
+                });
+            final FileSet set = new FileSet(null, 0, dir.getPath(),
+                                             "benchmark") {
+                    public void load(int i) throws TOOLException {
+                        if (!loaded(i))
+                            sleep(SLOW);
+                        super.load(i);
+                    }
+                };
+            onSwing(new Runnable() {
+                    public void run() {
+                        manager.useDataSet(set);
+                    }
+                });
+
+            final long[] held = new long[2];
+            for (int k = 1; k < FRAMES; k++) {
+                final int i = k;
+                sleep(REPEAT);
+                onSwing(new Runnable() {
+                        public void run() {
+                            long a = System.nanoTime();
+                            manager.set(i);
+                            long t = System.nanoTime() - a;
+                            held[0] += t;
+                            held[1] = Math.max(held[1], t);
+                        }
+                    });
+            }
+            int steps = FRAMES - 1;
+            // let the last frame arrive
+            sleep(4 * SLOW);
+            onSwing(new Runnable() {
+                    public void run() {}
+                });
+
+            boolean ordered = true;
+            for (int k = 1; k < told.size(); k++)
+                ordered &= told.get(k) > told.get(k - 1);
+            boolean last = !told.isEmpty() &&
+                told.get(told.size() - 1) == FRAMES - 1;
+            System.out.printf("%-10s %8.3f ms per step, %8.3f ms at most " +
+                              "on the Swing thread   %2d frames shown  " +
+                              "%s%n", async ? "background" : "blocking",
+                              held[0] / 1e6 / steps, held[1] / 1e6,
+                              told.size(),
+                              same.get() && ordered && last ?
+                              "identical" : "DIFFERENT");
+            ok &= same.get() && ordered && last;
+            manager.activeSet().unload();
+        }
+
+        if (!ok) {
+            System.err.println("Frames loaded in the background differ");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Scrubs through a data set, and paints strokes into a table, faster
+     * than a slow listener keeps up with: queued on the Swing thread as
+     * key presses and strokes would be.  Once calling the listener straight
+     * away, as the DataManager did, then through the DataManager's
+     * dispatcher, with the listener on the Swing thread and on its own.
+     * Times how long the listener takes to catch up and how long the Swing
+     * thread is kept busy, and checks that the listener ends on the last
+     * frame, that its image thresholded by the updates, or in the
+     * background by the snapshots, it was given matches the final table,
+     * and that it is told of no edit once removed.  Exits with status 1 if
+     * not.
+     */
+    private static void benchmarkDispatch()
+        throws IOException, TOOLException {
+        final int STEPS = 100, FRAMES = STEPS + 1, STROKES = 200, GAP = 2;
+        final int SLOW = 10;
+        final Random rand = new Random(2009);
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                            "benchmark-dispatch");
+        List<TOOLImage> images = new ArrayList<TOOLImage>();
+        for (int i = 0; i < FRAMES; i++)
+            images.add(smoothImage(RobotDef.NAO_DEF, rand));
+        writeFrameSet(dir, images);
+        final TOOLImage image = smoothImage(RobotDef.NAO_DEF, rand);
+
+        boolean ok = true;
+        String[] names = { "direct", "Swing", "background" };
+        for (int run = 0; run < names.length; run++) {
+            final boolean direct = run == 0;
+            final DataManager manager = new DataManager();
+            manager.setAsyncLoading(false);
+            final FileSet set = new FileSet(null, 0, dir.getPath(),
+                                            "benchmark");
+            set.load();
+            onSwing(new Runnable() {
+                    public void run() {
+                        manager.useDataSet(set);
+                    }
+                });
+
+            // a listener which takes SLOW ms over each frame
+            final AtomicInteger seen = new AtomicInteger(-1);
+            final AtomicInteger frameCalls = new AtomicInteger();
+            final AtomicBoolean ordered = new AtomicBoolean(true);
+            final long[] caughtUp = new long[2];
+            final DataListener slow = new DataListener() {
+                    public void notifyDataSet(DataSet s, Frame f) {
+                        notifyFrame(f);
+                    }
+                    public void notifyFrame(Frame f) {
+                        sleep(SLOW);
+                        frameCalls.incrementAndGet();
+                        if (f.index() < seen.get())
+                            ordered.set(false);
+                        seen.set(f.index());
+                        caughtUp[0] = System.nanoTime();
+                    }
+                };
+
+            // and one which thresholds an image by each table edit, or in
+            // the background by the snapshot of the table it is handed
+            final ColorTable table = calibratedTable(new Random(7), 0.3);
+            final ThresholdedImage colors =
+                new ThresholdedImage(image, table);
+            colors.indexBins();
+            final byte[] painted = colors.getThresholdedBuffer().clone();
+            final AtomicInteger editCalls = new AtomicInteger();
+            // the table version painted last
+            final AtomicLong paintedVersion = new AtomicLong(-1);
+            // whether the background painter is to wait in its next call,
+            // and has
+            final AtomicBoolean hold = new AtomicBoolean();
+            final AtomicBoolean held = new AtomicBoolean();
+            final ColorTableListener painter = new ColorTableListener() {
+                    public void colorTableChanged(ColorTable source,
+                                                  ColorTableUpdate update,
+                                                  ColorTableListener o) {
+                        if (update == null)
+                            colors.thresholdImage(source, image);
+                        else
+                            colors.applyUpdate(update);
+                        System.arraycopy(colors.getThresholdedBuffer(), 0,
+                                         painted, 0, painted.length);
+                        paintedVersion.set(source.getVersion());
+                        editCalls.incrementAndGet();
+                        caughtUp[1] = System.nanoTime();
+                    }
+                };
+            final ColorTableSnapshotListener snapshotPainter =
+                new ColorTableSnapshotListener() {
+                    public void colorTableChanged(ColorTableSnapshot t,
+                                                  ColorTable source,
+                                                  ColorTableUpdate update,
+                                                  ColorTableListener o) {
+                        if (hold.get()) {
+                            held.set(true);
+                            while (hold.get())
+                                sleep(1);
+                        }
+                        ThresholdEngine.threshold(t, image, painted);
+                        paintedVersion.set(t.getVersion());
+                        editCalls.incrementAndGet();
+                        caughtUp[1] = System.nanoTime();
+                    }
+                };
+            if (!direct) {
+                manager.addDataListener(slow, run == 2);
+                if (run == 2)
+                    manager.addColorTableSnapshotListener(snapshotPainter);
+                else
+                    manager.addColorTableListener(painter);
+            }
+            // done with the first frame
+            sleep(10 * SLOW);
+            seen.set(0);
+            frameCalls.set(0);
+
+            final long[] busy = new long[1];
+            final Random edits = new Random(42);
+            long a = System.nanoTime();
+            for (int k = 1; k <= Math.max(STEPS, STROKES); k++) {
+                final int step = k;
+                javax.swing.SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            long t = System.nanoTime();
+                            if (step <= STEPS) {
+                                manager.set(step);
+                                if (direct)
+                                    slow.notifyFrame(manager.activeFrame());
+                            }
+                            if (step <= STROKES) {
+                                ColorTableUpdate u =
+                                    randomEdit(table, edits, step, 3);
+                                if (direct)
+                                    painter.colorTableChanged(table, u, null);
+                                else
+                                    manager.notifyColorTableDependants(table,
+                                                                      u,
+                                                                      null);
+                            }
+                            busy[0] += System.nanoTime() - t;
+                        }
+                    });
+                sleep(GAP);
+            }
+            // let the listeners catch up
+            int last = STEPS;
+            for (int wait = 0; wait < 1000 &&
+                     (seen.get() != last ||
+                      paintedVersion.get() != table.getVersion()); wait++)
+                sleep(10);
+            sleep(20 * SLOW);
+            onSwing(new Runnable() { public void run() {} });
+
+            byte[] expected = new byte[image.getWidth() * image.getHeight()];
+            ThresholdEngine.threshold(table, image, expected);
+            boolean same = seen.get() == last && ordered.get() &&
+                Arrays.equals(expected, painted);
+
+            System.out.printf("%-10s frames: %3d calls, caught up in %7.1f " +
+                              "ms   edits: %3d calls, caught up in %7.1f ms" +
+                              "   stepping and painting %7.1f ms  %s%n",
+                              names[run], frameCalls.get(),
+                              (caughtUp[0] - a) / 1e6, editCalls.get(),
+                              (caughtUp[1] - a) / 1e6, busy[0] / 1e6,
+                              same ? "identical" : "DIFFERENT");
+            if (!direct)
+                System.out.print(manager.listenerReport());
+
+            // an edit posted just before the painter is removed, which it
+            // must not be told of; in the background it is kept busy with
+            // an earlier edit meanwhile, which it goes on with
+            int calls = editCalls.get();
+            if (run == 2) {
+                hold.set(true);
+                onSwing(new Runnable() {
+                        public void run() {
+                            manager.notifyColorTableDependants(table, null,
+                                                               null);
+                        }
+                    });
+                for (int wait = 0; wait < 1000 && !held.get(); wait++)
+                    sleep(1);
+                calls++;
+            }
+            if (!direct) {
+                onSwing(new Runnable() {
+                        public void run() {
+                            manager.notifyColorTableDependants(table, null,
+                                                               null);
+                            manager.removeColorTableListener(painter);
+                            manager.removeColorTableSnapshotListener(
+                                snapshotPainter);
+                        }
+                    });
+                hold.set(false);
+                sleep(20 * SLOW);
+                onSwing(new Runnable() { public void run() {} });
+                if (editCalls.get() != calls) {
+                    System.out.println("removed listener still called");
+                    same = false;
+                }
+            }
+            ok &= same;
+        }
+
+        if (!ok) {
+            System.err.println("Dispatched frames or edits differ");
+            System.exit(1);
+        }
+    }
+
+    private static boolean sameCounts(YUVHistogram h, int[] expected) {
+        for (int i = 0; i < expected.length; i++)
+            if (h.getCount(i) != expected[i])
+                return false;
+        return true;
+    }
+}
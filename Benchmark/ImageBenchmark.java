@@ -0,0 +1,940 @@
+package Benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import TOOL.TOOLException;
+import TOOL.Data.RobotDef;
+import TOOL.Calibrate.BrushFill;
+import TOOL.Calibrate.ColorTableUpdate;
+import TOOL.Vision.Vision;
+import TOOL.Vision.TOOLVisionLink;
+import TOOL.Image.ColorTable;
+import TOOL.Image.ImageOverlay;
+import TOOL.Image.ImageOverlayAction;
+import TOOL.Image.ImagePanel;
+import TOOL.Image.RGBEngine;
+import TOOL.Image.TOOLImage;
+import TOOL.Image.ThresholdEngine;
+import TOOL.Image.ThresholdedImage;
+import TOOL.Image.ThresholdedImageOverlay;
+import TOOL.Image.YCbCrColorSpace;
+import TOOL.Image.YCbCrImage;
+import TOOL.Image.YUV422Image;
+
+import static Benchmark.Benchmarks.*;
+
+/**
+ * Benchmarks of the image classes: pixel layouts and allocation,
+ * thresholding, overlays, RGB conversion and the brush.  Modes which take
+ * frames load them with FrameLoader, so they measure the same code paths
+ * the TOOL uses when stepping through a data set.
+ *
+ * @author Northern Bites Team
+ * @see Benchmarks
+ */
+class ImageBenchmark {
+
+    static final String MODES = "layout alloc threshold stroke scrub " +
+        "overlay rgb brush";
+
+    /** Runs mode, if it is one of these; frames are loaded from paths. */
+    static boolean run(String mode, List<String> paths)
+        throws TOOLException, IOException {
+        // Thresholding runs on synthetic frames of every robot type, and on
+        // any real frames given as well
+        if (mode.equals("threshold"))
+            benchmarkThreshold(paths);
+        else if (mode.equals("stroke"))
+            benchmarkStroke(paths);
+        else if (mode.equals("scrub"))
+            benchmarkScrub(paths);
+        else if (mode.equals("overlay"))
+            benchmarkOverlay();
+        else if (mode.equals("rgb"))
+            benchmarkRGB();
+        else if (mode.equals("brush"))
+            benchmarkBrush();
+        else if (!mode.equals("layout") && !mode.equals("alloc"))
+            return false;
+        else if (paths.isEmpty())
+            System.err.println("No frames found");
+        else if (mode.equals("layout"))
+            benchmarkLayouts(paths);
+        else
+            benchmarkAllocation(paths);
+        return true;
+    }
+
+    /**
+     * Compares the old byte[h][w][3] pixel storage against the flat
+     * interleaved and planar buffers: heap taken by the pixel storage of
+     * each frame, and the time for a full-frame sweep reading every
+     * component of every pixel.
+     */
+    private static void benchmarkLayouts(List<String> paths)
+        throws TOOLException {
+        // Load planar so that the first repack below does real work
+        TOOLImage.setDefaultLayout(TOOLImage.PLANAR);
+        List<TOOLImage> images = loadImages(paths);
+        TOOLImage.setDefaultLayout(TOOLImage.INTERLEAVED);
+
+        // Nested arrays, as the images used to be stored
+        long start = allocatedBytes();
+        List<byte[][][]> nested = new ArrayList<byte[][][]>();
+        for (TOOLImage img : images)
+            nested.add(img.getPixels());
+        long nestedBytes = allocatedBytes() - start;
+        report("nested", nestedBytes, images.size(), sweepNested(nested));
+        nested = null;
+
+        // Repacking allocates exactly one new buffer per image
+        start = allocatedBytes();
+        for (TOOLImage img : images)
+            img.setLayout(TOOLImage.INTERLEAVED);
+        long interleavedBytes = allocatedBytes() - start;
+        report("interleaved", interleavedBytes, images.size(),
+               sweepFlat(images));
+
+        start = allocatedBytes();
+        for (TOOLImage img : images)
+            img.setLayout(TOOLImage.PLANAR);
+        long planarBytes = allocatedBytes() - start;
+        report("planar", planarBytes, images.size(), sweepFlat(images));
+    }
+
+    private static void report(String name, long bytes, int frames,
+                               double nsPerPixel) {
+        System.out.printf("%-12s %10d bytes/frame  %6.2f ns/pixel%n",
+                          name, bytes / frames, nsPerPixel);
+    }
+
+    private static double sweepNested(List<byte[][][]> frames) {
+        long sum = 0, pixelsSwept = 0, elapsed = 0;
+        for (int pass = 0; pass < WARMUP_PASSES + TIMED_PASSES; pass++) {
+            long start = System.nanoTime();
+            for (byte[][][] p : frames)
+                for (int y = 0; y < p.length; y++)
+                    for (int x = 0; x < p[y].length; x++)
+                        sum += (p[y][x][0] & 0xff) + (p[y][x][1] & 0xff) +
+                            (p[y][x][2] & 0xff);
+            if (pass >= WARMUP_PASSES) {
+                elapsed += System.nanoTime() - start;
+                for (byte[][][] p : frames)
+                    pixelsSwept += p.length * p[0].length;
+            }
+        }
+        sink += sum;
+        return (double) elapsed / pixelsSwept;
+    }
+
+    private static double sweepFlat(List<TOOLImage> frames) {
+        long sum = 0, pixelsSwept = 0, elapsed = 0;
+        for (int pass = 0; pass < WARMUP_PASSES + TIMED_PASSES; pass++) {
+            long start = System.nanoTime();
+            for (TOOLImage img : frames)
+                for (int y = 0; y < img.getHeight(); y++)
+                    for (int x = 0; x < img.getWidth(); x++)
+                        sum += img.getComponent(x, y, 0) +
+                            img.getComponent(x, y, 1) +
+                            img.getComponent(x, y, 2);
+            if (pass >= WARMUP_PASSES) {
+                elapsed += System.nanoTime() - start;
+                for (TOOLImage img : frames)
+                    pixelsSwept += img.getWidth() * img.getHeight();
+            }
+        }
+        sink += sum;
+        return (double) elapsed / pixelsSwept;
+    }
+
+    /**
+     * Bytes allocated per frame by thresholding and edge detection, using
+     * the old allocating getYCbCr(x,y) loops and the current fill-in-place
+     * and packed accessors.  The JIT can scalar-replace the old arrays in a
+     * loop this small; run with -XX:-DoEscapeAnalysis to see what the
+     * call sites inside the TOOL actually pay.
+     */
+    private static void benchmarkAllocation(List<String> paths)
+        throws TOOLException, IOException {
+        List<TOOLImage> images = loadImages(paths);
+        ColorTable table = new ColorTable(ColorTable.EMPTY,
+                                          ColorTable.Dimension.LARGE);
+
+        // Warm up both paths so that class loading and JIT are not counted
+        for (int pass = 0; pass < WARMUP_PASSES; pass++)
+            for (TOOLImage img : images) {
+                thresholdAllocating(img, table);
+                new ThresholdedImage(img, table);
+                edgesAllocating(img, new ImageOverlay(img.getWidth(),
+                                                      img.getHeight()));
+            }
+
+        long oldThresh = 0, newThresh = 0, oldEdges = 0, newEdges = 0;
+        for (TOOLImage img : images) {
+            ThresholdedImage thresh =
+                new ThresholdedImage(img.getWidth(), img.getHeight());
+            ImageOverlay overlay = new ImageOverlay(img.getWidth(),
+                                                    img.getHeight());
+
+            long start = allocatedBytes();
+            thresholdAllocating(img, table);
+            oldThresh += allocatedBytes() - start;
+
+            start = allocatedBytes();
+            thresh.thresholdImage(table, img);
+            newThresh += allocatedBytes() - start;
+
+            start = allocatedBytes();
+            edgesAllocating(img, overlay);
+            oldEdges += allocatedBytes() - start;
+
+            start = allocatedBytes();
+            overlay.generateEdgeImage(img);
+            newEdges += allocatedBytes() - start;
+        }
+
+        int n = images.size();
+        System.out.printf("threshold  before %10d bytes/frame  after %8d%n",
+                          oldThresh / n, newThresh / n);
+        System.out.printf("edges      before %10d bytes/frame  after %8d%n",
+                          oldEdges / n, newEdges / n);
+    }
+
+    private static byte thresholdAllocating(TOOLImage img, ColorTable table) {
+        byte last = 0;
+        for (int y = 0; y < img.getHeight(); y++)
+            for (int x = 0; x < img.getWidth(); x++)
+                last = table.getColor(img.getYCbCr(x, y));
+        return last;
+    }
+
+    private static void edgesAllocating(TOOLImage img, ImageOverlay overlay) {
+        for (int x = 0; x < img.getWidth(); x++) {
+            int[] last = img.getYCbCr(x, 0);
+            for (int y = 0; y < img.getHeight(); y++) {
+                int[] next = img.getYCbCr(x, y);
+                overlay.isTransition(last, next);
+                last = next;
+            }
+        }
+        for (int y = 0; y < img.getHeight(); y++) {
+            int[] last = img.getYCbCr(0, y);
+            for (int x = 0; x < img.getWidth(); x++) {
+                int[] next = img.getYCbCr(x, y);
+                overlay.isTransition(last, next);
+                last = next;
+            }
+        }
+    }
+
+    /**
+     * Checks ThresholdEngine against the per-pixel getColor(getYCbCr()) path
+     * on a random table, for a random frame of every RobotDef image type in
+     * both pixel layouts, then times both paths.  Exits with status 1 if any
+     * pixel differs.
+     */
+    private static void benchmarkThreshold(List<String> paths)
+        throws TOOLException, IOException {
+        Random rand = new Random(2009);
+        ColorTable table = randomTable(rand);
+
+        RobotDef[] defs = { RobotDef.ERS7_DEF, RobotDef.ERS220_DEF,
+                            RobotDef.NAO_DEF, RobotDef.NAO_DEF_HIGH,
+                            RobotDef.NAO_SIM_DEF };
+        int[] layouts = { TOOLImage.INTERLEAVED, TOOLImage.PLANAR };
+
+        List<TOOLImage> images = new ArrayList<TOOLImage>();
+        for (int l : layouts) {
+            TOOLImage.setDefaultLayout(l);
+            for (RobotDef def : defs)
+                images.add(randomImage(def, rand));
+        }
+        TOOLImage.setDefaultLayout(TOOLImage.INTERLEAVED);
+        images.addAll(loadImages(paths));
+
+        boolean ok = true;
+        for (TOOLImage img : images) {
+            byte[] expected = new byte[img.getWidth() * img.getHeight()];
+            byte[] actual = new byte[expected.length];
+            thresholdPerPixel(table, img, expected);
+            ThresholdEngine.threshold(table, img, actual);
+
+            boolean same = java.util.Arrays.equals(expected, actual);
+            ok &= same;
+
+            long perPixel = 0, engine = 0;
+            for (int pass = 0; pass < WARMUP_PASSES + TIMED_PASSES; pass++) {
+                long start = System.nanoTime();
+                thresholdPerPixel(table, img, expected);
+                long mid = System.nanoTime();
+                ThresholdEngine.threshold(table, img, actual);
+                long end = System.nanoTime();
+                if (pass >= WARMUP_PASSES) {
+                    perPixel += mid - start;
+                    engine += end - mid;
+                }
+            }
+            System.out.printf("%-14s %3dx%-3d %-11s %s  per-pixel %7.3f ms" +
+                              "  engine %7.3f ms%n",
+                              img.getClass().getSimpleName(),
+                              img.getWidth(), img.getHeight(),
+                              img.getLayout() == TOOLImage.PLANAR ?
+                              "planar" : "interleaved",
+                              same ? "identical" : "DIFFERENT",
+                              perPixel / 1e6 / TIMED_PASSES,
+                              engine / 1e6 / TIMED_PASSES);
+        }
+
+        if (!ok) {
+            System.err.println("ThresholdEngine output differs");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Simulates Calibrate brush strokes: each stroke recolors the table
+     * entries under a small square of pixels, then the thresholded image is
+     * brought up to date with ThresholdedImage.applyUpdate.  Every stroke is
+     * checked against thresholding the whole frame again, including strokes
+     * of raw table coordinates as ColorTable.fillHoles makes and boxes as
+     * ColorEdit makes.  Exits with
+     * status 1 if any pixel differs.
+     */
+    private static void benchmarkStroke(List<String> paths)
+        throws TOOLException, IOException {
+        final int STROKES = 200, BRUSH = 5;
+        Random rand = new Random(2009);
+
+        List<TOOLImage> images = new ArrayList<TOOLImage>();
+        images.add(randomImage(RobotDef.ERS7_DEF, rand));
+        images.add(randomImage(RobotDef.NAO_DEF, rand));
+        images.addAll(loadImages(paths));
+
+        boolean ok = true;
+        for (TOOLImage img : images) {
+            ColorTable table = randomTable(rand);
+            ThresholdedImage thresh = new ThresholdedImage(img, table);
+            byte[] expected = new byte[img.getWidth() * img.getHeight()];
+
+            long start = System.nanoTime();
+            thresh.indexBins();
+            long index = System.nanoTime() - start;
+
+            long incremental = 0, full = 0, changed = 0;
+            boolean same = true;
+            for (int s = 0; s < STROKES; s++) {
+                ColorTableUpdate u = new ColorTableUpdate((byte)
+                    rand.nextInt(Vision.COLORS.length));
+                if (s % 10 == 9) {
+                    u.setRaw(true);
+                    for (int k = 0; k < BRUSH * BRUSH; k++)
+                        u.addPixel(new int[] {
+                                rand.nextInt(table.getYDimension()),
+                                rand.nextInt(table.getVDimension()),
+                                rand.nextInt(table.getUDimension()) },
+                            Vision.GREY);
+                    table.modifyTableDirectly(u);
+                } else if (s % 10 == 4) {
+                    // a box of entries, as ColorEdit's rectangle tool makes
+                    int y0 = rand.nextInt(table.getYDimension() - BRUSH);
+                    int u0 = rand.nextInt(table.getUDimension() - BRUSH);
+                    int v0 = rand.nextInt(table.getVDimension() - BRUSH);
+                    u.addBox(y0, y0 + BRUSH - 1, u0, u0 + BRUSH - 1,
+                             v0, v0 + BRUSH - 1);
+                    table.modifyTable(u);
+                } else {
+                    int x0 = rand.nextInt(img.getWidth() - BRUSH);
+                    int y0 = rand.nextInt(img.getHeight() - BRUSH);
+                    for (int y = y0; y < y0 + BRUSH; y++)
+                        for (int x = x0; x < x0 + BRUSH; x++)
+                            u.addPixel(img.getYCbCr(x, y), Vision.GREY);
+                    table.modifyTable(u);
+                }
+
+                long a = System.nanoTime();
+                java.awt.Rectangle dirty = thresh.applyUpdate(u);
+                long b = System.nanoTime();
+                ThresholdEngine.threshold(table, img, expected);
+                long c = System.nanoTime();
+                incremental += b - a;
+                full += c - b;
+                if (dirty != null)
+                    changed += dirty.width * dirty.height;
+
+                same &= java.util.Arrays.equals(expected,
+                                                thresh.getThresholdedBuffer());
+            }
+            ok &= same;
+
+            System.out.printf("%-14s %3dx%-3d %s  index %7.3f ms" +
+                              "  stroke %7.3f ms  full %7.3f ms" +
+                              "  dirty %5.1f%%%n",
+                              img.getClass().getSimpleName(),
+                              img.getWidth(), img.getHeight(),
+                              same ? "identical" : "DIFFERENT",
+                              index / 1e6,
+                              incremental / 1e6 / STROKES,
+                              full / 1e6 / STROKES,
+                              100.0 * changed / STROKES /
+                              (img.getWidth() * img.getHeight()));
+        }
+
+        if (!ok) {
+            System.err.println("Incremental thresholding differs");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Frames per second when stepping through a 1,000 frame NAO data set
+     * with an unchanged color table.  Each frame is thresholded the way
+     * ProcessedImage does it, once handing the vision link a fresh copy of
+     * the table per frame as it used to, and once only when the table's
+     * version differs from the one the link holds.  The given frames are
+     * cycled to make up 1,000; with none, synthetic NAO frames are used.
+     * Without the native library only the Java side is timed.
+     */
+    private static void benchmarkScrub(List<String> paths)
+        throws TOOLException, IOException {
+        final int FRAMES = 1000;
+        Random rand = new Random(2009);
+        ColorTable table = randomTable(rand);
+        TOOLVisionLink link = new TOOLVisionLink();
+
+        List<TOOLImage> images = loadImages(paths);
+        if (images.isEmpty())
+            for (int i = 0; i < 10; i++)
+                images.add(randomImage(RobotDef.NAO_DEF, rand));
+
+        if (!link.isLinkActive())
+            System.out.println("Vision link not loaded; timing the Java" +
+                               " side of each frame only");
+
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int f = 0; f < FRAMES; f++) {
+                TOOLImage img = images.get(f % images.size());
+                byte[] rawTable = new byte[table.getYDimension() *
+                                           table.getUDimension() *
+                                           table.getVDimension()];
+                table.writeByteArray(rawTable);
+                link.uploadTable(rawTable, -1);
+                new ThresholdedImage(img, table);
+            }
+            long mid = System.nanoTime();
+            for (int f = 0; f < FRAMES; f++) {
+                TOOLImage img = images.get(f % images.size());
+                if (link.getTableVersion() != table.getVersion())
+                    link.uploadTable(table.getTableBuffer(),
+                                     table.getVersion());
+                new ThresholdedImage(img, table);
+            }
+            long end = System.nanoTime();
+
+            // the first pass warms up
+            if (pass == 0)
+                continue;
+            System.out.printf("%d frames  table per frame %7.1f fps" +
+                              "  versioned table %7.1f fps%n", FRAMES,
+                              FRAMES / ((mid - start) / 1e9),
+                              FRAMES / ((end - mid) / 1e9));
+        }
+    }
+
+    /**
+     * Calibrate brush strokes on a smoothly shaded 640x480 NAO frame at a
+     * range of brush sizes: the pixels found, the ColorTableUpdate and the
+     * ImageOverlayAction built, first by the old recursive fill, then by
+     * BrushFill, whose whole stroke (the table and overlay changed too) is
+     * also timed.  Exits with status 1 if the two fills find different
+     * pixels; a recursive fill which overflows the stack is reported as
+     * such.
+     */
+    /**
+     * Times the edge overlay against the old two-pass, setRGB version, for
+     * a new frame and for each step of the threshold slider.  Then times
+     * refreshing and repainting (at twice the size, as ImagePanel scales)
+     * the thresholded image and the overlays as indexed images against the
+     * old int RGB ones, and counts the bytes each keeps per open image.
+     * Exits with status 1 if any image looks different.
+     */
+    private static void benchmarkOverlay() throws IOException {
+        final int PASSES = 20;
+        Random rand = new Random(2009);
+        ColorTable table = calibratedTable(rand, 0.3);
+        boolean ok = true;
+
+        for (RobotDef def : new RobotDef[] { RobotDef.NAO_DEF,
+                                             RobotDef.NAO_DEF_HIGH }) {
+            TOOLImage img = smoothImage(def, rand);
+            int width = img.getWidth(), height = img.getHeight();
+            System.out.println(width + "x" + height);
+
+            // edges of a new frame
+            java.awt.image.BufferedImage oldOverlay =
+                new java.awt.image.BufferedImage(
+                    width, height, java.awt.image.BufferedImage.TYPE_INT_ARGB);
+            byte[][] oldPixels = null;
+            ImageOverlay overlay = new ImageOverlay(width, height);
+            long old = 0, fresh = 0;
+            for (int pass = 0; pass < WARMUP_PASSES + PASSES; pass++) {
+                long a = System.nanoTime();
+                oldPixels = oldEdges(img, ImageOverlay.DEFAULT_THRESH,
+                                     oldOverlay);
+                long b = System.nanoTime();
+                overlay.generateNewEdgeImage(img);
+                long c = System.nanoTime();
+                if (pass >= WARMUP_PASSES) {
+                    old += b - a;
+                    fresh += c - b;
+                }
+            }
+            boolean same = sameImage(oldOverlay, overlay);
+            for (int x = 0; x < width && same; x++)
+                for (int y = 0; y < height; y++)
+                    same &= oldPixels[x][y] == overlay.getThreshColor(x, y);
+            System.out.printf("  new frame edges %8.3f ms -> %8.3f ms  %s%n",
+                              old / 1e6 / PASSES, fresh / 1e6 / PASSES,
+                              same ? "identical" : "DIFFERENT");
+            ok &= same;
+
+            // a sweep of the slider, keeping a brush stroke
+            for (int x = width / 4; x < width / 2; x++)
+                for (int y = height / 4; y < height / 2; y++) {
+                    overlay.setOverlay(x, y, (byte) 2);
+                    oldPixels[x][y] = 2;
+                    oldOverlay.setRGB(x, y, Vision.COLORS[2].getRGB());
+                }
+            int steps = 0;
+            for (int sweep = 0; sweep < 2; sweep++) {
+                // the first sweep warms up
+                old = fresh = 0;
+                steps = 0;
+                for (int t = ImageOverlay.MIN_THRESH;
+                     t <= ImageOverlay.MAX_THRESH; t++, steps++) {
+                    long a = System.nanoTime();
+                    oldRegenerate(img, t, oldPixels, oldOverlay);
+                    long b = System.nanoTime();
+                    overlay.setEdgeThresh(t);
+                    overlay.regenerateEdgeImage(img);
+                    long c = System.nanoTime();
+                    old += b - a;
+                    fresh += c - b;
+                }
+            }
+            same = sameImage(oldOverlay, overlay);
+            for (int x = 0; x < width && same; x++)
+                for (int y = 0; y < height; y++)
+                    same &= oldPixels[x][y] == overlay.getThreshColor(x, y);
+            System.out.printf("  slider step     %8.3f ms -> %8.3f ms  %s%n",
+                              old / 1e6 / steps, fresh / 1e6 / steps,
+                              same ? "identical" : "DIFFERENT");
+            ok &= same;
+
+            // the thresholded image, as a new frame is shown
+            ThresholdedImage colors = new ThresholdedImage(img, table);
+            java.awt.image.BufferedImage oldColors =
+                new java.awt.image.BufferedImage(
+                    width, height, java.awt.image.BufferedImage.TYPE_INT_RGB);
+            java.awt.image.BufferedImage newColors = null;
+            old = fresh = 0;
+            for (int pass = 0; pass < WARMUP_PASSES + PASSES; pass++) {
+                long a = System.nanoTime();
+                byte[] buf = colors.getThresholdedBuffer();
+                for (int y = 0, i = 0; y < height; y++)
+                    for (int x = 0; x < width; x++)
+                        oldColors.setRGB(x, y,
+                                         Vision.COLORS[buf[i++]].getRGB());
+                long b = System.nanoTime();
+                newColors = colors.createImage();
+                long c = System.nanoTime();
+                if (pass >= WARMUP_PASSES) {
+                    old += b - a;
+                    fresh += c - b;
+                }
+            }
+            same = sameImage(oldColors, newColors);
+            System.out.printf("  thresholded     %8.3f ms -> %8.3f ms  %s%n",
+                              old / 1e6 / PASSES, fresh / 1e6 / PASSES,
+                              same ? "identical" : "DIFFERENT");
+            ok &= same;
+
+            // clearing the vision objects' overlay before drawing them
+            ThresholdedImageOverlay objects =
+                new ThresholdedImageOverlay(width, height);
+            java.awt.image.BufferedImage oldObjects =
+                new java.awt.image.BufferedImage(
+                    width, height, java.awt.image.BufferedImage.TYPE_INT_ARGB);
+            old = fresh = 0;
+            for (int pass = 0; pass < WARMUP_PASSES + PASSES; pass++) {
+                long a = System.nanoTime();
+                for (int x = 0; x < width; x++)
+                    for (int y = 0; y < height; y++)
+                        oldObjects.setRGB(x, y, 0x0);
+                long b = System.nanoTime();
+                objects.resetPixels();
+                long c = System.nanoTime();
+                if (pass >= WARMUP_PASSES) {
+                    old += b - a;
+                    fresh += c - b;
+                }
+            }
+            for (byte c = 0; c < Vision.COLORS.length; c++) {
+                java.awt.Graphics2D g = oldObjects.createGraphics();
+                g.setColor(new java.awt.Color(Vision.COLORS[c].getRGB()));
+                g.drawRect(2 * c, 2 * c, width / 2, height / 2);
+                g.dispose();
+                objects.drawRectangle(2 * c + 1, 2 * c + 1, width / 2 - 2,
+                                      height / 2 - 2, (byte) 1, c);
+            }
+            same = sameImage(oldObjects, objects);
+            System.out.printf("  objects reset   %8.3f ms -> %8.3f ms  %s%n",
+                              old / 1e6 / PASSES, fresh / 1e6 / PASSES,
+                              same ? "identical" : "DIFFERENT");
+            ok &= same;
+
+            // repainting both panes at twice the size
+            java.awt.image.BufferedImage screen =
+                new java.awt.image.BufferedImage(
+                    2 * width, 2 * height,
+                    java.awt.image.BufferedImage.TYPE_INT_RGB);
+            java.awt.image.AffineTransformOp scale =
+                new java.awt.image.AffineTransformOp(
+                    java.awt.geom.AffineTransform.getScaleInstance(2, 2),
+                    ImagePanel.INTERPOLATION_TYPE);
+            java.awt.image.BufferedImage display = img.createImage();
+            old = fresh = 0;
+            for (int pass = 0; pass < WARMUP_PASSES + PASSES; pass++) {
+                java.awt.Graphics2D g = screen.createGraphics();
+                long a = System.nanoTime();
+                g.drawImage(display, scale, 0, 0);
+                g.drawImage(oldOverlay, scale, 0, 0);
+                g.drawImage(oldColors, scale, 0, 0);
+                g.drawImage(oldObjects, scale, 0, 0);
+                long b = System.nanoTime();
+                g.drawImage(display, scale, 0, 0);
+                g.drawImage(overlay, scale, 0, 0);
+                g.drawImage(newColors, scale, 0, 0);
+                g.drawImage(objects, scale, 0, 0);
+                long c = System.nanoTime();
+                g.dispose();
+                if (pass >= WARMUP_PASSES) {
+                    old += b - a;
+                    fresh += c - b;
+                }
+            }
+            System.out.printf("  repaint         %8.3f ms -> %8.3f ms%n",
+                              old / 1e6 / PASSES, fresh / 1e6 / PASSES);
+
+            // edge overlay with its byte[width][height] copy, thresholded
+            // image, objects overlay
+            long oldBytes = 4L * width * height +
+                width * (16L + ((height + 7) & ~7)) +
+                4L * width * height + 4L * width * height;
+            long newBytes = 2L * width * height;
+            System.out.printf("  heap per image  %8d KB -> %8d KB%n",
+                              oldBytes / 1024, newBytes / 1024);
+        }
+
+        if (!ok) {
+            System.err.println("Overlay images differ");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Times converting frames to RGB for display through RGBEngine against
+     * the old YCbCrColorSpace.toRGB and setRGB loop, for an Aibo frame and
+     * Nao frames at both sizes.  Then checks the engine's tables against
+     * toRGB for every Y, Cb, Cr triple.  toRGB works in doubles, which now
+     * and then round an exact result down a level; exits with status 1 if
+     * the two differ by more than that anywhere.
+     */
+    private static void benchmarkRGB() {
+        final int PASSES = 20;
+        Random rand = new Random(2009);
+        List<TOOLImage> images = new ArrayList<TOOLImage>();
+        images.add(randomImage(RobotDef.ERS7_DEF, rand));
+        images.add(randomImage(RobotDef.NAO_DEF, rand));
+        images.add(smoothImage(RobotDef.NAO_DEF, rand));
+        images.add(randomImage(RobotDef.NAO_DEF_HIGH, rand));
+        images.add(smoothImage(RobotDef.NAO_DEF_HIGH, rand));
+        boolean ok = true;
+
+        for (TOOLImage img : images) {
+            int width = img.getWidth(), height = img.getHeight();
+            java.awt.image.BufferedImage oldRGB =
+                new java.awt.image.BufferedImage(
+                    width, height, java.awt.image.BufferedImage.TYPE_INT_RGB);
+            java.awt.image.BufferedImage newRGB = img.createImage();
+            long old = 0, fresh = 0;
+            for (int pass = 0; pass < WARMUP_PASSES + PASSES; pass++) {
+                long a = System.nanoTime();
+                oldToRGB(img, oldRGB);
+                long b = System.nanoTime();
+                redraw(img, newRGB);
+                long c = System.nanoTime();
+                if (pass >= WARMUP_PASSES) {
+                    old += b - a;
+                    fresh += c - b;
+                }
+            }
+            int differ = 0, worst = 0;
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++) {
+                    int d = levels(oldRGB.getRGB(x, y), newRGB.getRGB(x, y));
+                    if (d > 0)
+                        differ++;
+                    worst = Math.max(worst, d);
+                }
+            System.out.printf("%-13s %3dx%3d  %8.3f ms -> %8.3f ms  " +
+                              "%d pixels a level apart%n",
+                              img.getClass().getSimpleName(), width, height,
+                              old / 1e6 / PASSES, fresh / 1e6 / PASSES,
+                              differ);
+            ok &= worst <= 1;
+        }
+
+        YCbCrColorSpace cs = new YCbCrColorSpace();
+        int[] rgb = new int[3];
+        int differ = 0, worst = 0;
+        for (int y = 0; y < 256; y++)
+            for (int cb = 0; cb < 256; cb++)
+                for (int cr = 0; cr < 256; cr++) {
+                    cs.toRGB(y, cb, cr, rgb);
+                    int d = levels(rgb[0] << 16 | rgb[1] << 8 | rgb[2],
+                                   RGBEngine.toRGB(y, cb, cr));
+                    if (d > 0)
+                        differ++;
+                    worst = Math.max(worst, d);
+                }
+        System.out.printf("all triples: %d of %d a level apart, " +
+                          "none further: %s%n", differ, 1 << 24,
+                          worst <= 1 ? "yes" : "NO");
+        ok &= worst <= 1;
+
+        if (!ok) {
+            System.err.println("RGB conversion differs");
+            System.exit(1);
+        }
+    }
+
+    // The old initImage of YCbCrImage and YUV422Image
+    private static void oldToRGB(TOOLImage img,
+                                 java.awt.image.BufferedImage out) {
+        java.awt.image.ColorModel cm = out.getColorModel();
+        YCbCrColorSpace cs = YCbCrImage.COLOR_SPACE;
+        int[] rgb = new int[3];
+        for (int y = 0; y < img.getHeight(); y++)
+            for (int x = 0; x < img.getWidth(); x++) {
+                cs.toRGB(img.getComponent(x, y, 0),
+                         img.getComponent(x, y, 1),
+                         img.getComponent(x, y, 2), rgb);
+                out.setRGB(x, y, cm.getDataElement(rgb, 0));
+            }
+    }
+
+    // initImage is only public where the image classes override it
+    private static void redraw(TOOLImage img,
+                               java.awt.image.BufferedImage out) {
+        if (img instanceof YUV422Image)
+            ((YUV422Image) img).initImage(out);
+        else
+            ((YCbCrImage) img).initImage(out);
+    }
+
+    // The most any of two RGB pixels' components differ by
+    private static int levels(int a, int b) {
+        int d = 0;
+        for (int shift = 0; shift < 24; shift += 8)
+            d = Math.max(d, Math.abs(((a >> shift) & 0xff) -
+                                     ((b >> shift) & 0xff)));
+        return d;
+    }
+
+    // The old ImageOverlay.generateNewEdgeImage: a fresh byte[x][y], the
+    // image cleared with setRGB, then a vertical and a horizontal scan
+    private static byte[][] oldEdges(TOOLImage img, int thresh,
+                                     java.awt.image.BufferedImage overlay) {
+        int width = img.getWidth(), height = img.getHeight();
+        byte[][] pixels = new byte[width][height];
+        for (int x = 0; x < width; x++)
+            for (int y = 0; y < height; y++) {
+                pixels[x][y] = -1;
+                overlay.setRGB(x, y, 0x0);
+            }
+        oldScan(img, thresh, pixels, overlay);
+        return pixels;
+    }
+
+    private static void oldRegenerate(TOOLImage img, int thresh,
+                                      byte[][] pixels,
+                                      java.awt.image.BufferedImage overlay) {
+        byte edge = (byte) Vision.COLORS.length;
+        for (int x = 0; x < img.getWidth(); x++)
+            for (int y = 0; y < img.getHeight(); y++)
+                if (pixels[x][y] == edge) {
+                    pixels[x][y] = -1;
+                    overlay.setRGB(x, y, 0x0);
+                }
+        oldScan(img, thresh, pixels, overlay);
+    }
+
+    private static void oldScan(TOOLImage img, int thresh, byte[][] pixels,
+                                java.awt.image.BufferedImage overlay) {
+        int width = img.getWidth(), height = img.getHeight();
+        byte edge = (byte) Vision.COLORS.length;
+        ImageOverlay test = new ImageOverlay(1, 1);
+        test.setEdgeThresh(thresh);
+        for (int x = 0; x < width; x++) {
+            int last = img.getYCbCrPacked(x, 0);
+            for (int y = 0; y < height; y++) {
+                int p = img.getYCbCrPacked(x, y);
+                if (test.isTransition(last, p)) {
+                    pixels[x][y] = edge;
+                    overlay.setRGB(x, y, java.awt.Color.black.getRGB());
+                }
+                last = p;
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            int last = img.getYCbCrPacked(0, y);
+            for (int x = 0; x < width; x++) {
+                int p = img.getYCbCrPacked(x, y);
+                if (test.isTransition(last, p)) {
+                    pixels[x][y] = edge;
+                    overlay.setRGB(x, y, java.awt.Color.black.getRGB());
+                }
+                last = p;
+            }
+        }
+    }
+
+    private static void benchmarkBrush() throws IOException {
+        final int STROKES = 100;
+        final int[] BRUSHES = { 10, 45, 101, 255 };
+        Random rand = new Random(2009);
+        TOOLImage img = smoothImage(RobotDef.NAO_DEF_HIGH, rand);
+        int width = img.getWidth(), height = img.getHeight();
+        ImageOverlay edges = new ImageOverlay(width, height);
+        ColorTable table = calibratedTable(rand, 0.3);
+        BrushFill fill = new BrushFill();
+        byte[] oldColors = new byte[width * height];
+        boolean ok = true;
+
+        for (int brush : BRUSHES) {
+            int radius = brush / 2;
+            long old = 0, fresh = 0, stroke = 0, pixels = 0;
+            boolean same = true, overflowed = false;
+            for (int s = 0; s < WARMUP_PASSES + STROKES; s++) {
+                int x = rand.nextInt(width), y = rand.nextInt(height);
+                byte color =
+                    (byte) (1 + rand.nextInt(Vision.COLORS.length - 1));
+
+                long a = System.nanoTime();
+                List<int[]> found = new ArrayList<int[]>();
+                ColorTableUpdate oldUpdate = new ColorTableUpdate(color);
+                ImageOverlayAction oldAction = new ImageOverlayAction(0);
+                try {
+                    recursiveFill(img, edges, x, y, x, y,
+                                  img.getYCbCrPacked(x, y), radius,
+                                  new java.util.HashSet<java.awt.Point>(),
+                                  found);
+                    for (int[] p : found) {
+                        oldUpdate.addPixel(img.getYCbCr(p[0], p[1]),
+                                           Vision.GREY);
+                        oldAction.add(p[0], p[1], Vision.GREY, color);
+                    }
+                } catch (StackOverflowError e) {
+                    overflowed = true;
+                }
+                long b = System.nanoTime();
+                int n = fill.fill(img, edges, x, y, radius);
+                ColorTableUpdate u = new ColorTableUpdate(color);
+                u.addPixels(fill.getPacked(), oldColors, n);
+                ImageOverlayAction action = new ImageOverlayAction(0);
+                action.addAll(fill.getX(), fill.getY(), oldColors, color, n);
+                long c = System.nanoTime();
+                table.modifyTable(u);
+                edges.execute(action);
+                long d = System.nanoTime();
+                edges.revert(action);
+
+                if (!overflowed) {
+                    long[] expected = new long[found.size()];
+                    for (int i = 0; i < expected.length; i++)
+                        expected[i] = (long) found.get(i)[1] * width +
+                            found.get(i)[0];
+                    long[] actual = new long[n];
+                    for (int i = 0; i < n; i++)
+                        actual[i] = (long) fill.getY()[i] * width +
+                            fill.getX()[i];
+                    Arrays.sort(expected);
+                    Arrays.sort(actual);
+                    same &= Arrays.equals(expected, actual) &&
+                        oldUpdate.getSize() == u.getSize() &&
+                        oldAction.getSize() == action.getSize();
+                }
+                if (s >= WARMUP_PASSES) {
+                    old += b - a;
+                    fresh += c - b;
+                    stroke += d - b;
+                    pixels += n;
+                }
+            }
+            ok &= same;
+            System.out.printf("brush %3d  %6d px  recursive %s  " +
+                              "scanline %7.3f ms  stroke %7.3f ms  %s%n",
+                              brush, pixels / STROKES,
+                              overflowed ? "  overflow" :
+                              String.format("%7.3f ms", old / 1e6 / STROKES),
+                              fresh / 1e6 / STROKES, stroke / 1e6 / STROKES,
+                              overflowed ? "" : same ? "identical" :
+                              "DIFFERENT");
+        }
+
+        if (!ok) {
+            System.err.println("BrushFill finds different pixels");
+            System.exit(1);
+        }
+    }
+
+    // The 4-way recursive fill Calibrate used to select with
+    private static void recursiveFill(TOOLImage img, ImageOverlay edges,
+                                      int x, int y, int xorig, int yorig,
+                                      int origin, int radius,
+                                      java.util.Set<java.awt.Point> seen,
+                                      List<int[]> found) {
+        if (seen.contains(new java.awt.Point(x, y)))
+            return;
+        if (Math.abs(x - xorig) > radius || Math.abs(y - yorig) > radius)
+            return;
+        if (x < 0 || y < 0 || x >= img.getWidth() || y >= img.getHeight())
+            return;
+        if (edges.isTransition(origin, img.getYCbCrPacked(x, y)))
+            return;
+        seen.add(new java.awt.Point(x, y));
+        found.add(new int[] { x, y });
+        recursiveFill(img, edges, x - 1, y, xorig, yorig, origin, radius,
+                      seen, found);
+        recursiveFill(img, edges, x + 1, y, xorig, yorig, origin, radius,
+                      seen, found);
+        recursiveFill(img, edges, x, y - 1, xorig, yorig, origin, radius,
+                      seen, found);
+        recursiveFill(img, edges, x, y + 1, xorig, yorig, origin, radius,
+                      seen, found);
+    }
+
+    private static void thresholdPerPixel(ColorTable table, TOOLImage img,
+                                          byte[] out) {
+        int[] yCbCr = new int[3];
+        int i = 0;
+        for (int y = 0; y < img.getHeight(); y++)
+            for (int x = 0; x < img.getWidth(); x++)
+                out[i++] = table.getColor(img.getYCbCr(x, y, yCbCr));
+    }
+}
@@ -0,0 +1,863 @@
+package Benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import TOOL.Data.RobotDef;
+import TOOL.Calibrate.ColorTableUpdate;
+import TOOL.ColorEdit.ColorEdit;
+import TOOL.ColorEdit.SliceCache;
+import TOOL.Vision.Vision;
+import TOOL.Image.ColorTable;
+import TOOL.Image.ColorTableEngine;
+import TOOL.Image.ColorTableFile;
+import TOOL.Image.ColorTableIndex;
+import TOOL.Image.ColorTableJournal;
+import TOOL.Image.ColorTableSnapshot;
+import TOOL.Image.TOOLImage;
+import TOOL.Image.ThresholdEngine;
+import TOOL.Image.YCbCrColorSpace;
+
+import static Benchmark.Benchmarks.*;
+
+/**
+ * Benchmarks of the color table: its file format, rescaling and hole
+ * filling, the index of its entries, ColorEdit's slices and snapshots.
+ *
+ * @author Northern Bites Team
+ * @see Benchmarks
+ */
+class TableBenchmark {
+
+    static final String MODES = "tablefile journal tableops holes index " +
+        "slice snapshot";
+
+    /** Runs mode, if it is one of these. */
+    static boolean run(String mode, List<String> paths) throws IOException {
+        if (mode.equals("tablefile"))
+            benchmarkTableFile();
+        else if (mode.equals("journal"))
+            benchmarkJournal();
+        else if (mode.equals("tableops"))
+            benchmarkTableOps();
+        else if (mode.equals("holes"))
+            benchmarkHoles();
+        else if (mode.equals("index"))
+            benchmarkIndex();
+        else if (mode.equals("slice"))
+            benchmarkSlice();
+        else if (mode.equals("snapshot"))
+            benchmarkSnapshot();
+        else
+            return false;
+        return true;
+    }
+
+    /**
+     * Size and save/load time of a calibrated-looking LARGE table in the
+     * raw and the compressed format.  Both are written to the temporary
+     * directory, synced, and read back; exits with status 1 if either
+     * comes back different.
+     */
+    private static void benchmarkTableFile() throws IOException {
+        final int TABLES = 24;
+        Random rand = new Random(2009);
+        ColorTable table = calibratedTable(rand, 0);
+        byte[] buffer = table.getTableBuffer();
+        int y = table.getYDimension(), u = table.getUDimension(),
+            v = table.getVDimension();
+
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        File raw = new File(dir, "benchmark.mtb");
+        File compressed = new File(dir,
+                                   "benchmark" +
+                                   ColorTableFile.COMPRESSED_SUFFIX);
+
+        long rawSave = 0, rawLoad = 0, zSave = 0, zLoad = 0;
+        boolean same = true;
+        for (int i = 0; i < TABLES; i++) {
+            long start = System.nanoTime();
+            java.io.FileOutputStream fos = new java.io.FileOutputStream(raw);
+            fos.write(buffer);
+            fos.getFD().sync();
+            fos.close();
+            long mid = System.nanoTime();
+            ColorTableFile.write(compressed.getPath(), buffer, y, u, v);
+            long end = System.nanoTime();
+            rawSave += mid - start;
+            zSave += end - mid;
+
+            start = System.nanoTime();
+            byte[] rawRead = new byte[buffer.length];
+            java.io.DataInputStream in = new java.io.DataInputStream(
+                new java.io.FileInputStream(raw));
+            in.readFully(rawRead);
+            in.close();
+            mid = System.nanoTime();
+            byte[] zRead = ColorTableFile.read(compressed.getPath(),
+                                               new int[3]);
+            end = System.nanoTime();
+            rawLoad += mid - start;
+            zLoad += end - mid;
+
+            same &= java.util.Arrays.equals(buffer, rawRead) &&
+                java.util.Arrays.equals(buffer, zRead);
+        }
+
+        System.out.printf("raw        %8d bytes  save %7.3f ms" +
+                          "  load %7.3f ms%n", raw.length(),
+                          rawSave / 1e6 / TABLES, rawLoad / 1e6 / TABLES);
+        System.out.printf("compressed %8d bytes  save %7.3f ms" +
+                          "  load %7.3f ms  %s%n", compressed.length(),
+                          zSave / 1e6 / TABLES, zLoad / 1e6 / TABLES,
+                          same ? "identical" : "DIFFERENT");
+        raw.delete();
+        compressed.delete();
+        if (!same) {
+            System.err.println("Table files differ");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Time a stroke of large boxes takes with autosave off and on, against
+     * what logging each entry of the boxes used to cost.  Two tables then
+     * journal strokes, soft colors and undos into one folder at once; each
+     * journal, once closed, must replay to its own table.  Exits with
+     * status 1 if either differs.
+     */
+    private static void benchmarkJournal() throws IOException {
+        final int STROKES = 40, BRUSH = 24;
+        Random rand = new Random(2009);
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                            "benchmark-journal");
+        deleteTree(dir);
+        String autoSavePath = ColorTable.AUTO_SAVE_PATH;
+        ColorTable.AUTO_SAVE_PATH = dir.getPath() + "/";
+
+        ColorTable a = calibratedTable(rand, 0);
+        ColorTable b = calibratedTable(rand, 0);
+        long off = 0, on = 0, entries = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            a.setAutoSave(pass == 1);
+            for (int e = 0; e < STROKES; e++) {
+                long start = System.nanoTime();
+                ColorTableUpdate u = randomEdit(a, rand, 2 * e, BRUSH);
+                long end = System.nanoTime();
+                if (pass == 0)
+                    off += end - start;
+                else
+                    on += end - start;
+
+                // as the journal used to log a stroke
+                start = System.nanoTime();
+                int[] indices = a.indicesOf(u, false);
+                byte[] colors = new byte[indices.length];
+                for (int n = 0; n < indices.length; n++)
+                    colors[n] = a.getTableBuffer()[indices[n]];
+                entries += System.nanoTime() - start;
+            }
+        }
+        System.out.printf("%d^3 box stroke  autosave off %7.3f ms  " +
+                          "on %7.3f ms  each entry logged +%7.3f ms%n", BRUSH,
+                          off / 1e6 / STROKES, on / 1e6 / STROKES,
+                          entries / 1e6 / STROKES / 2);
+
+        // both tables journal to the one folder, with undos and soft colors
+        for (int e = 0; e < STROKES; e++) {
+            ColorTable t = e % 2 == 0 ? a : b;
+            ColorTableUpdate u = randomEdit(t, rand, e, 8);
+            if (e % 5 == 0)
+                t.undoChanges(u);
+        }
+        a.closeJournal();
+        b.closeJournal();
+
+        boolean same = awaitJournal(dir, a) && awaitJournal(dir, b);
+        System.out.printf("two tables, one folder  %s%n",
+                          same ? "each journal replays to its table" :
+                          "DIFFERENT");
+        ColorTable.AUTO_SAVE_PATH = autoSavePath;
+        a.setAutoSave(false);
+        deleteTree(dir);
+        if (!same) {
+            System.err.println("Journal replay differs");
+            System.exit(1);
+        }
+    }
+
+    // Waits for a journal under dir to replay to table, as its writer
+    // finishes in the background
+    private static boolean awaitJournal(File dir, ColorTable table) {
+        for (int tries = 0; tries < 100; tries++) {
+            List<File> journals = new ArrayList<File>();
+            findFiles(dir, ColorTableJournal.JOURNAL_SUFFIX, journals);
+            for (File f : journals)
+                try {
+                    if (Arrays.equals(ColorTableJournal.replay(f, new int[3]),
+                                      table.getTableBuffer()))
+                        return true;
+                } catch (IOException e) {
+                    // still being written
+                }
+            sleep(100);
+        }
+        return false;
+    }
+
+    private static void findFiles(File dir, String suffix, List<File> found) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files)
+            if (f.isDirectory())
+                findFiles(f, suffix, found);
+            else if (f.getName().endsWith(suffix))
+                found.add(f);
+    }
+
+    private static void deleteTree(File f) {
+        File[] files = f.listFiles();
+        if (files != null)
+            for (File child : files)
+                deleteTree(child);
+        f.delete();
+    }
+
+    /**
+     * Times scaleUp, scaleDown and fillHoles of a large table against the
+     * serial loops ColorTableEngine replaced, which are kept below, and
+     * checks the results are identical.  Exits with status 1 if not.
+     */
+    private static void benchmarkTableOps() throws IOException {
+        final int PASSES = 3;
+        Random rand = new Random(2009);
+        boolean ok = true;
+
+        long serial = 0, parallel = 0;
+        boolean same = true;
+        for (int i = 0; i < PASSES; i++) {
+            ColorTable table = calibratedTable(rand, 0);
+            byte[] before = table.getTableBuffer();
+            long a = System.nanoTime();
+            byte[] expected = serialScaleUp(before, 128, 128, 128, 2, 2, 2);
+            long b = System.nanoTime();
+            table.scaleUp(2, 2, 2);
+            long c = System.nanoTime();
+            serial += b - a;
+            parallel += c - b;
+            same &= java.util.Arrays.equals(expected,
+                                            table.getTableBuffer());
+        }
+        ok &= reportTableOp("scaleUp", same, serial, parallel, PASSES);
+
+        serial = parallel = 0;
+        same = true;
+        for (int i = 0; i < PASSES; i++) {
+            ColorTable table = calibratedTable(rand, 0);
+            byte[] before = table.getTableBuffer();
+            long a = System.nanoTime();
+            byte[] expected = serialScaleDown(before, 128, 128, 128, 2, 2, 2);
+            long b = System.nanoTime();
+            table.scaleDown(2, 2, 2);
+            long c = System.nanoTime();
+            serial += b - a;
+            parallel += c - b;
+            same &= java.util.Arrays.equals(expected,
+                                            table.getTableBuffer());
+        }
+        ok &= reportTableOp("scaleDown", same, serial, parallel, PASSES);
+
+        serial = parallel = 0;
+        same = true;
+        int filled = 0;
+        for (int i = 0; i < PASSES; i++) {
+            ColorTable table = calibratedTable(rand, 0.3);
+            byte color = table.getTableBuffer()[
+                rand.nextInt(table.getTableBuffer().length)];
+            if (color == Vision.GREY)
+                color = 1;
+            long a = System.nanoTime();
+            List<int[]> expected = serialFindHoles(table.getTableBuffer(),
+                                                   128, 128, 128, color, 1,
+                                                   .593);
+            long b = System.nanoTime();
+            ColorTableUpdate u = table.findHoles(color, null);
+            long c = System.nanoTime();
+            serial += b - a;
+            parallel += c - b;
+
+            same &= u.getPixelCount() == expected.size();
+            int[] pixel = new int[3];
+            for (int k = 0; same && k < expected.size(); k++)
+                same = java.util.Arrays.equals(expected.get(k),
+                                               u.getPixel(k, pixel));
+            filled += u.getPixelCount();
+        }
+        ok &= reportTableOp("findHoles", same, serial, parallel, PASSES);
+        System.out.println(filled / PASSES + " holes per table");
+
+        if (!ok) {
+            System.err.println("ColorTableEngine output differs");
+            System.exit(1);
+        }
+    }
+
+    private static boolean reportTableOp(String name, boolean same,
+                                         long serial, long parallel,
+                                         int passes) {
+        System.out.printf("%-10s serial %8.2f ms  engine %8.2f ms  %s%n",
+                          name, serial / 1e6 / passes,
+                          parallel / 1e6 / passes,
+                          same ? "identical" : "DIFFERENT");
+        return same;
+    }
+
+    // The serial ColorTable.scaleUp this replaced
+    private static byte[] serialScaleUp(byte[] table, int yMax, int uMax,
+                                        int vMax, int yScalar, int uScalar,
+                                        int vScalar) {
+        int newUMax = uMax*uScalar, newVMax = vMax*vScalar;
+        byte[] newTable =  new byte[yMax*yScalar*newUMax*newVMax];
+        for(int y = 0; y < yMax; y++)
+            for(int u = 0; u < uMax; u++)
+                for(int v = 0; v < vMax; v++)
+                    for(int a = y*yScalar; a < y*yScalar+yScalar; a++)
+                        for(int b = u*uScalar; b <u*uScalar+uScalar; b++)
+                            for(int c = v*vScalar; c <v*vScalar+vScalar; c++)
+                                newTable[(a*newUMax + b)*newVMax + c] =
+                                    table[(y*uMax + u)*vMax + v];
+        return newTable;
+    }
+
+    // ColorTable's, as scaleDown used it
+    private static final int MIN_OCCURENCES_PRESENT = 4;
+
+    // The serial ColorTable.scaleDown this replaced
+    private static byte[] serialScaleDown(byte[] table, int yMax, int uMax,
+                                          int vMax, int yDownScale,
+                                          int uDownScale, int vDownScale) {
+        int newYDimension = yMax/yDownScale;
+        int newUDimension = uMax/uDownScale;
+        int newVDimension = vMax/vDownScale;
+        byte[] newTable = new byte[newYDimension*newUDimension*
+                                   newVDimension];
+        for(int y = 0; y < newYDimension; y++){
+            for(int u = 0; u < newUDimension; u++){
+                for(int v = 0; v < newVDimension; v++){
+                    int[] colorFrequency =
+                        new int[Vision.COLORS.length];
+                    for(int i = y*yDownScale; i <y*yDownScale+yDownScale; i++)
+                        for(int j=u*uDownScale; j<u*uDownScale+uDownScale;j++)
+                            for(int k = v*vDownScale;
+                                k < v*vDownScale+vDownScale; k++)
+                                colorFrequency[table[(i*uMax + j)*vMax + k]]++;
+                    int mostCommon = 0;
+                    int mostCommonIndex =0;
+                    for(int i = 1; i<colorFrequency.length;  i++) {
+                        int currentVal = colorFrequency[i];
+                        if(currentVal > mostCommon){
+                            mostCommon = currentVal;
+                            mostCommonIndex = i;
+                        }
+                    }
+                    if(mostCommon > MIN_OCCURENCES_PRESENT){
+                        newTable[(y*newUDimension + u)*newVDimension + v] =
+                            (byte)mostCommonIndex;
+                    }
+                }
+            }
+        }
+        return newTable;
+    }
+
+    /**
+     * Puts a large table through strokes, boxes (soft and hard), undo, redo,
+     * hole filling and rescaling, checking after each that its index
+     * agrees with a scan of the table.  Then times reading every color's
+     * stats after each of a stream of edits, and a table diff, from the
+     * index against full scans.  Exits with status 1
+     * if the index is ever wrong.
+     */
+    private static void benchmarkIndex() throws IOException {
+        final int EDITS = 200, BRUSH = 6;
+        Random rand = new Random(2009);
+        ColorTable table = calibratedTable(rand, 0.3);
+        boolean ok = indexMatches(table, "load");
+
+        for (int e = 0; e < EDITS; e++)
+            table.pushUndo(randomEdit(table, rand, e, BRUSH));
+        ok &= indexMatches(table, "edits");
+        for (int e = 0; e < EDITS / 2; e++)
+            table.undo();
+        ok &= indexMatches(table, "undo");
+        for (int e = 0; e < EDITS / 4; e++)
+            table.redo();
+        ok &= indexMatches(table, "redo");
+        table.fillHoles(Vision.ORANGE);
+        ok &= indexMatches(table, "fillHoles");
+
+        ColorTable other = calibratedTable(rand, 0.3);
+        long scan = 0, indexed = 0, scanDiff = 0, indexDiff = 0;
+        for (int i = 0; i < WARMUP_PASSES + TIMED_PASSES; i++) {
+            // stats as ColorEdit reads them after each edit streamed in
+            randomEdit(table, rand, i, BRUSH);
+            long a = System.nanoTime();
+            int[][] stats = scanStats(table);
+            long b = System.nanoTime();
+            ColorTableIndex index = table.getIndex();
+            boolean same = true;
+            for (int c = 0; c < Vision.COLORS.length; c++) {
+                int[] bounds = index.getBounds((byte) c);
+                same &= stats[c] == null ? bounds == null :
+                    index.count((byte) c) == stats[c][6] &&
+                    bounds[0] == stats[c][0] && bounds[5] == stats[c][5];
+            }
+            long c = System.nanoTime();
+            int changed = scanDiff(table, other, Vision.ORANGE);
+            long d = System.nanoTime();
+            int bits = table.getIndex().difference(other.getIndex(),
+                                                   Vision.ORANGE)
+                .cardinality();
+            long f = System.nanoTime();
+            ok &= same && changed == bits;
+            if (i >= WARMUP_PASSES) {
+                scan += b - a;
+                indexed += c - b;
+                scanDiff += d - c;
+                indexDiff += f - d;
+            }
+        }
+        System.out.printf("stats      scan %8.2f ms  index %8.3f ms%n",
+                          scan / 1e6 / TIMED_PASSES,
+                          indexed / 1e6 / TIMED_PASSES);
+        System.out.printf("difference scan %8.2f ms  index %8.3f ms%n",
+                          scanDiff / 1e6 / TIMED_PASSES,
+                          indexDiff / 1e6 / TIMED_PASSES);
+
+        table.scaleDown(2, 2, 2);
+        ok &= indexMatches(table, "scaleDown");
+        table.scaleUp(2, 2, 2);
+        ok &= indexMatches(table, "scaleUp");
+
+        if (!ok) {
+            System.err.println("ColorTableIndex disagrees with its table");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Scrubs a slider through every slice of a large table in each of
+     * ColorEdit's views, rendering each as ColorEdit used to, pixel by
+     * pixel, and through a SliceCache: first cold, then again warm.  Then
+     * streams edits in, checking the patched slices against ones rendered
+     * afresh.  Exits with status 1 if any slice differs.
+     */
+    private static void benchmarkSlice() throws IOException {
+        final int EDITS = 200, BRUSH = 6;
+        Random rand = new Random(2009);
+        ColorTable table = calibratedTable(rand, 0.3);
+        YCbCrColorSpace converter = new YCbCrColorSpace();
+        ColorEdit.View[] views = { ColorEdit.View.YVIEW,
+                                   ColorEdit.View.UVIEW,
+                                   ColorEdit.View.VVIEW };
+        boolean ok = true;
+
+        for (ColorEdit.View view : views) {
+            int depth = view == ColorEdit.View.YVIEW ? table.getYDimension() :
+                view == ColorEdit.View.UVIEW ? table.getUDimension() :
+                table.getVDimension();
+            SliceCache cache = new SliceCache(table, depth);
+            long old = 0, cold = 0, warm = 0;
+            boolean same = true;
+            for (int value = 0; value < depth; value++) {
+                long a = System.nanoTime();
+                java.awt.image.BufferedImage[] expected =
+                    oldSlice(table, converter, view, value);
+                long b = System.nanoTime();
+                java.awt.image.BufferedImage bg =
+                    cache.getBackground(view, value);
+                java.awt.image.BufferedImage fg =
+                    cache.getOverlay(view, value);
+                long c = System.nanoTime();
+                old += b - a;
+                cold += c - b;
+                same &= sameImage(expected[0], bg) &&
+                    sameImage(expected[1], fg);
+            }
+            long c = System.nanoTime();
+            for (int value = depth - 1; value >= 0; value--) {
+                cache.getBackground(view, value);
+                cache.getOverlay(view, value);
+            }
+            warm = System.nanoTime() - c;
+            System.out.printf("%-5s per slice: old %7.3f ms  cold %7.3f ms" +
+                              "  warm %7.4f ms  %s%n",
+                              view, old / 1e6 / depth, cold / 1e6 / depth,
+                              warm / 1e6 / depth,
+                              same ? "identical" : "DIFFERENT");
+            ok &= same;
+        }
+
+        SliceCache cache = new SliceCache(table, 3 * 128);
+        for (ColorEdit.View view : views)
+            for (int value = 0; value < 128; value++)
+                cache.getOverlay(view, value);
+        int misses = cache.getMisses();
+        long patching = 0;
+        for (int e = 0; e < EDITS; e++) {
+            ColorTableUpdate u = randomEdit(table, rand, e, BRUSH);
+            long a = System.nanoTime();
+            cache.update(u);
+            patching += System.nanoTime() - a;
+        }
+        boolean same = cache.getMisses() == misses;
+        for (ColorEdit.View view : views)
+            for (int value = 0; value < 128; value++)
+                same &= sameImage(oldSlice(table, converter, view, value)[1],
+                                  cache.getOverlay(view, value));
+        System.out.printf("patch %d edits: %.3f ms each, %d slices " +
+                          "rendered again  %s%n", EDITS,
+                          patching / 1e6 / EDITS,
+                          cache.getMisses() - misses,
+                          same ? "identical" : "DIFFERENT");
+        ok &= same;
+
+        if (!ok) {
+            System.err.println("SliceCache differs from ColorEdit");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Thresholds frames against a snapshot on another thread while this one
+     * keeps editing the table, checking every result against the table as
+     * it was when the snapshot was taken.  Times taking a snapshot against
+     * cloning the table, and edits with and without a snapshot open.
+     * Exits with status 1 if any snapshot sees an edit made after it.
+     */
+    private static void benchmarkSnapshot() throws IOException {
+        final int EDITS = 400, BRUSH = 12, FRAMES = 8;
+        Random rand = new Random(2009);
+        ColorTable table = calibratedTable(rand, 0.3);
+
+        final List<TOOLImage> images = new ArrayList<TOOLImage>();
+        final List<byte[]> expected = new ArrayList<byte[]>();
+        for (int i = 0; i < FRAMES; i++) {
+            TOOLImage img = randomImage(RobotDef.NAO_DEF, rand);
+            byte[] out = new byte[img.getWidth() * img.getHeight()];
+            ThresholdEngine.threshold(table, img, out);
+            images.add(img);
+            expected.add(out);
+        }
+        byte[] before = table.getTableBuffer().clone();
+        final ColorTableSnapshot first = table.snapshot();
+
+        // one worker thresholds against the first snapshot throughout
+        final AtomicBoolean editing = new AtomicBoolean(true);
+        final AtomicInteger passes = new AtomicInteger();
+        final AtomicInteger wrong = new AtomicInteger();
+        Thread worker = new Thread("Snapshot reader") {
+                public void run() {
+                    byte[] out = new byte[expected.get(0).length];
+                    do {
+                        for (int i = 0; i < images.size(); i++) {
+                            ThresholdEngine.threshold(first, images.get(i),
+                                                      out);
+                            if (!Arrays.equals(out, expected.get(i)))
+                                wrong.incrementAndGet();
+                        }
+                        passes.incrementAndGet();
+                    } while (editing.get());
+                }
+            };
+        worker.start();
+
+        List<ColorTableSnapshot> later = new ArrayList<ColorTableSnapshot>();
+        List<byte[]> laterTables = new ArrayList<byte[]>();
+        long edits = 0, snapshots = 0, clones = 0;
+        for (int e = 0; e < EDITS; e++) {
+            if (e % 50 == 0) {
+                long a = System.nanoTime();
+                later.add(table.snapshot());
+                long b = System.nanoTime();
+                laterTables.add(table.getTableBuffer().clone());
+                long c = System.nanoTime();
+                snapshots += b - a;
+                clones += c - b;
+            }
+            long a = System.nanoTime();
+            table.pushUndo(randomEdit(table, rand, e, BRUSH));
+            edits += System.nanoTime() - a;
+        }
+        table.fillHoles(Vision.ORANGE);
+        editing.set(false);
+        boolean ok = true;
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            ok = false;
+        }
+
+        ok &= wrong.get() == 0 && Arrays.equals(first.toArray(), before);
+        for (int i = 0; i < later.size(); i++)
+            ok &= Arrays.equals(later.get(i).toArray(), laterTables.get(i)) &&
+                later.get(i).getVersion() < table.getVersion();
+        System.out.printf("reader     %d passes of %d frames, %d wrong%n",
+                          passes.get(), FRAMES, wrong.get());
+        System.out.printf("snapshot   %8.3f ms  clone %8.3f ms%n",
+                          snapshots / 1e6 / later.size(),
+                          clones / 1e6 / later.size());
+
+        // edits with every snapshot dropped, then with one open
+        first.release();
+        for (ColorTableSnapshot s : later)
+            s.release();
+        long free = 0, open = 0;
+        for (int e = 0; e < EDITS; e++) {
+            long a = System.nanoTime();
+            randomEdit(table, rand, e, BRUSH);
+            free += System.nanoTime() - a;
+        }
+        ColorTableSnapshot last = table.snapshot();
+        for (int e = 0; e < EDITS; e++) {
+            long a = System.nanoTime();
+            randomEdit(table, rand, e, BRUSH);
+            open += System.nanoTime() - a;
+        }
+        System.out.printf("edit       %8.3f ms  with a snapshot open " +
+                          "%8.3f ms%n", free / 1e6 / EDITS, open / 1e6 / EDITS);
+
+        // a table rescaled under a snapshot leaves it as it was
+        last.release();
+        byte[] current = table.getTableBuffer().clone();
+        ColorTableSnapshot scaled = table.snapshot();
+        table.scaleDown(2, 2, 2);
+        ok &= Arrays.equals(scaled.toArray(), current) &&
+            !scaled.matches(table);
+
+        if (!ok) {
+            System.err.println("ColorTableSnapshot saw a later version");
+            System.exit(1);
+        }
+    }
+
+    // A whole slice, {background, overlay}, drawn as ColorEdit.slice() did
+    private static java.awt.image.BufferedImage[] oldSlice(
+        ColorTable table, YCbCrColorSpace converter, ColorEdit.View view,
+        int value) {
+        int yMax = table.getYDimension() - 1, uMax = table.getUDimension() - 1,
+            vMax = table.getVDimension() - 1;
+        int dim1 = view == ColorEdit.View.YVIEW ? vMax + 1 : yMax + 1;
+        int dim2 = view == ColorEdit.View.UVIEW ? vMax + 1 : uMax + 1;
+        java.awt.image.BufferedImage bg = new java.awt.image.BufferedImage(
+            dim1, dim2, java.awt.image.BufferedImage.TYPE_INT_ARGB);
+        java.awt.image.BufferedImage fg = new java.awt.image.BufferedImage(
+            dim1, dim2, java.awt.image.BufferedImage.TYPE_INT_ARGB);
+        for (int u = 0; u <= uMax; u++)
+            for (int v = 0; v <= vMax; v++)
+                for (int y = 0; y <= yMax; y++) {
+                    if (!((view == ColorEdit.View.YVIEW && y == value) ||
+                          (view == ColorEdit.View.UVIEW && u == value) ||
+                          (view == ColorEdit.View.VVIEW && v == value)))
+                        continue;
+                    byte tableColor = table.getRawColor(y, u, v);
+                    int color = converter.toRGB(y << table.getYShift(),
+                                                v << table.getVShift(),
+                                                u << table.getUShift())
+                        .getRGB();
+                    int foreground = tableColor == Vision.GREY ? 0 :
+                        Vision.COLORS[tableColor].getRGB();
+                    int x = view == ColorEdit.View.YVIEW ? v : y;
+                    int row = view == ColorEdit.View.UVIEW ? v : u;
+                    bg.setRGB(x, row, color);
+                    fg.setRGB(x, row, foreground);
+                }
+        return new java.awt.image.BufferedImage[] { bg, fg };
+    }
+
+    // {yMin, yMax, uMin, uMax, vMin, vMax, count} of each color, by scan
+    private static int[][] scanStats(ColorTable table) {
+        int[][] stats = new int[256][];
+        for (int y = 0; y < table.getYDimension(); y++)
+            for (int u = 0; u < table.getUDimension(); u++)
+                for (int v = 0; v < table.getVDimension(); v++) {
+                    int c = table.getRawColor(y, u, v) & 0xff;
+                    if (stats[c] == null)
+                        stats[c] = new int[] { y, y, u, u, v, v, 0 };
+                    int[] s = stats[c];
+                    s[0] = Math.min(s[0], y);
+                    s[1] = Math.max(s[1], y);
+                    s[2] = Math.min(s[2], u);
+                    s[3] = Math.max(s[3], u);
+                    s[4] = Math.min(s[4], v);
+                    s[5] = Math.max(s[5], v);
+                    s[6]++;
+                }
+        return stats;
+    }
+
+    // Entries holding color in a but not in b, by scan
+    private static int scanDiff(ColorTable a, ColorTable b, byte color) {
+        byte[] x = a.getTableBuffer(), y = b.getTableBuffer();
+        int n = 0;
+        for (int i = 0; i < x.length; i++)
+            if (x[i] == color && y[i] != color)
+                n++;
+        return n;
+    }
+
+    private static boolean indexMatches(ColorTable table, String after) {
+        int[][] stats = scanStats(table);
+        ColorTableIndex index = table.getIndex();
+        for (int c = 0; c < 256; c++) {
+            int[] bounds = index.getBounds((byte) c);
+            boolean same = stats[c] == null ? bounds == null &&
+                index.count((byte) c) == 0 :
+                bounds != null && index.count((byte) c) == stats[c][6] &&
+                java.util.Arrays.equals(bounds,
+                                        java.util.Arrays.copyOf(stats[c], 6));
+            if (!same) {
+                System.out.println("index after " + after + ": color " + c +
+                                   " DIFFERENT");
+                return false;
+            }
+        }
+        System.out.println("index after " + after + ": identical");
+        return true;
+    }
+
+    /**
+     * Times one pass of hole finding on a large table for radii 1 to 4,
+     * counting every box from scratch as the old fillHoles did against
+     * ColorTableEngine's sliding windows, and checks they find the same
+     * holes.  Then times several passes at each radius.  Exits with status
+     * 1 if the holes differ.
+     */
+    private static void benchmarkHoles() throws IOException {
+        final int PASSES = 3, ITERATIONS = 4;
+        Random rand = new Random(2009);
+        ColorTable table = calibratedTable(rand, 0.3);
+        byte[] buffer = table.getTableBuffer();
+        boolean ok = true;
+
+        for (int i = 0; i < WARMUP_PASSES; i++)
+            table.findHoles(Vision.ORANGE, 1, .593, 1, null);
+        for (int radius = 1; radius <= 4; radius++) {
+            // a color with plenty of entries
+            byte color = buffer[table.index(64, 64, 64)];
+            for (int k = 0; color == Vision.GREY; k++)
+                color = buffer[k * 7919 % buffer.length];
+
+            long a = System.nanoTime();
+            List<int[]> expected = serialFindHoles(buffer, 128, 128, 128,
+                                                   color, radius, .593);
+            long b = System.nanoTime();
+
+            ColorTableUpdate u = null;
+            for (int i = 0; i < PASSES; i++)
+                u = table.findHoles(color, radius, .593, 1, null);
+            long c = System.nanoTime();
+            ColorTableUpdate many = null;
+            for (int i = 0; i < PASSES; i++)
+                many = table.findHoles(color, radius, .593, ITERATIONS, null);
+            long d = System.nanoTime();
+
+            boolean same = u.getPixelCount() == expected.size();
+            int[] pixel = new int[3];
+            for (int k = 0; same && k < expected.size(); k++)
+                same = java.util.Arrays.equals(expected.get(k),
+                                               u.getPixel(k, pixel));
+            ok &= same;
+
+            System.out.printf("radius %d  brute force %8.2f ms" +
+                              "  sliding %7.2f ms  %d passes %7.2f ms" +
+                              "  %5d holes (%d)  %s%n", radius,
+                              (b - a) / 1e6, (c - b) / 1e6 / PASSES,
+                              ITERATIONS, (d - c) / 1e6 / PASSES,
+                              u.getPixelCount(), many.getPixelCount(),
+                              same ? "identical" : "DIFFERENT");
+        }
+
+        // a search of a snapshot finds the same holes, and filling them
+        // leaves alone one painted after the snapshot was taken
+        ColorTableSnapshot snapshot = table.snapshot();
+        ColorTableUpdate live = table.findHoles(Vision.ORANGE, null);
+        ColorTableUpdate found = ColorTable.findHoles(snapshot, Vision.ORANGE,
+                                                      null);
+        boolean same = found.getPixelCount() == live.getPixelCount();
+        for (int k = 0; same && k < live.getPixelCount(); k++)
+            same = found.getPackedPixel(k) == live.getPackedPixel(k);
+        boolean skipped = true;
+        if (found.getPixelCount() > 0) {
+            ColorTableUpdate paint = new ColorTableUpdate(Vision.BLUE);
+            paint.setRaw(true);
+            paint.addPixel(found.getPackedPixel(0), Vision.GREY);
+            table.modifyTableDirectly(paint);
+            ColorTableUpdate filled = table.fillHoles(found);
+            int[] p = found.getPixel(0, new int[3]);
+            skipped = filled.getPixelCount() == found.getPixelCount() - 1 &&
+                buffer[table.index(p[0], p[2], p[1])] == Vision.BLUE;
+        }
+        snapshot.release();
+        ok &= same && skipped;
+        System.out.printf("snapshot search  %5d holes  %s  %s%n",
+                          found.getPixelCount(),
+                          same ? "identical" : "DIFFERENT",
+                          skipped ? "painted hole kept" : "PAINTED HOLE LOST");
+        if (!ok) {
+            System.err.println("Hole finding differs");
+            System.exit(1);
+        }
+    }
+
+    // The serial search of ColorTable.fillHoles this replaced, which had a
+    // BOX of 1 and a percentage of .593
+    private static List<int[]> serialFindHoles(byte[] table, int yMax,
+                                               int uMax, int vMax,
+                                               byte colorToFillWith,
+                                               int BOX, double percentage) {
+        int HOLE_THRESH = (int)Math.round(percentage*Math.pow(2*BOX + 1,3));
+        List<int[]> holes = new ArrayList<int[]>();
+        for (int y = BOX; y < yMax - BOX; y++) {
+            for (int cr = BOX; cr < uMax - BOX; cr++) {
+                for (int cb = BOX; cb < vMax - BOX; cb++) {
+                    int target_color = table[(y*uMax + cr)*vMax + cb];
+                    if(target_color != Vision.GREY)
+                        continue;
+                    int[] neighbor_count =
+                        new int[Vision.COLORS.length];
+                    int maxColor = 0;
+                    int maxVal = 0;
+                    for(int ii = y-BOX; ii <= y +BOX; ii++){
+                        for(int jj = cr -BOX; jj <= cr + BOX; jj++ ){
+                            for(int kk = cb -BOX; kk <= cb+BOX; kk++){
+                                if(y==ii && cr == jj && cb ==kk)
+                                    continue;
+                                int test_color =
+                                    table[(ii*uMax + jj)*vMax + kk];
+                                ++neighbor_count[test_color];
+                                if(neighbor_count[test_color] > maxVal){
+                                    maxVal = neighbor_count[test_color];
+                                    maxColor = test_color;
+                                }
+                            }
+                        }
+                    }
+                    if (maxColor == colorToFillWith &&
+                        maxColor != target_color &&
+                        maxColor !=Vision.GREY &&
+                        maxVal > HOLE_THRESH)
+                        holes.add(new int[] {y, cb, cr});
+                }
+            }
+        }
+        return holes;
+    }
+}
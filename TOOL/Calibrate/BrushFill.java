@@ -0,0 +1,153 @@
+package TOOL.Calibrate;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import TOOL.Image.ImageOverlay;
+import TOOL.Image.TOOLImage;
+
+/**
+ * Finds the pixels a Calibrate brush stroke takes in: those 4-connected to
+ * the clicked pixel, within the brush square, which are not a transition
+ * (as ImageOverlay.isTransition judges it) away from the clicked pixel.
+ *
+ * The fill works a row at a time.  It takes in the whole run of pixels
+ * either side of a pixel, then pushes one seed for each run of new pixels
+ * above and below it onto an explicit stack.  So it needs no recursion,
+ * however large the brush.  The visited mask, the stack and the arrays the
+ * pixels are found into are kept between strokes and only grow.
+ *
+ * @author Northern Bites Team
+ * @see Calibrate#pixelSelected
+ */
+public class BrushFill {
+
+    // One bit per pixel of the image, cleared again after each stroke
+    private final BitSet visited = new BitSet();
+    private int imageWidth;
+
+    // Seeds still to fill from, as x, y pairs
+    private int[] stack = new int[64];
+    private int stackSize;
+
+    // The pixels found by the last fill
+    private int[] xs = new int[256], ys = new int[256], packed = new int[256];
+    private int size;
+
+    /**
+     * Fills from (x, y) in image, staying within radius of it in each
+     * direction and stopping at transitions from its color.
+     * @return the number of pixels found; see getX, getY and getPacked
+     */
+    public int fill(TOOLImage image, ImageOverlay edges, int x, int y,
+                    int radius) {
+        size = 0;
+        int width = image.getWidth(), height = image.getHeight();
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return 0;
+        if (width != imageWidth) {
+            visited.clear();
+            imageWidth = width;
+        }
+
+        int xMin = Math.max(0, x - radius), xMax = Math.min(width - 1,
+                                                            x + radius);
+        int yMin = Math.max(0, y - radius), yMax = Math.min(height - 1,
+                                                            y + radius);
+        int origin = image.getYCbCrPacked(x, y);
+
+        stackSize = 0;
+        push(x, y);
+        while (stackSize > 0) {
+            int sy = stack[--stackSize];
+            int sx = stack[--stackSize];
+            if (visited.get(sy * width + sx))
+                continue;
+
+            // the whole run this seed is in
+            int left = sx, right = sx;
+            while (left > xMin && takes(image, edges, origin, left - 1, sy))
+                left--;
+            while (right < xMax &&
+                   takes(image, edges, origin, right + 1, sy))
+                right++;
+            visited.set(sy * width + left, sy * width + right + 1);
+            for (int px = left; px <= right; px++)
+                add(px, sy, image.getYCbCrPacked(px, sy));
+
+            if (sy > yMin)
+                seedRuns(image, edges, origin, left, right, sy - 1);
+            if (sy < yMax)
+                seedRuns(image, edges, origin, left, right, sy + 1);
+        }
+
+        // ready for the next stroke, touching only the brush square
+        for (int row = yMin; row <= yMax; row++)
+            visited.clear(row * width + xMin, row * width + xMax + 1);
+        return size;
+    }
+
+    // Pushes one seed for each run of pixels to take in row, between left
+    // and right
+    private void seedRuns(TOOLImage image, ImageOverlay edges, int origin,
+                          int left, int right, int row) {
+        boolean inRun = false;
+        for (int px = left; px <= right; px++) {
+            boolean take = takes(image, edges, origin, px, row);
+            if (take && !inRun)
+                push(px, row);
+            inRun = take;
+        }
+    }
+
+    private boolean takes(TOOLImage image, ImageOverlay edges, int origin,
+                          int x, int y) {
+        return !visited.get(y * imageWidth + x) &&
+            !edges.isTransition(origin, image.getYCbCrPacked(x, y));
+    }
+
+    private void push(int x, int y) {
+        if (stackSize + 2 > stack.length)
+            stack = Arrays.copyOf(stack, 2 * stack.length);
+        stack[stackSize++] = x;
+        stack[stackSize++] = y;
+    }
+
+    private void add(int x, int y, int pixel) {
+        if (size == xs.length) {
+            xs = Arrays.copyOf(xs, 2 * size);
+            ys = Arrays.copyOf(ys, 2 * size);
+            packed = Arrays.copyOf(packed, 2 * size);
+        }
+        xs[size] = x;
+        ys[size] = y;
+        packed[size] = pixel;
+        size++;
+    }
+
+    /** @return how many pixels the last fill found */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the x coordinates of the pixels the last fill found, in the
+     *         first getSize() entries; overwritten by the next fill
+     */
+    public int[] getX() {
+        return xs;
+    }
+
+    /** @return the y coordinates, as getX */
+    public int[] getY() {
+        return ys;
+    }
+
+    /**
+     * @return the pixels' values packed as by TOOLImage.getYCbCrPacked(),
+     *         as getX
+     */
+    public int[] getPacked() {
+        return packed;
+    }
+}
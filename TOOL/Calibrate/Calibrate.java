@@ -20,9 +20,12 @@ import java.awt.event.MouseWheelListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.Toolkit;
 import java.awt.Point;
+import java.awt.Rectangle;
 
 
 import java.beans.PropertyChangeEvent;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.beans.PropertyChangeListener;
 
 
@@ -36,15 +39,14 @@ import TOOL.Misc.Estimate;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Map;
-import java.util.Set;
 import java.util.Stack;
 import java.util.Vector;
 
 import javax.swing.JPanel;
 import javax.swing.JSplitPane;
+import javax.swing.Timer;
 
 // Image stuff
 import TOOL.Image.ColorTable;
@@ -91,7 +93,7 @@ public class Calibrate implements DataListener, MouseListener,
 {
 
     // Brush variables
-    public static final int MAX_BRUSH_SIZE = 45;
+    public static final int MAX_BRUSH_SIZE = 255;
     public static final int MIN_BRUSH_SIZE = 2;
     public static final int DFLT_BRUSH_SIZE = 10;
     private int brushSize;
@@ -128,9 +130,17 @@ public class Calibrate implements DataListener, MouseListener,
     protected Mode mode;
 
     private Frame currentFrame;
-    // Used to keep track of which pixels have already been thresholded in
-    // a single click
-    private Set<Point> currentSelections;
+    // Finds the pixels under a single click
+    private BrushFill brushFill;
+    // The old colors of the pixels it finds, reused between clicks
+    private byte[] oldTableColors = new byte[0], oldOverlayColors = new byte[0];
+
+    // Prepares the frames either side of the current one in the background
+    private ReadAhead readAhead;
+    // Starts it again once the user pauses editing the table
+    private Timer readAheadTimer;
+    // Quiet time, in ms, after a table edit before preparing frames again
+    private static final int READ_AHEAD_DELAY = 500;
 
 
     private JSplitPane split_pane;
@@ -156,8 +166,15 @@ public class Calibrate implements DataListener, MouseListener,
         undoStack = new LinkedList<ImageOverlayAction>();
         redoStack = new LinkedList<ImageOverlayAction>();
 
-        currentSelections = new HashSet<Point>();
+        brushFill = new BrushFill();
 
+        readAhead = new ReadAhead();
+        readAheadTimer = new Timer(READ_AHEAD_DELAY, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    prefetch();
+                }
+            });
+        readAheadTimer.setRepeats(false);
 
         //get all the image panels ready
         selector = new PixelSelectionPanel();
@@ -213,9 +230,36 @@ public class Calibrate implements DataListener, MouseListener,
             overlay.setEdgeThresh(thresh);
             overlay.regenerateEdgeImage(rawImage);
             selector.repaint();
+            tableEdited();
         }
     }
 
+    /**
+     * Drops the frames read ahead, which no longer match, and prepares them
+     * again once the user has stopped editing for a moment.
+     */
+    private void tableEdited() {
+        readAhead.clear();
+        readAheadTimer.restart();
+    }
+
+    // Prepares the frames around the current one as the table is now
+    private void prefetch() {
+        if (currentFrame != null && currentFrame.hasImage())
+            readAhead.prefetch(currentFrame, tool.getColorTable(),
+                               getEdgeThresh());
+    }
+
+    private int getEdgeThresh() {
+        return overlay == null ? ImageOverlay.DEFAULT_THRESH :
+            overlay.getEdgeThresh();
+    }
+
+    /** @return the frames read ahead of the user, for its hit counts */
+    public ReadAhead getReadAhead() {
+        return readAhead;
+    }
+
 
     /**
      * @param choice whether or not to be in undefine mode, where
@@ -370,55 +414,34 @@ public class Calibrate implements DataListener, MouseListener,
         byte cb_brush_size = (byte) (1 << REL_CB_SHIFT);
         byte cr_brush_size = (byte) (1 << REL_CR_SHIFT);
 
-        //now we iterate through the box, adding each pixel value to the update
-        //but the iteration is at the frame of the regular color table, so we must scale it later
-        for(int y = reg_y;
-            y < reg_y + y_brush_size; y++ ){
-            for(int cb = reg_Cb;
-                cb < reg_Cb + cb_brush_size; cb++ ){
-                for(int cr = reg_Cr;
-                    cr < reg_Cr + cr_brush_size; cr++ ){
-                    if(DEBUG_SMALL_MODE)
-                        System.out.println(y + " , " + cb + " , " +cr);
-                    int[] newPixel = {y<<Y_SHIFT,
-                                      cb<<CB_SHIFT,
-                                      cr<<CR_SHIFT};
-                    byte oldColor =  colorTable.getColor(newPixel);
-
-                    update.addPixel(newPixel,oldColor);
-                }
-            }
-
-        }
-
+        //the box is in the frame of the regular color table, which is
+        //indexed [y][cr][cb]; its old colors are kept when it is filled
+        if(DEBUG_SMALL_MODE)
+            System.out.println(reg_y + " , " + reg_Cb + " , " + reg_Cr);
+        update.addBox(reg_y, reg_y + y_brush_size - 1,
+                      reg_Cr, reg_Cr + cr_brush_size - 1,
+                      reg_Cb, reg_Cb + cb_brush_size - 1);
     }
 
 
     /**
      * Method determines what to do based on the current state, and where
-     * the image was clicked. Right now it recursively thresholds all the
-     * pixels underneath the users color swatch cursor, unless their
-     * YUV values stray too far from the center most point's.
+     * the image was clicked. Right now it thresholds all the pixels
+     * underneath the users color swatch cursor which can be reached from
+     * the clicked one without straying too far from its YUV values.
      * @param x xCoord on image where to start thresholding
      * @param y yCoord.
      */
     public void pixelSelected(int x, int y){
-        // clear the HashSet to keep track of which points have been
-        // thresholded, in order to know when to stop recursing
-        currentSelections.clear();
-
         // Note the changes to both the color table and the overlay.
         ColorTableUpdate updates = new ColorTableUpdate(currentColor);
         // We need to know which image we're working on so when we undo it,
         // we don't see the action unless that picture is on the screen
         ImageOverlayAction currentMove = new ImageOverlayAction(imageID);
 
-        int w = x;
-        int h = y;
-
         //check to make sure our bounding box doesnt leave the image
-        if(inImage(w,h)){
-            recurseCalibrate(w,h,w,h,rawImage.getYCbCr(w,h),updates, currentMove);
+        if(inImage(x,y)){
+            fillSelection(x, y, updates, currentMove);
         }
 
         //send the updates to the colorTable
@@ -434,19 +457,20 @@ public class Calibrate implements DataListener, MouseListener,
         pushUndo(currentMove);
         redoStack.clear();
 
-        //update the visionState
-        visionState.update();
+        //update the visionState; only pixels sharing a table entry with
+        //the selection can have changed
+        Rectangle dirty = visionState.update(updates);
         //lastly, need to repaint
         // simply repaint the selector, as underlying image hasn't changed
         selector.repaint();
         // displayer needs to be updated to reflect the new thresholded changes
-        displayer.updateImage(thresholdedImage);
-        displayer.repaint();
+        displayer.updateImage(thresholdedImage, dirty);
 
         // Alert all color table listeners that the color table has changed
         tool.getDataManager().notifyColorTableDependants(colorTable,
                                                          updates,
                                                          this);
+        tableEdited();
     }
 
     /**
@@ -473,16 +497,17 @@ public class Calibrate implements DataListener, MouseListener,
         LinkedList<ColorTableUpdate> currentUndo = result.getFirst();
         int numHoles = result.getSecond();
 
+        // We did make a change to the color table, so add that
+        colorTable.pushUndo(currentUndo);
+        colorTable.clearRedo();
+
         // No changes to the overlay, but push a null so we stay in sync
         pushUndo(null);
         redoStack.clear();
 
-        // We did make a change to the color table however, so add that
-        colorTable.pushUndo(currentUndo);
-        colorTable.clearRedo();
-
 
         calibratePanel.setText("Filled " + numHoles + " holes");
+        tableEdited();
         calibratePanel.fixButtons();
         // displayer needs to be updated to reflect the new thresholded changes
         displayer.updateImage(thresholdedImage);
@@ -586,18 +611,19 @@ public class Calibrate implements DataListener, MouseListener,
         redoStack.clear();
 
 
-        //update the vision state (which thresholds the whole image again, and updates the objects)
-        visionState.update();
+        //update the vision state (which re-thresholds the pixels the swap
+        //touched, or the whole image and its objects with the vision link)
+        Rectangle dirty = visionState.update(updates);
         //lastly, need to repaint
         // displayer needs to be updated to reflect the new thresholded changes
-        displayer.updateImage(thresholdedImage);
-        displayer.repaint();
+        displayer.updateImage(thresholdedImage, dirty);
         selector.repaint();
 
         // Alert all color table listeners that the color table has changed
         tool.getDataManager().notifyColorTableDependants(colorTable,
                                                          updates,
                                                          this);
+        tableEdited();
 
     }
 
@@ -606,86 +632,39 @@ public class Calibrate implements DataListener, MouseListener,
 
 
     /**
-     * Recursively calibrates the image. Based loosly on code from JavaConnect.
-     * Makes sure none of YUV vals are further than EDGE-THRESH from the orig.
-     * Also makes sure we stay within brush size of the original pixel.
+     * Thresholds the pixels reached from (x, y) as by BrushFill, within
+     * brush size of it, into updates and overlayAction, all at once.
+     * Makes sure none of YUV vals are further than EDGE-THRESH from the
+     * clicked pixel's.
      *
-     * @param x x-coord of pixel to calibrate
-     * @param y y-coord of pixel to calibrate
-     * @param xorig original pixel's x coord
-     * @param yorig original pixel's y coord
-     * @param origPixel the original YUV array
      * @param updates DS to add new pixels too
-     * @param overlay keeps track of changes made to the overlay, for undoing
+     * @param overlayAction keeps track of changes made to the overlay, for
+     *        undoing
      */
-    public void recurseCalibrate(int x, int y, int xorig, int yorig,
-                                 int[] origPixel,
-                                 ColorTableUpdate updates,
-                                 ImageOverlayAction overlayAction){
-
-        // We've already thresholded it
-        if (currentSelections.contains(new Point(x, y))) {
-            return;
+    private void fillSelection(int x, int y, ColorTableUpdate updates,
+                               ImageOverlayAction overlayAction){
+        int n = brushFill.fill(rawImage, overlay, x, y, brushSize/2);
+        int[] xs = brushFill.getX(), ys = brushFill.getY();
+        int[] packed = brushFill.getPacked();
+
+        if (oldTableColors.length < n) {
+            oldTableColors = new byte[xs.length];
+            oldOverlayColors = new byte[xs.length];
+        }
+        // Find out the old threshold values (if any)
+        for (int i = 0; i < n; i++) {
+            oldTableColors[i] = thresholdedImage.getThresholded(xs[i], ys[i]);
+            oldOverlayColors[i] = overlay.getThreshColor(xs[i], ys[i]);
         }
-
-        //check to make sure we are still within orig. brush size
-        if(Math.abs(x-xorig) > brushSize/2 ||
-           Math.abs(y-yorig) > brushSize/2 )
-            return;
-
-        //make sure this pixel is in the image
-        if(!inImage(x,y))
-            return;
-
-        //since it's in the image, and in the brush size, get new pix
-        int[] currPixel = rawImage.getYCbCr(x,y);
-
-        //check to see if we are making a jump from the orig pixel
-        if(isTransition(origPixel,currPixel))
-            return;
-
-
-        /*if(overlay.isEdge(x,y))
-          return;*/
-
-        //so its an ok pixel, lets threshold it
-        // keep track that we've already seen it
-        currentSelections.add(new Point(x, y));
-
-        // Find out the old threshold value (if any)
-        byte oldColor = thresholdedImage.getThresholded(x, y);
-        byte oldOverlayColor = overlay.getThreshColor(x, y);
 
         if(small_table_mode){
-
-            smallTableUpdate(currPixel,updates);
-
+            int[] yuv = new int[3];
+            for (int i = 0; i < n; i++)
+                smallTableUpdate(TOOLImage.unpack(packed[i], yuv), updates);
         }else{
-            updates.addPixel(currPixel, oldColor);
+            updates.addPixels(packed, oldTableColors, n);
         }
-        overlayAction.add(x, y, oldOverlayColor, currentColor);
-
-        //overlay.setOverlay(x,y,currentColor);
-
-        //figure out where to look next
-        int left = x - 1;
-        int right = x + 1;
-        int up = y -1;
-        int down = y +1;
-
-        //check to the left
-        recurseCalibrate(left,y,xorig,yorig, origPixel,updates, overlayAction);
-
-        //check to the right
-        recurseCalibrate(right,y,xorig,yorig,origPixel,updates, overlayAction);
-
-        //check up
-        recurseCalibrate(x,up,xorig,yorig,origPixel,updates, overlayAction);
-
-        //check down
-        recurseCalibrate(x,down,xorig,yorig,origPixel,updates, overlayAction);
-
-
+        overlayAction.addAll(xs, ys, oldOverlayColors, currentColor, n);
     }
 
 
@@ -723,6 +702,7 @@ public class Calibrate implements DataListener, MouseListener,
         displayer.updateImage(thresholdedImage);
         displayer.repaint();
         selector.repaint();
+        tableEdited();
 
         // Update the undo button
         calibratePanel.fixButtons();
@@ -730,17 +710,29 @@ public class Calibrate implements DataListener, MouseListener,
 
 
     public void pushUndo(ImageOverlayAction e) {
-        if (undoStack.size() == ColorTable.MAX_NUM_UNDOS) {
-            undoStack.removeFirst();
-        }
         undoStack.addLast(e);
+        trimHistory();
     }
 
     public void pushRedo(ImageOverlayAction e) {
-        if (redoStack.size() == ColorTable.MAX_NUM_REDOS) {
-            redoStack.removeFirst();
-        }
         redoStack.addLast(e);
+        trimHistory();
+    }
+
+    /**
+     * The color table drops its oldest moves once its history outgrows its
+     * memory budget; drop the overlay changes that went with them.
+     */
+    private void trimHistory() {
+        while (undoStack.size() > colorTable.getUndoSize())
+            undoStack.removeFirst();
+        while (redoStack.size() > colorTable.getRedoSize())
+            redoStack.removeFirst();
+    }
+
+    /** @return bytes held by the color table's undo and redo history */
+    public long getHistoryBytes() {
+        return colorTable == null ? 0 : colorTable.getHistoryBytes();
     }
 
 
@@ -778,6 +770,7 @@ public class Calibrate implements DataListener, MouseListener,
         displayer.updateImage(thresholdedImage);
         displayer.repaint();
         selector.repaint();
+        tableEdited();
 
         // Update the redo button
         calibratePanel.fixButtons();
@@ -791,6 +784,11 @@ public class Calibrate implements DataListener, MouseListener,
         return overlay.isTransition(oldPixel,newPixel);
     }
 
+    /** Packed-pixel version of isTransition(int[], int[]) */
+    public boolean isTransition(int oldPixel, int newPixel){
+        return overlay.isTransition(oldPixel,newPixel);
+    }
+
 
     public void setThresholded(boolean choice) {
         if (overlay != null) {
@@ -837,7 +835,8 @@ public class Calibrate implements DataListener, MouseListener,
      * stay at the max size.
      */
     private void updateBrushSize(int amtToShift){
-        brushSize +=amtToShift;
+        // Big brushes change size faster, so the whole range is in reach
+        brushSize += amtToShift * Math.max(1, brushSize / 16);
         if(brushSize < 1){
             brushSize = 1;
         }else if(brushSize > MAX_BRUSH_SIZE){
@@ -1055,30 +1054,56 @@ public class Calibrate implements DataListener, MouseListener,
 
         colorTable = visionState.getColorTable();
 
-        if (drawThreshColors) {
+        // the frame may have been got ready while the user looked at the
+        // last one
+        ReadAhead.Prepared prepared = drawThreshColors ?
+            readAhead.take(f, colorTable, getEdgeThresh()) : null;
+
+        if (prepared != null) {
+            thresholdedImage.setThresholded(rawImage, colorTable,
+                                            prepared.getVersion(),
+                                            prepared.getThresholded(),
+                                            prepared.getBins(rawImage));
+        } else if (drawThreshColors) {
             thresholdedImage.thresholdImage(colorTable, rawImage);
+            // so the first click on this frame doesn't pay for the index
+            thresholdedImage.indexBins();
         }
 
-
-        // Since we now handle different sized frames, it's possible to
-        // switch between modes, changing the image's size without updating
-        // the overlay.  This will catch that
-        if(overlay == null || overlay.getWidth() != rawImage.getWidth()) {
-            overlay = new ImageOverlay(rawImage.getWidth(),rawImage.getHeight());
-        }
         imageHeight = rawImage.getHeight();
         imageWidth = rawImage.getWidth();
 
-        overlay.generateNewEdgeImage(rawImage);
-        selector.updateImage(rawImage);
+        if (prepared != null) {
+            boolean edges = overlay == null || overlay.isThresholding();
+            overlay = prepared.getEdges();
+            if (!edges) {
+                overlay.setThresholding(false);
+                overlay.resetPixels();
+            }
+            selector.setImage(prepared.getDisplay());
+        } else {
+            // Since we now handle different sized frames, it's possible to
+            // switch between modes, changing the image's size without
+            // updating the overlay.  This will catch that
+            if(overlay == null || overlay.getWidth() != rawImage.getWidth()) {
+                overlay = new ImageOverlay(rawImage.getWidth(),
+                                           rawImage.getHeight());
+            }
+            overlay.generateNewEdgeImage(rawImage);
+            selector.updateImage(rawImage);
+        }
         calibratePanel.setSelectorOverlay();
 
         if(thresholdedImage != null) {
             displayer.updateImage(thresholdedImage);
             calibratePanel.setDisplayerOverlay();
+            // thresholds again only if the vision link is active
             visionState.update();
         }
 
+        // and get the next frames ready in turn
+        readAhead.prefetch(f, colorTable, getEdgeThresh());
+
         selector.repaint();
         displayer.repaint();
 
@@ -1100,12 +1125,16 @@ public class Calibrate implements DataListener, MouseListener,
         // should already be handled by the time this method is evoked
         if (originator == this) { return; }
 
-        //threshold the full image again
-        if(thresholdedImage != null)//if no frame is loaded, don't want to update
-            visionState.update();
+        //threshold the pixels affected by the update again
+        //if no frame is loaded, don't want to update
+        if(thresholdedImage != null) {
+            Rectangle dirty = visionState.update(update);
+            displayer.updateImage(thresholdedImage, dirty);
+        }
         //lastly, need to repaint
         selector.repaint();
         displayer.repaint();
+        tableEdited();
     }
 
     public CalibrationDrawingPanel getDisplayer() {
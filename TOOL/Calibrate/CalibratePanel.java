@@ -1,6 +1,7 @@
 package TOOL.Calibrate;
 
 import javax.swing.JPanel;
+import javax.swing.JLabel;
 import javax.swing.JCheckBox;
 import javax.swing.JTextArea;
 import java.awt.Component;
@@ -37,6 +38,7 @@ import java.awt.Dimension;
 import java.awt.Cursor;
 
 import TOOL.Image.ImageOverlay;
+import TOOL.Image.ColorTable;
 
 import TOOL.Calibrate.ColorSwatchParent;
 import TOOL.TOOL;
@@ -51,6 +53,8 @@ public class CalibratePanel extends JPanel implements DataListener, KeyListener,
     private JButton fillHoles, undo, redo, prevImage, nextImage, jumpToButton;
     private JTextField jumpToFrame;
     private JTextPane feedback;
+    // How much of the undo memory budget the history is using
+    private JLabel history;
     private InputMap im;
     private ActionMap am;
     protected JCheckBox drawColors;
@@ -112,6 +116,9 @@ public class CalibratePanel extends JPanel implements DataListener, KeyListener,
 
         jumpToFrame = new JTextField("0", 4);
 
+        history = new JLabel();
+        history.setAlignmentX(Component.CENTER_ALIGNMENT);
+
         jumpToButton = new JButton("Jump");
         jumpToButton.setFocusable(false);
 
@@ -183,6 +190,7 @@ public class CalibratePanel extends JPanel implements DataListener, KeyListener,
         textAndSwatches.setLayout(new BoxLayout(textAndSwatches,
                                                 BoxLayout.Y_AXIS));
         textAndSwatches.add(feedback);
+        textAndSwatches.add(history);
         textAndSwatches.add(undefineSpecific);
         textAndSwatches.add(colorSwatches);
 	JPanel auxPanel = new JPanel();
@@ -459,6 +467,10 @@ public class CalibratePanel extends JPanel implements DataListener, KeyListener,
         jumpToFrame.setEnabled(calibrate.hasImage());
         jumpToButton.setEnabled(calibrate.hasImage());
         smallTableMode.setSelected(calibrate.isSmallTableMode());
+        history.setText(String.format("Undo history: %.1f of %d MB",
+                                      calibrate.getHistoryBytes() /
+                                      (double) (1 << 20),
+                                      ColorTable.getUndoBudget() >> 20));
     }
 
     public void setText(String text) {
@@ -1,12 +1,25 @@
 package TOOL.Calibrate;
 
-import java.util.Vector;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import TOOL.TOOL;
 
 /**
  * Class is a data structure to hold changes to the color table. 
+ *
+ * Single pixels are packed into one int each, as by
+ * TOOLImage.getYCbCrPacked(), next to a byte array of their old colors.
+ * A pixel already in the update is not added again, and once the update is
+ * pushed onto the undo stack compact() merges pixels which fall into the
+ * same table entry, so an update costs five bytes per entry it changes.
+ *
+ * Besides single pixels, an update can hold boxes of table entries, which
+ * are stored as their bounds rather than entry by entry.  The old colors
+ * under a box are recorded by ColorTable when it applies the update, as
+ * runs of equal color, so a box costs a few ints however many entries it
+ * covers.
  * 
  * @author Joho Strom
  * @see ColorTable, Calibrate
@@ -23,9 +36,30 @@ public class ColorTableUpdate{
     //mode variables
     private byte color; //what is the color of the values?
     private int size; //stores how many pixels are in this DS
-    //main data structure
-    private Vector<int[]> pixels;
-    private Vector<Byte> oldColors;
+    // true if the pixels are color table coordinates rather than YUV
+    // values, i.e. the update is applied with ColorTable.setRawColor
+    private boolean raw;
+    // ColorTable versions just before and just after this update was
+    // applied; -1 until it has been
+    private long baseVersion = -1, version = -1;
+    //main data structure: pixels[i] is c0 << 16 | c1 << 8 | c2, and
+    //oldColors[i] its color before the update
+    private int[] pixels;
+    private byte[] oldColors;
+    // Open addressing set of pixels already added, holding index + 1 (0 is
+    // empty); null once compacted, and rebuilt if more are added after
+    private int[] slots;
+    // Boxes of table entries, BOX_INTS per box: y0, y1, u0, u1, v0, v1,
+    // inclusive, in table coordinates [y][u][v] (as ColorTable.index)
+    private static final int BOX_INTS = 6;
+    private int[] boxes;
+    private int numBoxes;
+    private int boxEntries;
+    // Old colors under the boxes, RUN_INTS per run: first table index,
+    // length, color.  Filled in by ColorTable each time it applies us
+    private static final int RUN_INTS = 3;
+    private int[] undoRuns;
+    private int numUndoRuns;
   
     /**
      * initialize a data structure to get ready
@@ -34,8 +68,10 @@ public class ColorTableUpdate{
     public ColorTableUpdate(byte _color){
 	color = _color;
 	size = 0;
-	pixels =  new Vector<int[]>();
-	oldColors = new Vector<Byte>();
+	pixels = new int[16];
+	oldColors = new byte[16];
+	boxes = new int[0];
+	undoRuns = new int[0];
     }
 
 
@@ -43,24 +79,305 @@ public class ColorTableUpdate{
 	return color;
     }
 
+    public boolean isRaw(){
+	return raw;
+    }
+
+    public void setRaw(boolean _raw){
+	raw = _raw;
+    }
+
+    /**
+     * Called by ColorTable when it applies this update, so that copies of
+     * the table at baseVersion can be brought to version by applying just
+     * this update.
+     */
+    public void setVersions(long _baseVersion, long _version){
+	baseVersion = _baseVersion;
+	version = _version;
+    }
+
+    public long getBaseVersion(){
+	return baseVersion;
+    }
+
+    public long getVersion(){
+	return version;
+    }
+
     public void addPixel(int[] newPixel, byte oldColor){
-	if(newPixel.length == NUM_YUV){
-	    pixels.add(newPixel);
-	    oldColors.add(new Byte(oldColor));
-	    ++size;
-	}else
+	if(newPixel.length == NUM_YUV &&
+	   ((newPixel[0] | newPixel[1] | newPixel[2]) & ~0xff) == 0)
+	    addPixel(newPixel[0] << 16 | newPixel[1] << 8 | newPixel[2],
+		     oldColor);
+	else
             TOOL.CONSOLE.error("Tried to add bad pixel");
     }
 
+    /**
+     * Adds a pixel packed as by TOOLImage.getYCbCrPacked().  If the pixel
+     * is already in the update its first old color is kept, since that is
+     * the color from before the update.
+     */
+    public void addPixel(int packed, byte oldColor){
+	if (slots == null)
+	    rehash(Math.max(32, 4 * size));
+	int mask = slots.length - 1;
+	int s = hash(packed) & mask;
+	for (int i; (i = slots[s]) != 0; s = (s + 1) & mask)
+	    if (pixels[i - 1] == packed)
+		return;
+
+	if (size == pixels.length) {
+	    pixels = Arrays.copyOf(pixels, 2 * size);
+	    oldColors = Arrays.copyOf(oldColors, 2 * size);
+	}
+	pixels[size] = packed;
+	oldColors[size] = oldColor;
+	slots[s] = ++size;
+	if (2 * size > slots.length)
+	    rehash(2 * slots.length);
+    }
+
+    /**
+     * Adds the first n pixels of packed, as addPixel(int, byte) would one
+     * at a time, growing the storage once for all of them.
+     */
+    public void addPixels(int[] packed, byte[] oldColor, int n){
+	int capacity = size + n;
+	if (capacity > pixels.length) {
+	    pixels = Arrays.copyOf(pixels, capacity);
+	    oldColors = Arrays.copyOf(oldColors, capacity);
+	}
+	if (slots == null || 2 * capacity > slots.length)
+	    rehash(2 * capacity);
+	for (int i = 0; i < n; i++)
+	    addPixel(packed[i], oldColor[i]);
+    }
+
+    private static int hash(int packed){
+	int h = packed * 0x9e3779b9;
+	return h ^ (h >>> 16);
+    }
+
+    private void rehash(int capacity){
+	slots = new int[Integer.highestOneBit(capacity - 1) << 1];
+	int mask = slots.length - 1;
+	for (int i = 0; i < size; i++) {
+	    int s = hash(pixels[i]) & mask;
+	    while (slots[s] != 0)
+		s = (s + 1) & mask;
+	    slots[s] = i + 1;
+	}
+    }
+
+    /**
+     * Merges pixels whose components agree under mask (see
+     * ColorTable.binMask), i.e. which fall into the same table entry,
+     * keeping the first, and trims the storage to fit.  Called when the
+     * update is done with, as it is pushed onto an undo stack.
+     */
+    public void compact(int mask){
+	int[] seen = new int[Integer.highestOneBit(Math.max(2 * size, 2)) << 1];
+	int slotMask = seen.length - 1;
+	int kept = 0;
+	for (int i = 0; i < size; i++) {
+	    int key = pixels[i] & mask;
+	    int s = hash(key) & slotMask;
+	    boolean duplicate = false;
+	    for (int j; (j = seen[s]) != 0; s = (s + 1) & slotMask)
+		if ((pixels[j - 1] & mask) == key) {
+		    duplicate = true;
+		    break;
+		}
+	    if (duplicate)
+		continue;
+	    pixels[kept] = pixels[i];
+	    oldColors[kept] = oldColors[i];
+	    seen[s] = ++kept;
+	}
+	size = kept;
+	pixels = Arrays.copyOf(pixels, size);
+	oldColors = Arrays.copyOf(oldColors, size);
+	boxes = Arrays.copyOf(boxes, numBoxes * BOX_INTS);
+	undoRuns = Arrays.copyOf(undoRuns, numUndoRuns * RUN_INTS);
+	slots = null;
+    }
+
+    /**
+     * Adds the pixels and boxes of u, an update applied after this one, so
+     * that this update covers the table entries either changed, from our
+     * base version to u's version.  Pixels in both keep our old color.
+     * The old colors under u's boxes are not recorded, so the result is
+     * for telling listeners what changed, not for undoing.
+     */
+    public void absorb(ColorTableUpdate u){
+	addPixels(u.pixels, u.oldColors, u.size);
+	for (int b = 0; b < u.numBoxes * BOX_INTS; b += BOX_INTS)
+	    addBox(u.boxes[b], u.boxes[b + 1], u.boxes[b + 2],
+		   u.boxes[b + 3], u.boxes[b + 4], u.boxes[b + 5]);
+	version = u.version;
+    }
+
+    /**
+     * @return a copy of this update's pixels, boxes and versions, which
+     *         later changes to this update leave alone
+     */
+    public ColorTableUpdate copy(){
+	ColorTableUpdate u = new ColorTableUpdate(color);
+	u.raw = raw;
+	u.baseVersion = baseVersion;
+	u.absorb(this);
+	return u;
+    }
+
+    /**
+     * @return roughly how many bytes of heap this update holds on to
+     */
+    public long getMemoryUsage(){
+	return 96 + 4L * pixels.length + oldColors.length +
+	    4L * boxes.length + 4L * undoRuns.length +
+	    (slots == null ? 0 : 4L * slots.length);
+    }
+
+    /**
+     * Adds every table entry [y][u][v] with y0 <= y <= y1, u0 <= u <= u1
+     * and v0 <= v <= v1.  Bounds are table coordinates whether or not the
+     * update is raw.  A box identical to the last one added is dropped.
+     */
+    public void addBox(int y0, int y1, int u0, int u1, int v0, int v1){
+	if (y1 < y0 || u1 < u0 || v1 < v0)
+	    return;
+	int last = (numBoxes - 1) * BOX_INTS;
+	if (numBoxes > 0 &&
+	    boxes[last] == y0 && boxes[last + 1] == y1 &&
+	    boxes[last + 2] == u0 && boxes[last + 3] == u1 &&
+	    boxes[last + 4] == v0 && boxes[last + 5] == v1)
+	    return;
+
+	if ((numBoxes + 1) * BOX_INTS > boxes.length)
+	    boxes = Arrays.copyOf(boxes, Math.max(4 * BOX_INTS,
+						  2 * boxes.length));
+	int b = numBoxes++ * BOX_INTS;
+	boxes[b] = y0; boxes[b + 1] = y1;
+	boxes[b + 2] = u0; boxes[b + 3] = u1;
+	boxes[b + 4] = v0; boxes[b + 5] = v1;
+	boxEntries += (y1 - y0 + 1) * (u1 - u0 + 1) * (v1 - v0 + 1);
+    }
+
+    public int getBoxCount(){
+	return numBoxes;
+    }
+
+    /**
+     * Fills bounds with {y0, y1, u0, u1, v0, v1} of box i.
+     * @return bounds
+     */
+    public int[] getBox(int i, int[] bounds){
+	System.arraycopy(boxes, i * BOX_INTS, bounds, 0, BOX_INTS);
+	return bounds;
+    }
+
+    /** Forgets the old colors recorded under the boxes. */
+    public void clearUndoRuns(){
+	numUndoRuns = 0;
+    }
+
+    /**
+     * Records that length table entries from index start on had color
+     * before this update was applied.
+     */
+    public void addUndoRun(int start, int length, byte color){
+	if ((numUndoRuns + 1) * RUN_INTS > undoRuns.length)
+	    undoRuns = Arrays.copyOf(undoRuns, Math.max(16 * RUN_INTS,
+							2 * undoRuns.length));
+	int r = numUndoRuns++ * RUN_INTS;
+	undoRuns[r] = start;
+	undoRuns[r + 1] = length;
+	undoRuns[r + 2] = color;
+    }
+
+    public int getUndoRunCount(){
+	return numUndoRuns;
+    }
+
+    /**
+     * Fills run with {first table index, length, color} of undo run i.
+     * Runs must be restored last to first.
+     * @return run
+     */
+    public int[] getUndoRun(int i, int[] run){
+	System.arraycopy(undoRuns, i * RUN_INTS, run, 0, RUN_INTS);
+	return run;
+    }
+
+    /** @return single pixel entry i packed as by getYCbCrPacked() */
+    public int getPackedPixel(int i){
+	return pixels[i];
+    }
+
+    /**
+     * Fills pixel with single pixel entry i.
+     * @return pixel
+     */
+    public int[] getPixel(int i, int[] pixel){
+	int p = pixels[i];
+	pixel[0] = (p >> 16) & 0xff;
+	pixel[1] = (p >> 8) & 0xff;
+	pixel[2] = p & 0xff;
+	return pixel;
+    }
+
+    /** @return the color of single pixel entry i before the update */
+    public byte getOldColor(int i){
+	return oldColors[i];
+    }
+
+    /**
+     * @return an iterator over the single pixel entries, each unpacked
+     *         into a new array; see getPixel and getBox
+     */
     public Iterator<int[]> getIterator(){
-	return pixels.iterator();
+	return new Iterator<int[]>() {
+	    private int next = 0;
+	    public boolean hasNext() {
+		return next < size;
+	    }
+	    public int[] next() {
+		if (next >= size)
+		    throw new NoSuchElementException();
+		return getPixel(next++, new int[NUM_YUV]);
+	    }
+	    public void remove() {
+		throw new UnsupportedOperationException();
+	    }
+	};
     }
     
     public Iterator<Byte> getOldColorIterator() {
-	return oldColors.iterator();
+	return new Iterator<Byte>() {
+	    private int next = 0;
+	    public boolean hasNext() {
+		return next < size;
+	    }
+	    public Byte next() {
+		if (next >= size)
+		    throw new NoSuchElementException();
+		return oldColors[next++];
+	    }
+	    public void remove() {
+		throw new UnsupportedOperationException();
+	    }
+	};
     }
 
+    /** @return the number of table entries, pixels and boxes, covered */
     public int getSize(){
+	return size + boxEntries;
+    }
+
+    /** @return the number of single pixel entries */
+    public int getPixelCount(){
 	return size;
     }
 
@@ -74,6 +391,7 @@ public class ColorTableUpdate{
         return getAverageChannel(V, color);
     }
 
+    // Averages over the single pixel entries only
     public int getAverageChannel(int channel, byte color) {
         if (channel < 0 || channel > NUM_YUV) {
             System.err.println("Error, got channel " + channel + " in " + 
@@ -81,13 +399,14 @@ public class ColorTableUpdate{
                                + "expected 0, 1, or 2");
             return - 1;
         }
-        if (this.color != color) {
+        if (this.color != color || size == 0) {
             return 0;
         }
         int sum = 0;
+        int shift = 16 - 8 * channel;
         // We have the correct color, so total up the values
         for (int i = 0; i < size; i++) {
-            sum += pixels.get(i)[channel];
+            sum += (pixels[i] >> shift) & 0xff;
         }
 
         //System.out.println("Returning an average value of " + sum/size);
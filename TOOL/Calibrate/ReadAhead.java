@@ -0,0 +1,355 @@
+package TOOL.Calibrate;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import TOOL.TOOL;
+import TOOL.TOOLException;
+import TOOL.Data.DataSet;
+import TOOL.Data.Frame;
+import TOOL.Data.File.FileSet;
+import TOOL.Data.File.FrameLoader;
+import TOOL.Image.ColorTable;
+import TOOL.Image.ColorTableSnapshot;
+import TOOL.Image.ImageOverlay;
+import TOOL.Image.PixelBinIndex;
+import TOOL.Image.ThresholdEngine;
+import TOOL.Image.TOOLImage;
+
+/**
+ * Gets the frames either side of the one Calibrate shows ready before the
+ * user steps to them: thresholded against the color table, with the bin
+ * index strokes are applied through, the edge overlay, and the image as it
+ * is displayed.  (The thresholded image is displayed straight from its
+ * buffer, so needs nothing more.)  The work is done on a background
+ * thread, against a ColorTableSnapshot, so the user can go on editing
+ * meanwhile.
+ *
+ * A prepared frame is only handed out if it was worked out at the table's
+ * current version and edge threshold; anything else is stale and thrown
+ * away.  Frames the data set has loaded are read where they are.  Frames of
+ * a FileSet it hasn't are read as private copies, which leaves the set as
+ * it was.  Other frames are left for Calibrate to do as before.  A frame
+ * whose work hasn't started when it is asked for is left to Calibrate too,
+ * rather than waited for behind the others.
+ *
+ * The frames of one prefetch() share a snapshot, released once the last
+ * of them is done or dropped, so the table stops copying pages for it.
+ *
+ * Everything but the work itself is called on the Swing thread.
+ *
+ * @author Northern Bites Team
+ * @see Calibrate#notifyFrame
+ */
+public class ReadAhead {
+
+    // Frames prepared on each side of the current one
+    public static final int DEFAULT_RADIUS = 2;
+
+    /** A frame as Calibrate needs it to show it. */
+    public static class Prepared {
+        private final long version;
+        private final int edgeThresh;
+        private final TOOLImage image;
+        private byte[] thresholded;
+        private PixelBinIndex bins;
+        private ImageOverlay edges;
+        private BufferedImage display;
+
+        Prepared(long version, int edgeThresh, TOOLImage image) {
+            this.version = version;
+            this.edgeThresh = edgeThresh;
+            this.image = image;
+        }
+
+        /** @return the version of the table it was thresholded at */
+        public long getVersion() {
+            return version;
+        }
+
+        /** @return the frame's pixels thresholded, row by row */
+        public byte[] getThresholded() {
+            return thresholded;
+        }
+
+        /**
+         * @return the bin index of image, which must be this frame's
+         *         image, or a copy of it
+         */
+        public PixelBinIndex getBins(TOOLImage image) {
+            return bins.forImage(image);
+        }
+
+        /** @return the frame's edges, on an otherwise clear overlay */
+        public ImageOverlay getEdges() {
+            return edges;
+        }
+
+        /** @return the frame's image, ready to be shown */
+        public BufferedImage getDisplay() {
+            return display;
+        }
+    }
+
+    private final int radius;
+    private final ExecutorService worker;
+    // Frames being prepared, or ready, by index, nearest the current
+    // frame first
+    private final LinkedHashMap<Integer, Future<Prepared>> pending =
+        new LinkedHashMap<Integer, Future<Prepared>>();
+    private DataSet pendingSet;
+
+    private int hits, misses;
+
+    public ReadAhead() {
+        this(DEFAULT_RADIUS);
+    }
+
+    /** @param radius the frames to prepare on each side of the current one */
+    public ReadAhead(int radius) {
+        this.radius = radius;
+        worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Calibrate read-ahead");
+                    t.setDaemon(true);
+                    // Never at the expense of the Swing thread
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+    }
+
+    /**
+     * @return frame f prepared against table as it is now, with edges at
+     *         edgeThresh, or null if it isn't.  A frame still being
+     *         prepared is waited for; one not yet started is dropped.
+     *         Either way the frame is taken out of the read-ahead.
+     */
+    public Prepared take(Frame f, ColorTable table, int edgeThresh) {
+        Task future = f.dataSet() == pendingSet ?
+            (Task) pending.remove(f.index()) : null;
+        Prepared p = null;
+        if (future != null && !future.isDone() && !future.started) {
+            // queued behind the others, so quicker done here
+            future.cancel(true);
+            future = null;
+        }
+        if (future != null && !future.isCancelled()) {
+            try {
+                p = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                TOOL.CONSOLE.error("Couldn't read ahead frame " + f.index() +
+                                   ": " + e.getCause());
+            }
+        }
+        if (p == null || p.version != table.getVersion() ||
+            p.edgeThresh != edgeThresh || f.dataSet().changed(f.index()) ||
+            p.image.getWidth() != f.image().getWidth() ||
+            p.image.getHeight() != f.image().getHeight()) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return p;
+    }
+
+    /**
+     * Starts preparing the frames around f, against table as it is now,
+     * with edges at edgeThresh.  Frames already being prepared for the
+     * same table version are kept; the rest are dropped.
+     */
+    public void prefetch(Frame f, ColorTable table, int edgeThresh) {
+        DataSet set = f.dataSet();
+        if (set == null) {
+            clear();
+            return;
+        }
+        if (set != pendingSet)
+            clear();
+        pendingSet = set;
+
+        // Keep what is still near and current
+        LinkedHashMap<Integer, Future<Prepared>> kept =
+            new LinkedHashMap<Integer, Future<Prepared>>();
+        Shared snapshot = null;
+        for (int d = 1; d <= radius; d++)
+            for (int i : new int[] { f.index() + d, f.index() - d }) {
+                if (i < 0 || i >= set.size())
+                    continue;
+                Future<Prepared> future = pending.remove(i);
+                if (future != null && current(future, table, edgeThresh)) {
+                    kept.put(i, future);
+                    continue;
+                }
+                if (future != null)
+                    future.cancel(true);
+                if (snapshot == null)
+                    snapshot = new Shared(table.snapshot());
+                future = submit(set, i, snapshot, edgeThresh);
+                if (future != null)
+                    kept.put(i, future);
+            }
+        for (Future<Prepared> future : pending.values())
+            future.cancel(true);
+        pending.clear();
+        pending.putAll(kept);
+        // done handing it out
+        if (snapshot != null)
+            snapshot.letGo();
+    }
+
+    /** Drops every frame being prepared, e.g. as the table changes. */
+    public void clear() {
+        for (Future<Prepared> future : pending.values())
+            future.cancel(true);
+        pending.clear();
+        pendingSet = null;
+    }
+
+    /** @return how many frames were found prepared when asked for */
+    public int getHits() {
+        return hits;
+    }
+
+    /** @return how many frames were not */
+    public int getMisses() {
+        return misses;
+    }
+
+    // Whether a frame will be, or was, prepared as now asked for
+    private static boolean current(Future<Prepared> future, ColorTable table,
+                                   int edgeThresh) {
+        Task task = (Task) future;
+        return task.version == table.getVersion() &&
+            task.edgeThresh == edgeThresh;
+    }
+
+    // A snapshot shared by tasks, released when the last lets go of it
+    private static class Shared {
+        final ColorTableSnapshot snapshot;
+        // the tasks holding it, and prefetch() while handing it out
+        private final AtomicInteger users = new AtomicInteger(1);
+
+        Shared(ColorTableSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        void use() {
+            users.incrementAndGet();
+        }
+
+        void letGo() {
+            if (users.decrementAndGet() == 0)
+                snapshot.release();
+        }
+    }
+
+    // Starts preparing frame i, if it can be read from here
+    private Future<Prepared> submit(DataSet set, int i, Shared snapshot,
+                                    int edgeThresh) {
+        TOOLImage image = null;
+        File file = null;
+        if (set.loaded(i))
+            image = set.get(i).image();
+        else if (set instanceof FileSet)
+            file = ((FileSet) set).file(i);
+        if (image == null && file == null)
+            return null;
+
+        Task task = new Task(set, i, snapshot, edgeThresh, image, file);
+        worker.execute(task);
+        return task;
+    }
+
+    private static class Task extends FutureTask<Prepared> {
+        final long version;
+        final int edgeThresh;
+        private final Shared shared;
+        private final AtomicBoolean let = new AtomicBoolean();
+        volatile boolean started;
+
+        Task(final DataSet set, final int i, final Shared shared,
+             final int edgeThresh, final TOOLImage loaded,
+             final File file) {
+            super(new Callable<Prepared>() {
+                    public Prepared call() throws TOOLException {
+                        TOOLImage image = loaded;
+                        if (image == null) {
+                            Frame copy = new Frame(set, i);
+                            FrameLoader.loadFrame(file, copy);
+                            image = copy.image();
+                        }
+                        if (image == null)
+                            return null;
+                        return prepare(shared.snapshot, edgeThresh,
+                                       image);
+                    }
+                });
+            this.shared = shared;
+            shared.use();
+            version = shared.snapshot.getVersion();
+            this.edgeThresh = edgeThresh;
+        }
+
+        public void run() {
+            started = true;
+            try {
+                super.run();
+            } finally {
+                letGo();
+            }
+        }
+
+        // A task cancelled while running lets go once it stops reading
+        protected void done() {
+            if (isCancelled() && !started)
+                letGo();
+        }
+
+        private void letGo() {
+            if (let.compareAndSet(false, true))
+                shared.letGo();
+        }
+    }
+
+    /**
+     * Works out everything Calibrate shows of image, stopping early if the
+     * thread is interrupted.
+     * @return the frame prepared, or null if interrupted
+     */
+    public static Prepared prepare(ColorTableSnapshot snapshot,
+                                   int edgeThresh, TOOLImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        Prepared p = new Prepared(snapshot.getVersion(), edgeThresh, image);
+
+        p.thresholded = new byte[width * height];
+        ThresholdEngine.threshold(snapshot, image, p.thresholded);
+        if (Thread.interrupted())
+            return null;
+
+        p.bins = new PixelBinIndex(image, snapshot);
+        if (Thread.interrupted())
+            return null;
+
+        p.edges = new ImageOverlay(width, height);
+        p.edges.setEdgeThresh(edgeThresh);
+        p.edges.generateEdgeImage(image);
+        if (Thread.interrupted())
+            return null;
+
+        p.display = image.createImage();
+        return p;
+    }
+}
@@ -1,5 +1,6 @@
 package TOOL.Calibrate;
 
+import java.awt.Rectangle;
 import java.util.Vector;
 
 import TOOL.TOOL;
@@ -103,6 +104,30 @@ public class VisionState {
         }
     }
 
+    //This updates the thresholded image after a single change to the color
+    //table. Without the vision link there are no objects to find, so only
+    //the pixels whose color table entries appear in u are thresholded again.
+    //With it, only the changed entries are sent to cpp before processing.
+    //Returns the region of the image that changed (null if none)
+    public Rectangle update(ColorTableUpdate u) {
+        if (thresholdedImage == null)
+            return null;
+        if (u != null && thresholdedImage.getVisionLink().isLinkActive()) {
+            //send cpp just the changed table entries, then process as usual
+            thresholdedImage.updateTable(u);
+            update();
+            return new Rectangle(0, 0, thresholdedImage.getWidth(),
+                                 thresholdedImage.getHeight());
+        }
+        if (u == null || thresholdedImage.getBaseImage() != rawImage ||
+            thresholdedImage.getColorTable() != colorTable) {
+            update();
+            return new Rectangle(0, 0, thresholdedImage.getWidth(),
+                                 thresholdedImage.getHeight());
+        }
+        return thresholdedImage.applyUpdate(u);
+    }
+
     //drawObjectBoxes - draws the object onto the overlay
     public void drawObjectBoxes(){
         thresholdedOverlay.resetPixels();//reset the overlay
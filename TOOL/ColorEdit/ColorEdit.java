@@ -20,7 +20,7 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
-import java.util.Iterator;
+import java.util.Arrays;
 
 import TOOL.TOOL;
 import TOOL.Data.ColorTableListener;
@@ -33,8 +33,13 @@ import TOOL.Data.DataListener;
 import TOOL.Data.DataSet;
 import TOOL.Data.Frame;
 import TOOL.Image.ColorTable;
+import TOOL.Image.ColorTableEngine;
+import TOOL.Image.ColorTableIndex;
+import TOOL.Image.ColorTableSnapshot;
 import TOOL.Image.ColorTablePanel;
+import TOOL.Image.HistogramEngine;
 import TOOL.Image.YCbCrColorSpace;
+import TOOL.Image.YUVHistogram;
 import TOOL.Vision.Vision;
 
 
@@ -165,6 +170,13 @@ public class ColorEdit extends JPanel implements DataListener,
     private boolean allView;
     // if true we can edit the table, plus our drawing methods change
     private boolean editing;
+    // true while fillHoles is searching in the background
+    private boolean fillingHoles;
+    // Where the active data set's pixels fall, drawn over slices when
+    // showDensity is on; built in the background for histogramSet
+    private YUVHistogram histogram;
+    private DataSet histogramSet;
+    private boolean showDensity, buildingHistogram;
 
     // ColorTable we're currently working on, getting information from
     private ColorTable colorTable;
@@ -177,12 +189,19 @@ public class ColorEdit extends JPanel implements DataListener,
     private BufferedImage buffImage, overlay;
     // Used to convert from YUV to RGB
     private YCbCrColorSpace converter;
+    // Slices of colorTable already rendered
+    private SliceCache sliceCache;
+    // The last colorized image, and the color and table version it shows
+    private BufferedImage colorized;
+    private byte colorizedColor;
+    private long colorizedVersion;
 
     public ColorEdit(TOOL t) {
 	super();
         
 	tool = t;
 	colorTable = tool.getColorTable();
+        sliceCache = new SliceCache(colorTable);
 
         // Get the necessary shifting info from table
 	yShift = colorTable.getYShift();
@@ -233,6 +252,7 @@ public class ColorEdit extends JPanel implements DataListener,
 
     public void setTable(ColorTable a) {
         colorTable = a;
+        sliceCache = new SliceCache(colorTable);
 
         // Get the necessary shifting info from table
 	yShift = colorTable.getYShift();
@@ -263,10 +283,16 @@ public class ColorEdit extends JPanel implements DataListener,
      */
     public void notifyDataSet(DataSet s, Frame f) {
         notifyFrame(f);
+        if (showDensity && s != histogramSet) {
+            buildHistogram();
+        }
     }
     
     public void notifyFrame(Frame f) {
-        colorTable = tool.getColorTable();
+        if (tool.getColorTable() != colorTable) {
+            colorTable = tool.getColorTable();
+            sliceCache = new SliceCache(colorTable);
+        }
         collectStats();
     }
 
@@ -322,41 +348,91 @@ public class ColorEdit extends JPanel implements DataListener,
         return colorTable;
     }
 
-    // TODO: Fill in
+    /**
+     * Fills holes of the current color in the table.  The search runs in
+     * the background on a snapshot, reporting progress in the button panel;
+     * the holes are filled back on the Swing thread once it is done, but
+     * for any painted meanwhile.
+     */
     public void fillHoles() {
-	if(editing){
-	    ColorTableUpdate change = colorTable.fillHoles(curColor);
-	    
-
-	    // figure out what needs to be colored..
-	    slice();
-	    repaint();
-
-	    // Alert all color table listeners that the color table has changed
-	    tool.getDataManager().notifyColorTableDependants(colorTable,
-							     change,
-							     this);
-	}else{
+	if(!editing){
 	    System.out.println("Must be in EDIT mode to fill holes");
+	    return;
 	}
+	if (fillingHoles) {
+	    buttonPanel.setText("Already filling holes");
+	    return;
+	}
+	fillingHoles = true;
+
+	final ColorTable table = colorTable;
+	final ColorTableSnapshot snapshot = table.snapshot();
+	final byte color = curColor;
+	new SwingWorker<ColorTableUpdate, Integer>() {
+	    protected ColorTableUpdate doInBackground() {
+		try {
+		    return ColorTable.findHoles(
+			snapshot, color, new ColorTableEngine.Progress() {
+			    public void planesDone(int done, int total) {
+				publish(100 * done / total);
+			    }
+			});
+		} finally {
+		    snapshot.release();
+		}
+	    }
+
+	    protected void process(java.util.List<Integer> percents) {
+		buttonPanel.setText("Filling holes: " +
+				    percents.get(percents.size() - 1) + "%");
+	    }
+
+	    protected void done() {
+		fillingHoles = false;
+		// the table was swapped or resized under the search
+		if (table != colorTable || !snapshot.matches(table)) {
+		    buttonPanel.setText("Table changed; fill holes again");
+		    return;
+		}
+		ColorTableUpdate change;
+		try {
+		    change = table.fillHoles(get());
+		} catch (Exception e) {
+		    TOOL.CONSOLE.error("Filling holes failed: " + e);
+		    return;
+		}
+		sliceCache.update(change);
+		collectStats();
+		buttonPanel.setText("Filled " + change.getSize() + " holes");
+
+		// figure out what needs to be colored..
+		slice();
+		repaint();
+
+		// Alert all color table listeners that the table has changed
+		tool.getDataManager()
+		    .notifyColorTableDependants(table, change, ColorEdit.this);
+	    }
+	}.execute();
     }
 
-    // Whereas refresh() will refresh entire screen and recalculate all stats,
-    // by passing in a ColorTableUpdate we can selectively modify our stats
-    // and determine what to recolor without repainting the entire screen.
+    // Whereas refresh() repaints the whole screen, after an update only the
+    // stats of the colors it touched have changed.  The table's index has
+    // already counted its entries in and out, so reading them back costs
+    // next to nothing; only the view being shown is redrawn.
     public void refresh(ColorTableUpdate d) {
-        byte newColor = d.getColor();
-        Iterator<int[]>YUV = d.getIterator();
-        Iterator<Byte>oldColors = d.getOldColorIterator();
-
-        // Increase the number of entries for our color by the number of entries
-        // in our update
-        colorStats[newColor][NUM_ENTRIES] += d.getSize();
-
-        while (YUV.hasNext()) {
-            YUV.next();
+        sliceCache.update(d);
+        collectStats();
+        if (view == View.COLORVIEW) {
+            colorizeImage();
         }
-
+        else {
+            slice();
+            if (!editing) {
+                fixSliderAxes();
+            }
+        }
+        repaint();
     }
 
     
@@ -385,6 +461,7 @@ public class ColorEdit extends JPanel implements DataListener,
 	
 	
         colorTable.undo();
+        collectStats();
 
         if (view == View.COLORVIEW) {
             colorizeImage();
@@ -403,6 +480,7 @@ public class ColorEdit extends JPanel implements DataListener,
 	}
                 
         colorTable.redo();
+        collectStats();
         if (view == View.COLORVIEW) {
             colorizeImage();
         }
@@ -414,6 +492,75 @@ public class ColorEdit extends JPanel implements DataListener,
         
     }
     
+    /**
+     * Turns the data set density overlay on or off.  The first time it is
+     * turned on for a data set the set's histogram is built, or read from
+     * the cache, in the background; slices show it once it is ready.
+     */
+    public void setShowDensity(boolean choice) {
+        showDensity = choice;
+        if (showDensity &&
+            tool.getDataManager().activeSet() != histogramSet) {
+            buildHistogram();
+        }
+        if (view != View.COLORVIEW) {
+            slice();
+            repaint();
+        }
+    }
+
+    private void buildHistogram() {
+        final DataSet set = tool.getDataManager().activeSet();
+        if (set == null) {
+            buttonPanel.setText("No data set to show the density of");
+            return;
+        }
+        if (buildingHistogram) {
+            return;
+        }
+        buildingHistogram = true;
+
+        final ColorTable table = colorTable;
+        new SwingWorker<YUVHistogram, Integer>() {
+            protected YUVHistogram doInBackground()
+                throws InterruptedException {
+                return HistogramEngine.build(set, table,
+                                             new HistogramEngine.Progress() {
+                        public void framesDone(int done, int total) {
+                            publish(100 * done / total);
+                        }
+                    });
+            }
+
+            protected void process(java.util.List<Integer> percents) {
+                buttonPanel.setText("Counting " + set.name() + ": " +
+                                    percents.get(percents.size() - 1) + "%");
+            }
+
+            protected void done() {
+                buildingHistogram = false;
+                try {
+                    histogram = get();
+                    histogramSet = set;
+                } catch (Exception e) {
+                    TOOL.CONSOLE.error("Counting the data set failed: " + e);
+                    return;
+                }
+                buttonPanel.setText("Counted " + histogram.getFrames() +
+                                    " frames of " + set.name());
+                // The set may have changed while we were counting
+                if (showDensity &&
+                    tool.getDataManager().activeSet() != histogramSet) {
+                    buildHistogram();
+                }
+                if (view != View.COLORVIEW) {
+                    slice();
+                    repaint();
+                }
+            }
+        }.execute();
+    }
+
     /**
      * Sets the allView off or on.  If allView is on, then in a given
      * slice of Y, U, or V value, we will let the other free axes
@@ -457,20 +604,26 @@ public class ColorEdit extends JPanel implements DataListener,
 	}//end num colors loop
     }//end function
     
-    /** Runs through the color table and counts up where the colors 
-     *are and how many there are.
+    /** Reads where the colors are and how many there are from the
+     * table's index, rather than running through the whole table.  The
+     * index keeps the counts and bounds up to date edit by edit, and only
+     * works a color's bounds out again when an entry on their edge goes.
      */
     public void collectStats() {
 	initStats();
-        
-        for(int y=0; y<yMax; y++) {
-            for(int u=0; u<uMax; u++) {
-                for(int v=0; v<vMax; v++){
-		    updateColor(y, u, v,
-				colorTable.getRawColor(y,u,v));
-                }//v
-	    }//u
-	}//y
+
+        ColorTableIndex index = colorTable.getIndex();
+        for (byte c = 0; c < Vision.COLORS.length; c++) {
+            int[] bounds = index.getBounds(c);
+            if (bounds == null) { continue; }
+            if (c < NUM_COLORS) {
+                addStats(colorStats[c], bounds, index.count(c));
+            }
+            // We don't want unthresholded values to affect the global table.
+            if (c != GREY) {
+                addStats(colorStats[GLOBAL_INDEX], bounds, index.count(c));
+            }
+        }
 
         if (allView) {
             setText("Total num entries: "+colorStats[GLOBAL_INDEX][6]);
@@ -481,6 +634,18 @@ public class ColorEdit extends JPanel implements DataListener,
     }
 
 
+    // Widens stats to take in count more entries within bounds, laid out
+    // as ColorTableIndex.getBounds
+    private void addStats(int[] stats, int[] bounds, int count) {
+        stats[Y_MIN] = Math.min(stats[Y_MIN], bounds[0]);
+        stats[Y_MAX] = Math.max(stats[Y_MAX], bounds[1]);
+        stats[U_MIN] = Math.min(stats[U_MIN], bounds[2]);
+        stats[U_MAX] = Math.max(stats[U_MAX], bounds[3]);
+        stats[V_MIN] = Math.min(stats[V_MIN], bounds[4]);
+        stats[V_MAX] = Math.max(stats[V_MAX], bounds[5]);
+        stats[NUM_ENTRIES] += count;
+    }
+
     /**
      * Updates the stats about the color and its yuv values.
      * If one of the YUV values is either a min or max for that color,
@@ -674,23 +839,15 @@ public class ColorEdit extends JPanel implements DataListener,
             break;
         }
 
-       
-        for (int Y = yStart; Y<=yEnd; Y++) {
-            for (int U = uStart; U <= uEnd; U++) {
-                for (int V = vStart; V <= vEnd; V++) {
-                    // Note that the order is different due to the way the Aibo
-                    // architecture.  
-                    int[] coord = {Y<<yShift,V<<vShift,U<<uShift};
-                    byte oldColor = colorTable.getColor(Y<<yShift, V<<vShift,
-                                                        U<<uShift);
-                    change.addPixel(coord, oldColor);
-                } // end V
-            } // end U
-        }// end Y
+        // The rectangle is one box of table entries; the table is indexed
+        // [Y][U][V].  Its old colors are recorded as the box is filled.
+        change.addBox(yStart, yEnd, uStart, uEnd, vStart, vEnd);
 
         colorTable.pushUndo(change);
         // makes all the cumulative changes to the color table
         colorTable.modifyTable(change);
+        sliceCache.update(change);
+        collectStats();
 
         // figure out what needs to be colored..
         slice();
@@ -784,6 +941,7 @@ public class ColorEdit extends JPanel implements DataListener,
         if (newView == View.COLORVIEW) {
             overlay = null;
             imagePanel.setColorTableOverlay(overlay);
+            imagePanel.setOverlayImage(null);
             // We may have made changes to color table since last time
             collectStats();
             colorizeImage();
@@ -913,21 +1071,36 @@ public class ColorEdit extends JPanel implements DataListener,
             
         }
 
-        // Create the swatch of the correct size to hold all entries, but only
-        // if we've changed size from last time or we don't already have
-        // an image; otherwise we'll just repaint over the old one
-        if (buffImage == null || (buffImage.getWidth() != dim1 ||
-                                  buffImage.getHeight() != dim2)) {
-            buffImage = new BufferedImage(dim1, dim2, 
-                                          BufferedImage.TYPE_INT_ARGB);
-        }
-        if (overlay == null || (overlay.getWidth() != dim1 ||
-                                overlay.getHeight() != dim2)) {
-            overlay = new BufferedImage(dim1, dim2, 
-                                        BufferedImage.TYPE_INT_ARGB);
+        // The slice through the table is rendered once and kept; what we
+        // show is the part of it within our axes, sharing its pixels.
+        if (!noThresholdedValuesExist(view, sliderValue) &&
+            xAxisMin <= xAxisMax && yAxisMin <= yAxisMax &&
+            sliceCache.hasSlice(view, sliderValue)) {
+            buffImage = sliceCache.getBackground(view, sliderValue)
+                .getSubimage(xAxisMin, yAxisMin, dim1, dim2);
+            overlay = sliceCache.getOverlay(view, sliderValue)
+                .getSubimage(xAxisMin, yAxisMin, dim1, dim2);
+            BufferedImage density = null;
+            if (showDensity && histogram != null) {
+                density = sliceCache.getDensity(histogram, view, sliderValue);
+            }
+            if (density != null) {
+                density = density.getSubimage(xAxisMin, yAxisMin, dim1, dim2);
+            }
+            imagePanel.setImage(buffImage);
+            imagePanel.setOverlayImage(density);
+            imagePanel.setColorTableOverlay(overlay);
+            return;
         }
-        
+
+        // Otherwise there is nothing of the table to show; the images may
+        // be shared with the cache, so draw on new ones.
+        buffImage = new BufferedImage(dim1, dim2, 
+                                      BufferedImage.TYPE_INT_ARGB);
+        overlay = new BufferedImage(dim1, dim2, 
+                                    BufferedImage.TYPE_INT_ARGB);
         imagePanel.setImage(buffImage);
+        imagePanel.setOverlayImage(null);
         imagePanel.setColorTableOverlay(overlay);
 
         /** Check to see if we even need to draw anything */
@@ -951,71 +1124,7 @@ public class ColorEdit extends JPanel implements DataListener,
                           buffImage.getWidth() / 2,
                           buffImage.getHeight() / 2);
             //System.out.println("No entries exist yet for this value.");
-
-            return;
         }
-
-
-	for (int u = uMin; u <= uMax; u++) {
-	    for (int v = vMin; v <= vMax; v++) {
-		for (int y = yMin; y <= yMax; y++) {
-              
-		    // value = the int value specified by the slider.
-		    // We're slicing at a given YUV value, so we need to display
-		    // things if we're at the corresponding Y, U, or V value..
-		    if ((view == View.YVIEW && y == sliderValue) ||
-			(view == View.UVIEW && u == sliderValue) || 
-			(view == View.VVIEW && v == sliderValue)) {
-
-                        boolean classified = true;
-
-                        byte tableColor = colorTable.getRawColor(y,u,v);
-                        if (tableColor == GREY) { classified = false; }
-                                         
-                        // Note order: Y,V,U not YUV
-                        int color = converter.toRGB(y<<yShift, 
-                                                    v<<vShift,
-                                                    u<<uShift).getRGB();
-			// foreground color will be drawn on top of the 
-                        // background gradient if we've thresholded the 
-                        // YUV value.
-                        int foregroundColor;
-                        if (classified) {
-                            foregroundColor = byteToColor(tableColor).getRGB();
-                        }
-                        else { // transparent
-                            foregroundColor = 0x0;
-                        }
-
-                        // x and y locations on the buffered image
-                        int xLoc, yLoc;
-                        xLoc = yLoc = 0;
-
-                        // Fills in the background colors and the thresholded
-                        // colors if necessary
-                        switch (view) {
-                            // Subtract the minimums to ensure that we stay
-                            // within the bounds [0, dimMax) when we set pixels.
-                        case YVIEW:
-                            xLoc = v-vMin; yLoc = u-uMin;
-                            break;
-                        case UVIEW:
-                            xLoc = y-yMin; yLoc = v-vMin;
-                            break;
-                        case VVIEW:
-                            xLoc = y-yMin; yLoc = u-uMin;
-                            break;
-                        }
-                        // Fill in background and foreground .
-                        buffImage.setRGB(xLoc, yLoc, color);
-                        overlay.setRGB(xLoc, yLoc, foregroundColor);
-		    }// end view check
-		}// end y loop
-	    }// end v loop
-	}// end u loop
-
-
-
     }
 
 
@@ -1047,42 +1156,60 @@ public class ColorEdit extends JPanel implements DataListener,
 			   "Total entries: " + numEntries);
 
         
+        // Nothing of this color has changed since it was last drawn
+        if (colorized != null && colorizedColor == curColor &&
+            colorizedVersion == colorTable.getVersion()) {
+            buffImage = colorized;
+            imagePanel.setImage(buffImage);
+            return;
+        }
+
 	int numPixelsPerSide = (int) Math.sqrt(numEntries);
 	
         buffImage = new BufferedImage(numPixelsPerSide, numPixelsPerSide,
                                       BufferedImage.TYPE_INT_ARGB); 
         imagePanel.setImage(buffImage);
+        colorized = buffImage;
+        colorizedColor = curColor;
+        colorizedVersion = colorTable.getVersion();
 
-	int counter = 0;
         int NUM_PIXELS_PER_LINE = Math.min(numPixelsPerSide, DEFAULT_MAX);
 
-	for (int u = uMin; u <= uMax; u++) {
-	    for (int v = vMin; v <= vMax; v++) {
-		for (int y = yMin; y <= yMax; y++) {
-                    
-                    
-		    if (colorTable.getRawColor(y,u,v) == curColor) {
-
-                        // don't want array out of bounds
-                        if (counter == NUM_PIXELS_PER_LINE * 
-                            NUM_PIXELS_PER_LINE) { 
-                            return; }
-                        
-                        // Note the order: it's different than YUV due to 
-                        // aibo's architecture for some reason.
-                        int color = converter.toRGB(y<<yShift,
-                                                    v<<vShift,
-                                                    u<<uShift).getRGB();
-                        
-                        // draw the pixel in image array here
-                        buffImage.setRGB(counter % NUM_PIXELS_PER_LINE,
-                                         counter / NUM_PIXELS_PER_LINE,
-                                         color);
-                        counter++;
-		    } // end curColor
-		} // end y
-            }// end v
-	} // end u
+        // The index hands back the entries in table (y, u, v) order; they
+        // are drawn in u, v, y order, so sort them by that first.
+        ColorTableIndex index = colorTable.getIndex();
+        int ySize = colorTable.getYDimension(),
+            uSize = colorTable.getUDimension(),
+            vSize = colorTable.getVDimension();
+        int[] keys = new int[numEntries];
+        int n = 0;
+        for (int i = index.nextBin(curColor, 0); i >= 0;
+             i = index.nextBin(curColor, i + 1)) {
+            int y = i / (uSize * vSize);
+            int u = i / vSize % uSize, v = i % vSize;
+            keys[n++] = (u * vSize + v) * ySize + y;
+        }
+        Arrays.sort(keys);
+
+        // don't want array out of bounds
+        int entries = Math.min(numEntries,
+                               NUM_PIXELS_PER_LINE * NUM_PIXELS_PER_LINE);
+	for (int counter = 0; counter < entries; counter++) {
+            int y = keys[counter] % ySize;
+            int v = keys[counter] / ySize % vSize;
+            int u = keys[counter] / ySize / vSize;
+
+            // Note the order: it's different than YUV due to 
+            // aibo's architecture for some reason.
+            int color = converter.toRGB(y<<yShift,
+                                        v<<vShift,
+                                        u<<uShift).getRGB();
+
+            // draw the pixel in image array here
+            buffImage.setRGB(counter % NUM_PIXELS_PER_LINE,
+                             counter / NUM_PIXELS_PER_LINE,
+                             color);
+	}
     }// end function
 
 
@@ -1112,14 +1239,16 @@ public class ColorEdit extends JPanel implements DataListener,
         // We don't want to deal with actions that we ourselves propagated;
         // should already be handled by the time this method is evoked
         if (originator == this) { return; }
+
+        // Keeping the kept slices in step is cheap, and saves rendering
+        // them all again when we are next shown
+        sliceCache.update(update);
         
         // Only refresh the screen if it will be visible, otherwise don't waste
         // the cpu cycles
         if (!isShowing()) {
             return;
         }
-        // TODO: Make it use the colortable update information so we don't have
-        // to repaint / recalculate everything.
 
         // Change our slider based on the average y, u, or v value if we're in
         // the same color as they just thresholded.  This allows our view
@@ -1143,7 +1272,7 @@ public class ColorEdit extends JPanel implements DataListener,
         buttonPanel.setSliderValue(sliderValue);
         System.out.println("slider value is : " + sliderValue);
         */
-        refresh();
+        refresh(update);
         
     }
     
@@ -22,7 +22,7 @@ public class ColorEditPanel extends JPanel implements KeyListener {
     private JTextArea echo;
     private final ColorEdit editor;
 
-    private final JCheckBox edit, allView;
+    private final JCheckBox edit, allView, density;
 
     private ColorSwatchPanel buttons;
     private JRadioButton yView, uView, vView, colorView;
@@ -53,6 +53,8 @@ public class ColorEditPanel extends JPanel implements KeyListener {
 	edit = new JCheckBox("Edit Mode: ");
         edit.setFocusable(false);
         allView = new JCheckBox("All view: ");
+        density = new JCheckBox("Data set density: ");
+        density.setFocusable(false);
 
         slider = new IncrementalSlider(editor, Y_STRING, 0, 255);
         
@@ -106,6 +108,7 @@ public class ColorEditPanel extends JPanel implements KeyListener {
         master.add(echo);
         master.add(edit);
         master.add(allView);
+        master.add(density);
         master.add(editButtons);
         master.add(theViews);
         master.add(slider);
@@ -136,6 +139,12 @@ public class ColorEditPanel extends JPanel implements KeyListener {
                 
 	    });
 
+        density.addActionListener(new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+		    editor.setShowDensity(density.isSelected());
+                }
+	    });
+
 	// Add action listeners..
 	yView.addActionListener(new ActionListener() {
 		public void actionPerformed(ActionEvent e) {
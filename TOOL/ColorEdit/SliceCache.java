@@ -0,0 +1,367 @@
+package TOOL.ColorEdit;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import TOOL.Calibrate.ColorTableUpdate;
+import TOOL.Image.ColorTable;
+import TOOL.Image.YCbCrColorSpace;
+import TOOL.Image.YUVHistogram;
+import TOOL.Vision.Vision;
+
+/**
+ * Whole slices of a color table as ColorEdit shows them, rendered once and
+ * kept for as long as the slider is likely to come back to them.
+ *
+ * Each slice is a plane of the table with one of Y, U or V fixed, laid out
+ * as ColorEdit.slice() draws it: YVIEW has V across and U down, UVIEW Y
+ * across and V down, VVIEW Y across and U down.  Its background, the color
+ * each entry stands for, never changes for a given table size; its overlay
+ * is one byte per entry, the table's own color numbers, drawn through an
+ * IndexColorModel with unclassified entries see-through.  ColorEdit shows
+ * the part within its axes with getSubimage, which shares the slice's
+ * pixels rather than copying them.
+ *
+ * A data set's YUVHistogram can be drawn over a slice too, as a veil that
+ * darkens the entries no pixels fall in and clears as more do.
+ *
+ * Overlays are kept current with the table's version.  An update taken
+ * straight after the version they were rendered at is patched in, entry by
+ * entry; any other change to the table throws them all away, to be
+ * rendered again when next asked for.
+ *
+ * @author Northern Bites Team
+ * @see ColorEdit#slice
+ */
+public class SliceCache {
+
+    // About 80KB a slice of a 128^3 table
+    public static final int DEFAULT_CAPACITY = 96;
+
+    // Table color numbers to colors; anything unclassified is clear
+    private static final IndexColorModel PALETTE = makePalette();
+    // Density levels to a veil, dark where no pixels fall, clearing as
+    // more do
+    private static final IndexColorModel DENSITY = makeDensityPalette();
+
+    private final ColorTable table;
+    private final YCbCrColorSpace converter = new YCbCrColorSpace();
+
+    // Least recently shown first
+    private final LinkedHashMap<Integer, BufferedImage> backgrounds;
+    private final LinkedHashMap<Integer, BufferedImage> overlays;
+    private final LinkedHashMap<Integer, BufferedImage> densities;
+    // What the densities were drawn from
+    private YUVHistogram histogram;
+
+    // What the slices were rendered for
+    private int yMax, uMax, vMax, yShift, uShift, vShift;
+    private long version;
+
+    private int hits, misses;
+
+    public SliceCache(ColorTable table) {
+        this(table, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the most slices of each kind, summed over the three
+     *                 views, kept at once
+     */
+    public SliceCache(ColorTable table, final int capacity) {
+        this.table = table;
+        backgrounds = new LinkedHashMap<Integer, BufferedImage>(16, .75f,
+                                                                true) {
+            protected boolean removeEldestEntry(
+                Map.Entry<Integer, BufferedImage> e) {
+                return size() > capacity;
+            }
+        };
+        overlays = new LinkedHashMap<Integer, BufferedImage>(16, .75f,
+                                                             true) {
+            protected boolean removeEldestEntry(
+                Map.Entry<Integer, BufferedImage> e) {
+                return size() > capacity;
+            }
+        };
+        densities = new LinkedHashMap<Integer, BufferedImage>(16, .75f,
+                                                              true) {
+            protected boolean removeEldestEntry(
+                Map.Entry<Integer, BufferedImage> e) {
+                return size() > capacity;
+            }
+        };
+        sync();
+    }
+
+    private static IndexColorModel makePalette() {
+        byte[] r = new byte[256], g = new byte[256], b = new byte[256],
+            a = new byte[256];
+        for (int c = 0; c < Vision.COLORS.length; c++) {
+            if (c == Vision.GREY)
+                continue;
+            Color color = Vision.COLORS[c];
+            r[c] = (byte) color.getRed();
+            g[c] = (byte) color.getGreen();
+            b[c] = (byte) color.getBlue();
+            a[c] = (byte) color.getAlpha();
+        }
+        return new IndexColorModel(8, 256, r, g, b, a);
+    }
+
+    private static IndexColorModel makeDensityPalette() {
+        byte[] black = new byte[256], a = new byte[256];
+        a[0] = (byte) 160;
+        for (int level = 1; level < 256; level++)
+            a[level] = (byte) (100 * (255 - level) / 254);
+        return new IndexColorModel(8, 256, black, black, black, a);
+    }
+
+    /**
+     * @return true if value names a slice of the table along view
+     */
+    public boolean hasSlice(ColorEdit.View view, int value) {
+        return value >= 0 && value < depth(view);
+    }
+
+    /**
+     * @return the colors of the entries of a slice, which is not to be
+     *         drawn on
+     */
+    public BufferedImage getBackground(ColorEdit.View view, int value) {
+        sync();
+        Integer key = key(view, value);
+        BufferedImage image = backgrounds.get(key);
+        if (image == null) {
+            misses++;
+            image = renderBackground(view, value);
+            backgrounds.put(key, image);
+        } else
+            hits++;
+        return image;
+    }
+
+    /**
+     * @return the table's colors across a slice, which is not to be drawn
+     *         on
+     */
+    public BufferedImage getOverlay(ColorEdit.View view, int value) {
+        sync();
+        Integer key = key(view, value);
+        BufferedImage image = overlays.get(key);
+        if (image == null) {
+            misses++;
+            image = renderOverlay(view, value);
+            overlays.put(key, image);
+        } else
+            hits++;
+        return image;
+    }
+
+    /**
+     * @return how densely h's pixels fall across a slice, on a log scale,
+     *         laid out as the slice; null if h is not at the table's
+     *         resolution.  Not to be drawn on.
+     */
+    public BufferedImage getDensity(YUVHistogram h, ColorEdit.View view,
+                                    int value) {
+        sync();
+        if (!h.matches(table))
+            return null;
+        if (h != histogram) {
+            densities.clear();
+            histogram = h;
+        }
+        Integer key = key(view, value);
+        BufferedImage image = densities.get(key);
+        if (image == null) {
+            misses++;
+            image = renderDensity(h, view, value);
+            densities.put(key, image);
+        } else
+            hits++;
+        return image;
+    }
+
+    /**
+     * Brings the overlays up to date with an update just applied to the
+     * table, redrawing only the entries it covers.  If the table has
+     * changed in other ways too they are all dropped instead.
+     */
+    public void update(ColorTableUpdate u) {
+        if (u.getVersion() == version && sameShape())
+            return; // already seen
+        if (u.getBaseVersion() != version || !sameShape()) {
+            sync();
+            return;
+        }
+        if (!overlays.isEmpty()) {
+            byte[] colors = table.getTableBuffer();
+            int plane = uMax * vMax;
+            for (int i : table.indicesOf(u, u.isRaw())) {
+                int y = i / plane, cb = i / vMax % uMax, cr = i % vMax;
+                patch(ColorEdit.View.YVIEW, y, cr, cb, vMax, colors[i]);
+                patch(ColorEdit.View.UVIEW, cb, y, cr, yMax, colors[i]);
+                patch(ColorEdit.View.VVIEW, cr, y, cb, yMax, colors[i]);
+            }
+        }
+        version = u.getVersion();
+    }
+
+    // Sets the entry at x, row of a slice's overlay, if it is kept
+    private void patch(ColorEdit.View view, int value, int x, int row,
+                       int width, byte color) {
+        BufferedImage image = overlays.get(key(view, value));
+        if (image != null)
+            pixels(image)[row * width + x] = color;
+    }
+
+    /** Drops everything, as for a change to the table from elsewhere. */
+    public void clear() {
+        backgrounds.clear();
+        overlays.clear();
+        densities.clear();
+        sync();
+    }
+
+    /** @return how many slices were found already rendered */
+    public int getHits() {
+        return hits;
+    }
+
+    /** @return how many slices had to be rendered */
+    public int getMisses() {
+        return misses;
+    }
+
+    // Throws away what no longer matches the table
+    private void sync() {
+        if (!sameShape()) {
+            backgrounds.clear();
+            overlays.clear();
+            densities.clear();
+            yMax = table.getYDimension();
+            uMax = table.getUDimension();
+            vMax = table.getVDimension();
+            yShift = table.getYShift();
+            uShift = table.getUShift();
+            vShift = table.getVShift();
+        }
+        if (version != table.getVersion()) {
+            overlays.clear();
+            version = table.getVersion();
+        }
+    }
+
+    private boolean sameShape() {
+        return yMax == table.getYDimension() &&
+            uMax == table.getUDimension() &&
+            vMax == table.getVDimension() &&
+            yShift == table.getYShift() &&
+            uShift == table.getUShift() &&
+            vShift == table.getVShift();
+    }
+
+    private static Integer key(ColorEdit.View view, int value) {
+        return view.ordinal() << 16 | value;
+    }
+
+    private int depth(ColorEdit.View view) {
+        switch (view) {
+        case YVIEW: return table.getYDimension();
+        case UVIEW: return table.getUDimension();
+        case VVIEW: return table.getVDimension();
+        default:    return 0;
+        }
+    }
+
+    private int width(ColorEdit.View view) {
+        return view == ColorEdit.View.YVIEW ? vMax : yMax;
+    }
+
+    private int height(ColorEdit.View view) {
+        return view == ColorEdit.View.UVIEW ? vMax : uMax;
+    }
+
+    private BufferedImage renderBackground(ColorEdit.View view, int value) {
+        int width = width(view), height = height(view);
+        BufferedImage image = new BufferedImage(width, height,
+                                                BufferedImage.TYPE_INT_RGB);
+        int[] out = ((DataBufferInt) image.getRaster().getDataBuffer())
+            .getData();
+        int[] rgb = new int[3];
+        for (int row = 0; row < height; row++)
+            for (int x = 0; x < width; x++) {
+                int y, cb, cr;
+                switch (view) {
+                case YVIEW: y = value; cb = row;   cr = x;     break;
+                case UVIEW: y = x;     cb = value; cr = row;   break;
+                default:    y = x;     cb = row;   cr = value; break;
+                }
+                // Note order: Y,V,U not YUV, as ColorEdit always has
+                converter.toRGB(y << yShift, cr << vShift, cb << uShift,
+                                rgb);
+                out[row * width + x] = rgb[0] << 16 | rgb[1] << 8 | rgb[2];
+            }
+        return image;
+    }
+
+    private BufferedImage renderOverlay(ColorEdit.View view, int value) {
+        int width = width(view), height = height(view);
+        BufferedImage image = new BufferedImage(width, height,
+                                                BufferedImage.TYPE_BYTE_INDEXED,
+                                                PALETTE);
+        byte[] out = pixels(image);
+        byte[] colors = table.getTableBuffer();
+        switch (view) {
+        case YVIEW:
+            // each row is a run of the table
+            for (int cb = 0; cb < uMax; cb++)
+                System.arraycopy(colors, table.index(value, cb, 0),
+                                 out, cb * vMax, vMax);
+            break;
+        case UVIEW:
+            for (int cr = 0; cr < vMax; cr++)
+                for (int y = 0; y < yMax; y++)
+                    out[cr * yMax + y] = colors[table.index(y, value, cr)];
+            break;
+        default:
+            for (int cb = 0; cb < uMax; cb++)
+                for (int y = 0; y < yMax; y++)
+                    out[cb * yMax + y] = colors[table.index(y, cb, value)];
+            break;
+        }
+        return image;
+    }
+
+    private BufferedImage renderDensity(YUVHistogram h, ColorEdit.View view,
+                                        int value) {
+        int width = width(view), height = height(view);
+        BufferedImage image = new BufferedImage(width, height,
+                                                BufferedImage.TYPE_BYTE_INDEXED,
+                                                DENSITY);
+        byte[] out = pixels(image);
+        double scale = 254 / Math.log1p(Math.max(1, h.getMax()));
+        for (int row = 0; row < height; row++)
+            for (int x = 0; x < width; x++) {
+                int count;
+                switch (view) {
+                case YVIEW: count = h.getCount(value, row, x); break;
+                case UVIEW: count = h.getCount(x, value, row); break;
+                default:    count = h.getCount(x, row, value); break;
+                }
+                out[row * width + x] = (byte) (count == 0 ? 0 :
+                    1 + (int) (scale * Math.log1p(count)));
+            }
+        return image;
+    }
+
+    private static byte[] pixels(BufferedImage image) {
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+}
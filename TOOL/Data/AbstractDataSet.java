@@ -250,6 +250,16 @@ public abstract class AbstractDataSet implements DataSet {
         frameChanged.set(i, true);
     }
 
+    /**
+     * Marks frame i loaded, and unchanged, without reading it.  For frames
+     * whose data has been put back as it was last stored, e.g. by a
+     * FrameCache.
+     */
+    public void markLoaded(int i) {
+        frameLoaded.set(i, true);
+        frameChanged.set(i, false);
+    }
+
     public void load() throws TOOLException {
         for (Frame f : frames)
             load(f.index());
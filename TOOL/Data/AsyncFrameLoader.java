@@ -0,0 +1,181 @@
+// This file is part of TOOL, a robotics interaction and development
+// package created by the Northern Bites RoboCup team of Bowdoin College
+// in Brunswick, Maine.
+//
+// TOOL is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// TOOL is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with TOOL.  If not, see <http://www.gnu.org/licenses/>.
+
+package TOOL.Data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Loads frames off the Swing thread, so that a slow DataSet, e.g. an
+ * SQLSet or a RemoteRobot, doesn't freeze the TOOL while it reads.  Each
+ * load returns a Future of the frame, and can be given a Runnable to run on
+ * the Swing thread once it is done, loaded or not.
+ *
+ * Each DataSource loads on its own threads, so a slow source holds up no
+ * other.  Frame and log folders load up to FILE_LOADS frames at once;
+ * other sources, which talk over a single connection, one at a time.
+ * Asking for a frame which is already being loaded joins that load rather
+ * than starting another.
+ *
+ * A load can only be cancelled before it starts.  Once it has, cancel()
+ * returns false, and the frame stays registered as loading, and the
+ * Runnables wait, until the load has really finished.
+ *
+ * Loads are started on the Swing thread.
+ *
+ * @see DataManager#useFrame
+ */
+public class AsyncFrameLoader {
+
+    // Frames loaded at once from a folder of files
+    public static final int FILE_LOADS = 2;
+
+    // Load threads of each source, or of each set without one
+    private final HashMap<Object, ExecutorService> workers =
+        new HashMap<Object, ExecutorService>();
+    private final ConcurrentHashMap<Frame, Load> loading =
+        new ConcurrentHashMap<Frame, Load>();
+
+    private class Load extends FutureTask<Frame> {
+        private final Frame frame;
+        private final List<Runnable> whenDone = new ArrayList<Runnable>();
+        private boolean started, finished;
+
+        Load(Frame frame, Callable<Frame> task) {
+            super(task);
+            this.frame = frame;
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (isCancelled())
+                    return;
+                started = true;
+            }
+            super.run();
+        }
+
+        // Only a load which hasn't started can be cancelled, so done() is
+        // never called while the frame is still being read
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (started)
+                    return false;
+                return super.cancel(false);
+            }
+        }
+
+        // Adds r to run once done; false if it is done already
+        synchronized boolean then(Runnable r) {
+            if (finished)
+                return false;
+            if (r != null)
+                whenDone.add(r);
+            return true;
+        }
+
+        protected void done() {
+            loading.remove(frame, this);
+            synchronized (this) {
+                finished = true;
+            }
+            for (Runnable r : whenDone)
+                SwingUtilities.invokeLater(r);
+        }
+    }
+
+    /** @return frame f, loaded in the background */
+    public Future<Frame> load(Frame f) {
+        return load(f, null);
+    }
+
+    /**
+     * Loads frame f in the background, then runs whenDone, if not null, on
+     * the Swing thread.  Errors loading f are thrown by the Future's get().
+     * @return frame f, once loaded
+     */
+    public Future<Frame> load(final Frame f, Runnable whenDone) {
+        return submit(f, new Callable<Frame>() {
+                public Frame call() throws Exception {
+                    if (!f.loaded())
+                        f.load();
+                    return f;
+                }
+            }, whenDone);
+    }
+
+    /**
+     * Runs task, which loads frame f some way of its own, on f's source's
+     * threads, then whenDone, if not null, on the Swing thread.  If f is
+     * already being loaded, whenDone is run once that load is done instead.
+     * @return what task returns, or throws
+     */
+    public Future<Frame> submit(Frame f, Callable<Frame> task,
+                                Runnable whenDone) {
+        Load load = loading.get(f);
+        if (load == null || !load.then(whenDone)) {
+            load = new Load(f, task);
+            load.then(whenDone);
+            loading.put(f, load);
+            worker(f.dataSet()).execute(load);
+        }
+        return load;
+    }
+
+    /** @return true if frame f is being loaded */
+    public boolean isLoading(Frame f) {
+        return loading.containsKey(f);
+    }
+
+    private ExecutorService worker(DataSet set) {
+        DataSource source = set.source();
+        Object key = source != null ? source : set;
+        ExecutorService worker = workers.get(key);
+        if (worker == null) {
+            worker = Executors.newFixedThreadPool(loads(source),
+                                                  new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Frame load");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            workers.put(key, worker);
+        }
+        return worker;
+    }
+
+    // How many frames source can load at once
+    private static int loads(DataSource source) {
+        if (source == null)
+            return 1;
+        String type = source.getType();
+        return DataSource.FILE_SOURCE_TYPE.equals(type) ||
+            DataSource.LOG_SOURCE_TYPE.equals(type) ? FILE_LOADS : 1;
+    }
+}
@@ -0,0 +1,39 @@
+// This file is part of TOOL, a robotics interaction and development
+// package created by the Northern Bites RoboCup team of Bowdoin College
+// in Brunswick, Maine.
+//
+// TOOL is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// TOOL is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with TOOL.  If not, see <http://www.gnu.org/licenses/>.
+
+package TOOL.Data;
+
+import TOOL.Calibrate.ColorTableUpdate;
+import TOOL.Image.ColorTable;
+import TOOL.Image.ColorTableSnapshot;
+
+/**
+ * Told of color table edits on a thread of its own rather than the Swing
+ * thread, which goes on editing the table meanwhile.  So rather than read
+ * source, which may be halfway through another edit, a listener reads
+ * table: a snapshot of source as it was right after update.
+ *
+ * @see DataManager#addColorTableSnapshotListener
+ */
+public interface ColorTableSnapshotListener {
+    /**
+     * @param table source as of update; released once this returns
+     */
+    public void colorTableChanged(ColorTableSnapshot table,
+                                  ColorTable source, ColorTableUpdate update,
+                                  ColorTableListener originator);
+}
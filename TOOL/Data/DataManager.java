@@ -21,12 +21,12 @@ package TOOL.Data;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.swing.JPanel;
 
@@ -43,7 +43,6 @@ public class DataManager implements ItemListener,
                                     SourceListener {
 
     public static final int LIST_ROW_HEIGHT = 35;
-    public static final int MAX_CACHE_SIZE = 5;
 
     private Vector<DataSet> dataSets;
     private int dataSetIndex;
@@ -51,25 +50,32 @@ public class DataManager implements ItemListener,
     
 
     private ListPanel<DataSetObject> listPanel;
-    private HashSet<DataListener> listeners;
-    private HashSet<ColorTableListener> colorListeners;
+    // tells the listeners of frames and table edits
+    private ListenerDispatcher dispatcher;
 
 
-    // the cache is a listing frame objects
-    // that are in memory.
-    private LinkedList<Frame> mainCache;
-    private int cache_limit;
+    // the cache decides which frame objects
+    // stay in memory.
+    private FrameCache mainCache;
+    // reads the frames ahead of the user into it
+    private FramePrefetcher prefetcher;
+    // loads frames off the Swing thread
+    private AsyncFrameLoader loader;
+    private boolean asyncLoading;
+    // the frame being loaded to be shown, if any
+    private FrameLoad loading;
 
     public DataManager() {
-        this(MAX_CACHE_SIZE);
+        this(new LRUFrameCache());
     }
     
-    public DataManager(int size_limit) {
+    public DataManager(FrameCache cache) {
         dataSets = new Vector<DataSet>();
-        listeners = new HashSet<DataListener>();
-        colorListeners = new HashSet<ColorTableListener>();
-        mainCache = new LinkedList<Frame>();
-        cache_limit = size_limit;
+        dispatcher = new ListenerDispatcher();
+        mainCache = cache;
+        prefetcher = new FramePrefetcher();
+        loader = new AsyncFrameLoader();
+        asyncLoading = true;
 
         dataSetIndex = -1;
         frameIndex = -1;
@@ -101,6 +107,38 @@ public class DataManager implements ItemListener,
         return null;
     }
 
+    /**
+     * @return the cache of frames loaded as the user steps through the
+     *         active DataSet
+     */
+    public FrameCache getFrameCache() {
+        return mainCache;
+    }
+
+    /**
+     * @return the prefetcher reading frames ahead of the user as they step
+     *         through the active DataSet
+     */
+    public FramePrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    public AsyncFrameLoader getLoader() {
+        return loader;
+    }
+
+    public boolean isAsyncLoading() {
+        return asyncLoading;
+    }
+
+    /**
+     * Sets whether useFrame() loads frames in the background, notifying
+     * listeners once they are loaded, or loads them before returning.
+     */
+    public void setAsyncLoading(boolean async) {
+        asyncLoading = async;
+    }
+
     public DataSet activeSet() {
         if (dataSetIndex < 0)
             return null;
@@ -162,7 +200,13 @@ public class DataManager implements ItemListener,
     }
 
     public void useFrame(int i) {
-        if (i != frameIndex && i >= 0 && activeSet() != null) {
+        if (i >= 0 && activeSet() != null) {
+            if (i == frameIndex) {
+                // back where we were, past any frame still loading
+                skipLoading();
+                return;
+            }
+
             boolean size_change = false;
             if (i >= activeSet().size())
                 size_change = true;
@@ -170,13 +214,107 @@ public class DataManager implements ItemListener,
             if (size_change && !activeSet().dynamic())
                 return;
 
-            if (safeLoad(activeSet(), i, mainCache)) {
+            if (asyncLoading)
+                loadFrame(activeSet(), i);
+            else if (safeLoad(activeSet(), i, mainCache)) {
                 frameIndex = i;
                 if (size_change)
                     // dynamic sets will create a new frame at index
                     //   (old_size), or index (new_size - 1) when successful
                     frameIndex = activeSet().size() - 1;
-                notifyDependants(false);
+                showFrame();
+            }
+        }
+    }
+
+    private void showFrame() {
+        prefetcher.switched(activeSet(), frameIndex, mainCache);
+        notifyDependants(false);
+    }
+
+    /**
+     * Shows frame i of set at once if it is loaded or can be put back, and
+     * otherwise loads it in the background, showing it once it is loaded
+     * unless the user has moved on by then.
+     */
+    private void loadFrame(DataSet set, int i) {
+        // dynamic sets create a new frame here
+        Frame f = set.get(i);
+        if (loading != null && loading.frame == f)
+            // on its way already
+            return;
+        skipLoading();
+
+        if (!f.loaded()) {
+            if (!makeRoom(set, mainCache))
+                return;
+            if (!mainCache.restore(f)) {
+                loading = new FrameLoad(set, f);
+                return;
+            }
+        }
+        mainCache.add(f);
+        frameIndex = f.index();
+        showFrame();
+    }
+
+    // Stops waiting for the frame being loaded.  If it is being read
+    // already it can't be cancelled; FrameLoad.run() then adds it to the
+    // cache once it is loaded, but doesn't show it.
+    private void skipLoading() {
+        if (loading != null)
+            loading.future.cancel(false);
+        loading = null;
+    }
+
+    /**
+     * A frame being loaded in the background to be shown.  Once done, run()
+     * shows it on the Swing thread, if it is still the frame wanted.
+     */
+    private class FrameLoad implements Runnable {
+        final DataSet set;
+        final Frame frame;
+        final Future<Frame> future;
+        // what went wrong loading the frame, if anything
+        volatile Throwable error;
+
+        FrameLoad(DataSet set, final Frame f) {
+            this.set = set;
+            frame = f;
+            final Future<Frame> copy = prefetcher.claim(f);
+            future = loader.submit(f, new Callable<Frame>() {
+                    public Frame call() {
+                        try {
+                            if (!f.loaded() && !prefetcher.adopt(f, copy))
+                                f.load();
+                        }catch (TOOLException e) {
+                            error = e;
+                        }catch (OutOfMemoryError e) {
+                            error = e;
+                        }
+                        return f;
+                    }
+                }, this);
+        }
+
+        public void run() {
+            if (error instanceof TOOLException)
+                DataModule.logError("Could not load frame.",
+                                    (TOOLException) error);
+            else if (error != null)
+                DataModule.logError(DataModule.class,
+                                    "DataManager ran out of memory.  The " +
+                                    "size limit must be too high.", error);
+
+            // held even if skipped, so that it is unloaded in its turn
+            if (frame.loaded())
+                mainCache.add(frame);
+            if (loading != this)
+                return;
+            loading = null;
+            if (frame.loaded() && set == activeSet()) {
+                frameIndex = frame.index();
+                showFrame();
             }
         }
     }
@@ -199,13 +337,17 @@ public class DataManager implements ItemListener,
 
     public void useDataSet(int i) {
         if (i != dataSetIndex && i >= 0 && i < dataSets.size()) {
+            skipLoading();
             mainCache.clear();
+            prefetcher.clear();
             DataSet d = dataSets.get(i);
             dataSetIndex = i;
             frameIndex = 0;
 
-            if (safeLoad(d, frameIndex, mainCache))
+            if (safeLoad(d, frameIndex, mainCache)) {
+                prefetcher.switched(d, frameIndex, mainCache);
                 notifyDependants(true);
+            }
             else {
                 dataSetIndex = -1;
                 frameIndex = -1;
@@ -243,6 +385,8 @@ public class DataManager implements ItemListener,
     public void clear() {
         listPanel.clear();
         dataSets.clear();
+        skipLoading();
+        prefetcher.clear();
 
         dataSetIndex = -1;
         frameIndex = -1;
@@ -290,11 +434,20 @@ public class DataManager implements ItemListener,
         if (src == null || dest == null || src == dest)
             return;
 
-        int orig_limit = cache_limit;
-        cache_limit /= 2;
+        // the copies share the budget with the originals
+        long orig_budget = mainCache.getBudget();
+        mainCache.setBudget(orig_budget / 2);
 
-        LinkedList<Frame> tmp_cache = new LinkedList<Frame>();
+        FrameCache tmp_cache = new LRUFrameCache(orig_budget / 2);
 
+        try {
+            copyFrames(src, dest, tmp_cache);
+        }finally {
+            mainCache.setBudget(orig_budget);
+        }
+    }
+
+    private void copyFrames(DataSet src, DataSet dest, FrameCache tmp_cache) {
         for (Frame orig : src) {
             Frame copy = dest.add(true, true);
             if (!safeLoad(src, orig.index(), mainCache))
@@ -318,26 +471,73 @@ public class DataManager implements ItemListener,
                 DataModule.logError("Could not store new DataSet", e);
             }
         }
-
     }
 
-    public boolean safeLoad(DataSet set, int i, LinkedList<Frame> cache) {
+    /**
+     * Loads frame i of set, unless it is loaded already, making room for
+     * it by unloading the frames cache picks to go.  Frames it kept the
+     * data of are put back, and frames of the main cache read ahead are
+     * taken from the prefetcher, rather than read again.  A frame being
+     * loaded in the background is waited for.
+     *
+     * @return true if frame i is loaded
+     */
+    public boolean safeLoad(DataSet set, int i, FrameCache cache) {
         if (i < 0 || i >= set.size() && !set.dynamic())
             // index is invalid
             return false;
 
         Frame f = set.get(i);
 
-        if (f.loaded())
+        if (loader.isLoading(f)) {
+            // wait for the load under way rather than race it
+            try {
+                loader.load(f).get();
+            }catch (Exception e) {
+                // loaded again below
+            }
+        }
+
+        if (f.loaded()) {
             // already loaded
+            cache.add(f);
             return true;
+        }
 
-        else if (!cache.contains(f) && cache.size() >= cache_limit) {
-            // need to remove an unused frame from the cache and free its
-            // images for memory
-            try {
-                Frame old = cache.remove();
+        if (!makeRoom(set, cache))
+            return false;
+
+        try {
+            if (!cache.restore(f) &&
+                !(cache == mainCache && prefetcher.take(f)))
+                f.load();
+        }catch (TOOLException e) {
+            DataModule.logError("Could not load frame.", e);
+        }catch (OutOfMemoryError e) {
+            DataModule.logError(DataModule.class,
+                                "DataManager ran out of memory.  The size " +
+                                "limit must be too high.", e);
+        }
+
+        if (f.loaded())
+            cache.add(f);
 
+        return f.loaded();
+    }
+
+    /**
+     * Unloads the frames cache picks to go, to make room for another frame
+     * of set, storing them first if they have changed and set saves
+     * automatically.
+     *
+     * @return false if a frame could not be unloaded without losing data
+     */
+    private boolean makeRoom(DataSet set, FrameCache cache) {
+        // need to remove unused frames from the cache and free their
+        // images for memory
+        Frame old;
+        while ((old = cache.victim()) != null) {
+            try {
                 if (old.changed()) {
                     if (set.autoSave())
                         old.store();
@@ -350,32 +550,15 @@ public class DataManager implements ItemListener,
                     }
                 }
 
+                cache.evict(old);
                 old.unload();
             }catch (TOOLException e) {
                 DataModule.logError("Automatic data unloading failed with " +
                                     "error.", e);
                 return false;
             }
-        
         }
-
-        // if already in cache, will remove it (it will be added to the back)
-        cache.remove(f);
-
-        try {
-            f.load();
-        }catch (TOOLException e) {
-            DataModule.logError("Could not load frame.", e);
-        }catch (OutOfMemoryError e) {
-            DataModule.logError(DataModule.class,
-                                "DataManager ran out of memory.  The size " +
-                                "limit must be too high.", e);
-        }
-
-        if (f.loaded())
-            cache.add(f);
-
-        return f.loaded();
+        return true;
     }
 
 
@@ -384,21 +567,41 @@ public class DataManager implements ItemListener,
      * ColorTableListener will be notified of changes to the current color table
      */
     public void addColorTableListener(ColorTableListener d) {
-        colorListeners.add(d);
+        dispatcher.addColorTableListener(d);
+    }
 
+    public void removeColorTableListener(ColorTableListener d) {
+        dispatcher.removeColorTableListener(d);
+    }
+
+    /**
+     * Register a new ColorTableSnapshotListener, to be notified on a thread
+     * of its own, with a snapshot of the table to read.
+     */
+    public void addColorTableSnapshotListener(ColorTableSnapshotListener d) {
+        dispatcher.addColorTableSnapshotListener(d);
+    }
+
+    public void removeColorTableSnapshotListener(ColorTableSnapshotListener
+                                                 d) {
+        dispatcher.removeColorTableSnapshotListener(d);
     }
 
     public void ColorTableListener(DataListener d) {
-        colorListeners.remove(d);
+        if (d instanceof ColorTableListener)
+            removeColorTableListener((ColorTableListener) d);
     }
 
 
+    /**
+     * Notify the ColorTableListeners, other than originator, of update to
+     * source.  Updates made before a listener is notified reach it merged
+     * into one.
+     */
     public void notifyColorTableDependants(ColorTable source, 
                                            ColorTableUpdate update,
                                            ColorTableListener originator) {
-        for (ColorTableListener d : colorListeners) {
-            d.colorTableChanged(source, update, originator);
-        }
+        dispatcher.colorTableChanged(source, update, originator);
     }
 
 
@@ -409,14 +612,30 @@ public class DataManager implements ItemListener,
      * @param d A class implementing the DataListener notification interface.
      */
     public void addDataListener(DataListener d) {
-        listeners.add(d);
+        addDataListener(d, false);
+    }
+
+    /**
+     * Register a new DataListener, to be notified on a thread of its own
+     * if background is set, or otherwise on the Swing thread.
+     */
+    public void addDataListener(DataListener d, boolean background) {
+        dispatcher.addDataListener(d, background);
 
         if (activeSet() != null)
-            notifyDependant(d);
+            dispatcher.frameChanged(d, activeSet(), activeFrame(), false);
     }
 
     public void removeDataListener(DataListener d) {
-        listeners.remove(d);
+        dispatcher.removeDataListener(d);
+    }
+
+    /**
+     * @return a line for each listener with how long it has taken to be
+     *         notified
+     */
+    public String listenerReport() {
+        return dispatcher.report();
     }
 
     /**
@@ -430,25 +649,15 @@ public class DataManager implements ItemListener,
 
     /**
      * Notify all listeners on this DataManager of the current active Frame
-     * object, and optionally the current Dataset as well.
+     * object, and optionally the current Dataset as well.  Listeners are
+     * notified once they are done with what they were notified of before,
+     * of the latest frame only.
      *
      * @param newSet True if the DataSet is new and listeners should be
      * notified of this first as well. False otherwise.
      */
     private void notifyDependants(boolean newSet) {
-        for (DataListener d : listeners)
-            notifyDependant(d, newSet);
-    }
-
-    private void notifyDependant(DataListener d) {
-        notifyDependant(d, false);
-    }
-
-    private void notifyDependant(DataListener d, boolean newSet) {
-        if (newSet)
-            d.notifyDataSet(activeSet(), activeFrame());
-        else
-            d.notifyFrame(activeFrame());
+        dispatcher.frameChanged(activeSet(), activeFrame(), newSet);
     }
 
     //
@@ -69,6 +69,7 @@ public interface DataSet extends Iterable<Frame> {
     public Frame   add(boolean loaded, boolean changed);
     public Frame   get(int i);
     public void    mark(int i);
+    public void    markLoaded(int i);
 
     public void    load()                       throws TOOLException;
     public void    load(int offset, int number) throws TOOLException;
@@ -82,6 +82,14 @@ public class FileSet extends AbstractDataSet {
         return f;
     }
 
+    /**
+     * @return the file frame i is loaded from, for readers which want a
+     *         copy of it without loading it into the set
+     */
+    public File file(int i) {
+        return frms.get(i);
+    }
+
     public void load(int i) throws TOOLException {
         if (loaded(i))
             return;
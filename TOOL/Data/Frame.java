@@ -170,9 +170,16 @@ public class Frame {
 	return frame_states;
     }
 
-    // return calculated size value for this frame
+    /**
+     * @return the bytes of memory the frame's image takes up, by which
+     *         the DataManager's FrameCache budgets frames, or 0 if it has
+     *         no image
+     */
     public int size() {
-        return 0;
+        if (frame_image == null)
+            return 0;
+        byte[] pixels = frame_image.getPixelBuffer();
+        return pixels != null ? pixels.length : frame_image.rawImageSize();
     }
 
 
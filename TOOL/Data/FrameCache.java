@@ -0,0 +1,79 @@
+// This file is part of TOOL, a robotics interaction and development
+// package created by the Northern Bites RoboCup team of Bowdoin College
+// in Brunswick, Maine.
+//
+// TOOL is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// TOOL is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with TOOL.  If not, see <http://www.gnu.org/licenses/>.
+
+package TOOL.Data;
+
+/**
+ * Decides which loaded frames the DataManager keeps in memory, and which it
+ * unloads as others are loaded.  Frames are told apart by their DataSet and
+ * index.
+ *
+ * The cache only keeps the accounts; the DataManager does the loading,
+ * storing and unloading, asking victim() which frame to unload next.  A
+ * cache may keep an evicted frame's data a while longer, so that it can be
+ * put back by restore() rather than read again.
+ *
+ * @see DataManager#safeLoad
+ * @see LRUFrameCache
+ */
+public interface FrameCache {
+
+    /** @return true if loaded frame f is held by the cache */
+    public boolean contains(Frame f);
+
+    /** Holds loaded frame f, as the frame used most recently. */
+    public void add(Frame f);
+
+    /**
+     * @return the frame to unload next to make room for another frame, or
+     *         null if there is room already
+     */
+    public Frame victim();
+
+    /**
+     * Stops holding f, which is about to be unloaded.  Its data may be
+     * kept, if f has no changes which would be lost, for restore().
+     */
+    public void evict(Frame f);
+
+    /**
+     * Puts the data of unloaded frame f back, if it was kept when f was
+     * evicted, and marks f loaded.
+     * @return true if f is loaded again, false if it needs reading
+     */
+    public boolean restore(Frame f);
+
+    /** Stops holding every frame, without unloading them. */
+    public void clear();
+
+    /** @return the bytes taken up by the frames held */
+    public long bytes();
+
+    /** @return the most bytes of frames held before they are evicted */
+    public long getBudget();
+
+    public void setBudget(long bytes);
+
+    /** @return how many frames were asked for while held */
+    public int getHits();
+
+    /** @return how many frames were put back by restore() */
+    public int getRestores();
+
+    /** @return how many frames had to be read */
+    public int getMisses();
+}
@@ -0,0 +1,227 @@
+// This file is part of TOOL, a robotics interaction and development
+// package created by the Northern Bites RoboCup team of Bowdoin College
+// in Brunswick, Maine.
+//
+// TOOL is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// TOOL is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with TOOL.  If not, see <http://www.gnu.org/licenses/>.
+
+package TOOL.Data;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import TOOL.TOOLException;
+import TOOL.Data.File.FileSet;
+import TOOL.Data.File.FrameLoader;
+
+/**
+ * Reads the frames the user is heading for before the DataManager is asked
+ * for them, so that holding down a key steps through a data set without
+ * waiting on the disk.  The direction and stride are those of the last
+ * step: after stepping from frame 10 to 12, frames 14, 16, ... are read.
+ * A step of more than MAX_STRIDE frames is a jump, and stops everything
+ * being read until the user steps again.
+ *
+ * Frames are read on a background thread as private copies, which leaves
+ * the data set as it was; the DataManager takes a copy's data when it loads
+ * the frame, through the FrameCache like any other.  No more frames are
+ * read ahead than the cache's budget has room for besides the current one.
+ * Only frames of a FileSet are read ahead; others load as before.
+ *
+ * Everything but the reading and adopt() is called on the DataManager's
+ * thread.
+ *
+ * @see DataManager#useFrame
+ */
+public class FramePrefetcher {
+
+    public static final int DEFAULT_DEPTH = 3;
+    // Longer steps than this are jumps, not navigation
+    public static final int MAX_STRIDE = 16;
+
+    private int depth;
+    private final ExecutorService worker;
+    // Frames being read, or read, by index, nearest the current one first
+    private final LinkedHashMap<Integer, Future<Frame>> pending =
+        new LinkedHashMap<Integer, Future<Frame>>();
+    private DataSet pendingSet;
+    private int lastIndex = -1;
+
+    private int switches;
+    private final AtomicInteger served = new AtomicInteger();
+
+    public FramePrefetcher() {
+        this(DEFAULT_DEPTH);
+    }
+
+    /** @param depth the frames to read ahead of the current one */
+    public FramePrefetcher(int depth) {
+        this.depth = depth;
+        worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Frame prefetch");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /** Sets the frames to read ahead; 0 reads none. */
+    public void setDepth(int depth) {
+        this.depth = Math.max(0, depth);
+    }
+
+    /**
+     * Loads unloaded frame f from its copy, if one was read ahead, waiting
+     * for it if it is still being read.  Either way the copy is taken out
+     * of the prefetcher.
+     * @return true if f is loaded
+     */
+    public boolean take(Frame f) {
+        return adopt(f, claim(f));
+    }
+
+    /**
+     * Takes the copy of frame f read ahead, or being read, out of the
+     * prefetcher, for adopt().
+     * @return the copy, or null if there is none
+     */
+    public Future<Frame> claim(Frame f) {
+        return f.dataSet() == pendingSet ? pending.remove(f.index()) : null;
+    }
+
+    /**
+     * Loads unloaded frame f from a copy claimed from the prefetcher,
+     * waiting for it if it is still being read.  May be called on any
+     * thread.
+     * @param future the copy, or null
+     * @return true if f is loaded
+     */
+    public boolean adopt(Frame f, Future<Frame> future) {
+        if (future == null || future.isCancelled())
+            return false;
+        Frame copy = null;
+        try {
+            copy = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            DataModule.logError(DataModule.class, "Could not read ahead " +
+                                "frame " + f.index(), e.getCause());
+        }
+        if (copy == null || f.loaded())
+            return false;
+
+        f.setImage(copy.image());
+        f.setPreview(copy.preview());
+        f.setJoints(copy.joints());
+        f.setSensors(copy.sensors());
+        f.setTags(copy.tags());
+        f.setStates(copy.states());
+        f.setType(copy.type());
+        f.setRobot(copy.robot());
+        f.dataSet().markLoaded(f.index());
+        served.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Notes that the user has switched to frame i of set, and starts reading
+     * the frames after it in the direction of travel.  Frames already being
+     * read which are still ahead are kept; the rest are dropped.
+     */
+    public void switched(DataSet set, int i, FrameCache cache) {
+        switches++;
+        if (set != pendingSet) {
+            clear();
+            pendingSet = set;
+        }
+        int stride = lastIndex < 0 ? 0 : i - lastIndex;
+        lastIndex = i;
+        if (Math.abs(stride) > MAX_STRIDE)
+            stride = 0;
+
+        // leave room in the cache for the current frame
+        long bytes = set.get(i).size();
+        int ahead = depth;
+        if (bytes > 0)
+            ahead = (int) Math.min(ahead, cache.getBudget() / bytes - 1);
+
+        LinkedHashMap<Integer, Future<Frame>> kept =
+            new LinkedHashMap<Integer, Future<Frame>>();
+        for (int k = 1; stride != 0 && k <= ahead; k++) {
+            int j = i + k * stride;
+            if (j < 0 || j >= set.size())
+                break;
+            Future<Frame> future = pending.remove(j);
+            if (future == null && !set.loaded(j))
+                future = submit(set, j);
+            if (future != null)
+                kept.put(j, future);
+        }
+        for (Future<Frame> future : pending.values())
+            future.cancel(true);
+        pending.clear();
+        pending.putAll(kept);
+    }
+
+    /** Drops every frame being read, e.g. as the data set changes. */
+    public void clear() {
+        for (Future<Frame> future : pending.values())
+            future.cancel(true);
+        pending.clear();
+        pendingSet = null;
+        lastIndex = -1;
+    }
+
+    /** @return how many frame switches were noted */
+    public int getSwitches() {
+        return switches;
+    }
+
+    /** @return how many frames were loaded from a copy read ahead */
+    public int getServed() {
+        return served.get();
+    }
+
+    /** @return the fraction of frame switches served by a copy read ahead */
+    public double servedFraction() {
+        return switches == 0 ? 0 : (double) served.get() / switches;
+    }
+
+    // Starts reading frame i, if it can be read from here
+    private Future<Frame> submit(final DataSet set, final int i) {
+        if (!(set instanceof FileSet))
+            return null;
+        final File file = ((FileSet) set).file(i);
+        return worker.submit(new Callable<Frame>() {
+                public Frame call() throws TOOLException {
+                    Frame copy = new Frame(set, i);
+                    FrameLoader.loadFrame(file, copy);
+                    return copy;
+                }
+            });
+    }
+}
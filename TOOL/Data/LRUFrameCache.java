@@ -0,0 +1,239 @@
+// This file is part of TOOL, a robotics interaction and development
+// package created by the Northern Bites RoboCup team of Bowdoin College
+// in Brunswick, Maine.
+//
+// TOOL is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// TOOL is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with TOOL.  If not, see <http://www.gnu.org/licenses/>.
+
+package TOOL.Data;
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import TOOL.Image.TOOLImage;
+
+/**
+ * A FrameCache which holds frames up to a budget of bytes, as Frame.size()
+ * counts them, and evicts the frame used least recently first.  So a cache
+ * holds about as many 640x480 Nao frames as it does ten times as many
+ * Aibo frames.  Every operation takes constant time.
+ *
+ * Evicted frames with nothing unsaved are kept through soft references.  As
+ * long as memory allows the collector to leave them, stepping back to one
+ * puts its data back without reading it again.
+ *
+ * @see DataManager
+ */
+public class LRUFrameCache implements FrameCache {
+
+    public static final long DEFAULT_BUDGET = 32L << 20;
+
+    // A frame, told apart by its set and index
+    private static class Key {
+        final DataSet set;
+        final int index;
+
+        Key(Frame f) {
+            set = f.dataSet();
+            index = f.index();
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).set == set &&
+                ((Key) o).index == index;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(set) * 31 + index;
+        }
+    }
+
+    private static class Entry {
+        final Frame frame;
+        final long bytes;
+
+        Entry(Frame frame) {
+            this.frame = frame;
+            bytes = frame.size();
+        }
+    }
+
+    // The data of an evicted frame, as it was stored
+    private static class Contents {
+        final TOOLImage image;
+        final BufferedImage preview;
+        final List<Float> joints, sensors;
+        final List<String> tags, states;
+        final int type;
+        final String robot;
+
+        Contents(Frame f) {
+            image = f.image();
+            preview = f.preview();
+            joints = f.joints();
+            sensors = f.sensors();
+            tags = f.tags();
+            states = f.states();
+            type = f.type();
+            robot = f.robot();
+        }
+
+        void putBack(Frame f) {
+            f.setImage(image);
+            f.setPreview(preview);
+            f.setJoints(joints);
+            f.setSensors(sensors);
+            f.setTags(tags);
+            f.setStates(states);
+            f.setType(type);
+            f.setRobot(robot);
+        }
+    }
+
+    private static class Kept extends SoftReference<Contents> {
+        final Key key;
+
+        Kept(Key key, Contents c, ReferenceQueue<Contents> queue) {
+            super(c, queue);
+            this.key = key;
+        }
+    }
+
+    // Frames held, least recently used first
+    private final LinkedHashMap<Key, Entry> held =
+        new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final HashMap<Key, Kept> kept = new HashMap<Key, Kept>();
+    private final ReferenceQueue<Contents> collected =
+        new ReferenceQueue<Contents>();
+
+    private long budget, bytes;
+    // The size of the frame added last, taken as that of the next
+    private long lastBytes;
+    private int hits, restores, misses;
+
+    public LRUFrameCache() {
+        this(DEFAULT_BUDGET);
+    }
+
+    public LRUFrameCache(long budget) {
+        this.budget = budget;
+    }
+
+    public boolean contains(Frame f) {
+        return held.containsKey(new Key(f));
+    }
+
+    public void add(Frame f) {
+        Key key = new Key(f);
+        // loaded afresh, so what was kept may be out of date
+        kept.remove(key);
+        Entry e = held.get(key);
+        if (e != null && e.frame == f) {
+            hits++;
+            return;
+        }
+        if (e != null)
+            bytes -= e.bytes;
+        e = new Entry(f);
+        held.put(key, e);
+        bytes += e.bytes;
+        lastBytes = e.bytes;
+    }
+
+    public Frame victim() {
+        Iterator<Entry> i = held.values().iterator();
+        while (i.hasNext()) {
+            Entry eldest = i.next();
+            // unloaded behind our back
+            if (!eldest.frame.loaded()) {
+                i.remove();
+                bytes -= eldest.bytes;
+                continue;
+            }
+            return bytes + lastBytes > budget ? eldest.frame : null;
+        }
+        return null;
+    }
+
+    public void evict(Frame f) {
+        Key key = new Key(f);
+        Entry e = held.remove(key);
+        if (e != null)
+            bytes -= e.bytes;
+        purge();
+        if (f.loaded() && !f.changed())
+            kept.put(key, new Kept(key, new Contents(f), collected));
+    }
+
+    public boolean restore(Frame f) {
+        purge();
+        Kept k = kept.remove(new Key(f));
+        Contents c = k == null ? null : k.get();
+        if (c == null || f.loaded()) {
+            misses++;
+            return false;
+        }
+        c.putBack(f);
+        f.dataSet().markLoaded(f.index());
+        restores++;
+        return true;
+    }
+
+    // Forgets frames the collector has let go
+    private void purge() {
+        Kept k;
+        while ((k = (Kept) collected.poll()) != null)
+            if (kept.get(k.key) == k)
+                kept.remove(k.key);
+    }
+
+    public void clear() {
+        held.clear();
+        kept.clear();
+        bytes = 0;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public void setBudget(long bytes) {
+        budget = bytes;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getRestores() {
+        return restores;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    /** @return how many evicted frames are kept, some perhaps collected */
+    public int getKept() {
+        return kept.size();
+    }
+}
@@ -0,0 +1,404 @@
+// This file is part of TOOL, a robotics interaction and development
+// package created by the Northern Bites RoboCup team of Bowdoin College
+// in Brunswick, Maine.
+//
+// TOOL is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// TOOL is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with TOOL.  If not, see <http://www.gnu.org/licenses/>.
+
+package TOOL.Data;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+
+import TOOL.Calibrate.ColorTableUpdate;
+import TOOL.Image.ColorTable;
+import TOOL.Image.ColorTableSnapshot;
+
+/**
+ * Tells the DataManager's listeners of new frames and color table edits,
+ * a burst at a time.  Rather than calling every listener as each event
+ * happens, a listener is called once events are waiting for it, with only
+ * the latest frame, or with the table edits made since it was last called
+ * merged into one ColorTableUpdate.  So a listener slower than the user
+ * scrubs or paints skips the frames and strokes it could not keep up with,
+ * instead of working through each of them in turn.
+ *
+ * Listeners are called on the Swing thread, or if they ask to be, on a
+ * thread of their own, which leaves the Swing thread free meanwhile.  Such
+ * a data listener may find a frame unloaded by the time it looks at it;
+ * such a table listener is a ColorTableSnapshotListener, handed a snapshot
+ * of the table taken as the edit was posted.  Either way a listener is
+ * only called for one burst at a time, in order, and not at all once it
+ * is removed, but for a call already under way.
+ *
+ * Each listener's latency, from the first event of a burst to the listener
+ * returning, is kept for report().
+ *
+ * Events are posted and listeners added on the Swing thread.
+ *
+ * @see DataManager#notifyDependants
+ * @see DataManager#notifyColorTableDependants
+ */
+public class ListenerDispatcher {
+
+    /** Calls one listener, a burst of events at a time. */
+    private abstract static class Delivery implements Runnable {
+        private final Object listener;
+        // the listener's own thread, or null for the Swing thread
+        private final ExecutorService worker;
+        // whether a call is waiting to be made, and since when
+        private boolean scheduled;
+        private long since;
+        private int events, calls;
+        private long totalNanos, maxNanos;
+        private volatile boolean removed;
+
+        Delivery(Object listener, boolean background) {
+            this.listener = listener;
+            worker = background ? worker(listener) : null;
+        }
+
+        // Notes an event, to be delivered with any others waiting
+        protected synchronized void posted() {
+            events++;
+            if (scheduled)
+                return;
+            scheduled = true;
+            since = System.nanoTime();
+            if (worker != null)
+                worker.execute(this);
+            else
+                SwingUtilities.invokeLater(this);
+        }
+
+        public void run() {
+            long start;
+            synchronized (this) {
+                scheduled = false;
+                start = since;
+                take();
+            }
+            if (removed) {
+                drop();
+                return;
+            }
+            try {
+                deliver();
+            } finally {
+                long t = System.nanoTime() - start;
+                synchronized (this) {
+                    calls++;
+                    totalNanos += t;
+                    maxNanos = Math.max(maxNanos, t);
+                }
+            }
+        }
+
+        // Takes what is waiting, with the lock held
+        protected abstract void take();
+
+        // Calls the listener with what was taken
+        protected abstract void deliver();
+
+        // Lets go of what was taken, for a listener since removed
+        protected void drop() {}
+
+        void shutdown() {
+            removed = true;
+            if (worker != null)
+                worker.shutdown();
+        }
+
+        synchronized String report() {
+            return String.format("%-24s %-10s %6d events %6d calls  " +
+                                 "%8.2f ms mean %8.2f ms max",
+                                 name(listener),
+                                 worker == null ? "Swing" : "background",
+                                 events, calls,
+                                 calls == 0 ? 0 : totalNanos / 1e6 / calls,
+                                 maxNanos / 1e6);
+        }
+
+        private static String name(Object listener) {
+            String name = listener.getClass().getSimpleName();
+            return name.length() > 0 ? name : listener.getClass().getName();
+        }
+
+        private static ExecutorService worker(final Object listener) {
+            return Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name(listener) +
+                                              " notification");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+    }
+
+    private static class DataDelivery extends Delivery {
+        private final DataListener listener;
+        // the latest frame, and whether its set is new to the listener
+        private DataSet set, takenSet;
+        private Frame frame, takenFrame;
+        private boolean newSet, takenNewSet;
+
+        DataDelivery(DataListener listener, boolean background) {
+            super(listener, background);
+            this.listener = listener;
+        }
+
+        void post(DataSet s, Frame f, boolean isNew) {
+            synchronized (this) {
+                set = s;
+                frame = f;
+                newSet |= isNew;
+            }
+            posted();
+        }
+
+        protected void take() {
+            takenSet = set;
+            takenFrame = frame;
+            takenNewSet = newSet;
+            set = null;
+            frame = null;
+            newSet = false;
+        }
+
+        protected void deliver() {
+            if (takenFrame == null)
+                return;
+            if (takenNewSet)
+                listener.notifyDataSet(takenSet, takenFrame);
+            else
+                listener.notifyFrame(takenFrame);
+        }
+    }
+
+    // Table edits from one source and originator, merged
+    private static class Edit {
+        final ColorTable source;
+        ColorTableUpdate update;
+        // whether update is our own, to merge later edits into
+        boolean merged;
+        final ColorTableListener originator;
+        // the table after the last edit, for a snapshot listener
+        ColorTableSnapshot snapshot;
+
+        Edit(ColorTable source, ColorTableUpdate update,
+             ColorTableListener originator, ColorTableSnapshot snapshot) {
+            this.source = source;
+            this.update = update;
+            this.originator = originator;
+            this.snapshot = snapshot;
+        }
+
+        // Takes the snapshot of a later edit absorbed
+        void keep(ColorTableSnapshot later) {
+            if (snapshot != null)
+                snapshot.release();
+            snapshot = later;
+        }
+
+        void release() {
+            if (snapshot != null)
+                snapshot.release();
+        }
+
+        // Merges in a later edit, if it is of the same kind
+        boolean absorb(ColorTable s, ColorTableUpdate u,
+                       ColorTableListener o) {
+            if (s != source || o != originator)
+                return false;
+            if (update == null || u == null) {
+                // a change to the whole table
+                update = null;
+                return true;
+            }
+            if (u.isRaw() != update.isRaw())
+                return false;
+            if (!merged) {
+                update = update.copy();
+                merged = true;
+            }
+            update.absorb(u);
+            return true;
+        }
+    }
+
+    // Calls a ColorTableListener on the Swing thread, or a
+    // ColorTableSnapshotListener on its own
+    private static class ColorDelivery extends Delivery {
+        private final Object listener;
+        private final ColorTableListener swingListener;
+        private final ColorTableSnapshotListener snapshotListener;
+        private List<Edit> edits = new ArrayList<Edit>();
+        private List<Edit> taken;
+
+        ColorDelivery(ColorTableListener listener) {
+            super(listener, false);
+            this.listener = listener;
+            swingListener = listener;
+            snapshotListener = null;
+        }
+
+        ColorDelivery(ColorTableSnapshotListener listener) {
+            super(listener, true);
+            this.listener = listener;
+            swingListener = null;
+            snapshotListener = listener;
+        }
+
+        // Called on the Swing thread, which edits source
+        void post(ColorTable source, ColorTableUpdate update,
+                  ColorTableListener originator) {
+            ColorTableSnapshot snapshot =
+                snapshotListener == null ? null : source.snapshot();
+            synchronized (this) {
+                Edit last = edits.isEmpty() ? null :
+                    edits.get(edits.size() - 1);
+                if (last != null && last.absorb(source, update, originator))
+                    last.keep(snapshot);
+                else
+                    edits.add(new Edit(source, update, originator,
+                                       snapshot));
+            }
+            posted();
+        }
+
+        protected void take() {
+            taken = edits;
+            edits = new ArrayList<Edit>();
+        }
+
+        protected void deliver() {
+            try {
+                for (Edit e : taken)
+                    if (swingListener != null)
+                        swingListener.colorTableChanged(e.source, e.update,
+                                                        e.originator);
+                    else
+                        snapshotListener.colorTableChanged(e.snapshot,
+                                                           e.source,
+                                                           e.update,
+                                                           e.originator);
+            } finally {
+                drop();
+            }
+        }
+
+        protected void drop() {
+            for (Edit e : taken)
+                e.release();
+            taken = null;
+        }
+    }
+
+    private final LinkedHashMap<DataListener, DataDelivery> dataListeners =
+        new LinkedHashMap<DataListener, DataDelivery>();
+    // ColorTableListeners and ColorTableSnapshotListeners
+    private final LinkedHashMap<Object, ColorDelivery> colorListeners =
+        new LinkedHashMap<Object, ColorDelivery>();
+
+    /**
+     * Adds d, to be told of new frames on the Swing thread, or if
+     * background is set on a thread of its own.
+     */
+    public void addDataListener(DataListener d, boolean background) {
+        removeDataListener(d);
+        dataListeners.put(d, new DataDelivery(d, background));
+    }
+
+    public void removeDataListener(DataListener d) {
+        DataDelivery delivery = dataListeners.remove(d);
+        if (delivery != null)
+            delivery.shutdown();
+    }
+
+    /** Adds c, to be told of table edits on the Swing thread. */
+    public void addColorTableListener(ColorTableListener c) {
+        removeColorTableListener(c);
+        colorListeners.put(c, new ColorDelivery(c));
+    }
+
+    public void removeColorTableListener(ColorTableListener c) {
+        removeColorListener(c);
+    }
+
+    /**
+     * Adds c, to be told of table edits, with a snapshot of the table, on
+     * a thread of its own.
+     */
+    public void addColorTableSnapshotListener(ColorTableSnapshotListener c) {
+        removeColorTableSnapshotListener(c);
+        colorListeners.put(c, new ColorDelivery(c));
+    }
+
+    public void removeColorTableSnapshotListener(ColorTableSnapshotListener
+                                                 c) {
+        removeColorListener(c);
+    }
+
+    private void removeColorListener(Object c) {
+        ColorDelivery delivery = colorListeners.remove(c);
+        if (delivery != null)
+            delivery.shutdown();
+    }
+
+    /** Tells every data listener of frame f of set, once it can. */
+    public void frameChanged(DataSet set, Frame f, boolean newSet) {
+        for (DataDelivery delivery : dataListeners.values())
+            delivery.post(set, f, newSet);
+    }
+
+    /** Tells data listener d of frame f of set, once it can. */
+    public void frameChanged(DataListener d, DataSet set, Frame f,
+                             boolean newSet) {
+        DataDelivery delivery = dataListeners.get(d);
+        if (delivery != null)
+            delivery.post(set, f, newSet);
+    }
+
+    /**
+     * Tells every color table listener but originator of update to source,
+     * once it can.  The update is copied, so later changes to it, e.g. as
+     * it is compacted onto an undo stack, reach no listener.
+     */
+    public void colorTableChanged(ColorTable source, ColorTableUpdate update,
+                                  ColorTableListener originator) {
+        ColorTableUpdate copy = update == null ? null : update.copy();
+        for (ColorDelivery delivery : colorListeners.values())
+            if (delivery.listener != originator)
+                delivery.post(source, copy, originator);
+    }
+
+    /**
+     * @return a line for each listener: its thread, the events posted to
+     *         it, the calls made to it, and their mean and most latency
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (DataDelivery delivery : dataListeners.values())
+            sb.append(delivery.report()).append('\n');
+        for (ColorDelivery delivery : colorListeners.values())
+            sb.append(delivery.report()).append('\n');
+        return sb.toString();
+    }
+}
@@ -83,6 +83,17 @@ public class DataSetOptionPanel extends JPanel implements ActionListener {
         subPanel.add(saveAsField);
 
         add(subPanel);
+
+        // Diagnostics
+
+        subPanel = new JPanel();
+        subPanel.setLayout(new BoxLayout(subPanel, BoxLayout.LINE_AXIS));
+        JButton latency = new JButton("Listener latency");
+        latency.setActionCommand("latency");
+        latency.addActionListener(this);
+        subPanel.add(latency);
+
+        add(subPanel);
     }
 
     //
@@ -104,5 +115,8 @@ public class DataSetOptionPanel extends JPanel implements ActionListener {
             if (path != null)
                 manager.saveCurrentAs(saveAsField.getText());
         }
+
+        else if (cmd.equals("latency"))
+            TOOL.CONSOLE.print(manager.listenerReport());
     }
 }
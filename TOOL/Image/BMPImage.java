@@ -42,7 +42,6 @@ public class BMPImage extends RGBImage {
         throws IOException {
         super(new DataInputStream(input), width, height);
         tempPixels = loadbitmap(input);
-        pixels = new byte[height][width][COLOR_DEPTH];
         readPixels();
     }
 
@@ -61,9 +60,10 @@ public class BMPImage extends RGBImage {
                 // final 8 bits being blue.
                 rgb_val = tempPixels[r * getWidth() + c];
 
-                pixels[r][c][0] = (byte) ((rgb_val & RED_MASK)   >> 16);
-                pixels[r][c][1] = (byte) ((rgb_val & GREEN_MASK) >>  8);
-                pixels[r][c][2] = (byte) ( rgb_val & BLUE_MASK        );
+                setPixel(c, r,
+                         (byte) ((rgb_val & RED_MASK)   >> 16),
+                         (byte) ((rgb_val & GREEN_MASK) >>  8),
+                         (byte) ( rgb_val & BLUE_MASK        ));
             }
         }
 
@@ -77,9 +77,10 @@ public class BMPImage extends RGBImage {
 
         for (int r = 0; r < getHeight(); r++) {
             for (int c = 0; c < getWidth(); c++) {
-                Color color = new Color(pixels[r][c][0],
-                                        pixels[r][c][1],
-                                        pixels[r][c][2]);
+                int i = offset(c, r);
+                Color color = new Color(pixels[i] & 0xff,
+                                        pixels[i + planeStride] & 0xff,
+                                        pixels[i + 2 * planeStride] & 0xff);
                 // Change the pixel in the image
                 img.setRGB(c, r, color.getRGB());
             }
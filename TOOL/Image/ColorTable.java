@@ -6,8 +6,13 @@ import java.io.FileNotFoundException;
 import java.awt.Frame;
 import java.io.FileOutputStream;
 import java.io.FileInputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
 // used for autosaving
 import java.util.Calendar;
 import java.text.SimpleDateFormat;
@@ -20,10 +25,11 @@ import TOOL.Vision.Vision;
 
 /**
  *
- * Color table class that holds a three-dimensional array representing
- * the color table. It contains functionality to read and write to binary files
- * on disk, as well as to scale up and down the table, and also to modify the
- * table.
+ * Color table class that holds a three-dimensional color table, stored as
+ * one contiguous array indexed [y][u][v] (see index()), the same layout
+ * the table has on disk and in the native vision code. It contains
+ * functionality to read and write to binary files on disk, as well as to
+ * scale up and down the table, and also to modify the table.
  *
  * "Raw" methods simply do not do any bit shifting.  They exist to reduce the
  * amount of work for the ColorEdit module.  If we did it naively and
@@ -62,6 +68,8 @@ public class ColorTable {
     public static final int EMPTY = 0;
 
     protected static boolean AUTO_SAVE = false;
+    // Every move is journaled as it happens; this many moves are folded
+    // into a fresh snapshot of the whole table
     protected static int NUM_MOVES_TO_AUTOSAVE = 30;
     public static String AUTO_SAVE_PATH = SAVE_TABLE_PATH + "autosave/";
 
@@ -72,16 +80,38 @@ public class ColorTable {
     private static final int Cr = 1;
 
 
-    // We will store the last 50 updates to the color table
-    public static final int MAX_NUM_UNDOS = 50;
-    public static final int MAX_NUM_REDOS = MAX_NUM_UNDOS;
+    // Undo and redo history is bounded by the memory it holds rather than
+    // by a number of moves; a fill holes move can be a thousand times the
+    // size of a brush stroke.  The newest move is always kept.  Each table
+    // has the whole budget to itself.
+    public static final int DEFAULT_UNDO_BUDGET_MB = 64;
+    private static long undoBudget = (long) DEFAULT_UNDO_BUDGET_MB << 20;
 
 
     protected int moveCounter = 0;
 
     private int yShift,uShift,vShift,yMax,uMax,vMax;
 
-    private byte[][][] colorTable;
+    // Entry [y][u][v] lives at colorTable[(y * uMax + u) * vMax + v]
+    private byte[] colorTable;
+    // Which entries hold each color; every write goes through put or fill
+    // to keep it current
+    private ColorTableIndex colorIndex;
+
+    // Snapshots which may still be read, held weakly so forgotten ones go
+    // away.  Also the lock under which pages are copied into them.
+    private final ArrayList<WeakReference<ColorTableSnapshot>> snapshots =
+        new ArrayList<WeakReference<ColorTableSnapshot>>();
+    // Y planes every snapshot in the list already has its own copy of
+    private final BitSet keptPages = new BitSet();
+
+    // Bumped on every change to any table, so no two table states ever
+    // share a version, even across tables
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    private long version = VERSIONS.incrementAndGet();
+
+    // Background autosave; null until the first move with autosave on
+    private ColorTableJournal journal;
     /*
       private byte[][][] thisTable,newTable;
       private int thisTableYMax,thisTableUMax,thisTableVMax;
@@ -90,9 +120,15 @@ public class ColorTable {
 
     //the minumum times a color must show up during downscaling
     //before the uses it
-    private static final int MIN_OCCURENCES_PRESENT = 4;
+    static final int MIN_OCCURENCES_PRESENT = 4;
     //the number of colors possible in a table to be downscaled
-    private static final int POSSIBLE_COLORS = 14;
+    static final int POSSIBLE_COLORS = Vision.COLORS.length;
+
+    // fillHoles looks one entry around each hole, and fills it if more
+    // than ~16 of the 27 entries there are the fill color
+    public static final int DEFAULT_HOLE_RADIUS = 1;
+    public static final double DEFAULT_HOLE_PERCENTAGE = .593;
+    public static final int DEFAULT_HOLE_ITERATIONS = 1;
 
     private boolean softColors;
 
@@ -105,6 +141,8 @@ public class ColorTable {
     // We need a LinkedList within the stack because a single action might
     // change multiple colors, necessitating multiple ColorTableUpdates
     private LinkedList <LinkedList <ColorTableUpdate> > undoStack, redoStack;
+    // Bytes held by the updates on both stacks
+    private long historyBytes;
 
 
     public enum Dimension {
@@ -153,14 +191,13 @@ public class ColorTable {
                 throw new IOException("couldn't load a colorTable");
             }
         }else if (type==EMPTY){
-            colorTable = new byte[yMax][uMax][vMax];
+            // Takes care of updating the this.yMax variables, as well as
+            // this.yShift etc.
+            setTable(new byte[yMax * uMax * vMax], yMax, uMax, vMax);
 
             TOOL.CONSOLE.message("Created new blank color table of " +
                                  "dimensions[" +yMax + "][" + uMax + "][" +
                                  vMax + "]");
-            // Takes care of updating the this.yMax variables, as well as
-            // this.yShift etc.
-            updateDimensions();
         }else{
             TOOL.CONSOLE.error("new color table failed- incorrect code");
         }
@@ -171,6 +208,18 @@ public class ColorTable {
     }
 
 
+    /**
+     * CONSTRUCTOR: table around an existing buffer, laid out as index()
+     * expects, e.g. one rebuilt by recover().  It has never been saved.
+     */
+    private ColorTable(byte[] table, int yMax, int uMax, int vMax) {
+        setTable(table, yMax, uMax, vMax);
+        modified = true;
+
+        undoStack = new LinkedList <LinkedList <ColorTableUpdate> >();
+        redoStack = new LinkedList <LinkedList <ColorTableUpdate> >();
+    }
+
     /**
      * CONSTRUCTOR: new color table - no path specified, so we ask the user.
      */
@@ -228,6 +277,20 @@ public class ColorTable {
      */
     public void setAutoSave(boolean choice) {
         AUTO_SAVE = choice;
+        if (!choice)
+            closeJournal();
+    }
+
+    /**
+     * Stops autosaving this table, e.g. as the TOOL replaces it.  What was
+     * journaled so far is written out in the background.  Another move
+     * with autosave on starts a new journal.
+     */
+    public void closeJournal() {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
     }
 
 
@@ -241,55 +304,123 @@ public class ColorTable {
     public void modifyTable(ColorTableUpdate u){
         modified = true;
         byte color = u.getColor();
+        long baseVersion = version;
 
         if (softColors) {
 
-            for(Iterator<int[]> i = u.getIterator();i.hasNext();){
-                int[] thisPixel = i.next();
-                byte oldColor = getColor(thisPixel);
-                byte newColor = color;
+            for (int i = 0; i < u.getPixelCount(); i++) {
+                int entry = packedIndex(u.getPackedPixel(i), false);
+                put(entry, softColor(colorTable[entry], color));
+            }
+        }
+        // Softcolors are off, just overwrite what was previously there
+        else {
+            for (int i = 0; i < u.getPixelCount(); i++)
+                put(packedIndex(u.getPackedPixel(i), false), color);
+        }
+        if (u.getPixelCount() > 0)
+            version = VERSIONS.incrementAndGet();
+        fillBoxes(u, color, softColors);
+        u.setVersions(baseVersion, version);
+        journal(u, false, false);
 
-                if ((color == GREEN && oldColor == BLUE) ||
-                    (color == BLUE && oldColor == GREEN) ||
-                    (color == GREEN && oldColor == BLUEGREEN) ||
-                    (color == BLUE && oldColor == BLUEGREEN)) {
-                    newColor = BLUEGREEN;
-                }
 
-                else if ((color == YELLOW && oldColor == WHITE) ||
-                         (color == WHITE && oldColor == YELLOW) ||
-                         (color == YELLOW && oldColor == YELLOWWHITE) ||
-                         (color == WHITE && oldColor == YELLOWWHITE)) {
-                    newColor = YELLOWWHITE;
-                }
+        tickAutoSave();
+    }
 
-                else if ((color == ORANGE && oldColor == RED) ||
-                         (color == RED && oldColor == ORANGE) ||
-                         (color == ORANGE && oldColor == ORANGERED) ||
-                         (color == RED && oldColor == ORANGERED)) {
-                    newColor = ORANGERED;
-                }
+    /**
+     * @return the color an entry of oldColor becomes when painted color with
+     *         soft colors on, e.g. green over blue makes blue-green
+     */
+    private static byte softColor(byte oldColor, byte color) {
+        if ((color == GREEN && oldColor == BLUE) ||
+            (color == BLUE && oldColor == GREEN) ||
+            (color == GREEN && oldColor == BLUEGREEN) ||
+            (color == BLUE && oldColor == BLUEGREEN)) {
+            return BLUEGREEN;
+        }
 
-                else if ((color == ORANGE && oldColor == YELLOW) ||
-                         (color == YELLOW && oldColor == ORANGE) ||
-                         (color == ORANGE && oldColor == ORANGEYELLOW) ||
-                         (color == YELLOW && oldColor == ORANGEYELLOW)) {
-                    newColor = ORANGEYELLOW;
-                }
+        else if ((color == YELLOW && oldColor == WHITE) ||
+                 (color == WHITE && oldColor == YELLOW) ||
+                 (color == YELLOW && oldColor == YELLOWWHITE) ||
+                 (color == WHITE && oldColor == YELLOWWHITE)) {
+            return YELLOWWHITE;
+        }
 
-                setColor(thisPixel, newColor);
-            }
+        else if ((color == ORANGE && oldColor == RED) ||
+                 (color == RED && oldColor == ORANGE) ||
+                 (color == ORANGE && oldColor == ORANGERED) ||
+                 (color == RED && oldColor == ORANGERED)) {
+            return ORANGERED;
         }
-        // Softcolors are off, just overwrite what was previously there
-        else {
-            for(Iterator<int[]> i = u.getIterator();i.hasNext();){
-                int[] thisPixel = i.next();
-                setColor(thisPixel, color);
-            }
+
+        else if ((color == ORANGE && oldColor == YELLOW) ||
+                 (color == YELLOW && oldColor == ORANGE) ||
+                 (color == ORANGE && oldColor == ORANGEYELLOW) ||
+                 (color == YELLOW && oldColor == ORANGEYELLOW)) {
+            return ORANGEYELLOW;
         }
+        return color;
+    }
+
+    /**
+     * Paints the boxes of u, one v-row of the table at a time, first
+     * recording the colors they cover in u as runs for undoChanges.  With
+     * soft set every entry is blended, otherwise rows are filled.
+     */
+    private void fillBoxes(ColorTableUpdate u, byte color, boolean soft) {
+        u.clearUndoRuns();
+        if (u.getBoxCount() == 0)
+            return;
 
+        int[] box = new int[6];
+        for (int b = 0; b < u.getBoxCount(); b++) {
+            u.getBox(b, box);
+            int length = box[5] - box[4] + 1;
+            for (int y = box[0]; y <= box[1]; y++)
+                for (int cb = box[2]; cb <= box[3]; cb++) {
+                    int row = index(y, cb, box[4]);
+                    recordRuns(u, row, length);
+                    if (!soft)
+                        fill(row, row + length, color);
+                    else
+                        for (int i = row; i < row + length; i++)
+                            put(i, softColor(colorTable[i], color));
+                }
+        }
+        version = VERSIONS.incrementAndGet();
+    }
 
-        tickAutoSave();
+    /** Records table[start, start + length) in u as runs of equal color. */
+    private void recordRuns(ColorTableUpdate u, int start, int length) {
+        int end = start + length;
+        int runStart = start;
+        for (int i = start + 1; i <= end; i++)
+            if (i == end || colorTable[i] != colorTable[runStart]) {
+                u.addUndoRun(runStart, i - runStart, colorTable[runStart]);
+                runStart = i;
+            }
+    }
+
+    /** Puts back the old colors of the single pixel entries of u. */
+    private void restorePixels(ColorTableUpdate u, boolean raw) {
+        if (u.getPixelCount() == 0)
+            return;
+        for (int i = 0; i < u.getPixelCount(); i++)
+            put(packedIndex(u.getPackedPixel(i), raw), u.getOldColor(i));
+        version = VERSIONS.incrementAndGet();
+    }
+
+    /** Puts back the colors recorded under the boxes of u, last run first. */
+    private void restoreBoxes(ColorTableUpdate u) {
+        if (u.getUndoRunCount() == 0)
+            return;
+        int[] run = new int[3];
+        for (int r = u.getUndoRunCount() - 1; r >= 0; r--) {
+            u.getUndoRun(r, run);
+            fill(run[0], run[0] + run[1], (byte) run[2]);
+        }
+        version = VERSIONS.incrementAndGet();
     }
 
 
@@ -308,33 +439,118 @@ public class ColorTable {
     private void modifyRawTable(ColorTableUpdate u) {
         modified = true;
         byte color = u.getColor();
-        for(Iterator<int[]> i = u.getIterator();i.hasNext();){
-            int[] thisPixel = i.next();
-            setRawColor(thisPixel, color);
-        }
+        long baseVersion = version;
+        for (int i = 0; i < u.getPixelCount(); i++)
+            put(packedIndex(u.getPackedPixel(i), true), color);
+        if (u.getPixelCount() > 0)
+            version = VERSIONS.incrementAndGet();
+        fillBoxes(u, color, false);
+        u.setVersions(baseVersion, version);
+        journal(u, true, false);
     }
 
 
     //when you change the table, you should  let the autosaver know:
     private void tickAutoSave(){
-        if (AUTO_SAVE &&
-            ++moveCounter % NUM_MOVES_TO_AUTOSAVE == 0) {
+        if (!AUTO_SAVE)
+            return;
 
-            // Ensure that the directory exists
-            String saveDir = AUTO_SAVE_PATH +
-                now("MM-dd-yyyy") + "/";
-            File cur = new File(saveDir);
-            cur.mkdirs();
+        // The journal starts with a snapshot, which already holds this move
+        if (journal == null) {
+            journal = new ColorTableJournal(new File(AUTO_SAVE_PATH +
+                                                     now("MM-dd-yyyy")),
+                                            colorTable.clone(),
+                                            yMax, uMax, vMax);
+            moveCounter = 0;
+            return;
+        }
 
+        if (++moveCounter % NUM_MOVES_TO_AUTOSAVE == 0) {
             TOOL.CONSOLE.println("Auto saving after " + moveCounter +
                                  " moves.");
-            // hours/minutes/seconds am/pm .table.mtb
-            saveColorTable(saveDir + now("h:mm:ssa") +
-                           ".table.mtb");
+            journal.snapshot(colorTable.clone(), yMax, uMax, vMax);
             moveCounter = 0;
         }
     }
 
+    /**
+     * Hands the entries u touched, with their colors as they are now, to
+     * the autosave journal, if there is one.  Boxes go as boxes of u's
+     * color when they were filled with it, or else as the runs of colors
+     * they hold: those put back by an undo, or the soft colors painted.
+     */
+    private void journal(ColorTableUpdate u, boolean raw, boolean undo) {
+        if (journal == null)
+            return;
+        int[] indices = new int[u.getPixelCount()];
+        byte[] colors = new byte[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = packedIndex(u.getPackedPixel(i), raw);
+            colors[i] = colorTable[indices[i]];
+        }
+
+        int[] boxes = null, runs = null;
+        int[] box = new int[6];
+        if (undo) {
+            // put back last run first, as restoreBoxes did
+            int n = u.getUndoRunCount();
+            runs = new int[n * ColorTableJournal.RUN_INTS];
+            int[] run = new int[3];
+            for (int r = 0; r < n; r++) {
+                u.getUndoRun(n - 1 - r, run);
+                System.arraycopy(run, 0, runs, r * ColorTableJournal.RUN_INTS,
+                                 ColorTableJournal.RUN_INTS);
+            }
+        } else if (softColors && !raw) {
+            ColorTableUpdate held = new ColorTableUpdate(u.getColor());
+            for (int b = 0; b < u.getBoxCount(); b++) {
+                u.getBox(b, box);
+                int length = box[5] - box[4] + 1;
+                for (int y = box[0]; y <= box[1]; y++)
+                    for (int cb = box[2]; cb <= box[3]; cb++)
+                        recordRuns(held, index(y, cb, box[4]), length);
+            }
+            runs = new int[held.getUndoRunCount() *
+                           ColorTableJournal.RUN_INTS];
+            int[] run = new int[3];
+            for (int r = 0; r < held.getUndoRunCount(); r++)
+                System.arraycopy(held.getUndoRun(r, run), 0, runs,
+                                 r * ColorTableJournal.RUN_INTS,
+                                 ColorTableJournal.RUN_INTS);
+        } else {
+            boxes = new int[u.getBoxCount() * ColorTableJournal.BOX_INTS];
+            for (int b = 0; b < u.getBoxCount(); b++) {
+                u.getBox(b, box);
+                System.arraycopy(box, 0, boxes,
+                                 b * ColorTableJournal.BOX_INTS, 6);
+                boxes[b * ColorTableJournal.BOX_INTS + 6] = u.getColor();
+            }
+        }
+        journal.record(indices, colors, boxes, runs);
+    }
+
+    /**
+     * Rebuilds the table an autosave journal describes, e.g. after a
+     * crash: the journal's snapshot with every edit logged after it.
+     * @return the recovered table, or null if it could not be read
+     */
+    public static ColorTable recover(String journalPath) {
+        try {
+            int[] dims = new int[3];
+            byte[] table = ColorTableJournal.replay(new File(journalPath),
+                                                    dims);
+            ColorTable recovered = new ColorTable(table, dims[0], dims[1],
+                                                  dims[2]);
+            TOOL.CONSOLE.message("Recovered color table from " +
+                                 journalPath);
+            return recovered;
+        } catch (IOException e) {
+            TOOL.CONSOLE.error(e.getMessage());
+            TOOL.CONSOLE.println("table recovery failed.");
+            return null;
+        }
+    }
+
     /**
      * @see http://www.rgagnon.com/javadetails/java-0106.html
      * Parses the format of the date and returns a string in that format.
@@ -363,6 +579,30 @@ public class ColorTable {
     // UNDO / REDO METHODS
 
 
+    /**
+     * Sets how many bytes of updates the undo and redo stacks of a table
+     * may hold, for each table on its own.
+     */
+    public static void setUndoBudget(long bytes) {
+        undoBudget = bytes;
+    }
+
+    public static long getUndoBudget() {
+        return undoBudget;
+    }
+
+    /** @return bytes held by the updates on the undo and redo stacks */
+    public long getHistoryBytes() {
+        return historyBytes;
+    }
+
+    private static long memoryOf(LinkedList <ColorTableUpdate> change) {
+        long bytes = 0;
+        for (ColorTableUpdate u : change)
+            bytes += u.getMemoryUsage();
+        return bytes;
+    }
+
     /**
      * Pushes a single redo onto the stack by converting it into a list
      * and then pushing subsequent list to the stack */
@@ -378,19 +618,14 @@ public class ColorTable {
      * Pushes a LinkedList of changes onto the redo stack
      */
     public void pushRedo(LinkedList <ColorTableUpdate> change) {
-
-        // We limit our "stack" size by eliminating the oldest entry
-        // when we have too many
-        if (redoStack.size() == MAX_NUM_REDOS) {
-            //TOOL.CONSOLE.println("Redo stack reached size " +
-            //redoStack.size());
-            //TOOL.CONSOLE.println("Removing: " + redoStack.getFirst());
-            undoStack.removeFirst();
-        }
         redoStack.addLast(change);
+        historyBytes += memoryOf(change);
+        trimHistory();
     }
 
     public void clearRedo() {
+        for (LinkedList <ColorTableUpdate> change : redoStack)
+            historyBytes -= memoryOf(change);
         redoStack.clear();
     }
 
@@ -406,15 +641,30 @@ public class ColorTable {
 
         pushUndo(theChange);
     }
-    /** Pushes a single change to stack */
+    /**
+     * Pushes a single change to stack.  Its updates are compacted, so they
+     * should be complete by now.
+     */
     public void pushUndo(LinkedList <ColorTableUpdate> change) {
-        if (undoStack.size() == MAX_NUM_UNDOS) {
-            //TOOL.CONSOLE.println("Undo stack reached size " +
-            // undoStack.size());
-            //TOOL.CONSOLE.println("Removing: " + undoStack.getFirst());
-            undoStack.removeFirst();
-        }
+        for (ColorTableUpdate u : change)
+            u.compact(binMask(u.isRaw()));
         undoStack.addLast(change);
+        historyBytes += memoryOf(change);
+        trimHistory();
+    }
+
+    /**
+     * Drops the furthest redos, then the oldest undos, until the history
+     * fits the budget again or only the newest undo is left.
+     */
+    private void trimHistory() {
+        while (historyBytes > undoBudget &&
+               (!redoStack.isEmpty() || undoStack.size() > 1)) {
+            if (!redoStack.isEmpty())
+                historyBytes -= memoryOf(redoStack.removeFirst());
+            else
+                historyBytes -= memoryOf(undoStack.removeFirst());
+        }
     }
 
     public boolean canUndo() {
@@ -446,9 +696,15 @@ public class ColorTable {
         // Make sure that we can redo the move we're undoing now
         redoStack.addLast(changes);
 
+        // Updates of table coordinates, e.g. from fillHoles, are undone
+        // as such
         Iterator toUndo = changes.iterator();
         while (toUndo.hasNext()) {
-            undoChanges((ColorTableUpdate)toUndo.next());
+            ColorTableUpdate u = (ColorTableUpdate)toUndo.next();
+            if (u.isRaw())
+                rawUndoChanges(u);
+            else
+                undoChanges(u);
         }
     }
 
@@ -477,10 +733,17 @@ public class ColorTable {
         // We can undo this move right after
         undoStack.addLast(changes);
 
+        // Redoing records the old colors under boxes again
+        historyBytes -= memoryOf(changes);
         Iterator toRedo = changes.iterator();
         while (toRedo.hasNext()) {
-            modifyTable((ColorTableUpdate)toRedo.next());
+            ColorTableUpdate u = (ColorTableUpdate)toRedo.next();
+            if (u.isRaw())
+                modifyRawTable(u);
+            else
+                modifyTable(u);
         }
+        historyBytes += memoryOf(changes);
     }
 
 
@@ -489,10 +752,12 @@ public class ColorTable {
         // We can undo this move right after
         undoStack.addLast(changes);
 
+        historyBytes -= memoryOf(changes);
         Iterator toRedo = changes.iterator();
         while (toRedo.hasNext()) {
             modifyRawTable((ColorTableUpdate)toRedo.next());
         }
+        historyBytes += memoryOf(changes);
 
     }
 
@@ -502,27 +767,18 @@ public class ColorTable {
      * user made to one thresholded color.
      */
     public void undoChanges(ColorTableUpdate u) {
-
-        Iterator <Byte> oldColors = u.getOldColorIterator();
-
-        for (Iterator<int[]>i = u.getIterator(); i.hasNext();  ) {
-            int[] thisPixel = i.next();
-            byte oldColor = oldColors.next();
-            setColor(thisPixel, oldColor);
-        }
+        // Boxes were painted after the pixels, so they are undone first
+        restoreBoxes(u);
+        restorePixels(u, false);
+        journal(u, false, true);
     }
 
 
 
     public void rawUndoChanges(ColorTableUpdate u) {
-        Iterator <Byte> oldColors = u.getOldColorIterator();
-
-        for (Iterator<int[]>i = u.getIterator(); i.hasNext();  ) {
-            int[] thisPixel = i.next();
-            byte oldColor = oldColors.next();
-
-            setRawColor(thisPixel, oldColor);
-        }
+        restoreBoxes(u);
+        restorePixels(u, true);
+        journal(u, true, true);
 
     }
 
@@ -530,42 +786,199 @@ public class ColorTable {
 
     //returns the color at a given pixel combination, specified by array
     public byte getColor(int[] pixel) {
-        return colorTable[pixel[Y ]>>yShift]
-            [pixel[Cb]>>uShift]
-            [pixel[Cr]>>vShift];
+        return colorTable[index(pixel[Y ]>>yShift,
+                                pixel[Cb]>>uShift,
+                                pixel[Cr]>>vShift)];
     }
 
     public byte getColor(int c1, int c2, int c3) {
-        return colorTable[c1 >> yShift]
-            [c2 >> uShift]
-            [c3 >> vShift];
+        return colorTable[index(c1 >> yShift,
+                                c2 >> uShift,
+                                c3 >> vShift)];
     }
 
     /** Gets color for given y,u,v, value without bitshifting */
     public byte getRawColor(int[] pixel) {
-        return colorTable[pixel[Y ]]
-            [pixel[Cb]]
-            [pixel[Cr]];
+        return colorTable[index(pixel[Y ],
+                                pixel[Cb],
+                                pixel[Cr])];
     }
 
     public byte getRawColor(int c1, int c2, int c3) {
-        return colorTable[c1][c2][c3];
+        return colorTable[index(c1, c2, c3)];
+    }
+
+    /**
+     * @return the position in the backing array of a ColorTableUpdate
+     *         entry; raw entries are table coordinates as in setRawColor,
+     *         others pixel values as in setColor
+     */
+    public int entryIndex(int[] pixel, boolean raw) {
+        if (raw)
+            return index(pixel[Y], pixel[Cb], pixel[Cr]);
+        return index(pixel[Y ] >> yShift,
+                     pixel[Cb] >> uShift,
+                     pixel[Cr] >> vShift);
+    }
+
+    /**
+     * @return the position in the backing array of a ColorTableUpdate
+     *         entry packed as by TOOLImage.getYCbCrPacked(); raw as in
+     *         entryIndex
+     */
+    private int packedIndex(int p, boolean raw) {
+        int c0 = (p >> 16) & 0xff, c1 = (p >> 8) & 0xff, c2 = p & 0xff;
+        if (raw)
+            return index(c0, c2, c1);
+        return index(c0 >> yShift, c2 >> uShift, c1 >> vShift);
+    }
+
+    /**
+     * @return the bits of a packed ColorTableUpdate entry which decide its
+     *         table entry, for ColorTableUpdate.compact
+     */
+    public int binMask(boolean raw) {
+        if (raw)
+            return 0xffffff;
+        return (0xff >> yShift << yShift) << 16 |
+            (0xff >> vShift << vShift) << 8 |
+            (0xff >> uShift << uShift);
+    }
+
+    /**
+     * @return the positions in the backing array of every entry u covers,
+     *         pixels first, then boxes; raw as in entryIndex
+     */
+    public int[] indicesOf(ColorTableUpdate u, boolean raw) {
+        int[] indices = new int[u.getSize()];
+        int n = 0;
+        for (int i = 0; i < u.getPixelCount(); i++)
+            indices[n++] = packedIndex(u.getPackedPixel(i), raw);
+
+        int[] box = new int[6];
+        for (int b = 0; b < u.getBoxCount(); b++) {
+            u.getBox(b, box);
+            for (int y = box[0]; y <= box[1]; y++)
+                for (int cb = box[2]; cb <= box[3]; cb++)
+                    for (int cr = box[4]; cr <= box[5]; cr++)
+                        indices[n++] = index(y, cb, cr);
+        }
+        return indices;
+    }
+
+    /**
+     * @return the position of raw entry [y][u][v] in the backing array
+     */
+    public final int index(int y, int u, int v) {
+        return (y * uMax + u) * vMax + v;
+    }
+
+    /**
+     * @return the backing array, indexed by index(y, u, v).  This is the
+     *         table itself, not a copy, and is laid out exactly as the
+     *         native vision code and the table files expect it, so it can
+     *         be handed to either without flattening.  Callers must not
+     *         modify it; use the set methods so the table knows it changed.
+     *         Threads other than the editing one should read a snapshot()
+     *         instead.
+     */
+    public byte[] getTableBuffer() {
+        return colorTable;
+    }
+
+    /**
+     * @return the entries of each color, kept current as the table changes
+     *         and replaced when it is loaded or rescaled
+     */
+    public ColorTableIndex getIndex() {
+        return colorIndex;
+    }
+
+    /**
+     * @return the table as it is now, which other threads may go on
+     *         reading while this one edits the table.  Call it from the
+     *         thread which edits the table.
+     */
+    public ColorTableSnapshot snapshot() {
+        ColorTableSnapshot s = new ColorTableSnapshot(this, colorTable,
+                                                      snapshots);
+        synchronized (snapshots) {
+            snapshots.add(new WeakReference<ColorTableSnapshot>(s));
+        }
+        keptPages.clear();
+        return s;
+    }
+
+    // Gives each snapshot its own copy of Y plane y, if it hasn't one
+    // yet, before the plane is written
+    private void keepPage(int y) {
+        if (snapshots.isEmpty() || keptPages.get(y))
+            return;
+        synchronized (snapshots) {
+            for (Iterator<WeakReference<ColorTableSnapshot>> it =
+                     snapshots.iterator(); it.hasNext(); ) {
+                ColorTableSnapshot s = it.next().get();
+                if (s == null || s.isReleased())
+                    it.remove();
+                else
+                    s.keep(y);
+            }
+        }
+        keptPages.set(y);
+    }
+
+    // Sets entry i, keeping the index and snapshots current
+    private void put(int i, byte color) {
+        byte old = colorTable[i];
+        if (old != color) {
+            keepPage(i / (uMax * vMax));
+            colorTable[i] = color;
+            colorIndex.move(i, old, color);
+        }
+    }
+
+    // Sets entries [start, end) to color, moving each run of the old
+    // colors in the index at once
+    private void fill(int start, int end, byte color) {
+        if (start >= end)
+            return;
+        for (int y = start / (uMax * vMax); y <= (end - 1) / (uMax * vMax);
+             y++)
+            keepPage(y);
+        int runStart = start;
+        for (int i = start + 1; i <= end; i++)
+            if (i == end || colorTable[i] != colorTable[runStart]) {
+                if (colorTable[runStart] != color)
+                    colorIndex.move(runStart, i, colorTable[runStart], color);
+                runStart = i;
+            }
+        Arrays.fill(colorTable, start, end, color);
     }
 
     public boolean isModified(){
         return modified;
     }
 
+    /**
+     * @return a stamp which changes every time any entry of the table does.
+     *         Versions only ever increase and are never shared between two
+     *         tables, so a cached copy of a table is current exactly when
+     *         it was taken at this version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
     public void setColor(int[] pixel, byte color) {
-        colorTable[pixel[Y ] >> yShift]
-            [pixel[Cb] >> uShift]
-            [pixel[Cr] >> vShift] = color;
+        put(index(pixel[Y ] >> yShift,
+                  pixel[Cb] >> uShift,
+                  pixel[Cr] >> vShift), color);
+        version = VERSIONS.incrementAndGet();
     }
 
     public void setRawColor(int[] pixel, byte color) {
-        colorTable[pixel[Y ]]
-            [pixel[Cb]]
-            [pixel[Cr]] = color;
+        put(index(pixel[Y ], pixel[Cb], pixel[Cr]), color);
+        version = VERSIONS.incrementAndGet();
     }
 
     //dynamically 'saves', or 'saves as' depending on if
@@ -626,6 +1039,24 @@ public class ColorTable {
 
         System.out.print("Loading Color Def File: " + fileName + "... ");
 
+        // Compressed tables carry their own dimensions
+        try {
+            int[] dims = ColorTableFile.readDimensions(fileName);
+            if (dims != null) {
+                setTable(ColorTableFile.read(fileName, dims),
+                         dims[0], dims[1], dims[2]);
+                TOOL.CONSOLE.println("compressed table read in " +
+                                     (System.currentTimeMillis() -
+                                      startTime) / 1000.0 + "Seconds");
+                this.fileName = fileName;
+                return;
+            }
+        } catch (IOException e) {
+            TOOL.CONSOLE.error(e.getMessage());
+            TOOL.CONSOLE.println("table load failed.");
+            return;
+        }
+
         try {
             fis = new FileInputStream(fileName);
         } catch (FileNotFoundException e) {
@@ -635,30 +1066,17 @@ public class ColorTable {
         }
 
 
-        byte[][][] newTable = new byte[_yMax][_uMax][_vMax];
-
-        byte[] buffer = new byte[_yMax*_uMax*_vMax];
-        int byteIndex = 0;
-        //read in the whole table into a really long byte array
+        //the file is laid out exactly as the table, so read it straight in
+        byte[] newTable = new byte[_yMax*_uMax*_vMax];
         try {
-            fis.read(buffer);
-            byteCount +=_yMax*_uMax*_vMax;
+            fis.read(newTable);
+            byteCount += newTable.length;
         } catch (IOException e) {
             TOOL.CONSOLE.error(e.getMessage());
             TOOL.CONSOLE.println("table load failed.");
             return;
         }
 
-        //parse the byte buffer into the new table
-        for(int y=0; y<_yMax; y++) {
-            for(int u=0; u<_uMax; u++) {
-                for(int v=0; v<_vMax; v++){
-                    newTable[y][u][v] = buffer[byteIndex];
-                    ++byteIndex;
-                }
-            }
-        }
-
 
         try {
             fis.close();
@@ -669,14 +1087,12 @@ public class ColorTable {
         }
         //check the new table to make sure it's ok,
 
-        colorTable = newTable;
+        setTable(newTable, _yMax, _uMax, _vMax);
         double elapsedTime =
             (double)(System.currentTimeMillis() - startTime)/1000;
         TOOL.CONSOLE.println(byteCount/1024 + " KBs read in " +
                              elapsedTime+"Seconds");
 
-        updateDimensions();
-
         // save the file name and location of the color table
         this.fileName = fileName;
     }
@@ -715,14 +1131,33 @@ public class ColorTable {
     }
 
     /**
-     * Determines the size of the color table about to be loaded based
-     * on the file size.  Assumes there is nothing but raw bytes in the table,
-     * no header or footer information.
+     * Determines the size of the color table about to be loaded: from the
+     * header of a compressed table, otherwise from the file size, assuming
+     * there is nothing but raw bytes in the table, no header or footer
+     * information.
      * @param s a file path to a table we are about to load.
      * @return Dimension d if color table at file path s is of size d, else
      *         null if incompatible with any known file size.
      */
     public static Dimension getSize(String s) {
+        try {
+            int[] dims = ColorTableFile.readDimensions(s);
+            if (dims != null) {
+                for (Dimension d : Dimension.values())
+                    if (d.getYMax() == dims[0] && d.getUMax() == dims[1] &&
+                        d.getVMax() == dims[2])
+                        return d;
+                TOOL.CONSOLE.error("Error: Attempted to load a color table" +
+                                   " of dimensions [" + dims[0] + "][" +
+                                   dims[1] + "][" + dims[2] + "] which " +
+                                   "are not a known color table size.");
+                return null;
+            }
+        } catch (IOException e) {
+            TOOL.CONSOLE.error(e.getMessage());
+            return null;
+        }
+
         int length = (int) (new File(s)).length();
 
         final int GT_LEN = Dimension.GERMANTEAM.getNumBytes();
@@ -748,17 +1183,12 @@ public class ColorTable {
     }
 
     public void writeByteArray(byte[] dest){
-        int byteIndex = 0;
-        for(int y=0; y<yMax; y++)
-            for(int u=0; u<uMax; u++)
-                for(int v=0; v<vMax; v++){
-                    dest[byteIndex] = colorTable[y][u][v];
-                    byteIndex++;
-                }
+        System.arraycopy(colorTable, 0, dest, 0, colorTable.length);
     }
 
     /**
-     * Saves the table to disk.
+     * Saves the table to disk, compressed if fileName ends in
+     * ColorTableFile.COMPRESSED_SUFFIX, else as a raw .mtb dump.
      * @param fileName  compelete path +filename of destination
      * @return 0 on success, -1 on fail
      */
@@ -770,6 +1200,18 @@ public class ColorTable {
 
         TOOL.CONSOLE.println("Saving Color Defs to file: " + fileName + "... ");
 
+        if (ColorTableFile.wantsCompressed(fileName)) {
+            try {
+                ColorTableFile.write(fileName, colorTable, yMax, uMax, vMax);
+                TOOL.CONSOLE.println("compressed table written");
+                return SUCCESS;
+            } catch (IOException e) {
+                TOOL.CONSOLE.println(e.getMessage());
+                TOOL.CONSOLE.println(" save failed.");
+                return FAIL;
+            }
+        }
+
         try {
             fos = new FileOutputStream(fileName,false);
         }
@@ -782,12 +1224,9 @@ public class ColorTable {
         }
 
 
-        byte[] buffer = new byte[yMax*uMax*vMax];
-        writeByteArray(buffer);
-
         try {
-            fos.write(buffer);
-            byteCount+=buffer.length;
+            fos.write(colorTable);
+            byteCount+=colorTable.length;
         } catch (IOException e) {
             TOOL.CONSOLE.println(e.getMessage());
             savedOk = false;
@@ -819,34 +1258,24 @@ public class ColorTable {
      * @param vScalar how much to expand along the V channel
      */
     public void scaleUp(int yScalar, int uScalar, int vScalar){
+        scaleUp(yScalar, uScalar, vScalar, null);
+    }
+
+    /**
+     * As scaleUp(int, int, int), telling progress as each new Y plane is
+     * done.  The work is spread over ColorTableEngine's threads, but the
+     * table is only replaced once it is finished, on the calling thread.
+     */
+    public void scaleUp(int yScalar, int uScalar, int vScalar,
+                        ColorTableEngine.Progress progress){
         modified = true;
         TOOL.CONSOLE.println("Input Y-Dimension:"+yMax+"U-Dimension"+uMax+"vDimension"+vMax+":");
         TOOL.CONSOLE.println("Input Y-scalar:"+yScalar+"U-Scalar"+uScalar+"V-Scalar"+vScalar+":");
-        byte[][][] newTable =  new byte[yMax*yScalar][uMax*uScalar][vMax*vScalar];
-        TOOL.CONSOLE.println("TEST Y-Dimension:"+yMax+"U-Dimension"+uMax+"vDimension"+vMax+":");
-
-        //scan the old table under y,u,v
-        for(int y = 0; y < yMax; y++){
-            for(int u = 0; u < uMax; u++){
-                for(int v = 0; v < vMax; v++){
-
-                    //for each entry in the old table, we extrapolate it according to the scalar variable
-                    for(int a = y*yScalar; a < y*yScalar+yScalar; a++){
-                        for(int b = u*uScalar; b <u*uScalar+uScalar; b++){
-                            for(int c = v*vScalar; c <v*vScalar+vScalar; c++){
-                                newTable[a][b][c] = colorTable[y][u][v];
-                            }
-                        }
-                    }
-                    //end extrapolation
-
-                }
-            }
-        }
-        //end scanning for yuv
+        byte[] newTable = ColorTableEngine.scaleUp(colorTable, yMax, uMax,
+                                                   vMax, yScalar, uScalar,
+                                                   vScalar, progress);
 
-        colorTable = newTable;
-        updateDimensions();
+        setTable(newTable, yMax*yScalar, uMax*uScalar, vMax*vScalar);
     }
 
 
@@ -867,62 +1296,28 @@ public class ColorTable {
      */
     public void scaleDown(int yDownScale,
                           int uDownScale, int vDownScale){
+        scaleDown(yDownScale, uDownScale, vDownScale, null);
+    }
+
+    /**
+     * As scaleDown(int, int, int), telling progress as each new Y plane is
+     * done; see scaleUp.
+     */
+    public void scaleDown(int yDownScale, int uDownScale, int vDownScale,
+                          ColorTableEngine.Progress progress){
         modified = true;
 
         int newYDimension = yMax/yDownScale;
         int newUDimension = uMax/uDownScale;
         int newVDimension = vMax/vDownScale;
 
-        byte[][][] newTable = new byte[newYDimension][newUDimension]
-            [newVDimension];
-
-        //loops through the new, small table
-        for(int y = 0; y < newYDimension; y++){
-            for(int u = 0; u < newUDimension; u++){
-                for(int v = 0; v < newVDimension; v++){
-
-                    //creates an array that will help determine the mode of
-                    //values in the old table
-                    int[] colorFrequency = new int[POSSIBLE_COLORS];
-
-                    //starts values where previous compression left off.
-                    //searches from that spot forward, amount determined
-                    //by downscale
-                    //loops through the section of the large table to compress
-                    for(int i = y*yDownScale; i <y*yDownScale+yDownScale; i++){
-                        for(int j=u*uDownScale; j<u*uDownScale+uDownScale;j++){
-                            for(int k=v*vDownScale;k<v*vDownScale+vDownScale;k++){
-
-                                //increments a counter in corresponding array
-                                //with the byte value at (i,j,k)
-                                int thisColor = (int)(colorTable[i][j][k]);
-                                colorFrequency[thisColor]++;
-                            }
-                        }
-                    }
-
-                    //store the index and value of the largest entry in the list
-                    int mostCommon = 0;
-                    int mostCommonIndex =0;
-
-                    //skips checking grey by starting at 1
-                    for(int i = 1; i<colorFrequency.length;  i++) {
-                        int currentVal = colorFrequency[i];
-                        if(currentVal > mostCommon){
-                            mostCommon = currentVal;
-                            mostCommonIndex = i;
-                        }
-                    }
-                    //makes sure the color appears in a non-random amount
-                    if(mostCommon > MIN_OCCURENCES_PRESENT){
-                        newTable[y][u][v] = (byte)mostCommonIndex;
-                    }
-                }
-            }
-        }
+        byte[] newTable =
+            ColorTableEngine.scaleDown(colorTable, yMax, uMax, vMax,
+                                       yDownScale, uDownScale, vDownScale,
+                                       POSSIBLE_COLORS,
+                                       MIN_OCCURENCES_PRESENT, progress);
 
-        colorTable = newTable;
-        updateDimensions();
+        setTable(newTable, newYDimension, newUDimension, newVDimension);
 
         TOOL.CONSOLE.println("Created a new table with dimensions Y-Dimension:"
                              +newYDimension+"U-Dimension"+newUDimension+"vDimension"+newVDimension+":");
@@ -930,6 +1325,30 @@ public class ColorTable {
     }
 
 
+    /**
+     * Replaces the backing array with one of the given dimensions, laid out
+     * as index() expects, and updates the sizing variables to match.
+     */
+    private void setTable(byte[] table, int _yMax, int _uMax, int _vMax) {
+        // Nothing writes to the old buffer again, so snapshots of it can
+        // go on reading it without the table copying pages for them
+        synchronized (snapshots) {
+            snapshots.clear();
+        }
+        keptPages.clear();
+        colorTable = table;
+        version = VERSIONS.incrementAndGet();
+        yMax = _yMax;
+        uMax = _uMax;
+        vMax = _vMax;
+        colorIndex = new ColorTableIndex(table, yMax, uMax, vMax);
+        updateDimensions();
+
+        // A rescaled table can't be described by the old snapshot
+        if (journal != null)
+            journal.snapshot(colorTable.clone(), yMax, uMax, vMax);
+    }
+
     /**
      * Call this to update the internal variables which keep track
      * of table sizing. Call this anytime the physical structure of
@@ -937,10 +1356,6 @@ public class ColorTable {
      * modifying a value in the table.
      */
     public void updateDimensions() {
-        yMax = colorTable.length;
-        uMax = colorTable[0].length;
-        vMax = colorTable[0][0].length;
-
         yShift = (int)Math.round(Math.log(256/yMax)/Math.log(2));
         uShift = (int)Math.round(Math.log(256/uMax)/Math.log(2));
         vShift = (int)Math.round(Math.log(256/vMax)/Math.log(2));
@@ -971,13 +1386,9 @@ public class ColorTable {
        3 entries wide - one entry to each side of the value we are considering
        flipping
 
-       Note: This code is very general right now, because I intend to use
-       the same code again later to do some more sophisticated processing of the
-       table. Eventually, we should be able to achieve some more performance
-       by only looking at neighbors of the intended color (colorToFillWith).
-
-       Also, it could be faster to not look at a full box - just the pixels
-       in the cardinal directions.
+       The neighbors are counted with sliding windows (see
+       ColorTableEngine.findHoles), so larger boxes and repeated passes,
+       given to fillHoles(byte, int, double, int), cost little more.
 
        Finally, I'd note that this method works differently than the way it worked
        in the JavaConnect side.
@@ -986,87 +1397,105 @@ public class ColorTable {
        update for others to look at for purposes of notifying changes, etc.
 
        @return ColorTableUpdate for all the holes now filled with desired color
+       @see #findHoles(byte, int, double, int, ColorTableEngine.Progress)
     */
     public ColorTableUpdate fillHoles(byte colorToFillWith){
-        int BOX = 1; // size of the box we look for is 2*BOX + 1
-        double HOLE_THRESH_PERCENTAGE =.593; //what percent we need to fill a hole
-        //~16 of the 27 neighbors need to be the right color
-        int HOLE_THRESH =  (int)Math.round(HOLE_THRESH_PERCENTAGE*
-                                           Math.pow(2*BOX + 1,3));
-        boolean DEBUG_FILL_HOLES = false;
-
-        //store the changes in a ColorTableUpdate
-        ColorTableUpdate update = new ColorTableUpdate(colorToFillWith);
-
-        //We look through all the entries in the color table,
-        // except those within BOX of the edge
-        for (int y = BOX; y < yMax - BOX; y++) {
-            for (int cr = BOX; cr < uMax - BOX; cr++) {
-                for (int cb = BOX; cb < vMax - BOX; cb++) {
-
-                    //gets the entry we are considering filling
-                    int target_color = colorTable[y][cr][cb];
-
-                    if(target_color != Vision.GREY){
-                        continue; //only overwrite grey pixels
-                    }
-
-                    //this is an array of counters to track
-                    //the frequency of colors occuring in the BOX around target
-                    int[] neighbor_count = new int[POSSIBLE_COLORS];
-
-                    int maxColor = 0; //stores the most frequent color
-                    int maxVal = 0;//stores the frequency of that color
-
-                    //now look through all the pixels BOX away from the target
-                    for(int ii = y-BOX; ii <= y +BOX; ii++){
-                        for(int jj = cr -BOX; jj <= cr + BOX; jj++ ){
-                            for(int kk = cb -BOX; kk <= cb+BOX; kk++){
-
-                                //skip the center pixe, since it is the target
-                                if(y==ii && cr == jj && cb ==kk){
-                                    continue;
-                                }
-
-                                //grab a neighbor to the target, to test
-                                int test_color = colorTable[ii][jj][kk];
-
-                                //now track how  many of this color we've seen
-                                ++neighbor_count[test_color];
+        return fillHoles(findHoles(colorToFillWith, null));
+    }
 
-                                //and check to see if now it is the most frequent
-                                if(neighbor_count[test_color] > maxVal){
-                                    maxVal = neighbor_count[test_color];
-                                    maxColor = test_color;
-                                }
-                            }
-                        }
-                    }//done looking through the BOX
+    /**
+     * Fills holes as findHoles(byte, int, double, int, Progress) finds them.
+     * @return one update of the holes of every pass, for undo
+     */
+    public ColorTableUpdate fillHoles(byte colorToFillWith, int radius,
+                                      double percentage, int iterations){
+        return fillHoles(findHoles(colorToFillWith, radius, percentage,
+                                   iterations, null));
+    }
 
-                    //lets see if we should assign the target something new:
-                    if (maxColor == colorToFillWith &&
-                        maxColor != target_color &&
-                        maxColor !=Vision.GREY &&
-                        maxVal > HOLE_THRESH){
+    /**
+     * The search half of fillHoles(byte): finds the holes without changing
+     * the table.  Apply the result with fillHoles(ColorTableUpdate).
+     *
+     * @return ColorTableUpdate of all the holes to fill, not yet applied
+     */
+    public ColorTableUpdate findHoles(byte colorToFillWith,
+                                      ColorTableEngine.Progress progress){
+        return findHoles(colorToFillWith, DEFAULT_HOLE_RADIUS,
+                         DEFAULT_HOLE_PERCENTAGE, DEFAULT_HOLE_ITERATIONS,
+                         progress);
+    }
 
-                        //note the table is stored YCrCb, yet the convention is
-                        //YCbCr, so we flip it to the convention for the update
-                        int[] yuv_to_fill = {y,cb,cr};
-                        update.addPixel(yuv_to_fill,(byte)target_color);
+    /**
+     * As findHoles(byte, Progress), looking at the box of entries radius
+     * away from each hole.  More than percentage of the box must be
+     * colorToFillWith, and no other color as common.  Each of iterations
+     * passes looks again with the holes found so far filled, stopping
+     * early if it finds none.  See ColorTableEngine.findHoles.
+     *
+     * @return ColorTableUpdate of the holes of every pass, not yet applied
+     */
+    public ColorTableUpdate findHoles(byte colorToFillWith, int radius,
+                                      double percentage, int iterations,
+                                      ColorTableEngine.Progress progress){
+        return holes(colorTable, yMax, uMax, vMax, colorToFillWith, radius,
+                     percentage, iterations, progress);
+    }
 
-                        if(DEBUG_FILL_HOLES)
-                            System.out.println(yuv_to_fill[0] +","+yuv_to_fill[2]
-                                               +","+yuv_to_fill[1] +
-                                               ", of color " + target_color +
-                                               " was replaced by " + maxColor+
-                                               " with " + maxVal+ "votes");
+    /**
+     * As findHoles(byte, Progress), searching snapshot instead of a table.
+     * It may run on any thread while the table goes on being edited, e.g.
+     * on a SwingWorker; fillHoles(ColorTableUpdate) then skips the holes
+     * filled in the meantime.
+     *
+     * @return ColorTableUpdate of all the holes to fill, not yet applied
+     */
+    public static ColorTableUpdate findHoles(ColorTableSnapshot snapshot,
+                                             byte colorToFillWith,
+                                             ColorTableEngine.Progress
+                                             progress){
+        return holes(snapshot.toArray(), snapshot.getYDimension(),
+                     snapshot.getUDimension(), snapshot.getVDimension(),
+                     colorToFillWith, DEFAULT_HOLE_RADIUS,
+                     DEFAULT_HOLE_PERCENTAGE, DEFAULT_HOLE_ITERATIONS,
+                     progress);
+    }
 
-                    }
+    private static ColorTableUpdate holes(byte[] table, int yMax, int uMax,
+                                          int vMax, byte colorToFillWith,
+                                          int radius, double percentage,
+                                          int iterations,
+                                          ColorTableEngine.Progress progress){
+        int[] holes = ColorTableEngine.findHoles(table, yMax, uMax,
+                                                 vMax, colorToFillWith,
+                                                 radius, percentage,
+                                                 iterations,
+                                                 POSSIBLE_COLORS, progress);
 
+        //store the changes in a ColorTableUpdate
+        ColorTableUpdate update = new ColorTableUpdate(colorToFillWith);
+        update.setRaw(true);
+        int plane = uMax * vMax;
+        int[] yuv_to_fill = new int[3];
+        for (int hole : holes) {
+            //note the table is stored YCrCb, yet the convention is
+            //YCbCr, so we flip it to the convention for the update
+            yuv_to_fill[0] = hole / plane;
+            yuv_to_fill[1] = hole % vMax;
+            yuv_to_fill[2] = hole % plane / vMax;
+            update.addPixel(yuv_to_fill, Vision.GREY);
+        }
+        return update;
+    }
 
-                }
-            }
-        }//done looking through the whole table
+    /**
+     * Fills the holes found by findHoles and makes them undoable.  Holes
+     * which are no longer grey, painted since they were found, are left
+     * as they are.
+     * @return the update of the holes filled
+     */
+    public ColorTableUpdate fillHoles(ColorTableUpdate update){
+        update = stillHoles(update);
 
         //push the changes
         pushUndo(update);
@@ -1075,7 +1504,7 @@ public class ColorTable {
 
         System.out.println("Filled " + update.getSize() +
                            " holes of color " +
-                           Vision.COLOR_STRINGS[colorToFillWith] );
+                           Vision.COLOR_STRINGS[update.getColor()] );
 
 
         return update;
@@ -1083,6 +1512,27 @@ public class ColorTable {
 
 
 
+    // The entries of update still of their old color, or update itself
+    private ColorTableUpdate stillHoles(ColorTableUpdate update){
+        int n = update.getPixelCount();
+        int same = 0;
+        while (same < n && colorTable[packedIndex(update.getPackedPixel(same),
+                                                  true)] ==
+               update.getOldColor(same))
+            same++;
+        if (same == n)
+            return update;
+
+        ColorTableUpdate kept = new ColorTableUpdate(update.getColor());
+        kept.setRaw(update.isRaw());
+        for (int i = 0; i < n; i++) {
+            int packed = update.getPackedPixel(i);
+            if (colorTable[packedIndex(packed, true)] == update.getOldColor(i))
+                kept.addPixel(packed, update.getOldColor(i));
+        }
+        return kept;
+    }
+
     /******DEBUGGING****/
 
     public void fillTable(){
@@ -1090,10 +1540,11 @@ public class ColorTable {
         for(int i = 0; i < yMax; i++){
             for(int j = 0; j < uMax; j++){
                 for(int k = 0; k <  vMax; k++){
-                    colorTable[i][j][k] = (byte)(k+1);
+                    put(index(i,j,k), (byte)(k+1));
                 }
             }
         }
+        version = VERSIONS.incrementAndGet();
 
     }
 
@@ -1134,7 +1585,7 @@ public class ColorTable {
             TOOL.CONSOLE.println("############"+y+"############");
             for(int u = 0; u < uMax; u++){
                 for(int v = 0; v < vMax; v++){
-                    TOOL.CONSOLE.print(colorTable[y][u][v]+" ");
+                    TOOL.CONSOLE.print(colorTable[index(y,u,v)]+" ");
 
                 }
                 TOOL.CONSOLE.println();
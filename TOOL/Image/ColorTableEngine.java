@@ -0,0 +1,416 @@
+package TOOL.Image;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import TOOL.Vision.Vision;
+
+/**
+ * The whole-table operations of ColorTable: scaling a table up or down and
+ * finding holes.  Each works on the flat table buffer one Y plane at a
+ * time, so large tables are split into slabs of planes and done in
+ * parallel, each slab reusing one scratch array for all its entries.
+ *
+ * Scaling gives exactly the result of the serial loops it replaced, as
+ * does findHoles with a fill percentage of at least half; TableBenchmark's
+ * "tableops" and "holes" modes check this.
+ *
+ * @author Northern Bites Team
+ * @see ColorTable
+ */
+public class ColorTableEngine {
+
+    /**
+     * Told each time another Y plane of an operation is done.  Called from
+     * worker threads, in no particular order of planes.
+     */
+    public interface Progress {
+        public void planesDone(int done, int total);
+    }
+
+    // Tables smaller than this are done on the calling thread
+    public static final int MIN_PARALLEL_ENTRIES = 32 * 32 * 32;
+    // Smallest slab of planes handed to a single task
+    public static final int MIN_PLANES_PER_TASK = 4;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    private ColorTableEngine() {}
+
+    /**
+     * One operation over the planes [0, planes) of some table.  Each slab
+     * gets its own scratch array of scratchSize ints.
+     */
+    private static abstract class PlaneJob {
+        final int planes;
+        final int scratchSize;
+        final Progress progress;
+        final AtomicInteger done = new AtomicInteger();
+
+        PlaneJob(int planes, int scratchSize, Progress progress) {
+            this.planes = planes;
+            this.scratchSize = scratchSize;
+            this.progress = progress;
+        }
+
+        abstract void plane(int p, int[] scratch);
+
+        void planes(int first, int last) {
+            int[] scratch = new int[scratchSize];
+            for (int p = first; p < last; p++) {
+                plane(p, scratch);
+                if (progress != null)
+                    progress.planesDone(done.incrementAndGet(), planes);
+            }
+        }
+    }
+
+    private static class SlabTask extends RecursiveAction {
+        private final PlaneJob job;
+        private final int first, last;
+
+        SlabTask(PlaneJob job, int first, int last) {
+            this.job = job;
+            this.first = first;
+            this.last = last;
+        }
+
+        protected void compute() {
+            if (last - first < 2 * MIN_PLANES_PER_TASK) {
+                job.planes(first, last);
+                return;
+            }
+            int mid = (first + last) >>> 1;
+            invokeAll(new SlabTask(job, first, mid),
+                      new SlabTask(job, mid, last));
+        }
+    }
+
+    /** Runs job over all its planes; entries is the size of the work. */
+    private static void run(PlaneJob job, long entries) {
+        if (entries < MIN_PARALLEL_ENTRIES ||
+            job.planes < 2 * MIN_PLANES_PER_TASK ||
+            POOL.getParallelism() < 2)
+            job.planes(0, job.planes);
+        else
+            POOL.invoke(new SlabTask(job, 0, job.planes));
+    }
+
+    /**
+     * @return table, laid out as ColorTable.index for dimensions
+     *         yMax, uMax, vMax, with every entry repeated yScalar, uScalar
+     *         and vScalar times along each axis
+     */
+    public static byte[] scaleUp(final byte[] table,
+                                 final int yMax, final int uMax,
+                                 final int vMax,
+                                 final int yScalar, final int uScalar,
+                                 final int vScalar, Progress progress) {
+        final int newUMax = uMax * uScalar, newVMax = vMax * vScalar;
+        final byte[] newTable = new byte[yMax * yScalar * newUMax * newVMax];
+
+        run(new PlaneJob(yMax * yScalar, 0, progress) {
+                void plane(int a, int[] scratch) {
+                    int y = a / yScalar;
+                    for (int b = 0; b < newUMax; b++) {
+                        int to = (a * newUMax + b) * newVMax;
+                        // Rows after the first of each source row repeat it
+                        if (b % uScalar != 0) {
+                            System.arraycopy(newTable, to - newVMax,
+                                             newTable, to, newVMax);
+                            continue;
+                        }
+                        int from = (y * uMax + b / uScalar) * vMax;
+                        for (int v = 0; v < vMax; v++) {
+                            byte color = table[from + v];
+                            for (int c = 0; c < vScalar; c++)
+                                newTable[to++] = color;
+                        }
+                    }
+                }
+            }, newTable.length);
+        return newTable;
+    }
+
+    /**
+     * @return a table of dimensions yMax/yDownScale, uMax/uDownScale,
+     *         vMax/vDownScale where each entry is the most common defined
+     *         color of its block in table, or undefined unless that color
+     *         occurs more than minOccurrences times.  Ties go to the lower
+     *         color.
+     * @param colors one more than the largest color in table
+     */
+    public static byte[] scaleDown(final byte[] table,
+                                   final int yMax, final int uMax,
+                                   final int vMax,
+                                   final int yDownScale,
+                                   final int uDownScale,
+                                   final int vDownScale,
+                                   final int colors,
+                                   final int minOccurrences,
+                                   Progress progress) {
+        final int newUMax = uMax / uDownScale, newVMax = vMax / vDownScale;
+        final byte[] newTable = new byte[yMax / yDownScale * newUMax *
+                                         newVMax];
+
+        run(new PlaneJob(yMax / yDownScale, colors, progress) {
+                void plane(int y, int[] colorFrequency) {
+                    for (int u = 0; u < newUMax; u++)
+                        for (int v = 0; v < newVMax; v++) {
+                            Arrays.fill(colorFrequency, 0);
+                            for (int i = y * yDownScale;
+                                 i < (y + 1) * yDownScale; i++)
+                                for (int j = u * uDownScale;
+                                     j < (u + 1) * uDownScale; j++) {
+                                    int row = (i * uMax + j) * vMax;
+                                    for (int k = v * vDownScale;
+                                         k < (v + 1) * vDownScale; k++)
+                                        colorFrequency[table[row + k]]++;
+                                }
+
+                            // skips grey by starting at 1
+                            int mostCommon = 0, mostCommonIndex = 0;
+                            for (int c = 1; c < colors; c++)
+                                if (colorFrequency[c] > mostCommon) {
+                                    mostCommon = colorFrequency[c];
+                                    mostCommonIndex = c;
+                                }
+                            if (mostCommon > minOccurrences)
+                                newTable[(y * newUMax + u) * newVMax + v] =
+                                    (byte) mostCommonIndex;
+                        }
+                }
+            }, table.length);
+        return newTable;
+    }
+
+    /**
+     * Finds the holes of color in table: undefined entries, at least
+     * radius entries from its edges, among whose (2 * radius + 1)^3 - 1
+     * neighbors color is more common than any other color and occurs more
+     * than percentage * (2 * radius + 1)^3 times.
+     *
+     * Neighbors are counted with sliding windows along each axis in turn,
+     * so a count costs the same whatever the radius.  When percentage is
+     * at least half only color needs counting; otherwise every color in
+     * the table is counted too, to find the most common.
+     *
+     * Each iteration after the first searches the table with the holes
+     * found so far filled, so holes too large for one pass fill in from
+     * their edges.
+     *
+     * @param radius at most MAX_HOLE_RADIUS
+     * @param colors one more than the largest color in table
+     * @return the table index of every hole, in the order found: by
+     *         iteration, then ascending
+     */
+    public static int[] findHoles(byte[] table,
+                                  final int yMax, final int uMax,
+                                  final int vMax,
+                                  final byte color, final int radius,
+                                  double percentage, int iterations,
+                                  int colors, Progress progress) {
+        if (radius < 1 || radius > MAX_HOLE_RADIUS)
+            throw new IllegalArgumentException("hole radius " + radius +
+                                               " is not in 1.." +
+                                               MAX_HOLE_RADIUS);
+        int[] holes = new int[0];
+        int numHoles = 0;
+        if (color == Vision.GREY)
+            return holes;
+
+        int side = 2 * radius + 1;
+        final int threshold = (int) Math.round(percentage *
+                                               side * side * side);
+        // No other color can beat one seen more than half the time
+        final boolean majority = 2 * threshold >= side * side * side - 1;
+
+        final byte[] work = table.clone();
+        final short[] fillCount = new short[work.length];
+        final short[] otherCount = majority ? null : new short[work.length];
+        final short[] maxOther = majority ? null : new short[work.length];
+        short[] planeSums = new short[work.length];
+        int[] histogram = new int[colors];
+
+        Stages stages = null;
+        for (int i = 0; i < iterations; i++) {
+            Arrays.fill(histogram, 0);
+            for (byte c : work)
+                histogram[c]++;
+            if (histogram[color] == 0)
+                break;
+
+            int counted = 0;
+            for (int c = 0; c < colors; c++)
+                if (c == color || (!majority && histogram[c] > 0))
+                    counted++;
+            if (progress != null && stages == null)
+                stages = new Stages(progress, iterations * (2 * counted + 1));
+
+            countNeighbors(work, yMax, uMax, vMax, color, radius,
+                           planeSums, fillCount, stages);
+            if (!majority) {
+                Arrays.fill(maxOther, (short) 0);
+                for (int c = 0; c < colors; c++) {
+                    if (c == color || histogram[c] == 0)
+                        continue;
+                    countNeighbors(work, yMax, uMax, vMax, (byte) c, radius,
+                                   planeSums, otherCount, stages);
+                    // Holes are grey themselves, which isn't a neighbor
+                    int self = c == Vision.GREY ? 1 : 0;
+                    for (int k = 0; k < work.length; k++)
+                        if (otherCount[k] - self > maxOther[k])
+                            maxOther[k] = (short) (otherCount[k] - self);
+                }
+            }
+
+            final int[][] found = new int[yMax][];
+            run(new PlaneJob(yMax, 0, stages) {
+                    void plane(int y, int[] scratch) {
+                        int[] inPlane = new int[0];
+                        int count = 0;
+                        if (y >= radius && y < yMax - radius)
+                            for (int u = radius; u < uMax - radius; u++) {
+                                int row = (y * uMax + u) * vMax;
+                                for (int k = row + radius;
+                                     k < row + vMax - radius; k++) {
+                                    if (work[k] != Vision.GREY ||
+                                        fillCount[k] <= threshold ||
+                                        (!majority &&
+                                         fillCount[k] <= maxOther[k]))
+                                        continue;
+                                    if (count == inPlane.length)
+                                        inPlane = Arrays.copyOf(
+                                            inPlane, Math.max(64, 2 * count));
+                                    inPlane[count++] = k;
+                                }
+                            }
+                        found[y] = Arrays.copyOf(inPlane, count);
+                    }
+                }, work.length);
+            if (stages != null)
+                stages.next();
+
+            int before = numHoles;
+            for (int[] inPlane : found) {
+                if (numHoles + inPlane.length > holes.length)
+                    holes = Arrays.copyOf(holes, Math.max(2 * holes.length,
+                                                          numHoles +
+                                                          inPlane.length));
+                System.arraycopy(inPlane, 0, holes, numHoles, inPlane.length);
+                numHoles += inPlane.length;
+            }
+            if (numHoles == before)
+                break;
+            for (int k = before; k < numHoles; k++)
+                work[holes[k]] = color;
+        }
+        return Arrays.copyOf(holes, numHoles);
+    }
+
+    // Counts fit a short up to this radius
+    public static final int MAX_HOLE_RADIUS = 15;
+
+    /**
+     * Sets out[i] to how often color occurs in the box of the given radius
+     * around entry i of table, the entry included; boxes are cut off at the
+     * edges of the table.  Sums along v, then u within each Y plane into
+     * planeSums, then along y.
+     */
+    private static void countNeighbors(final byte[] table,
+                                       final int yMax, final int uMax,
+                                       final int vMax, final byte color,
+                                       final int radius,
+                                       final short[] planeSums,
+                                       final short[] out, Stages stages) {
+        final int plane = uMax * vMax;
+        run(new PlaneJob(yMax, plane, stages) {
+                void plane(int y, int[] rows) {
+                    int base = y * plane;
+                    for (int u = 0; u < uMax; u++) {
+                        int row = base + u * vMax;
+                        int sum = 0;
+                        for (int v = 0; v < radius && v < vMax; v++)
+                            if (table[row + v] == color)
+                                sum++;
+                        for (int v = 0; v < vMax; v++) {
+                            if (v + radius < vMax &&
+                                table[row + v + radius] == color)
+                                sum++;
+                            if (v - radius > 0 &&
+                                table[row + v - radius - 1] == color)
+                                sum--;
+                            rows[u * vMax + v] = sum;
+                        }
+                    }
+                    for (int v = 0; v < vMax; v++) {
+                        int sum = 0;
+                        for (int u = 0; u < radius && u < uMax; u++)
+                            sum += rows[u * vMax + v];
+                        for (int u = 0; u < uMax; u++) {
+                            if (u + radius < uMax)
+                                sum += rows[(u + radius) * vMax + v];
+                            if (u - radius > 0)
+                                sum -= rows[(u - radius - 1) * vMax + v];
+                            planeSums[base + u * vMax + v] = (short) sum;
+                        }
+                    }
+                }
+            }, table.length);
+        if (stages != null)
+            stages.next();
+
+        // Along y, one u-row of every plane at a time
+        run(new PlaneJob(uMax, vMax, stages) {
+                void plane(int u, int[] sums) {
+                    Arrays.fill(sums, 0);
+                    for (int y = 0; y < radius && y < yMax; y++)
+                        for (int v = 0; v < vMax; v++)
+                            sums[v] += planeSums[y * plane + u * vMax + v];
+                    for (int y = 0; y < yMax; y++) {
+                        int add = (y + radius) * plane + u * vMax;
+                        int sub = (y - radius - 1) * plane + u * vMax;
+                        int to = y * plane + u * vMax;
+                        for (int v = 0; v < vMax; v++) {
+                            if (y + radius < yMax)
+                                sums[v] += planeSums[add + v];
+                            if (y - radius > 0)
+                                sums[v] -= planeSums[sub + v];
+                            out[to + v] = (short) sums[v];
+                        }
+                    }
+                }
+            }, table.length);
+        if (stages != null)
+            stages.next();
+    }
+
+    /**
+     * Reports the jobs of a multi-pass operation to one Progress as a
+     * single run from 0 to stages * STEPS.
+     */
+    private static class Stages implements Progress {
+        private static final int STEPS = 1000;
+        private final Progress progress;
+        private final int stages;
+        private volatile int stage;
+
+        Stages(Progress progress, int stages) {
+            this.progress = progress;
+            this.stages = stages;
+        }
+
+        public void planesDone(int done, int total) {
+            progress.planesDone(Math.min(stage * STEPS +
+                                         STEPS * done / total,
+                                         stages * STEPS),
+                                stages * STEPS);
+        }
+
+        void next() {
+            stage++;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package TOOL.Image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes the compressed color table format.
+ *
+ * Raw .mtb files are bare yMax*uMax*vMax dumps, which is what the robots
+ * load, but they are mostly long runs of the same color.  A compressed
+ * table (COMPRESSED_SUFFIX) has a header of
+ *     MAGIC, FORMAT_VERSION, yMax, uMax, vMax, CRC32 of the table
+ * followed by each Y plane (uMax*vMax entries) deflated on its own,
+ * preceded by its compressed length.  Planes inflate straight into the
+ * table buffer.
+ *
+ * MAGIC can't begin a raw table, whose entries are all color numbers well
+ * below 'N', so the two formats are told apart by content, not name.
+ *
+ * @author Northern Bites Team
+ * @see ColorTable
+ */
+public class ColorTableFile {
+
+    public static final String COMPRESSED_SUFFIX = ".ctz";
+
+    public static final int MAGIC = 0x4e424354; // "NBCT"
+    public static final int FORMAT_VERSION = 1;
+
+    private ColorTableFile() {}
+
+    /**
+     * @return true if path should be written in the compressed format
+     */
+    public static boolean wantsCompressed(String path) {
+        return path.endsWith(COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * @return the dimensions {yMax, uMax, vMax} stored in the header of a
+     *         compressed table, or null if the file is not one
+     */
+    public static int[] readDimensions(String path) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(path));
+        try {
+            if (in.available() < 20 || in.readInt() != MAGIC)
+                return null;
+            in.readInt(); // format version
+            return new int[] { in.readInt(), in.readInt(), in.readInt() };
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a compressed table into a newly allocated buffer.
+     * @param dims filled with yMax, uMax, vMax of the table
+     * @return the table, laid out as ColorTable.getTableBuffer()
+     */
+    public static byte[] read(String path, int[] dims) throws IOException {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(path)));
+        Inflater inflater = new Inflater();
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException(path + " is not a compressed table");
+            int version = in.readInt();
+            if (version != FORMAT_VERSION)
+                throw new IOException(path + " has table format version " +
+                                      version + "; expected " +
+                                      FORMAT_VERSION);
+            dims[0] = in.readInt();
+            dims[1] = in.readInt();
+            dims[2] = in.readInt();
+            int checksum = in.readInt();
+
+            int plane = dims[1] * dims[2];
+            byte[] table = new byte[dims[0] * plane];
+            byte[] compressed = new byte[0];
+
+            for (int y = 0; y < dims[0]; y++) {
+                int length = in.readInt();
+                if (length < 0)
+                    throw new IOException(path + " is corrupt");
+                if (compressed.length < length)
+                    compressed = new byte[length];
+                in.readFully(compressed, 0, length);
+
+                inflater.reset();
+                inflater.setInput(compressed, 0, length);
+                int done = 0;
+                while (done < plane && !inflater.finished()) {
+                    int n = inflater.inflate(table, y * plane + done,
+                                             plane - done);
+                    if (n == 0 && (inflater.needsInput() ||
+                                   inflater.needsDictionary()))
+                        break;
+                    done += n;
+                }
+                if (done != plane)
+                    throw new IOException(path + " is corrupt: plane " + y +
+                                          " is short");
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(table);
+            if ((int) crc.getValue() != checksum)
+                throw new IOException(path + " failed its checksum");
+            return table;
+        } catch (DataFormatException e) {
+            throw new IOException(path + " is corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+            in.close();
+        }
+    }
+
+    /**
+     * Writes table, laid out as ColorTable.getTableBuffer(), compressed to
+     * path and syncs it to disk.
+     */
+    public static void write(String path, byte[] table,
+                             int yMax, int uMax, int vMax)
+        throws IOException {
+        FileOutputStream fos = new FileOutputStream(path, false);
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(fos));
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(table);
+
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(yMax);
+            out.writeInt(uMax);
+            out.writeInt(vMax);
+            out.writeInt((int) crc.getValue());
+
+            int plane = uMax * vMax;
+            // deflate can grow incompressible data slightly
+            byte[] compressed = new byte[plane + plane / 100 + 64];
+            for (int y = 0; y < yMax; y++) {
+                deflater.reset();
+                deflater.setInput(table, y * plane, plane);
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == compressed.length) {
+                        byte[] bigger = new byte[compressed.length * 2];
+                        System.arraycopy(compressed, 0, bigger, 0, length);
+                        compressed = bigger;
+                    }
+                    length += deflater.deflate(compressed, length,
+                                               compressed.length - length);
+                }
+                out.writeInt(length);
+                out.write(compressed, 0, length);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+}
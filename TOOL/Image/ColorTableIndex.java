@@ -0,0 +1,184 @@
+package TOOL.Image;
+
+import java.util.BitSet;
+
+/**
+ * For each color, the set of table entries holding it, kept by ColorTable
+ * as it changes.  Answers how many entries a color has and where they lie
+ * without scanning the table, and lets two tables be compared one color
+ * at a time with BitSet operations.
+ *
+ * Bits are numbered as ColorTable.index.  Counts are exact at all times,
+ * and bounding boxes grow as entries are added.  A box is only worked out
+ * again from the bits, when next asked for, after an entry on one of its
+ * faces has been taken away.
+ *
+ * @author Northern Bites Team
+ * @see ColorTable#getIndex
+ */
+public class ColorTableIndex {
+
+    private final int yMax, uMax, vMax;
+    private final BitSet[] bins;
+    private final int[] counts;
+    // bounds[c] is {yMin, yMax, uMin, uMax, vMin, vMax} of color c, or null
+    // if an entry on one of its faces has gone since they were worked out
+    private final int[][] bounds;
+
+    // Any byte may be stored in a table, so there is a set for each
+    private static final int COLORS = 256;
+
+    /**
+     * Indexes table, laid out as ColorTable.index for the given dimensions.
+     */
+    public ColorTableIndex(byte[] table, int yMax, int uMax, int vMax) {
+        this.yMax = yMax;
+        this.uMax = uMax;
+        this.vMax = vMax;
+        bins = new BitSet[COLORS];
+        counts = new int[COLORS];
+        bounds = new int[COLORS][];
+        for (int c = 0; c < COLORS; c++)
+            bins[c] = new BitSet();
+
+        for (int i = 0; i < table.length; i++) {
+            bins[table[i] & 0xff].set(i);
+            counts[table[i] & 0xff]++;
+        }
+    }
+
+    /** Records entry i changing from color from to color to. */
+    void move(int i, byte from, byte to) {
+        int f = from & 0xff, t = to & 0xff;
+        bins[f].clear(i);
+        counts[f]--;
+        shrink(f, i, i);
+        bins[t].set(i);
+        counts[t]++;
+        widen(t, i, i, 1);
+    }
+
+    /** Records entries [start, end), all of color from, becoming to. */
+    void move(int start, int end, byte from, byte to) {
+        int f = from & 0xff, t = to & 0xff;
+        bins[f].clear(start, end);
+        counts[f] -= end - start;
+        shrink(f, start, end - 1);
+        bins[t].set(start, end);
+        counts[t] += end - start;
+        widen(t, start, end - 1, end - start);
+    }
+
+    // Entries first to last left color c.  Its bounds only need working
+    // out again if they lay on an edge of the box.
+    private void shrink(int c, int first, int last) {
+        int[] b = bounds[c];
+        if (b == null)
+            return;
+        if (counts[c] == 0 || first / vMax != last / vMax) {
+            bounds[c] = null;
+            return;
+        }
+        int y = first / (uMax * vMax), u = first / vMax % uMax;
+        if (y == b[0] || y == b[1] || u == b[2] || u == b[3] ||
+            first % vMax == b[4] || last % vMax == b[5])
+            bounds[c] = null;
+    }
+
+    // Entries first to last, added of them, took color c
+    private void widen(int c, int first, int last, int added) {
+        if (first / vMax != last / vMax) {
+            bounds[c] = null;
+            return;
+        }
+        int y = first / (uMax * vMax), u = first / vMax % uMax;
+        int v0 = first % vMax, v1 = last % vMax;
+        int[] b = bounds[c];
+        if (counts[c] == added)
+            bounds[c] = new int[] { y, y, u, u, v0, v1 };
+        else if (b != null) {
+            if (y < b[0]) b[0] = y;
+            if (y > b[1]) b[1] = y;
+            if (u < b[2]) b[2] = u;
+            if (u > b[3]) b[3] = u;
+            if (v0 < b[4]) b[4] = v0;
+            if (v1 > b[5]) b[5] = v1;
+        }
+    }
+
+    /** @return the number of entries holding color */
+    public int count(byte color) {
+        return counts[color & 0xff];
+    }
+
+    /**
+     * @return {yMin, yMax, uMin, uMax, vMin, vMax}, inclusive, of the
+     *         entries holding color, or null if there are none.  Do not
+     *         modify the array; it may grow as the table changes.
+     */
+    public int[] getBounds(byte color) {
+        int c = color & 0xff;
+        if (counts[c] == 0)
+            return null;
+        if (bounds[c] == null)
+            bounds[c] = findBounds(bins[c]);
+        return bounds[c];
+    }
+
+    // Visits each u-row holding the color once: its first and last bits
+    // are the only ones which can widen the v range
+    private int[] findBounds(BitSet set) {
+        int plane = uMax * vMax;
+        int[] b = { yMax, -1, uMax, -1, vMax, -1 };
+        for (int i = set.nextSetBit(0); i >= 0; ) {
+            int rowEnd = i - i % vMax + vMax - 1;
+            int y = i / plane, u = i % plane / vMax;
+            int first = i % vMax, last = set.previousSetBit(rowEnd) % vMax;
+            if (y < b[0]) b[0] = y;
+            if (y > b[1]) b[1] = y;
+            if (u < b[2]) b[2] = u;
+            if (u > b[3]) b[3] = u;
+            if (first < b[4]) b[4] = first;
+            if (last > b[5]) b[5] = last;
+            i = set.nextSetBit(rowEnd + 1);
+        }
+        return b;
+    }
+
+    /**
+     * @return the first entry at or after from holding color, or -1 if
+     *         there is none; for iterating over a color's entries
+     */
+    public int nextBin(byte color, int from) {
+        return bins[color & 0xff].nextSetBit(from);
+    }
+
+    /** @return a copy of the set of entries holding color */
+    public BitSet getBins(byte color) {
+        return (BitSet) bins[color & 0xff].clone();
+    }
+
+    /**
+     * @return the entries holding color here or in other, which must
+     *         index a table of the same dimensions
+     */
+    public BitSet union(ColorTableIndex other, byte color) {
+        BitSet set = getBins(color);
+        set.or(other.bins[color & 0xff]);
+        return set;
+    }
+
+    /** @return the entries holding color both here and in other */
+    public BitSet intersection(ColorTableIndex other, byte color) {
+        BitSet set = getBins(color);
+        set.and(other.bins[color & 0xff]);
+        return set;
+    }
+
+    /** @return the entries holding color here but not in other */
+    public BitSet difference(ColorTableIndex other, byte color) {
+        BitSet set = getBins(color);
+        set.andNot(other.bins[color & 0xff]);
+        return set;
+    }
+}
@@ -0,0 +1,385 @@
+package TOOL.Image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import TOOL.TOOL;
+
+/**
+ * Autosave for a ColorTable which never touches the disk on the calling
+ * (usually the Swing) thread.
+ *
+ * The journal is a snapshot of the whole table plus an append-only log of
+ * the entries changed since.  Edits and snapshots are queued and written by
+ * one background thread; whatever has queued up while it was writing is
+ * written in one go and synced to disk once (group commit), so a burst of
+ * brush strokes costs one sync rather than one per stroke.  Each snapshot
+ * starts a fresh log and deletes the one it replaces.  Names are picked so
+ * that two journals writing to one folder, as when the TOOL replaces a
+ * table, never share a file.
+ *
+ * An edit is logged as single entries, boxes of one color and runs of
+ * entries of one color, so a large box costs as little to log as to paint.
+ *
+ * Log format, all big-endian: MAGIC, yMax, uMax, vMax, and the snapshot's
+ * file name (UTF), then records of
+ *     count, count entry indices (ColorTable.index), count colors,
+ *     boxes, boxes * (y0, y1, u0, u1, v0, v1, color),
+ *     runs, runs * (first index, length, color), CRC32
+ * with every bound inclusive and every color an int.  Replay sets the
+ * boxes, then the runs in order, then the entries.  A record cut short by
+ * a crash fails its CRC and is ignored by replay(), which also reads the
+ * older logs of entries alone.
+ *
+ * @author Northern Bites Team
+ * @see ColorTable#recover
+ */
+public class ColorTableJournal {
+
+    public static final String SNAPSHOT_SUFFIX = ".table.mtb";
+    public static final String JOURNAL_SUFFIX = ".journal";
+
+    private static final int MAGIC = 0x43544a32; // "CTJ2"
+    // Logs of entries alone, without boxes or runs
+    private static final int MAGIC_ENTRIES = 0x43544a31; // "CTJ1"
+
+    /** Ints logged per box, and per run. */
+    public static final int BOX_INTS = 7, RUN_INTS = 3;
+
+    // Queued work for the writer thread
+    private static class Edit {
+        final int[] indices;
+        final byte[] colors;
+        final int[] boxes, runs;
+        Edit(int[] indices, byte[] colors, int[] boxes, int[] runs) {
+            this.indices = indices;
+            this.colors = colors;
+            this.boxes = boxes;
+            this.runs = runs;
+        }
+    }
+
+    private static class Snapshot {
+        final byte[] table;
+        final int yMax, uMax, vMax;
+        Snapshot(byte[] table, int yMax, int uMax, int vMax) {
+            this.table = table;
+            this.yMax = yMax;
+            this.uMax = uMax;
+            this.vMax = vMax;
+        }
+    }
+
+    private static final Object CLOSE = new Object();
+
+    private final File dir;
+    private final LinkedBlockingQueue<Object> queue;
+    private final Thread writer;
+    // Set if the writer gave up; later work is dropped rather than queued
+    private volatile boolean failed;
+
+    // Only touched by the writer thread
+    private File journalFile;
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Starts a journal in dir, beginning with a snapshot of table, which
+     * the caller must not modify afterwards (pass a copy).
+     */
+    public ColorTableJournal(File dir, byte[] table,
+                             int yMax, int uMax, int vMax) {
+        this.dir = dir;
+        queue = new LinkedBlockingQueue<Object>();
+        queue.add(new Snapshot(table, yMax, uMax, vMax));
+
+        writer = new Thread(new Runnable() {
+                public void run() {
+                    writeLoop();
+                }
+            }, "ColorTable autosave");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues entries indices[i] having been set to colors[i].  The arrays
+     * must not be modified afterwards.
+     */
+    public void record(int[] indices, byte[] colors) {
+        record(indices, colors, null, null);
+    }
+
+    /**
+     * Queues an edit: boxes, BOX_INTS each, of y0, y1, u0, u1, v0, v1 and
+     * the color they were filled with, then runs, RUN_INTS each, of the
+     * first entry, the number of entries and their color, then entries
+     * indices[i] set to colors[i].  Later parts override earlier ones
+     * where they overlap.  boxes and runs may be null; no array may be
+     * modified afterwards.
+     */
+    public void record(int[] indices, byte[] colors, int[] boxes,
+                       int[] runs) {
+        if (boxes == null)
+            boxes = new int[0];
+        if (runs == null)
+            runs = new int[0];
+        if (indices.length + boxes.length + runs.length > 0 && !failed)
+            queue.add(new Edit(indices, colors, boxes, runs));
+    }
+
+    /**
+     * Queues a snapshot of table (a copy the caller won't modify), after
+     * which the edits logged so far are no longer needed.
+     */
+    public void snapshot(byte[] table, int yMax, int uMax, int vMax) {
+        if (!failed)
+            queue.add(new Snapshot(table, yMax, uMax, vMax));
+    }
+
+    /**
+     * Has the writer write out everything queued so far and stop.  Returns
+     * at once; the writing goes on in the background.
+     */
+    public void close() {
+        queue.add(CLOSE);
+    }
+
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<Object>();
+        try {
+            while (true) {
+                batch.clear();
+                batch.add(queue.take());
+                queue.drainTo(batch);
+
+                boolean closing = false;
+                for (Object o : batch) {
+                    if (o == CLOSE)
+                        closing = true;
+                    else if (o instanceof Snapshot)
+                        writeSnapshot((Snapshot) o);
+                    else
+                        writeEdit((Edit) o);
+                }
+                commit();
+
+                if (closing) {
+                    out.close();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutting down; what was committed stays on disk
+        } catch (IOException e) {
+            failed = true;
+            queue.clear();
+            TOOL.CONSOLE.error("Color table autosave failed: " +
+                               e.getMessage());
+        }
+    }
+
+    private void writeSnapshot(Snapshot s) throws IOException {
+        dir.mkdirs();
+        // hours/minutes/seconds am/pm, as the old autosaves were named
+        String stem = ColorTable.now("h:mm:ssa");
+        File newJournal = null, snapshotFile = null;
+        for (int i = 0; newJournal == null; i++) {
+            String base = i == 0 ? stem : stem + "-" + i;
+            snapshotFile = new File(dir, base + SNAPSHOT_SUFFIX);
+            if (snapshotFile.exists())
+                continue;
+            // Creating the log claims the name; only one journal can
+            newJournal = new File(dir, base + JOURNAL_SUFFIX);
+            if (!newJournal.createNewFile())
+                newJournal = null;
+        }
+        String name = snapshotFile.getName();
+
+        // Write the snapshot under a temporary name so a crash never leaves
+        // a partial table behind under the real one
+        File tmp = new File(dir, name + ".tmp");
+        FileOutputStream snapshotOut = new FileOutputStream(tmp);
+        try {
+            snapshotOut.write(s.table);
+            snapshotOut.getFD().sync();
+        } finally {
+            snapshotOut.close();
+        }
+        if (!tmp.renameTo(snapshotFile))
+            throw new IOException("could not rename " + tmp);
+
+        // The new log starts from this snapshot, so the old one can go
+        File oldJournal = journalFile;
+        if (out != null)
+            out.close();
+
+        journalFile = newJournal;
+        fileOut = new FileOutputStream(journalFile);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        out.writeInt(MAGIC);
+        out.writeInt(s.yMax);
+        out.writeInt(s.uMax);
+        out.writeInt(s.vMax);
+        out.writeUTF(name);
+
+        if (oldJournal != null)
+            oldJournal.delete();
+    }
+
+    private void writeEdit(Edit e) throws IOException {
+        crc.reset();
+        out.writeInt(e.indices.length);
+        for (int index : e.indices)
+            writeInt(index);
+        out.write(e.colors);
+        crc.update(e.colors);
+        writeInts(e.boxes, BOX_INTS);
+        writeInts(e.runs, RUN_INTS);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // Writes the count of groups of ints, then the ints
+    private void writeInts(int[] ints, int group) throws IOException {
+        writeInt(ints.length / group);
+        for (int i : ints)
+            writeInt(i);
+    }
+
+    private void writeInt(int i) throws IOException {
+        out.writeInt(i);
+        update(crc, i);
+    }
+
+    private static void update(CRC32 crc, int i) {
+        crc.update(i >>> 24);
+        crc.update(i >>> 16);
+        crc.update(i >>> 8);
+        crc.update(i);
+    }
+
+    private void commit() throws IOException {
+        out.flush();
+        fileOut.getFD().sync();
+    }
+
+    /**
+     * Rebuilds the table a journal describes: its snapshot with every
+     * complete record applied on top.
+     * @param dims filled with yMax, uMax, vMax of the table
+     * @return the table, laid out as ColorTable.getTableBuffer()
+     */
+    public static byte[] replay(File journal, int[] dims) throws IOException {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(journal)));
+        try {
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_ENTRIES)
+                throw new IOException(journal + " is not a color table " +
+                                      "journal");
+            dims[0] = in.readInt();
+            dims[1] = in.readInt();
+            dims[2] = in.readInt();
+            File snapshot = new File(journal.getParentFile(), in.readUTF());
+
+            byte[] table = new byte[dims[0] * dims[1] * dims[2]];
+            DataInputStream tableIn =
+                new DataInputStream(new FileInputStream(snapshot));
+            try {
+                tableIn.readFully(table);
+            } finally {
+                tableIn.close();
+            }
+
+            CRC32 crc = new CRC32();
+            int[] empty = new int[0];
+            while (true) {
+                int count;
+                int[] indices, boxes = empty, runs = empty;
+                byte[] colors;
+                try {
+                    count = in.readInt();
+                    if (count < 0 || count > table.length)
+                        break;
+                    indices = new int[count];
+                    crc.reset();
+                    for (int i = 0; i < count; i++)
+                        indices[i] = readInt(in, crc);
+                    colors = new byte[count];
+                    in.readFully(colors);
+                    crc.update(colors);
+                    if (magic == MAGIC) {
+                        boxes = readInts(in, crc, BOX_INTS, table.length);
+                        runs = readInts(in, crc, RUN_INTS, table.length);
+                        if (boxes == null || runs == null)
+                            break;
+                    }
+                    if (in.readInt() != (int) crc.getValue())
+                        break;
+                } catch (EOFException e) {
+                    // the last record was cut short
+                    break;
+                }
+
+                int yMax = dims[0], uMax = dims[1], vMax = dims[2];
+                for (int b = 0; b < boxes.length; b += BOX_INTS) {
+                    if (boxes[b] < 0 || boxes[b + 1] >= yMax ||
+                        boxes[b + 2] < 0 || boxes[b + 3] >= uMax ||
+                        boxes[b + 4] < 0 || boxes[b + 5] >= vMax)
+                        continue;
+                    for (int y = boxes[b]; y <= boxes[b + 1]; y++)
+                        for (int u = boxes[b + 2]; u <= boxes[b + 3]; u++) {
+                            int row = (y * uMax + u) * vMax;
+                            Arrays.fill(table, row + boxes[b + 4],
+                                        row + boxes[b + 5] + 1,
+                                        (byte) boxes[b + 6]);
+                        }
+                }
+                for (int r = 0; r < runs.length; r += RUN_INTS)
+                    if (runs[r] >= 0 && runs[r + 1] >= 0 &&
+                        runs[r] + runs[r + 1] <= table.length)
+                        Arrays.fill(table, runs[r], runs[r] + runs[r + 1],
+                                    (byte) runs[r + 2]);
+                for (int i = 0; i < count; i++)
+                    if (indices[i] >= 0 && indices[i] < table.length)
+                        table[indices[i]] = colors[i];
+            }
+            return table;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readInt(DataInputStream in, CRC32 crc)
+        throws IOException {
+        int i = in.readInt();
+        update(crc, i);
+        return i;
+    }
+
+    // Reads a count of groups of ints, then the ints; null if the count
+    // can't be right
+    private static int[] readInts(DataInputStream in, CRC32 crc, int group,
+                                  int most) throws IOException {
+        int count = readInt(in, crc);
+        if (count < 0 || count > most)
+            return null;
+        int[] ints = new int[count * group];
+        for (int i = 0; i < ints.length; i++)
+            ints[i] = readInt(in, crc);
+        return ints;
+    }
+}
@@ -0,0 +1,154 @@
+package TOOL.Image;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The entries of a ColorTable as they were at one version, for reading on
+ * other threads while the table goes on being edited.
+ *
+ * Taking a snapshot copies nothing.  The table is divided into pages, one
+ * per Y plane, and a snapshot only gets its own copy of a page when the
+ * table is about to write to it, or when the snapshot is first read there,
+ * whichever comes first.  Both happen under the table's snapshot lock, so
+ * a page is never copied halfway through a write.  Pages the table never
+ * touches again and no reader asks for are never copied at all.
+ *
+ * Snapshots are taken, with ColorTable.snapshot(), on the thread which
+ * edits the table.  They may be read from any thread.  A snapshot nobody
+ * holds any more is forgotten by the table once collected; release() lets
+ * it go sooner.
+ *
+ * @author Northern Bites Team
+ * @see ColorTable#snapshot
+ */
+public class ColorTableSnapshot {
+
+    private static final int Y = 0;
+    private static final int Cb = 2;
+    private static final int Cr = 1;
+
+    private final long version;
+    private final int yMax, uMax, vMax, yShift, uShift, vShift, plane;
+
+    // The table's buffer when the snapshot was taken, read only while a
+    // page is copied out of it, under lock
+    private final byte[] table;
+    private final Object lock;
+    // The pages copied so far
+    private final AtomicReferenceArray<byte[]> pages;
+    private volatile boolean released;
+
+    ColorTableSnapshot(ColorTable owner, byte[] table, Object lock) {
+        this.table = table;
+        this.lock = lock;
+        version = owner.getVersion();
+        yMax = owner.getYDimension();
+        uMax = owner.getUDimension();
+        vMax = owner.getVDimension();
+        yShift = owner.getYShift();
+        uShift = owner.getUShift();
+        vShift = owner.getVShift();
+        plane = uMax * vMax;
+        pages = new AtomicReferenceArray<byte[]>(yMax);
+    }
+
+    /**
+     * Copies page y before the table writes to it.  Called with the lock
+     * held.
+     */
+    void keep(int y) {
+        if (pages.get(y) == null)
+            pages.set(y, copyPage(y));
+    }
+
+    private byte[] copyPage(int y) {
+        byte[] page = new byte[plane];
+        System.arraycopy(table, y * plane, page, 0, plane);
+        return page;
+    }
+
+    /** @return the version of the table this is a snapshot of */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the entries of Y plane y, indexed [u * vMax + v].  Not to be
+     *         modified; other readers share it.
+     */
+    public byte[] getPage(int y) {
+        byte[] page = pages.get(y);
+        if (page != null)
+            return page;
+        synchronized (lock) {
+            page = pages.get(y);
+            if (page == null) {
+                // the table may have written here since it let go
+                if (released)
+                    throw new IllegalStateException("snapshot of version " +
+                                                    version +
+                                                    " read after release()");
+                page = copyPage(y);
+                pages.set(y, page);
+            }
+        }
+        return page;
+    }
+
+    /** As ColorTable.getColor(int[]) at this version. */
+    public byte getColor(int[] pixel) {
+        return getRawColor(pixel[Y ] >> yShift,
+                           pixel[Cb] >> uShift,
+                           pixel[Cr] >> vShift);
+    }
+
+    /** As ColorTable.getRawColor(int, int, int) at this version. */
+    public byte getRawColor(int y, int u, int v) {
+        return getPage(y)[u * vMax + v];
+    }
+
+    /** @return the entry at ColorTable.index i, at this version */
+    public byte getEntry(int i) {
+        return getPage(i / plane)[i % plane];
+    }
+
+    /**
+     * @return the whole table at this version, laid out as
+     *         ColorTable.getTableBuffer()
+     */
+    public byte[] toArray() {
+        byte[] copy = new byte[yMax * plane];
+        for (int y = 0; y < yMax; y++)
+            System.arraycopy(getPage(y), 0, copy, y * plane, plane);
+        return copy;
+    }
+
+    /**
+     * Tells the table this snapshot will not be read again, so it stops
+     * copying pages for it.  Pages already copied can still be read.
+     */
+    public void release() {
+        released = true;
+    }
+
+    boolean isReleased() {
+        return released;
+    }
+
+    /** @return true if this snapshot is of a table laid out as table */
+    public boolean matches(ColorTable table) {
+        return yMax == table.getYDimension() &&
+            uMax == table.getUDimension() &&
+            vMax == table.getVDimension() &&
+            yShift == table.getYShift() &&
+            uShift == table.getUShift() &&
+            vShift == table.getVShift();
+    }
+
+    public int getYDimension() { return yMax; }
+    public int getUDimension() { return uMax; }
+    public int getVDimension() { return vMax; }
+    public int getYShift() { return yShift; }
+    public int getUShift() { return uShift; }
+    public int getVShift() { return vShift; }
+}
@@ -0,0 +1,144 @@
+package TOOL.Image;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the edges of whole images for ImageOverlay.  A pixel is an edge if
+ * any component differs by more than the threshold from the pixel above it
+ * or the one to its left; the first row and column only have one neighbour
+ * to compare with.  That is the vertical and the horizontal scan of the old
+ * edge image, done in one pass.
+ *
+ * As in ThresholdEngine, the image's pixel buffer is read directly, the
+ * result is written into a row-major byte buffer, and large frames are
+ * split into bands of rows and done in parallel.  Images held as YCbCr
+ * are done without allocating anything.
+ *
+ * @author Northern Bites Team
+ * @see ImageOverlay#generateEdgeImage
+ */
+public class EdgeEngine {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    private EdgeEngine() {}
+
+    /**
+     * Sets every edge pixel of image to edge in out, leaving the others as
+     * they are.
+     * @param thresh the largest difference in a component which is not an
+     *               edge
+     * @param out row-major buffer of at least width * height entries
+     */
+    public static void findEdges(TOOLImage image, int thresh, byte[] out,
+                                 byte edge) {
+        int height = image.getHeight();
+        if (image.getWidth() * height < ThresholdEngine.MIN_PARALLEL_PIXELS ||
+            height < 2 * ThresholdEngine.MIN_ROWS_PER_TASK ||
+            POOL.getParallelism() < 2)
+            findRows(image, thresh, out, edge, 0, height);
+        else
+            POOL.invoke(new RowTask(image, thresh, out, edge, 0, height));
+    }
+
+    private static class RowTask extends RecursiveAction {
+        private final TOOLImage image;
+        private final int thresh;
+        private final byte[] out;
+        private final byte edge;
+        private final int firstRow, lastRow;
+
+        RowTask(TOOLImage image, int thresh, byte[] out, byte edge,
+                int firstRow, int lastRow) {
+            this.image = image;
+            this.thresh = thresh;
+            this.out = out;
+            this.edge = edge;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        protected void compute() {
+            if (lastRow - firstRow < 2 * ThresholdEngine.MIN_ROWS_PER_TASK) {
+                findRows(image, thresh, out, edge, firstRow, lastRow);
+                return;
+            }
+            int mid = (firstRow + lastRow) >>> 1;
+            invokeAll(new RowTask(image, thresh, out, edge, firstRow, mid),
+                      new RowTask(image, thresh, out, edge, mid, lastRow));
+        }
+    }
+
+    static void findRows(TOOLImage image, int thresh, byte[] out, byte edge,
+                         int firstRow, int lastRow) {
+        if (image.isYCbCr())
+            findBuffer(image, thresh, out, edge, firstRow, lastRow);
+        else
+            findConverted(image, thresh, out, edge, firstRow, lastRow);
+    }
+
+    /**
+     * Compares the components straight out of the image's pixel buffer.
+     * Rows only ever read the row above, so bands can run side by side.
+     */
+    private static void findBuffer(TOOLImage image, int thresh, byte[] out,
+                                   byte edge, int firstRow, int lastRow) {
+        final byte[] buf = image.pixels;
+        final int width = image.getWidth();
+        final int pixelStride = image.pixelStride;
+        final int rowStride = width * pixelStride;
+        final int c1 = image.planeStride;
+        final int c2 = 2 * image.planeStride;
+
+        for (int y = firstRow; y < lastRow; y++) {
+            int i = image.offset(0, y);
+            int o = y * width;
+            for (int x = 0; x < width; x++, i += pixelStride, o++)
+                if ((x > 0 && far(buf, i, i - pixelStride, c1, c2, thresh)) ||
+                    (y > 0 && far(buf, i, i - rowStride, c1, c2, thresh)))
+                    out[o] = edge;
+        }
+    }
+
+    // Whether the pixels at offsets i and j differ by more than thresh in
+    // any component
+    private static boolean far(byte[] buf, int i, int j, int c1, int c2,
+                               int thresh) {
+        return Math.abs((buf[i] & 0xff) - (buf[j] & 0xff)) > thresh ||
+            Math.abs((buf[i + c1] & 0xff) - (buf[j + c1] & 0xff)) > thresh ||
+            Math.abs((buf[i + c2] & 0xff) - (buf[j + c2] & 0xff)) > thresh;
+    }
+
+    /**
+     * For images which convert to YCbCr on access, e.g. RGBImage.  The row
+     * above is kept packed, so each pixel is converted once.
+     */
+    private static void findConverted(TOOLImage image, int thresh,
+                                      byte[] out, byte edge,
+                                      int firstRow, int lastRow) {
+        final int width = image.getWidth();
+        int[] above = new int[width];
+        if (firstRow > 0)
+            for (int x = 0; x < width; x++)
+                above[x] = image.getYCbCrPacked(x, firstRow - 1);
+
+        for (int y = firstRow; y < lastRow; y++) {
+            int o = y * width;
+            int left = 0;
+            for (int x = 0; x < width; x++, o++) {
+                int p = image.getYCbCrPacked(x, y);
+                if ((x > 0 && far(p, left, thresh)) ||
+                    (y > 0 && far(p, above[x], thresh)))
+                    out[o] = edge;
+                above[x] = left = p;
+            }
+        }
+    }
+
+    private static boolean far(int p, int q, int thresh) {
+        return Math.abs(((p >> 16) & 0xff) - ((q >> 16) & 0xff)) > thresh ||
+            Math.abs(((p >> 8) & 0xff) - ((q >> 8) & 0xff)) > thresh ||
+            Math.abs((p & 0xff) - (q & 0xff)) > thresh;
+    }
+}
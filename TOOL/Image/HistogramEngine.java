@@ -0,0 +1,296 @@
+package TOOL.Image;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import TOOL.TOOL;
+import TOOL.TOOLException;
+import TOOL.Data.DataSet;
+import TOOL.Data.Frame;
+import TOOL.Data.File.FileSet;
+import TOOL.Data.File.FrameLoader;
+
+/**
+ * Builds the YUVHistogram of every pixel of a DataSet, at the resolution of
+ * a color table.
+ *
+ * Frames are streamed through a few worker threads, each counting into its
+ * own partial histogram, which is added into the result every so often and
+ * at the end.  A worker holds one frame at a time: frames of a FileSet
+ * which the set hasn't loaded are read as private copies, leaving the set
+ * as it was.  Frames the set already has loaded are read where they are.
+ * So however many frames there are, memory use stays within the budget:
+ * the result plus, for each worker, a partial histogram and a frame.
+ *
+ * Other sets, e.g. an SQLSet or a RemoteRobot, load over one connection
+ * which the TOOL is using, and only the Swing thread may load and unload
+ * their frames.  So only the frames they already have loaded are counted,
+ * and the rest skipped.
+ *
+ * Finished histograms are saved under CACHE_PATH, named after the data set
+ * and the table resolution, and read back instead of being built again
+ * while the set has not changed.  Histograms which skipped frames are not
+ * saved.
+ *
+ * @author Northern Bites Team
+ * @see YUVHistogram
+ */
+public class HistogramEngine {
+
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    // Room for a frame being read and its decoded image
+    public static final long FRAME_BYTES = 4L << 20;
+
+    public static String CACHE_PATH = System.getProperty("user.dir") +
+        "/histograms/";
+
+    // Partial counts are added in well before any entry could overflow
+    private static final long MAX_PARTIAL_PIXELS = Integer.MAX_VALUE / 2;
+
+    // What countFrame returns for a frame it didn't count
+    private static final long FAILED = -1, SKIPPED = -2;
+
+    /** Told how many frames have been counted so far. */
+    public interface Progress {
+        /** Called from the worker threads. */
+        public void framesDone(int done, int total);
+    }
+
+    private HistogramEngine() {}
+
+    /**
+     * @return the histogram of set at the resolution of table, from the
+     *         cache if it is there, within DEFAULT_MEMORY_BUDGET
+     * @throws InterruptedException if the calling thread is interrupted,
+     *         which stops the workers
+     */
+    public static YUVHistogram build(DataSet set, ColorTable table,
+                                     Progress progress)
+        throws InterruptedException {
+        return build(set, table, DEFAULT_MEMORY_BUDGET, true, progress);
+    }
+
+    /**
+     * @param memoryBudget bytes the build may hold at once
+     * @param useCache whether to look for, and save, the histogram in
+     *                 CACHE_PATH
+     */
+    public static YUVHistogram build(final DataSet set, ColorTable table,
+                                     long memoryBudget, boolean useCache,
+                                     final Progress progress)
+        throws InterruptedException {
+        final String key = cacheKey(set, table);
+        File cached = cacheFile(key);
+        if (useCache && cached.exists()) {
+            try {
+                YUVHistogram h = YUVHistogram.read(cached, key);
+                if (h != null)
+                    return h;
+            } catch (IOException e) {
+                TOOL.CONSOLE.error("Couldn't read the histogram cached at " +
+                                   cached + ": " + e.getMessage());
+            }
+        }
+
+        final YUVHistogram result = YUVHistogram.forTable(table);
+        final int total = set.size();
+        int workers = workers(result.getMemoryUsage(), memoryBudget, total);
+
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        List<Callable<Void>> jobs = new ArrayList<Callable<Void>>();
+        for (int w = 0; w < workers; w++)
+            jobs.add(new Callable<Void>() {
+                    public Void call() {
+                        countFrames(set, result, next, done, failed,
+                                    skipped, total, progress);
+                        return null;
+                    }
+                });
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers,
+                                                            DAEMONS);
+        try {
+            for (Future<Void> f : pool.invokeAll(jobs))
+                f.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedException();
+
+        if (failed.get() > 0)
+            TOOL.CONSOLE.error("Histogram of " + set.name() + " skipped " +
+                               failed.get() + " frames which failed to load");
+        if (skipped.get() > 0)
+            TOOL.CONSOLE.println("Histogram of " + set.name() + " counted " +
+                                 "only the " + (total - skipped.get()) +
+                                 " frames loaded of " + total);
+        if (useCache && skipped.get() == 0) {
+            try {
+                result.write(cached, key);
+            } catch (IOException e) {
+                TOOL.CONSOLE.error("Couldn't cache the histogram at " +
+                                   cached + ": " + e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private static final ThreadFactory DAEMONS = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Histogram worker");
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+    // As many workers as there are processors and frames, and as fit in
+    // the budget alongside the result; always at least one
+    static int workers(long histogramBytes, long memoryBudget, int frames) {
+        long each = histogramBytes + FRAME_BYTES;
+        long fit = (memoryBudget - histogramBytes) / each;
+        int n = (int) Math.min(fit,
+                               Runtime.getRuntime().availableProcessors());
+        return Math.max(1, Math.min(n, frames));
+    }
+
+    // One worker: takes frames until there are none left
+    private static void countFrames(DataSet set, YUVHistogram result,
+                                    AtomicInteger next, AtomicInteger done,
+                                    AtomicInteger failed,
+                                    AtomicInteger skipped, int total,
+                                    Progress progress) {
+        int[] partial = new int[result.getYDimension() *
+                                result.getUDimension() *
+                                result.getVDimension()];
+        int frames = 0;
+        long pixels = 0;
+        for (int i = next.getAndIncrement(); i < total;
+             i = next.getAndIncrement()) {
+            if (Thread.currentThread().isInterrupted())
+                return;
+
+            long counted = countFrame(set, i, result, partial);
+            if (counted == FAILED)
+                failed.incrementAndGet();
+            else if (counted == SKIPPED)
+                skipped.incrementAndGet();
+            else {
+                frames++;
+                pixels += counted;
+            }
+            if (pixels > MAX_PARTIAL_PIXELS) {
+                result.add(partial, frames, pixels);
+                java.util.Arrays.fill(partial, 0);
+                frames = 0;
+                pixels = 0;
+            }
+            if (progress != null)
+                progress.framesDone(done.incrementAndGet(), total);
+        }
+        result.add(partial, frames, pixels);
+    }
+
+    /**
+     * Counts the pixels of frame i into partial, never loading or unloading
+     * it in the set.
+     * @return the number counted, FAILED if the frame could not be read, or
+     *         SKIPPED if it isn't loaded and can't be read as a copy
+     */
+    private static long countFrame(DataSet set, int i, YUVHistogram h,
+                                   int[] partial) {
+        // read once, as the Swing thread may unload it meanwhile, in which
+        // case it is read as a copy like any other frame not loaded
+        TOOLImage image = set.loaded(i) ? set.get(i).image() : null;
+        if (image != null)
+            return count(image, h, partial);
+        if (!(set instanceof FileSet))
+            return SKIPPED;
+
+        try {
+            Frame copy = new Frame(set, i);
+            FrameLoader.loadFrame(((FileSet) set).file(i), copy);
+            return count(copy.image(), h, partial);
+        } catch (TOOLException e) {
+            return FAILED;
+        }
+    }
+
+    /**
+     * Counts every pixel of image into counts, laid out as h.
+     * @return the number of pixels counted
+     */
+    static long count(TOOLImage image, YUVHistogram h, int[] counts) {
+        if (image == null)
+            return 0;
+        final int yShift = h.getYShift();
+        final int uShift = h.getUShift();
+        final int vShift = h.getVShift();
+        final int uMax = h.getUDimension();
+        final int vMax = h.getVDimension();
+        final int width = image.getWidth(), height = image.getHeight();
+
+        if (image.isYCbCr()) {
+            // straight out of the pixel buffer, as ThresholdEngine reads it
+            final byte[] buf = image.pixels;
+            final int pixelStride = image.pixelStride;
+            final int c1 = image.planeStride;
+            final int c2 = 2 * image.planeStride;
+            for (int y = 0; y < height; y++) {
+                int i = image.offset(0, y);
+                for (int x = 0; x < width; x++, i += pixelStride)
+                    counts[(((buf[i] & 0xff) >> yShift) * uMax +
+                            ((buf[i + c2] & 0xff) >> uShift)) * vMax +
+                           ((buf[i + c1] & 0xff) >> vShift)]++;
+            }
+        } else
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++) {
+                    int p = image.getYCbCrPacked(x, y);
+                    counts[((((p >> 16) & 0xff) >> yShift) * uMax +
+                            ((p & 0xff) >> uShift)) * vMax +
+                           (((p >> 8) & 0xff) >> vShift)]++;
+                }
+        return (long) width * height;
+    }
+
+    /**
+     * @return what the histogram of set at the resolution of table is saved
+     *         under: the set's path and size, when its frames last changed
+     *         on disk if it is a FileSet, and the table's shape
+     */
+    public static String cacheKey(DataSet set, ColorTable table) {
+        long modified = 0;
+        if (set instanceof FileSet) {
+            modified = new File(set.path()).lastModified();
+            for (int i = 0; i < set.size(); i++)
+                modified = Math.max(modified,
+                                    ((FileSet) set).file(i).lastModified());
+        }
+        return set.path() + "|" + set.size() + "|" + modified + "|" +
+            table.getYDimension() + "x" + table.getUDimension() + "x" +
+            table.getVDimension() + "|" + table.getYShift() + "," +
+            table.getUShift() + "," + table.getVShift();
+    }
+
+    /** @return where the histogram saved under key lives */
+    public static File cacheFile(String key) {
+        String name = new File(key.substring(0, key.indexOf('|'))).getName();
+        return new File(CACHE_PATH, name.replaceAll("[^A-Za-z0-9_.-]", "_") +
+                        "-" + Integer.toHexString(key.hashCode()) + ".hist");
+    }
+}
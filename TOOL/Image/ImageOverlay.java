@@ -5,26 +5,27 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Shape;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 
 import java.awt.AlphaComposite;
-import java.util.Iterator;
+import java.util.Arrays;
 
 import TOOL.TOOL;
-import TOOL.Calibrate.Pair;
 import TOOL.Vision.Vision;
 
 
 /**
  * This class draws edge lines on the raw image, as well as the swatches of
  * color that the user paints in order to define (threshold) the YUV values
- * as corresponding to a given color. We maintain a separate int array 
- * for the values at each pixel, so that, for instance, we can differentiate
- * between the black of an edge and the black of a thresholded part of the 
- * image.
+ * as corresponding to a given color. The image is indexed, through
+ * ThresholdedImage.COLOR_MODEL, so its raster holds one byte per pixel:
+ * the thresholded color, EDGE or TRANSPARENT.  That is both what is drawn
+ * and what is read back, so, for instance, we can differentiate between the
+ * black of an edge and the black of a thresholded part of the image.
  */
 public class ImageOverlay extends BufferedImage{
     private static final Color[] COLORS = Vision.COLORS;
-    private static final byte TRANSPARENT = -1;
+    private static final byte TRANSPARENT = ThresholdedImage.TRANSPARENT;
     // Will be drawn black.
     private static final byte EDGE = (byte) COLORS.length; 
     public static final int DEFAULT_THRESH = 20;
@@ -34,22 +35,25 @@ public class ImageOverlay extends BufferedImage{
     protected boolean thresholding;
 
     int width, height, edgeThresh;
-    byte[][] pixels;
+    // The raster, row-major, index y * width + x
+    byte[] pixels;
 
 
     /**
      * Constructs an ImageOverlay of width and height as specified by
-     * creating a buffered image of type ARGB (alpha channel specified)
-     * and initializes the array of pixels to be TRANSPARENT to start.
+     * creating an indexed buffered image with a transparent entry
+     * and initializes the pixels to be TRANSPARENT to start.
      * @param width number of pixels wide the image will be
      * @param height number of pixels high
      */ 
     public ImageOverlay(int width, int height){
 	
-	super(width, height, BufferedImage.TYPE_INT_ARGB);
+	super(width, height, BufferedImage.TYPE_BYTE_INDEXED,
+	      ThresholdedImage.COLOR_MODEL);
 
 	this.width = width;
 	this.height = height;
+	pixels = ((DataBufferByte) getRaster().getDataBuffer()).getData();
 	edgeThresh = DEFAULT_THRESH;
 	thresholding = true;
 	resetPixels();	
@@ -60,55 +64,51 @@ public class ImageOverlay extends BufferedImage{
         thresholding = choice;
     }
 
+    public boolean isThresholding() {
+        return thresholding;
+    }
+
 
     /**
-     * Sets all of the entries in int array to be TRANSPARENT
-     * and sets the individual pixels of the buffered image to be 
+     * Sets all of the pixels to be TRANSPARENT, which makes them
      * literally transparent
      */
     public void resetPixels(){
-	pixels  = new byte[width][height];
-	for(int w = 0; w < width; w++){
-	    for(int h = 0; h < height; h++){
-		pixels[w][h] = TRANSPARENT;
-		setRGB(w,h,0x0);
-	    }
-	}
+	Arrays.fill(pixels, TRANSPARENT);
     }
 
 
     /**
      * Searches all the pixels in the image for those thresholded as
-     * EDGE and sets them to TRANSPARENT.  Also literally changes the
-     * BufferedImage to make those pixels clear rather than black.
+     * EDGE and sets them to TRANSPARENT, which makes those pixels clear
+     * rather than black.
      * This method exists so that when the threshold value is modified
      * and we wish to recalculate the edge image, we can maintain all those
      * parts of the overlay that are NOT edge, i.e. all the things the user
      * manually thresholded
      */
     public void resetEdgePixels() {	
-	for(int w = 0; w < width; w++){
-	    for(int h = 0; h < height; h++){
-		if (pixels[w][h] == EDGE) {
-		    pixels[w][h] = TRANSPARENT;
-		    setRGB(w,h,0x0);
-		}
-	    }
-	}
+	for (int i = 0; i < pixels.length; i++)
+	    if (pixels[i] == EDGE)
+		pixels[i] = TRANSPARENT;
     }
 
    
     /**
      * Changes the threshold value for defining what constitutes an edge.
      * Since this also affects whether a pixel is too far from another's
-     * value to be considered the same shade (and thus stops the recursion
-     * during a recursiveCalibrate call, having a high threshold value
+     * value to be considered the same shade (and thus stops the fill
+     * during a brush stroke, see BrushFill), having a high threshold value
      * will result in having less of the swatch under your square actually
      * filled in on each click.  
      */
     public void setEdgeThresh(int edgeThresh) {
 	this.edgeThresh = edgeThresh;	
     }
+
+    public int getEdgeThresh() {
+	return edgeThresh;
+    }
     
     /**
      * Resets all the pixels in the image to be transparent, then 
@@ -133,8 +133,8 @@ public class ImageOverlay extends BufferedImage{
 
     /**
      * Heavily based on the edge image generater from JavaConnect
-     * Does all the heavy lifting on drawing the edges on the image
-     * and setting the entries in the int array to be EDGE
+     * Draws the edges on the image, setting the pixels EdgeEngine finds
+     * to be EDGE
      */
     public void generateEdgeImage(TOOLImage rawImage){
 
@@ -148,43 +148,8 @@ public class ImageOverlay extends BufferedImage{
 	    return;
 	}
 	
-	int[] lastPixel = new int[3];
-	
-	//scan each column VERTICALLY
-	for(int w = 0; w < width; w++){
-	    //set memory to top of each column
-	    lastPixel = rawImage.getYCbCr(w,0);
-	    
-	    for(int h = 0; h < height; h++ ){
-		//find the values for the current pixel
-		int[] newPixel = rawImage.getYCbCr(w,h);
-		
-		//check to see if the jump is large enough
-		if(isTransition(lastPixel,newPixel)){
-		    setOverlay(w,h,EDGE);//then its an edge
-		}
-		//update the memory
-		lastPixel = newPixel;
-	    }
-	}
-
-	//scan each column HORIZONTALLY
-	for(int h = 0; h < height; h++){
-	    //set memory to top of each column
-	    lastPixel = rawImage.getYCbCr(0,h);
-	    
-	    for(int w = 0; w < width; w++ ){
-		//find the values for the current pixel
-		int[] newPixel = rawImage.getYCbCr(w,h);
-		
-		//check to see if the jump is large enough
-		if(isTransition(lastPixel,newPixel)){
-		    setOverlay(w,h,EDGE);//then its an edge
-		}
-		//update the memory
-		lastPixel = newPixel;
-	    }
-	}	
+	// One fused pass over the pixel buffer, straight into the raster
+	EdgeEngine.findEdges(rawImage, edgeThresh, pixels, EDGE);
     }
 
     /**
@@ -207,11 +172,23 @@ public class ImageOverlay extends BufferedImage{
 	return false;
     }
 
+    /**
+     * Same test as isTransition(int[], int[]) on two pixels packed as
+     * returned by TOOLImage.getYCbCrPacked().
+     */
+    public boolean isTransition(int oldPixel, int newPixel){
+	return (Math.abs(((oldPixel >> 16) & 0xff) -
+			 ((newPixel >> 16) & 0xff)) > edgeThresh ||
+		Math.abs(((oldPixel >> 8) & 0xff) -
+			 ((newPixel >> 8) & 0xff)) > edgeThresh ||
+		Math.abs((oldPixel & 0xff) - (newPixel & 0xff)) > edgeThresh);
+    }
+
    
 		
     public boolean isDefined(int x, int y){
 
-	return pixels[x][y] != TRANSPARENT;
+	return pixels[y * width + x] != TRANSPARENT;
     }
 
     /**
@@ -219,18 +196,18 @@ public class ImageOverlay extends BufferedImage{
      * @precondition 0 <= x < width, 0 <= y < height
      */
     public byte getThreshColor(int x, int y) {
-	return pixels[x][y];
+	return pixels[y * width + x];
     }
     
   
 
     public boolean isEdge(int x, int y){
-	return pixels[x][y] == EDGE;
+	return pixels[y * width + x] == EDGE;
     }
 
 
     public boolean isOverlayColor(int x, int y, byte color) {
-	return pixels[x][y] == color;
+	return pixels[y * width + x] == color;
     }
 
     //draws a box
@@ -252,8 +229,8 @@ public class ImageOverlay extends BufferedImage{
     
 
     /**
-     * Changes the pixels array to reflect the thresholded color and
-     * sets the literal pixel in the BufferedImage to be that color.
+     * Sets the pixel to the thresholded color, which is also the color it
+     * is drawn in.
      * @param x x-coord in picture (0 <= x < width)
      * @param y y-coord in picture (0 <= y < height)
      * @param color the thresholded value of the pixel at (x, y); must be
@@ -262,20 +239,7 @@ public class ImageOverlay extends BufferedImage{
      * 
      */
     public void setOverlay(int x, int y, byte color){
-	pixels[x][y] = color;
-	int rgbVal;
-
-	if (color == TRANSPARENT) {
-	    rgbVal = 0x0;
-	}
-	else if (color == EDGE) {
-	    rgbVal = Color.black.getRGB();
-	}
-	else {
-	    rgbVal = COLORS[color].getRGB();
-	}
-	setRGB(x, y, rgbVal);
-	
+	pixels[y * width + x] = color;
     }
 
     
@@ -292,28 +256,15 @@ public class ImageOverlay extends BufferedImage{
      * @param toExecute the ImageOverlayAction, a collection of pairs of
      * (x,y) coords and pairs of (old, new) colors.
      */
-    @SuppressWarnings("unchecked")
     public void execute(ImageOverlayAction toExecute) {
 	
 	if (toExecute == null) {
 	    return;
 	}
 
-	Iterator coords = toExecute.getCoordinateIterator();
-	Iterator theColors = toExecute.getColorsIterator();
-
-
-	while (coords.hasNext()) {
-	    
-	    Pair <Integer, Integer> coord = (Pair <Integer, Integer>)
-		coords.next();
-	    int x = coord.getFirst();
-	    int y = coord.getSecond();
-	    Pair <Byte, Byte> theColorPair = 
-		(Pair <Byte, Byte>) theColors.next();
-	    byte newColor = theColorPair.getSecond();
-	    setOverlay(x, y, newColor);
-	}
+	for (int i = 0; i < toExecute.getSize(); i++)
+	    setOverlay(toExecute.getX(i), toExecute.getY(i),
+		       toExecute.getNewColor(i));
     }
 
     /**
@@ -321,27 +272,14 @@ public class ImageOverlay extends BufferedImage{
      * and reverting from the new color to the old color.
      * @param toUndo the ImageOverlayAction to undo.
      */
-    @SuppressWarnings("unchecked")
     public void revert(ImageOverlayAction toUndo) {
 	
 	if (toUndo == null) {
 	    return;
 	}
 
-	Iterator coords = toUndo.getCoordinateIterator();
-	Iterator theColors = toUndo.getColorsIterator();
-	while (coords.hasNext()) {
-	    Pair <Integer, Integer> coord = (Pair <Integer, Integer>)
-		coords.next();
-	    int x = coord.getFirst();
-	    int y = coord.getSecond();
-	    Pair <Byte, Byte> theColorPair = 
-		(Pair <Byte, Byte>) theColors.next();
-	    byte oldColor = theColorPair.getFirst();
-	    setOverlay(x, y, oldColor);
-
-	}
-
+	for (int i = 0; i < toUndo.getSize(); i++)
+	    setOverlay(toUndo.getX(i), toUndo.getY(i), toUndo.getOldColor(i));
     }
     
 
@@ -1,51 +1,79 @@
 package TOOL.Image;
 
-import java.util.Vector;
-import java.util.Iterator;
-import TOOL.Calibrate.Pair;
+import java.util.Arrays;
 
 /**
  * A class that represents a single action by the user which changes
  * the underlying ImageOverlay.  For instance, a single click might
  * change 900 pixels on the ImageOverlay and it is more efficient to collect
  * all the changes into an object and iterate over them within the ImageOverlay
- * class rather than risking all the overhead of making hundreds of calls to 
+ * class rather than risking all the overhead of making hundreds of calls to
  * methods within the ImageOverlay.
+ *
+ * Changes are kept in parallel primitive arrays, so a brush stroke of tens
+ * of thousands of pixels costs no more than the arrays themselves.
  * @author Nicholas Dunn
  * @version 1.0 11/26/2007
  */
 
 public class ImageOverlayAction {
-    // Holds (x,y) coordinates of pixel being changed
-    private Vector <Pair <Integer, Integer>> locations;
-    // Holds (old, new) values of the color at that coordinate
-    private Vector <Pair <Byte, Byte>> colors;
+    // (x,y) coordinates of each pixel being changed
+    private int[] xs, ys;
+    // (old, new) values of the color at that coordinate
+    private byte[] oldColors, newColors;
     private int size;
     // Holds the hash of the String filename change took place in
     private int imageID;
 
-    /** Constructor that initializes empty vectors, sets size = 0 */
+    /** Constructor that starts with no changes, size = 0 */
     public ImageOverlayAction(int imageID) {
-	locations = new Vector<Pair <Integer, Integer>>();
-	colors = new Vector <Pair <Byte, Byte>> ();
+	xs = new int[16];
+	ys = new int[16];
+	oldColors = new byte[16];
+	newColors = new byte[16];
 	size = 0;
 	this.imageID = imageID;
 
     }
 
+    // Makes room for more changes
+    private void ensureCapacity(int capacity) {
+	if (capacity <= xs.length)
+	    return;
+	capacity = Math.max(capacity, 2 * xs.length);
+	xs = Arrays.copyOf(xs, capacity);
+	ys = Arrays.copyOf(ys, capacity);
+	oldColors = Arrays.copyOf(oldColors, capacity);
+	newColors = Arrays.copyOf(newColors, capacity);
+    }
 
-    /** 
-     * Adds a single pixel change to the Vector.  Size increments by 1.
-     */ 
+    /**
+     * Adds a single pixel change.  Size increments by 1.
+     */
     public void add(int x, int y, byte oldColor, byte newColor) {
-	Pair <Integer, Integer> coord = new Pair<Integer, Integer>(x, y);
-	Pair <Byte, Byte> colors = new Pair<Byte, Byte>(oldColor, newColor);
-	locations.add(coord);
-	this.colors.add(colors);
+	ensureCapacity(size + 1);
+	xs[size] = x;
+	ys[size] = y;
+	oldColors[size] = oldColor;
+	newColors[size] = newColor;
 	size++;
 
     }
 
+    /**
+     * Adds the first n pixels given, from oldColors[i] all to newColor, at
+     * once.  Size increments by n.
+     */
+    public void addAll(int[] x, int[] y, byte[] oldColor, byte newColor,
+		       int n) {
+	ensureCapacity(size + n);
+	System.arraycopy(x, 0, xs, size, n);
+	System.arraycopy(y, 0, ys, size, n);
+	System.arraycopy(oldColor, 0, oldColors, size, n);
+	Arrays.fill(newColors, size, size + n, newColor);
+	size += n;
+    }
+
     /**
      * @return the imageID of the image in which this change takes place,
      * a hash of the string filename
@@ -59,15 +87,24 @@ public class ImageOverlayAction {
 	return size;
     }
 
-    /** @return an iterator of the coordinate Pairs */
-    public Iterator getCoordinateIterator() {
-	return locations.iterator();
+    /** @return the x coordinate of change i */
+    public int getX(int i) {
+	return xs[i];
     }
 
-    /** @return an iterator of the color pairs */
-    public Iterator getColorsIterator() {
-	return colors.iterator();
+    /** @return the y coordinate of change i */
+    public int getY(int i) {
+	return ys[i];
     }
 
+    /** @return the color at change i before the action */
+    public byte getOldColor(int i) {
+	return oldColors[i];
+    }
+
+    /** @return the color at change i after the action */
+    public byte getNewColor(int i) {
+	return newColors[i];
+    }
 
 }
@@ -4,6 +4,7 @@ package TOOL.Image;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
@@ -171,7 +172,8 @@ public class ImagePanel extends JPanel implements ActionListener,
 
     public void updateImage(TOOLImage toolImage) {
         if (image != null && image.getWidth() == toolImage.getWidth() &&
-                image.getHeight() == toolImage.getHeight()) {
+                image.getHeight() == toolImage.getHeight() &&
+                toolImage.canRedraw(image)) {
             // re-initialize the image with the new data
             toolImage.initImage(image);
             // set image again (to the current one, but performs updates)
@@ -182,6 +184,24 @@ public class ImagePanel extends JPanel implements ActionListener,
             setImage(toolImage.createImage());
     }
 
+    /**
+     * Like updateImage(toolImage), but only redraws the part of the image
+     * which changed, e.g. after ThresholdedImage.applyUpdate().
+     * @param dirty changed region in image coordinates; null if none
+     */
+    public void updateImage(TOOLImage toolImage, Rectangle dirty) {
+        if (image == null || image.getWidth() != toolImage.getWidth() ||
+            image.getHeight() != toolImage.getHeight() ||
+            !toolImage.canRedraw(image)) {
+            updateImage(toolImage);
+            return;
+        }
+        if (dirty == null)
+            return;
+        toolImage.initImage(image, dirty);
+        repaint();
+    }
+
     public void setImage(BufferedImage image) {
         this.image = image;
 
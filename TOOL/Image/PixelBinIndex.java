@@ -0,0 +1,184 @@
+package TOOL.Image;
+
+import java.util.Arrays;
+
+/**
+ * Reverse index from color table bins to the pixels of one image which fall
+ * into them.  Built once per frame, it lets a ColorTableUpdate be applied to
+ * a ThresholdedImage by touching only the pixels whose bins changed, rather
+ * than thresholding the whole frame again.
+ *
+ * Bins are numbered ((y * uMax) + u) * vMax + v in table coordinates, the
+ * same [y][u][v] order as the table itself.  Only bins which occur in the
+ * image are stored, sorted, so a frame costs three ints per pixel no matter
+ * how large the table is.
+ *
+ * @author Northern Bites Team
+ * @see ThresholdedImage#applyUpdate
+ */
+public class PixelBinIndex {
+
+    private final TOOLImage image;
+    private final int yShift, uShift, vShift;
+    private final int yMax, uMax, vMax;
+
+    // bins[i] is a bin which occurs in the image; its pixels are
+    // pixels[starts[i]] up to (not including) pixels[starts[i+1]]
+    private final int[] bins;
+    private final int[] starts;
+    private final int[] pixels;
+
+    // Marks bins already applied during one applyUpdate call, so that
+    // repeated entries in an update are only handled once
+    private final int[] seen;
+    private int stamp;
+
+    public PixelBinIndex(TOOLImage img, ColorTable table) {
+        this(img, table.getYShift(), table.getUShift(), table.getVShift(),
+             table.getYDimension(), table.getUDimension(),
+             table.getVDimension());
+    }
+
+    /** Indexes img for a table laid out as snapshot, on any thread. */
+    public PixelBinIndex(TOOLImage img, ColorTableSnapshot snapshot) {
+        this(img, snapshot.getYShift(), snapshot.getUShift(),
+             snapshot.getVShift(), snapshot.getYDimension(),
+             snapshot.getUDimension(), snapshot.getVDimension());
+    }
+
+    private PixelBinIndex(TOOLImage img, int yShift, int uShift, int vShift,
+                          int yMax, int uMax, int vMax) {
+        image = img;
+        this.yShift = yShift;
+        this.uShift = uShift;
+        this.vShift = vShift;
+        this.yMax = yMax;
+        this.uMax = uMax;
+        this.vMax = vMax;
+
+        int width = img.getWidth();
+        int size = width * img.getHeight();
+
+        // Sort (bin, pixel) pairs by bin, then group
+        long[] pairs = new long[size];
+        int i = 0;
+        for (int y = 0; y < img.getHeight(); y++)
+            for (int x = 0; x < width; x++, i++) {
+                int p = img.getYCbCrPacked(x, y);
+                long bin = binOf((p >> 16) & 0xff, (p >> 8) & 0xff, p & 0xff);
+                pairs[i] = bin << 32 | i;
+            }
+        Arrays.sort(pairs);
+
+        int distinct = 0;
+        for (i = 0; i < size; i++)
+            if (i == 0 || (pairs[i] >>> 32) != (pairs[i - 1] >>> 32))
+                distinct++;
+
+        bins = new int[distinct];
+        starts = new int[distinct + 1];
+        pixels = new int[size];
+        seen = new int[distinct];
+
+        int b = -1;
+        for (i = 0; i < size; i++) {
+            int bin = (int) (pairs[i] >>> 32);
+            if (b < 0 || bins[b] != bin) {
+                bins[++b] = bin;
+                starts[b] = i;
+            }
+            pixels[i] = (int) pairs[i];
+        }
+        starts[distinct] = size;
+    }
+
+    // An index of img, whose pixels are those of other's image, sharing
+    // other's bins
+    private PixelBinIndex(PixelBinIndex other, TOOLImage img) {
+        image = img;
+        yShift = other.yShift;
+        uShift = other.uShift;
+        vShift = other.vShift;
+        yMax = other.yMax;
+        uMax = other.uMax;
+        vMax = other.vMax;
+        bins = other.bins;
+        starts = other.starts;
+        pixels = other.pixels;
+        seen = new int[bins.length];
+    }
+
+    /**
+     * @return this index for img, a copy of the image it was built for,
+     *         e.g. the same frame loaded again.  Only the marks applyUpdate
+     *         makes are not shared.
+     */
+    public PixelBinIndex forImage(TOOLImage img) {
+        if (img == image)
+            return this;
+        return new PixelBinIndex(this, img);
+    }
+
+    /**
+     * @return true if this index was built for img and a table with the
+     *         dimensions of table, i.e. it can still be used
+     */
+    public boolean matches(TOOLImage img, ColorTable table) {
+        return img == image &&
+            table.getYDimension() == yMax &&
+            table.getUDimension() == uMax &&
+            table.getVDimension() == vMax;
+    }
+
+    /**
+     * @return the bin of a pixel, given in the component order of
+     *         TOOLImage.getYCbCr().  The table is indexed [Y][c2][c1].
+     */
+    public int binOf(int c0, int c1, int c2) {
+        return ((c0 >> yShift) * uMax + (c2 >> uShift)) * vMax +
+            (c1 >> vShift);
+    }
+
+    /**
+     * @return the bin of an entry of a ColorTableUpdate.  Raw entries hold
+     *         table coordinates, the rest hold unshifted pixel values.
+     */
+    public int binOf(int[] entry, boolean raw) {
+        if (raw)
+            return (entry[0] * uMax + entry[2]) * vMax + entry[1];
+        return binOf(entry[0], entry[1], entry[2]);
+    }
+
+    /** Starts a new pass; every bin counts as unvisited again. */
+    void beginPass() {
+        if (++stamp == 0) {
+            Arrays.fill(seen, 0);
+            stamp = 1;
+        }
+    }
+
+    /**
+     * @return the position of bin in this index, or -1 if no pixel of the
+     *         image falls into it or it was already visited this pass
+     */
+    int visit(int bin) {
+        int i = Arrays.binarySearch(bins, bin);
+        if (i < 0 || seen[i] == stamp)
+            return -1;
+        seen[i] = stamp;
+        return i;
+    }
+
+    int start(int i) {
+        return starts[i];
+    }
+
+    int end(int i) {
+        return starts[i + 1];
+    }
+
+    /** @return the row-major pixel index stored at position k */
+    int pixel(int k) {
+        return pixels[k];
+    }
+}
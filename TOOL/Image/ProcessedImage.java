@@ -10,6 +10,7 @@ import TOOL.Data.RobotDef;
 
 import TOOL.Misc.Estimate;
 import TOOL.Calibrate.VisionState;
+import TOOL.Calibrate.ColorTableUpdate;
 
 
 /**
@@ -47,15 +48,22 @@ public class ProcessedImage extends ThresholdedImage {
 
         if(table == null)
             return;
+        // Ask before the fields are reassigned below, after which image and
+        // table would always be the ones last thresholded
+        boolean current = isThresholded(image, table);
+        if (image != baseImage)
+            binIndex = null;
         // Isn't it REALLY lame that these get initialized for the first time
         // in this method?!
         colorTable = table;
         baseImage = image;
 
-        if(visionLink == null || !visionLink.isLinkActive())
-            // just fall back to good ol' thresholding
-            super.thresholdImage(table, image);
-        else {
+        if(visionLink == null || !visionLink.isLinkActive()) {
+            // just fall back to good ol' thresholding, unless the pixels
+            // were already thresholded against this version of the table
+            if (!current)
+                super.thresholdImage(table, image);
+        } else {
             //Get the joints from the frame if it exists
             Frame currentFrame = tool.getDataManager().activeFrame();
 
@@ -92,23 +100,51 @@ public class ProcessedImage extends ThresholdedImage {
             byte[] rawImage = new byte[baseImage.rawImageSize()];
             baseImage.writeByteArray(rawImage);
 
-            // Convert the color table to the one-dimensional format that the
-            // C++ side is used to.
-            int ct_size =  colorTable.getYDimension()*
-                colorTable.getUDimension()*colorTable.getVDimension();
-            byte[] rawTable = new byte[ct_size];
-            colorTable.writeByteArray(rawTable);
-
-            // This variable is declared in the superclass and used by its
-            // getters.
-            thresholded = visionLink.processImage(rawImage,
-                                                  image.getWidth(),
-                                                  image.getHeight(),
-                                                  joints, sensors,
-                                                  rawTable);
+            // The C++ side keeps the color table between frames; only send
+            // it if it changed since it was last sent.
+            syncTable();
+
+            // The vision link hands back [row][column]; copy it into the
+            // buffer declared in the superclass and used by its getters.
+            setThresholded(visionLink.processImage(rawImage,
+                                                   image.getWidth(),
+                                                   image.getHeight(),
+                                                   joints, sensors));
         }
     }
 
+    /**
+     * Uploads the color table to the C++ side unless it already holds this
+     * version of it.
+     */
+    private void syncTable() {
+        if (visionLink.getTableVersion() != colorTable.getVersion())
+            visionLink.uploadTable(colorTable.getTableBuffer(),
+                                   colorTable.getVersion());
+    }
+
+    /**
+     * Sends just the entries u changed to the C++ side, so the next frame
+     * needs no table upload.  If the C++ table wasn't the one u was applied
+     * to, or the table has changed since, the whole table is sent instead.
+     */
+    public void updateTable(ColorTableUpdate u) {
+        if (colorTable == null || !visionLink.isLinkActive())
+            return;
+
+        int[] indices = colorTable.indicesOf(u, u.isRaw());
+        byte[] colors = new byte[indices.length];
+        for (int n = 0; n < indices.length; n++)
+            colors[n] = colorTable.getTableBuffer()[indices[n]];
+
+        // colors hold the current entries, so this is only right if
+        // nothing else changed the table after u
+        if (u.getVersion() == colorTable.getVersion())
+            visionLink.updateTable(indices, colors,
+                                   u.getBaseVersion(), u.getVersion());
+        syncTable();
+    }
+
     /**
      * Overriding the ThresholdImage.thresholdImage() method, so that the
      * ProcessedImage.thresholdImage(colorTable, baseImage) is called rather
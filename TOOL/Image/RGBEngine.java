@@ -0,0 +1,163 @@
+package TOOL.Image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts images held as YCbCr to RGB for display, straight into the int
+ * array behind an int RGB BufferedImage.
+ *
+ * The conversion is YCbCrColorSpace.toRGB(int, int, int, int[]) worked in
+ * integers: each term of its sums is looked up, scaled by 1000 so the
+ * coefficients are exact, then truncated and shifted as toRGB does, and
+ * clamped through a table.  The chroma terms are worked out once per run of
+ * pixels sharing Cb and Cr, i.e. once per pair of pixels of a YUV422 frame.
+ * Large frames are split into bands of rows and done in parallel, as in
+ * ThresholdEngine.  ImageBenchmark's "rgb" mode checks the tables against
+ * toRGB for every Y, Cb, Cr triple.
+ *
+ * @author Northern Bites Team
+ * @see YCbCrImage#initImage
+ * @see YUV422Image#initImage
+ */
+public class RGBEngine {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    // toRGB's coefficients, times 1000, times each value of a component
+    private static final int[] Y_TERM = new int[256];
+    private static final int[] R_CR = new int[256];
+    private static final int[] G_CB = new int[256];
+    private static final int[] G_CR = new int[256];
+    private static final int[] B_CB = new int[256];
+
+    // Sums, truncated and shifted, come out within these bounds
+    private static final int CLAMP_MIN = -512, CLAMP_MAX = 768;
+    private static final int[] CLAMP = new int[CLAMP_MAX - CLAMP_MIN];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y_TERM[i] = 298082 * (i - 16);
+            R_CR[i] = 408583 * (i - 128);
+            G_CB[i] = -100291 * (i - 128);
+            G_CR[i] = -208120 * (i - 128);
+            B_CB[i] = 516411 * (i - 128);
+        }
+        for (int i = CLAMP_MIN; i < CLAMP_MAX; i++)
+            CLAMP[i - CLAMP_MIN] = i < 0 ? 0 : (i > 255 ? 255 : i);
+    }
+
+    private RGBEngine() {}
+
+    /**
+     * Fills img with image converted to RGB, if img is an int RGB image the
+     * size of image with its pixels laid out plainly, e.g. as made by
+     * TOOLImage.createImage().
+     * @return false, having done nothing, if it isn't, or if image isn't
+     *         held as YCbCr
+     */
+    public static boolean toRGB(TOOLImage image, BufferedImage img) {
+        int[] out = buffer(image, img);
+        if (out == null)
+            return false;
+        int height = image.getHeight();
+        if (image.getWidth() * height < ThresholdEngine.MIN_PARALLEL_PIXELS ||
+            height < 2 * ThresholdEngine.MIN_ROWS_PER_TASK ||
+            POOL.getParallelism() < 2)
+            toRGBRows(image, out, 0, height);
+        else
+            POOL.invoke(new RowTask(image, out, 0, height));
+        return true;
+    }
+
+    // The int array behind img, if it is one toRGB can write into
+    private static int[] buffer(TOOLImage image, BufferedImage img) {
+        if (!image.isYCbCr() ||
+            (img.getType() != BufferedImage.TYPE_INT_RGB &&
+             img.getType() != BufferedImage.TYPE_INT_ARGB) ||
+            img.getWidth() != image.getWidth() ||
+            img.getHeight() != image.getHeight())
+            return null;
+        WritableRaster raster = img.getRaster();
+        // a subimage shares its parent's array, starting elsewhere
+        if (raster.getSampleModelTranslateX() != 0 ||
+            raster.getSampleModelTranslateY() != 0 ||
+            raster.getDataBuffer().getOffset() != 0 ||
+            raster.getParent() != null)
+            return null;
+        return ((DataBufferInt) raster.getDataBuffer()).getData();
+    }
+
+    private static class RowTask extends RecursiveAction {
+        private final TOOLImage image;
+        private final int[] out;
+        private final int firstRow, lastRow;
+
+        RowTask(TOOLImage image, int[] out, int firstRow, int lastRow) {
+            this.image = image;
+            this.out = out;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        protected void compute() {
+            if (lastRow - firstRow < 2 * ThresholdEngine.MIN_ROWS_PER_TASK) {
+                toRGBRows(image, out, firstRow, lastRow);
+                return;
+            }
+            int mid = (firstRow + lastRow) >>> 1;
+            invokeAll(new RowTask(image, out, firstRow, mid),
+                      new RowTask(image, out, mid, lastRow));
+        }
+    }
+
+    /**
+     * Converts rows [firstRow, lastRow) of image into out, as opaque ARGB,
+     * row-major.
+     */
+    static void toRGBRows(TOOLImage image, int[] out,
+                          int firstRow, int lastRow) {
+        final byte[] buf = image.pixels;
+        final int width = image.getWidth();
+        final int pixelStride = image.pixelStride;
+        final int c1 = image.planeStride;
+        final int c2 = 2 * image.planeStride;
+
+        for (int y = firstRow; y < lastRow; y++) {
+            int i = image.offset(0, y);
+            int o = y * width;
+            // chroma of the last pixel, and its terms; -1 matches none
+            int chroma = -1, r = 0, g = 0, b = 0;
+            for (int x = 0; x < width; x++, i += pixelStride, o++) {
+                int cb = buf[i + c1] & 0xff, cr = buf[i + c2] & 0xff;
+                if ((cb << 8 | cr) != chroma) {
+                    chroma = cb << 8 | cr;
+                    r = R_CR[cr];
+                    g = G_CB[cb] + G_CR[cr];
+                    b = B_CB[cb];
+                }
+                int luma = Y_TERM[buf[i] & 0xff];
+                out[o] = 0xff000000 |
+                    CLAMP[((luma + r) / 1000 >> 8) - CLAMP_MIN] << 16 |
+                    CLAMP[((luma + g) / 1000 >> 8) - CLAMP_MIN] << 8 |
+                    CLAMP[((luma + b) / 1000 >> 8) - CLAMP_MIN];
+            }
+        }
+    }
+
+    /**
+     * @return the pixel Y, Cb, Cr as the tables convert it, packed as
+     *         opaque ARGB
+     */
+    public static int toRGB(int y, int cb, int cr) {
+        int luma = Y_TERM[y];
+        return 0xff000000 |
+            CLAMP[((luma + R_CR[cr]) / 1000 >> 8) - CLAMP_MIN] << 16 |
+            CLAMP[((luma + G_CB[cb] + G_CR[cr]) / 1000 >> 8) - CLAMP_MIN]
+                << 8 |
+            CLAMP[((luma + B_CB[cb]) / 1000 >> 8) - CLAMP_MIN];
+    }
+}
@@ -32,11 +32,10 @@ public class RGBImage extends TOOLImage {
     public static final int Y2_OFFSET = 2;
     public static final int V_OFFSET = 3;
 
-
      public RGBImage(byte[] rawImage, int w, int h) {
         super(w, h);
                 
-        pixels = new byte[h][w][COLOR_DEPTH];
+        allocatePixels();
 
         readByteArray(rawImage);
     }
@@ -44,7 +43,7 @@ public class RGBImage extends TOOLImage {
     public RGBImage(DataInputStream input, int width, int height)
             throws IOException {
         super(width, height);
-        pixels = new byte[height][width][COLOR_DEPTH];
+        allocatePixels();
 
         readInputStream(input);
     }
@@ -59,10 +58,8 @@ public class RGBImage extends TOOLImage {
     public void readByteArray(byte[] rawImage) {
         int i = 0;
         for (int r = 0; r < getHeight(); r++) {
-            for (int c = 0; c < getWidth(); c++) {
-                pixels[r][c][0] = rawImage[i++];
-                pixels[r][c][1] = rawImage[i++];
-                pixels[r][c][2] = rawImage[i++];
+            for (int c = 0; c < getWidth(); c++, i+=3) {
+                setPixel(c, r, rawImage[i], rawImage[i+1], rawImage[i+2]);
             }
         }
     }
@@ -71,9 +68,10 @@ public class RGBImage extends TOOLImage {
         int i = 0;
         for (int r = 0; r < getHeight(); r++) {
             for (int c = 0; c < getWidth(); c+=2, i+=3) {
-                rawImage[i  ] = pixels[r][c][0];
-                rawImage[i+1] = pixels[r][c][1];
-                rawImage[i+2] = pixels[r][c][2];
+                int p = offset(c, r);
+                rawImage[i  ] = pixels[p];
+                rawImage[i+1] = pixels[p + planeStride];
+                rawImage[i+2] = pixels[p + 2 * planeStride];
             }
         }
     }
@@ -85,9 +83,10 @@ public class RGBImage extends TOOLImage {
         for (int r = 0; r < getHeight(); r++) {
             for (int c = 0; c < getWidth(); c++) {
                 // Fill the integer rgb array with byte values
-                rgb[0] = pixels[r][c][0];
-                rgb[1] = pixels[r][c][1];
-                rgb[2] = pixels[r][c][2];
+                int i = offset(c, r);
+                rgb[0] = pixels[i];
+                rgb[1] = pixels[i + planeStride];
+                rgb[2] = pixels[i + 2 * planeStride];
 
                 // Set the BufferedImage pixel to the rgb value of this pixel
                 // (use the ColorModel to convert from components to int)
@@ -97,11 +96,24 @@ public class RGBImage extends TOOLImage {
         }
     }
 
+    public boolean isYCbCr() {
+        return false;
+    }
+
     // Overridden getYCbCr() method, to convert values
-    public int[] getYCbCr(int x, int y) {
-        int[] yCbCr = new int[COLOR_DEPTH];
-        YCbCr_CS.fromRGB(pixels[y][x], yCbCr);
+    public int[] getYCbCr(int x, int y, int[] yCbCr) {
+        int i = offset(x, y);
+        YCbCr_CS.fromRGB(pixels[i] & 0xff,
+                         pixels[i + planeStride] & 0xff,
+                         pixels[i + 2 * planeStride] & 0xff, yCbCr);
         return yCbCr;
     }
+
+    public int getYCbCrPacked(int x, int y) {
+        int i = offset(x, y);
+        return YCbCr_CS.fromRGBPacked(pixels[i] & 0xff,
+                                      pixels[i + planeStride] & 0xff,
+                                      pixels[i + 2 * planeStride] & 0xff);
+    }
     
 }
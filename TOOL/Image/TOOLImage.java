@@ -2,6 +2,7 @@ package TOOL.Image;
 
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.io.DataInputStream;
@@ -21,7 +22,25 @@ import TOOL.TOOL;
  */
 public abstract class TOOLImage {
     protected static final YCbCrColorSpace YCbCr_CS = new YCbCrColorSpace();
-    protected byte[][][] pixels;
+
+    // Pixel buffer layouts.  INTERLEAVED stores the three components of a
+    // pixel next to each other (c0 c1 c2 c0 c1 c2 ...), PLANAR stores each
+    // component as its own full-frame plane (c0 c0 ... c1 c1 ... c2 c2 ...).
+    public static final int INTERLEAVED = 0;
+    public static final int PLANAR = 1;
+
+    public static final int NUM_COMPONENTS = 3;
+
+    private static int defaultLayout = INTERLEAVED;
+
+    // One contiguous buffer holding every component of every pixel.  The
+    // offset of component c of pixel (x,y) is
+    //     c * planeStride + (y * width + x) * pixelStride
+    // which covers both layouts without branching.
+    protected byte[] pixels;
+    protected int layout;
+    protected int pixelStride;
+    protected int planeStride;
 
     protected int width;
     protected int height;
@@ -31,6 +50,87 @@ public abstract class TOOLImage {
         height = h;
     }
 
+    /**
+     * Sets the layout new images will allocate their pixel buffers with.
+     * Images that are already loaded keep their current layout.
+     */
+    public static void setDefaultLayout(int l) {
+        if (l != INTERLEAVED && l != PLANAR)
+            throw new IllegalArgumentException("Unknown pixel layout " + l);
+        defaultLayout = l;
+    }
+
+    public static int getDefaultLayout() {
+        return defaultLayout;
+    }
+
+    /**
+     * Allocates the pixel buffer using the default layout.  Subclasses which
+     * hold Y/U/V or R/G/B data should call this from their constructors
+     * before filling in the pixels.
+     */
+    protected void allocatePixels() {
+        allocatePixels(defaultLayout);
+    }
+
+    protected void allocatePixels(int l) {
+        pixels = new byte[width * height * NUM_COMPONENTS];
+        setStrides(l);
+    }
+
+    private void setStrides(int l) {
+        layout = l;
+        if (l == PLANAR) {
+            pixelStride = 1;
+            planeStride = width * height;
+        } else {
+            pixelStride = NUM_COMPONENTS;
+            planeStride = 1;
+        }
+    }
+
+    public int getLayout() {
+        return layout;
+    }
+
+    /**
+     * Repacks the pixel buffer into the given layout.  Does nothing if the
+     * image is already stored that way.
+     */
+    public void setLayout(int l) {
+        if (pixels == null || l == layout)
+            return;
+
+        byte[] old = pixels;
+        int oldPixelStride = pixelStride;
+        int oldPlaneStride = planeStride;
+
+        pixels = new byte[old.length];
+        setStrides(l);
+
+        int size = width * height;
+        for (int c = 0; c < NUM_COMPONENTS; c++)
+            for (int i = 0; i < size; i++)
+                pixels[c * planeStride + i * pixelStride] =
+                    old[c * oldPlaneStride + i * oldPixelStride];
+    }
+
+    /**
+     * @return the offset into the pixel buffer of the first component of
+     *         pixel (x,y).  Add c * planeStride to reach component c.
+     */
+    protected final int offset(int x, int y) {
+        return (y * width + x) * pixelStride;
+    }
+
+    /** Sets all three components of pixel (x,y) in the pixel buffer. */
+    protected final void setPixel(int x, int y, byte c0, byte c1, byte c2) {
+        int i = (y * width + x) * pixelStride;
+        pixels[i] = c0;
+        pixels[i + planeStride] = c1;
+        pixels[i + 2 * planeStride] = c2;
+    }
+
     public int getWidth() {
         return width;
     }
@@ -90,6 +190,24 @@ public abstract class TOOLImage {
      */
     abstract void initImage(BufferedImage img);
 
+    /**
+     * Re-initializes only region of a BufferedImage previously filled by
+     * initImage(img).  Images which cannot redraw part of themselves redraw
+     * in full.
+     */
+    void initImage(BufferedImage img, Rectangle region) {
+        initImage(img);
+    }
+
+    /**
+     * @return true if initImage(img) brings img, an image made by
+     *         createImage() of an image this size, up to date; false if a
+     *         new one is needed
+     */
+    boolean canRedraw(BufferedImage img) {
+        return true;
+    }
+
     public BufferedImage createImage() {
         BufferedImage img = new BufferedImage(getWidth(), getHeight(),
             BufferedImage.TYPE_INT_RGB);
@@ -98,34 +216,119 @@ public abstract class TOOLImage {
     }
 
     /**
-    *
-    */
+     * Compatibility view of the pixels in the old [row][column][component]
+     * form.  This is a copy of the pixel buffer; changes made to the returned
+     * array are not reflected in the image.  Prefer getComponent() or the
+     * fill-in-place accessors, which do not allocate.
+     */
     public byte[][][] getPixels() {
+        if (pixels == null)
+            return null;
+
+        byte[][][] copy = new byte[height][width][NUM_COMPONENTS];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = offset(x, y);
+                copy[y][x][0] = pixels[i];
+                copy[y][x][1] = pixels[i + planeStride];
+                copy[y][x][2] = pixels[i + 2 * planeStride];
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @return the underlying pixel buffer, laid out as given by getLayout().
+     */
+    public byte[] getPixelBuffer() {
         return pixels;
     }
 
+    /**
+     * @return true if the pixel buffer holds Y, Cb, Cr components directly,
+     *         so getYCbCr() is a plain read of the buffer.  Images that
+     *         store another color space convert on every getYCbCr() call.
+     */
+    public boolean isYCbCr() {
+        return pixels != null;
+    }
 
     public int[] getYCbCr(int x, int y) {
-        return getPixel(x,y);
+        return getYCbCr(x, y, new int[NUM_COMPONENTS]);
+    }
+
+    /**
+     * Fills out with the Y, Cb and Cr values of pixel (x,y).
+     * @return out, for convenience
+     */
+    public int[] getYCbCr(int x, int y, int[] out) {
+        return getPixel(x, y, out);
     }
 
     public int[] getPixel(int x, int y) {
+        return getPixel(x, y, new int[NUM_COMPONENTS]);
+    }
+
+    /**
+     * Fills out with the raw component values of pixel (x,y).
+     * @return out, for convenience
+     */
+    public int[] getPixel(int x, int y, int[] out) {
         if (pixels == null) {
             System.err.println("Error, attempting to retrieve a pixel value "+
                                "when pixels array is null");
         }
 
-        int[] values = new int[3];
-
-        values[0] = getComponent(x, y, 0);
-        values[1] = getComponent(x, y, 1);
-        values[2] = getComponent(x, y, 2);
+        int i = offset(x, y);
+        out[0] = pixels[i] & 0xff;
+        out[1] = pixels[i + planeStride] & 0xff;
+        out[2] = pixels[i + 2 * planeStride] & 0xff;
 
-        return values;
+        return out;
     }
 
     public int getComponent(int x, int y, int c) {
-        return pixels[y][x][c] & 0xff;
+        return pixels[c * planeStride + (y * width + x) * pixelStride] & 0xff;
+    }
+
+    /**
+     * @return the Y, Cb and Cr values of pixel (x,y) packed into one int as
+     *         Y<<16 | Cb<<8 | Cr, so that a pixel can be carried around
+     *         without an array.  Component order matches getYCbCr().
+     * @see #unpack
+     */
+    public int getYCbCrPacked(int x, int y) {
+        return getPixelPacked(x, y);
+    }
+
+    /**
+     * @return the raw components of pixel (x,y) packed as c0<<16|c1<<8|c2
+     */
+    public int getPixelPacked(int x, int y) {
+        int i = offset(x, y);
+        return (pixels[i] & 0xff) << 16 |
+            (pixels[i + planeStride] & 0xff) << 8 |
+            (pixels[i + 2 * planeStride] & 0xff);
+    }
+
+    /** @return component c (0, 1 or 2) of a packed pixel */
+    public static int packedComponent(int packed, int c) {
+        return (packed >> (16 - 8 * c)) & 0xff;
+    }
+
+    public static int pack(int c0, int c1, int c2) {
+        return c0 << 16 | c1 << 8 | c2;
+    }
+
+    /**
+     * Unpacks a pixel packed by getYCbCrPacked() into out.
+     * @return out, for convenience
+     */
+    public static int[] unpack(int packed, int[] out) {
+        out[0] = (packed >> 16) & 0xff;
+        out[1] = (packed >>  8) & 0xff;
+        out[2] =  packed        & 0xff;
+        return out;
     }
 
     /**
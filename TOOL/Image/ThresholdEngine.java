@@ -0,0 +1,256 @@
+package TOOL.Image;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Thresholds whole images against a ColorTable.  Rather than asking the image
+ * for one pixel at a time, the engine reads the image's pixel buffer
+ * directly and writes one color per pixel into a row-major output buffer.
+ * Large frames are split into bands of rows and thresholded in parallel.
+ *
+ * The output is identical to calling colorTable.getColor(image.getYCbCr(x,y))
+ * for every pixel; ImageBenchmark's "threshold" mode checks this for every
+ * RobotDef image type.
+ *
+ * Images can be thresholded against a ColorTableSnapshot instead, so that
+ * work off the editing thread sees one version of the table throughout.
+ *
+ * @author Northern Bites Team
+ * @see ThresholdedImage
+ */
+public class ThresholdEngine {
+
+    // Frames smaller than this are thresholded on the calling thread; the
+    // Aibo frames finish faster than the pool can hand out work.
+    public static final int MIN_PARALLEL_PIXELS = 320 * 240;
+    // Smallest band of rows handed to a single task
+    public static final int MIN_ROWS_PER_TASK = 16;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    private ThresholdEngine() {}
+
+    /**
+     * Thresholds every pixel of image into out.
+     * @param out row-major buffer of at least width * height entries
+     */
+    public static void threshold(ColorTable table, TOOLImage image,
+                                 byte[] out) {
+        threshold(table, image, out, 0, image.getHeight());
+    }
+
+    /**
+     * Thresholds rows [firstRow, lastRow) of image into out.
+     */
+    public static void threshold(ColorTable table, TOOLImage image,
+                                 byte[] out, int firstRow, int lastRow) {
+        int pixels = (lastRow - firstRow) * image.getWidth();
+        if (pixels < MIN_PARALLEL_PIXELS ||
+            lastRow - firstRow < 2 * MIN_ROWS_PER_TASK ||
+            POOL.getParallelism() < 2)
+            thresholdRows(table, image, out, firstRow, lastRow);
+        else
+            POOL.invoke(new RowTask(table, image, out, firstRow, lastRow));
+    }
+
+    /**
+     * Thresholds every pixel of image into out against the table as it was
+     * when snapshot was taken.  Safe to call from any thread.
+     */
+    public static void threshold(ColorTableSnapshot snapshot,
+                                 TOOLImage image, byte[] out) {
+        threshold(snapshot, image, out, 0, image.getHeight());
+    }
+
+    /**
+     * Thresholds rows [firstRow, lastRow) of image into out against
+     * snapshot.
+     */
+    public static void threshold(ColorTableSnapshot snapshot,
+                                 TOOLImage image, byte[] out,
+                                 int firstRow, int lastRow) {
+        int pixels = (lastRow - firstRow) * image.getWidth();
+        if (pixels < MIN_PARALLEL_PIXELS ||
+            lastRow - firstRow < 2 * MIN_ROWS_PER_TASK ||
+            POOL.getParallelism() < 2)
+            thresholdRows(snapshot, image, out, firstRow, lastRow);
+        else
+            POOL.invoke(new RowTask(snapshot, image, out, firstRow,
+                                    lastRow));
+    }
+
+    private static class RowTask extends RecursiveAction {
+        // one of these is null
+        private final ColorTable table;
+        private final ColorTableSnapshot snapshot;
+        private final TOOLImage image;
+        private final byte[] out;
+        private final int firstRow, lastRow;
+
+        RowTask(ColorTable table, TOOLImage image, byte[] out,
+                int firstRow, int lastRow) {
+            this(table, null, image, out, firstRow, lastRow);
+        }
+
+        RowTask(ColorTableSnapshot snapshot, TOOLImage image, byte[] out,
+                int firstRow, int lastRow) {
+            this(null, snapshot, image, out, firstRow, lastRow);
+        }
+
+        private RowTask(ColorTable table, ColorTableSnapshot snapshot,
+                        TOOLImage image, byte[] out,
+                        int firstRow, int lastRow) {
+            this.table = table;
+            this.snapshot = snapshot;
+            this.image = image;
+            this.out = out;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        protected void compute() {
+            if (lastRow - firstRow < 2 * MIN_ROWS_PER_TASK) {
+                if (table != null)
+                    thresholdRows(table, image, out, firstRow, lastRow);
+                else
+                    thresholdRows(snapshot, image, out, firstRow, lastRow);
+                return;
+            }
+            int mid = (firstRow + lastRow) >>> 1;
+            invokeAll(new RowTask(table, snapshot, image, out, firstRow, mid),
+                      new RowTask(table, snapshot, image, out, mid, lastRow));
+        }
+    }
+
+    static void thresholdRows(ColorTable table, TOOLImage image, byte[] out,
+                              int firstRow, int lastRow) {
+        if (image.isYCbCr())
+            thresholdBuffer(table, image, out, firstRow, lastRow);
+        else
+            thresholdConverted(table, image, out, firstRow, lastRow);
+    }
+
+    static void thresholdRows(ColorTableSnapshot snapshot, TOOLImage image,
+                              byte[] out, int firstRow, int lastRow) {
+        if (image.isYCbCr())
+            thresholdBuffer(snapshot, image, out, firstRow, lastRow);
+        else
+            thresholdConverted(snapshot, image, out, firstRow, lastRow);
+    }
+
+    /**
+     * Reads Y, Cb, Cr straight out of the image's pixel buffer.  The table
+     * is indexed [Y][component 2][component 1], as in ColorTable.getColor,
+     * flattened as in ColorTable.index.
+     */
+    private static void thresholdBuffer(ColorTable table, TOOLImage image,
+                                        byte[] out,
+                                        int firstRow, int lastRow) {
+        final byte[] t = table.getTableBuffer();
+        final int yShift = table.getYShift();
+        final int uShift = table.getUShift();
+        final int vShift = table.getVShift();
+        final int uMax = table.getUDimension();
+        final int vMax = table.getVDimension();
+
+        final byte[] buf = image.pixels;
+        final int width = image.getWidth();
+        final int pixelStride = image.pixelStride;
+        final int c1 = image.planeStride;
+        final int c2 = 2 * image.planeStride;
+
+        for (int y = firstRow; y < lastRow; y++) {
+            int i = image.offset(0, y);
+            int o = y * width;
+            for (int x = 0; x < width; x++, i += pixelStride, o++)
+                out[o] = t[(((buf[i] & 0xff) >> yShift) * uMax +
+                            ((buf[i + c2] & 0xff) >> uShift)) * vMax +
+                           ((buf[i + c1] & 0xff) >> vShift)];
+        }
+    }
+
+    /**
+     * For images which convert to YCbCr on access, e.g. RGBImage.
+     */
+    private static void thresholdConverted(ColorTable table, TOOLImage image,
+                                           byte[] out,
+                                           int firstRow, int lastRow) {
+        final byte[] t = table.getTableBuffer();
+        final int yShift = table.getYShift();
+        final int uShift = table.getUShift();
+        final int vShift = table.getVShift();
+        final int uMax = table.getUDimension();
+        final int vMax = table.getVDimension();
+        final int width = image.getWidth();
+
+        for (int y = firstRow; y < lastRow; y++) {
+            int o = y * width;
+            for (int x = 0; x < width; x++, o++) {
+                int p = image.getYCbCrPacked(x, y);
+                out[o] = t[((((p >> 16) & 0xff) >> yShift) * uMax +
+                            ((p & 0xff) >> uShift)) * vMax +
+                           (((p >> 8) & 0xff) >> vShift)];
+            }
+        }
+    }
+
+    /**
+     * As thresholdBuffer, looking entries up one Y plane of the snapshot
+     * at a time.  Each band asks the snapshot for a plane once, the first
+     * time one of its pixels falls in it.
+     */
+    private static void thresholdBuffer(ColorTableSnapshot snapshot,
+                                        TOOLImage image, byte[] out,
+                                        int firstRow, int lastRow) {
+        final byte[][] pages = new byte[snapshot.getYDimension()][];
+        final int yShift = snapshot.getYShift();
+        final int uShift = snapshot.getUShift();
+        final int vShift = snapshot.getVShift();
+        final int vMax = snapshot.getVDimension();
+
+        final byte[] buf = image.pixels;
+        final int width = image.getWidth();
+        final int pixelStride = image.pixelStride;
+        final int c1 = image.planeStride;
+        final int c2 = 2 * image.planeStride;
+
+        for (int y = firstRow; y < lastRow; y++) {
+            int i = image.offset(0, y);
+            int o = y * width;
+            for (int x = 0; x < width; x++, i += pixelStride, o++) {
+                int ty = (buf[i] & 0xff) >> yShift;
+                byte[] page = pages[ty];
+                if (page == null)
+                    page = pages[ty] = snapshot.getPage(ty);
+                out[o] = page[((buf[i + c2] & 0xff) >> uShift) * vMax +
+                              ((buf[i + c1] & 0xff) >> vShift)];
+            }
+        }
+    }
+
+    /** As thresholdConverted, against a snapshot. */
+    private static void thresholdConverted(ColorTableSnapshot snapshot,
+                                           TOOLImage image, byte[] out,
+                                           int firstRow, int lastRow) {
+        final byte[][] pages = new byte[snapshot.getYDimension()][];
+        final int yShift = snapshot.getYShift();
+        final int uShift = snapshot.getUShift();
+        final int vShift = snapshot.getVShift();
+        final int vMax = snapshot.getVDimension();
+        final int width = image.getWidth();
+
+        for (int y = firstRow; y < lastRow; y++) {
+            int o = y * width;
+            for (int x = 0; x < width; x++, o++) {
+                int p = image.getYCbCrPacked(x, y);
+                int ty = ((p >> 16) & 0xff) >> yShift;
+                byte[] page = pages[ty];
+                if (page == null)
+                    page = pages[ty] = snapshot.getPage(ty);
+                out[o] = page[((p & 0xff) >> uShift) * vMax +
+                              (((p >> 8) & 0xff) >> vShift)];
+            }
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package TOOL.Image;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.util.LinkedList;
 
 import TOOL.TOOL;
@@ -16,9 +21,59 @@ public class ThresholdedImage extends TOOLImage {
 
     private static final Color[] COLORS = Vision.COLORS;
 
+    /**
+     * Palette of the thresholded images as displayed: entry c is
+     * Vision.COLORS[c], the entry after the last color is black (the edges
+     * of an ImageOverlay) and entry 255 is transparent, so a byte of -1
+     * shows nothing.  The rest are black.
+     */
+    public static final IndexColorModel COLOR_MODEL = createColorModel();
+    public static final byte TRANSPARENT = -1;
+
+    private static IndexColorModel createColorModel() {
+        byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+        byte[] a = new byte[256];
+        for (int i = 0; i < 255; i++) {
+            if (i < COLORS.length) {
+                r[i] = (byte) COLORS[i].getRed();
+                g[i] = (byte) COLORS[i].getGreen();
+                b[i] = (byte) COLORS[i].getBlue();
+            }
+            a[i] = (byte) 0xff;
+        }
+        return new IndexColorModel(8, 256, r, g, b, a);
+    }
+
+    /**
+     * @return an image showing pixels, row-major colors of the given size,
+     *         through COLOR_MODEL.  Nothing is copied; the image changes as
+     *         pixels do.
+     */
+    public static BufferedImage createImage(byte[] pixels, int width,
+                                            int height) {
+        WritableRaster raster = Raster.createInterleavedRaster(
+            new DataBufferByte(pixels, width * height), width, height,
+            width, 1, new int[] { 0 }, null);
+        return new BufferedImage(COLOR_MODEL, raster, false, null);
+    }
+
+    /** @return true if img is showing pixels, as made by createImage */
+    static boolean shows(BufferedImage img, byte[] pixels) {
+        return img.getRaster().getDataBuffer() instanceof DataBufferByte &&
+            ((DataBufferByte) img.getRaster().getDataBuffer()).getData() ==
+            pixels;
+    }
+
     protected TOOLImage baseImage;
     protected ColorTable colorTable;
-    protected byte[][] thresholded;
+    // Row-major thresholded colors, index y * width + x
+    protected byte[] thresholded;
+    // Which pixels fall into which color table bins; built on demand by
+    // applyUpdate and dropped whenever the base image changes
+    protected PixelBinIndex binIndex;
+    // Version of colorTable the thresholded buffer was worked out at, or -1
+    // if it isn't known to be any
+    protected long thresholdedVersion = -1;
 
     public ThresholdedImage(TOOLImage image, ColorTable cTable){
         this(image.getWidth(), image.getHeight());
@@ -35,7 +90,7 @@ public class ThresholdedImage extends TOOLImage {
     public ThresholdedImage(byte[][] _thresholded, int width, int height) {
         this(width, height);
 
-        thresholded = _thresholded;
+        setThresholded(_thresholded);
         //An instance of this class created directly from a thresholded
         //array is not able to be re-classified at a later date
         baseImage = null;
@@ -44,7 +99,7 @@ public class ThresholdedImage extends TOOLImage {
     public ThresholdedImage(int width, int height) {
         super(width, height);
 
-        thresholded = new byte[getHeight()][getWidth()];
+        thresholded = new byte[getHeight() * getWidth()];
     }
 
     /**
@@ -53,14 +108,42 @@ public class ThresholdedImage extends TOOLImage {
      * either the image or colortable has changed.
      */
     public void thresholdImage(ColorTable table, TOOLImage image){
+        if (image != baseImage)
+            binIndex = null;
         baseImage = image;
         if(table == null)
             return;
         colorTable = table;
 
-        for (int y = 0; y < getHeight(); y++)
-            for (int x = 0; x < getWidth(); x++)
-                thresholded[y][x] = colorTable.getColor(image.getYCbCr(x,y));
+        ThresholdEngine.threshold(colorTable, image, thresholded);
+        thresholdedVersion = table.getVersion();
+    }
+
+    /**
+     * Takes pixels thresholded elsewhere, e.g. on another thread against a
+     * ColorTableSnapshot, as the thresholding of image against table.
+     * @param version the version of table they were thresholded at
+     * @param pixels row-major colors, which this image keeps
+     * @param bins a PixelBinIndex of image for table, or null to build one
+     *             when it is first needed
+     */
+    public void setThresholded(TOOLImage image, ColorTable table,
+                               long version, byte[] pixels,
+                               PixelBinIndex bins) {
+        baseImage = image;
+        colorTable = table;
+        thresholded = pixels;
+        thresholdedVersion = version;
+        binIndex = bins != null && bins.matches(image, table) ? bins : null;
+    }
+
+    /**
+     * @return true if this image already holds image thresholded against
+     *         table as it is now
+     */
+    public boolean isThresholded(TOOLImage image, ColorTable table) {
+        return image == baseImage && table == colorTable &&
+            table != null && thresholdedVersion == table.getVersion();
     }
     public void thresholdImage() {
         if (colorTable == null) {
@@ -73,44 +156,159 @@ public class ThresholdedImage extends TOOLImage {
             thresholdImage(colorTable, baseImage);
     }
 
+    /**
+     * Re-thresholds only the pixels whose color table bins appear in u,
+     * which must already have been applied to (or undone from) the color
+     * table.  The first call for a frame builds a PixelBinIndex of the base
+     * image; indexBins() does so ahead of time.
+     * @return the region of the image which changed color, or null if no
+     *         pixel changed
+     */
+    public Rectangle applyUpdate(ColorTableUpdate u) {
+        if (colorTable == null || baseImage == null) {
+            TOOL.CONSOLE.error("ThresholdedImage.applyUpdate() called on an" +
+                               " image without color table or base image");
+            return null;
+        }
+        indexBins();
+
+        boolean raw = u.isRaw();
+        int minX = width, minY = height, maxX = -1, maxY = -1;
+
+        // Both pixel and box entries come down to table indices, which are
+        // also the index's bin numbers
+        int[] indices = colorTable.indicesOf(u, raw);
+        byte[] table = colorTable.getTableBuffer();
+
+        binIndex.beginPass();
+        for (int index : indices) {
+            int bin = binIndex.visit(index);
+            if (bin < 0)
+                continue;
+
+            byte color = table[index];
+            for (int k = binIndex.start(bin); k < binIndex.end(bin); k++) {
+                int p = binIndex.pixel(k);
+                if (thresholded[p] == color)
+                    continue;
+                thresholded[p] = color;
+
+                int x = p % width, y = p / width;
+                if (x < minX) minX = x;
+                if (x > maxX) maxX = x;
+                if (y < minY) minY = y;
+                if (y > maxY) maxY = y;
+            }
+        }
+
+        // u only brings the pixels up to date if they were current before
+        thresholdedVersion = thresholdedVersion == u.getBaseVersion() &&
+            u.getBaseVersion() >= 0 ? u.getVersion() : -1;
+
+        if (maxX < 0)
+            return null;
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /**
+     * Builds the bin index used by applyUpdate, if the current one does not
+     * fit the base image and color table.
+     */
+    public void indexBins() {
+        if (baseImage == null || colorTable == null)
+            return;
+        if (binIndex == null || !binIndex.matches(baseImage, colorTable))
+            binIndex = new PixelBinIndex(baseImage, colorTable);
+    }
+
     public Estimate pixEstimate(int pixelX, int pixelY,
                                 float objectHeight) throws RuntimeException {
         throw new RuntimeException("pixEstimate only works on processed images");
     }
 
     public void setBaseImage(TOOLImage image) {
+        if (image != baseImage) {
+            binIndex = null;
+            thresholdedVersion = -1;
+        }
         baseImage = image;
     }
     public void setColorTable(ColorTable table) {
+        if (table != colorTable)
+            thresholdedVersion = -1;
         colorTable = table;
     }
 
+    public TOOLImage getBaseImage() {
+        return baseImage;
+    }
+    public ColorTable getColorTable() {
+        return colorTable;
+    }
+
     public byte getThresholded(int x, int y){
-        return thresholded[y][x];
+        return thresholded[y * width + x];
+    }
+
+    /**
+     * @return the row-major buffer of thresholded colors backing this image
+     */
+    public byte[] getThresholdedBuffer() {
+        return thresholded;
+    }
+
+    /**
+     * Copies thresholded colors given as [row][column] into this image.
+     */
+    protected void setThresholded(byte[][] rows) {
+        thresholdedVersion = -1;
+        for (int y = 0; y < getHeight(); y++)
+            System.arraycopy(rows[y], 0, thresholded, y * width, width);
     }
 
     public int rawImageSize() {
         return getWidth() * getHeight();
     }
 
+    /**
+     * The image shares the thresholded buffer, so it never needs drawing
+     * again, only repainting.  It goes out of date only if the buffer is
+     * replaced, which canRedraw catches.
+     */
+    public BufferedImage createImage() {
+        return createImage(thresholded, getWidth(), getHeight());
+    }
+
+    boolean canRedraw(BufferedImage img) {
+        return shows(img, thresholded);
+    }
+
     protected void initImage(BufferedImage img) {
+        if (shows(img, thresholded))
+            return;
+        int i = 0;
         for (int y = 0; y < getHeight(); y++)
             for (int x = 0; x < getWidth(); x++)
-                img.setRGB(x, y, COLORS[thresholded[y][x]].getRGB());
+                img.setRGB(x, y, COLORS[thresholded[i++]].getRGB());
+    }
+
+    protected void initImage(BufferedImage img, Rectangle region) {
+        if (shows(img, thresholded))
+            return;
+        for (int y = region.y; y < region.y + region.height; y++) {
+            int i = y * width + region.x;
+            for (int x = region.x; x < region.x + region.width; x++)
+                img.setRGB(x, y, COLORS[thresholded[i++]].getRGB());
+        }
     }
 
     public void readByteArray(byte[] rawImage) {
-        int i = 0;
-        for (int y = 0; y < getHeight(); y++)
-            for (int x = 0; x < getWidth(); x++)
-                thresholded[y][x] = rawImage[i++];
+        thresholdedVersion = -1;
+        System.arraycopy(rawImage, 0, thresholded, 0, thresholded.length);
     }
 
     public void writeByteArray(byte[] rawImage) {
-        int i = 0;
-        for (int y = 0; y < getHeight(); y++)
-            for (int x = 0; x < getWidth(); x++)
-                rawImage[i++] = thresholded[y][x];
+        System.arraycopy(thresholded, 0, rawImage, 0, thresholded.length);
     }
 
     /**
@@ -153,13 +351,13 @@ public class ThresholdedImage extends TOOLImage {
         for (int x = 1; x < width - 1; x++) {
             for (int y = 1; y < height - 1; y++) {
                 // undefined, so check if it's surrounded by like pixels
-                if (thresholded[y][x] == UNDEFINED) {
+                if (thresholded[y * width + x] == UNDEFINED) {
                     if (isSurrounded(x, y)) {
                         holeCount++;
                         // take the pixel directly left, since surrounded
-                        byte color = thresholded[y][x-1];
+                        byte color = thresholded[y * width + x - 1];
                         // set this pixel
-                        thresholded[y][x] = color;
+                        thresholded[y * width + x] = color;
                         // Add the filled in pixel to the update so that
                         // ColorTable is updated correctly.
                         updates[color].addPixel(baseImage.getYCbCr(x, y),
@@ -197,7 +395,10 @@ public class ThresholdedImage extends TOOLImage {
     private boolean isSurrounded(int x, int y) {
 
         int UNDEFINED = Vision.GREY;
-        int color = thresholded[y-1][x-1];
+        int above = (y - 1) * width + x;
+        int here = y * width + x;
+        int below = (y + 1) * width + x;
+        int color = thresholded[above - 1];
 
         // We only want isSurrounded to return true if all 8 pixels around
         // (x,y) are the same color AND not undefined.
@@ -205,13 +406,13 @@ public class ThresholdedImage extends TOOLImage {
 
         // Check clockwise around (x,y) starting at pixel above
         // and stopping right before the one above and to the left
-        return (thresholded[y  ][x-1] == color &&
-                thresholded[y+1][x-1] == color &&
-                thresholded[y+1][x  ] == color &&
-                thresholded[y+1][x+1] == color &&
-                thresholded[y  ][x+1] == color &&
-                thresholded[y-1][x+1] == color &&
-                thresholded[y-1][x  ] == color);
+        return (thresholded[here  - 1] == color &&
+                thresholded[below - 1] == color &&
+                thresholded[below    ] == color &&
+                thresholded[below + 1] == color &&
+                thresholded[here  + 1] == color &&
+                thresholded[above + 1] == color &&
+                thresholded[above    ] == color);
     }
 
 
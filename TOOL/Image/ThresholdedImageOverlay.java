@@ -5,8 +5,10 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Shape;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 
 import java.awt.AlphaComposite;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import TOOL.TOOL;
@@ -25,30 +27,30 @@ public class ThresholdedImageOverlay extends BufferedImage{
     private static final Color[] COLORS = Vision.COLORS;
 
     private int width, height;
+    // The raster, one index into ThresholdedImage.COLOR_MODEL per pixel
+    private byte[] pixels;
 
     /**
      * Constructs an ThresholdedImageOverlay of width and height as specified by
-     * creating a buffered image of type ARGB (alpha channel specified)
-     * and initializes the array of pixels to be TRANSPARENT to start.
+     * creating an indexed buffered image with a transparent entry
+     * and initializes the pixels to be TRANSPARENT to start.
      * @param width number of pixels wide the image will be
      * @param height number of pixels high
      */ 
     public ThresholdedImageOverlay(int width, int height){
 	
-	super(width, height, BufferedImage.TYPE_INT_ARGB);
+	super(width, height, BufferedImage.TYPE_BYTE_INDEXED,
+	      ThresholdedImage.COLOR_MODEL);
 
 	this.width = width;
 	this.height = height;
+	pixels = ((DataBufferByte) getRaster().getDataBuffer()).getData();
 	resetPixels();	
     }
 
     //resets all the pixel to the default transparent pixel
     public void resetPixels(){
-	for(int w = 0; w < width; w++){
-	    for(int h = 0; h < height; h++){
-		setRGB(w,h,0x0);
-	    }
-	}
+	Arrays.fill(pixels, ThresholdedImage.TRANSPARENT);
     }
     //draws a rectangle starting from x,y and of width w and height h
     public void drawRectangle(int x, int y, int w, int h, 
@@ -128,6 +128,28 @@ public class YCbCrColorSpace extends ColorSpace {
         }
     }
 
+    /**
+     * Convert RGB [0..256] int values into a YCbCr [0..256] triple packed
+     * as Y<<16 | Cb<<8 | Cr.  Same arithmetic as fromRGB(int,int,int,int[]).
+     */
+    public int fromRGBPacked(int r, int g, int b) {
+        int y =  16 + ((int) ( 65.738 * r +
+                              129.057 * g +
+                               25.064 * b  )) >> 8;
+        int Cb = 128 + ((int) (-37.945 * r +
+                               -74.494 * g +
+                               112.439 * b  )) >> 8;
+        int Cr = 128 + ((int) (112.439 * r +
+                               -97.154 * g +
+                               -18.285 * b  )) >> 8;
+
+        return clamp(y) << 16 | clamp(Cb) << 8 | clamp(Cr);
+    }
+
+    private static int clamp(int c) {
+        return c > 255 ? 255 : (c < 0 ? 0 : c);
+    }
+
     /**
      * Convert a 3-pixel YCbCr [0..256] float array into an RGB [0..+1] float
      * array.
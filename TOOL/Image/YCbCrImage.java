@@ -29,7 +29,7 @@ public class YCbCrImage extends TOOLImage {
     public YCbCrImage(byte[] rawImage, int w, int h) {
         super(w, h);
 
-        pixels = new byte[h][w][COLOR_DEPTH];
+        allocatePixels();
 
         readByteArray(rawImage);
     }
@@ -38,32 +38,33 @@ public class YCbCrImage extends TOOLImage {
         throws IOException {
         super(width, height);
 
-        pixels = new byte[height][width][COLOR_DEPTH];
+        allocatePixels();
 
         readInputStream(input);
     }
 
+    // The raw Aibo format stores each row as a run of Y values, then a run
+    // of component 2 values, then a run of component 1 values.
     public void readByteArray(byte[] rawImage) {
         int i = 0;
         for (int r = 0; r < getHeight(); r++) {
+            int row = offset(0, r);
             for (int c = 0; c < getWidth(); c++)
-                pixels[r][c][0] = rawImage[i++];
-            //pixels[r][c][0] = signedByteToUnsigned(rawImage[i++]);
+                pixels[row + c * pixelStride] = rawImage[i++];
             for (int c = 0; c < getWidth(); c++)
-                pixels[r][c][2] = rawImage[i++];
-            //pixels[r][c][2] = signedByteToUnsigned(rawImage[i++]);
+                pixels[row + c * pixelStride + 2 * planeStride] =
+                    rawImage[i++];
             for (int c = 0; c < getWidth(); c++)
-                pixels[r][c][1] = rawImage[i++];
-            //pixels[r][c][1] = signedByteToUnsigned(rawImage[i++]);
+                pixels[row + c * pixelStride + planeStride] = rawImage[i++];
         }
     }
 
     public void readIntArray(int[][][] image) {
         for (int r = 0; r < getHeight(); r++) {
             for (int c = 0; c < getWidth(); c++) {
-                pixels[r][c][0] = (byte)image[r][c][0];
-                pixels[r][c][1] = (byte)image[r][c][1];
-                pixels[r][c][2] = (byte)image[r][c][2];
+                setPixel(c, r, (byte)image[r][c][0],
+                         (byte)image[r][c][1],
+                         (byte)image[r][c][2]);
             }
         }
     }
@@ -71,12 +72,13 @@ public class YCbCrImage extends TOOLImage {
     public void writeByteArray(byte[] rawImage) {
         int i = 0;
         for (int r = 0; r < getHeight(); r++) {
+            int row = offset(0, r);
             for (int c = 0; c < getWidth(); c++)
-                rawImage[i++] = pixels[r][c][0];
+                rawImage[i++] = pixels[row + c * pixelStride];
             for (int c = 0; c < getWidth(); c++)
-                rawImage[i++] = pixels[r][c][2];
+                rawImage[i++] = pixels[row + c * pixelStride + 2 * planeStride];
             for (int c = 0; c < getWidth(); c++)
-                rawImage[i++] = pixels[r][c][1];
+                rawImage[i++] = pixels[row + c * pixelStride + planeStride];
         }
     }
 
@@ -85,22 +87,31 @@ public class YCbCrImage extends TOOLImage {
     }
 
     /**
-     * Takes the current YCbCr data in the pixels integer array and fills in
+     * Takes the current YCbCr data in the pixel buffer and fills in
      * pixels of the BufferedImage data buffer.  Converts all YCbCr to RGB
      * components and to a single RGB pixel value in the data buffer,
      * sequentially.
      *
      * I can't believe how easy this was once I set up the ColorSpace and
      * realized how to use it and the ColorModel....
+     *
+     * Images from createImage() are filled by RGBEngine, through lookup
+     * tables, without going pixel by pixel through the image.
      */
     public void initImage(BufferedImage img) {
+        if (RGBEngine.toRGB(this, img))
+            return;
+
         ColorModel cm = img.getColorModel();
         int[] rgb = new int[3];
 
         for (int r = 0; r < getHeight(); r++) {
             for (int c = 0; c < getWidth(); c++) {
                 // Convert YCbCr to RGB with using the YCbCrColorSpace
-                COLOR_SPACE.toRGB(pixels[r][c], rgb);
+                int i = offset(c, r);
+                COLOR_SPACE.toRGB(pixels[i] & 0xff,
+                                  pixels[i + planeStride] & 0xff,
+                                  pixels[i + 2 * planeStride] & 0xff, rgb);
 
                 // Set the BufferedImage pixel to the rgb value of this pixel
                 // (use the ColorModel to convert from components to int)
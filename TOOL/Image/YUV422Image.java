@@ -37,7 +37,7 @@ public class YUV422Image extends TOOLImage {
      public YUV422Image(byte[] rawImage, int w, int h) {
         super(w, h);
                 
-        pixels = new byte[h][w][COLOR_DEPTH];
+        allocatePixels();
 
         readByteArray(rawImage);
     }
@@ -46,7 +46,7 @@ public class YUV422Image extends TOOLImage {
             throws IOException {
         super(width,height);
         
-        pixels = new byte[height][width][COLOR_DEPTH];
+        allocatePixels();
 
         readInputStream(input);
     }
@@ -90,13 +90,8 @@ public class YUV422Image extends TOOLImage {
                 y2 = rawImage[i + Y2_OFFSET];
                 v =  rawImage[i + V_OFFSET];
 
-                pixels[r][c][0] = y1;
-                pixels[r][c][1] = u;
-                pixels[r][c][2] = v;
-                
-                pixels[r][c+1][0] = y2;
-                pixels[r][c+1][1] = u;
-                pixels[r][c+1][2] = v;
+                setPixel(c,   r, y1, u, v);
+                setPixel(c+1, r, y2, u, v);
             }
         }
     }
@@ -106,15 +101,24 @@ public class YUV422Image extends TOOLImage {
 
         for (int r = 0; r < getHeight(); r++) {
             for (int c = 0; c < getWidth(); c+=2, i+=BYTES_PER_TWO_PIXELS) {
-                rawImage[i + Y1_OFFSET] = pixels[r][c  ][0];
-                rawImage[i + U_OFFSET ] = pixels[r][c  ][1];
-                rawImage[i + V_OFFSET ] = pixels[r][c  ][2];
-                rawImage[i + Y2_OFFSET] = pixels[r][c+1][0];
+                int p = offset(c, r);
+                rawImage[i + Y1_OFFSET] = pixels[p];
+                rawImage[i + U_OFFSET ] = pixels[p + planeStride];
+                rawImage[i + V_OFFSET ] = pixels[p + 2 * planeStride];
+                rawImage[i + Y2_OFFSET] = pixels[p + pixelStride];
             }
         }
     }
 
+    /**
+     * Converts to RGB through RGBEngine, which works out each pair of
+     * pixels' shared U and V once, or, for images it can't write straight
+     * into, pixel by pixel through the YCbCrColorSpace.
+     */
     public void initImage(BufferedImage img) {
+        if (RGBEngine.toRGB(this, img))
+            return;
+
         ColorModel cm = img.getColorModel();
 
         int[] rgb = new int[3];
@@ -122,7 +126,10 @@ public class YUV422Image extends TOOLImage {
         for (int r = 0; r < getHeight(); r++) {
             for (int c = 0; c < getWidth(); c++) {
                 // Convert YUV to RGB with using the YCbCrColorSpace
-                COLOR_SPACE.toRGB(pixels[r][c], rgb);
+                int i = offset(c, r);
+                COLOR_SPACE.toRGB(pixels[i] & 0xff,
+                                  pixels[i + planeStride] & 0xff,
+                                  pixels[i + 2 * planeStride] & 0xff, rgb);
 
                 // Set the BufferedImage pixel to the rgb value of this pixel
                 // (use the ColorModel to convert from components to int)
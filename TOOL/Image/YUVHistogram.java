@@ -0,0 +1,204 @@
+package TOOL.Image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * How many pixels of a data set fall in each entry of a color table: a
+ * count per [y][u][v] entry, laid out as ColorTable.index for a table of
+ * the same dimensions and shifts.  Counts stop at Integer.MAX_VALUE rather
+ * than wrapping.
+ *
+ * Histograms are saved deflated; almost every entry of a real data set's
+ * histogram is empty, so the files are small.  The header carries a key
+ * naming what the histogram was built from, and read() refuses a file
+ * whose key doesn't match.
+ *
+ * @author Northern Bites Team
+ * @see HistogramEngine
+ */
+public class YUVHistogram {
+
+    public static final int MAGIC = 0x4e425948; // "NBYH"
+    public static final int FORMAT_VERSION = 1;
+
+    private final int yMax, uMax, vMax, yShift, uShift, vShift;
+    private final int[] counts;
+    private int frames;
+    private long pixels;
+    // -1 until worked out
+    private int max = -1;
+
+    public YUVHistogram(int yMax, int uMax, int vMax,
+                        int yShift, int uShift, int vShift) {
+        this.yMax = yMax;
+        this.uMax = uMax;
+        this.vMax = vMax;
+        this.yShift = yShift;
+        this.uShift = uShift;
+        this.vShift = vShift;
+        counts = new int[yMax * uMax * vMax];
+    }
+
+    /** @return an empty histogram at the resolution of table */
+    public static YUVHistogram forTable(ColorTable table) {
+        return new YUVHistogram(table.getYDimension(), table.getUDimension(),
+                                table.getVDimension(), table.getYShift(),
+                                table.getUShift(), table.getVShift());
+    }
+
+    /** @return true if entries here are entries of table */
+    public boolean matches(ColorTable table) {
+        return yMax == table.getYDimension() &&
+            uMax == table.getUDimension() &&
+            vMax == table.getVDimension() &&
+            yShift == table.getYShift() &&
+            uShift == table.getUShift() &&
+            vShift == table.getVShift();
+    }
+
+    /** @return the pixels counted in raw entry [y][u][v] */
+    public int getCount(int y, int u, int v) {
+        return counts[(y * uMax + u) * vMax + v];
+    }
+
+    /** @return the pixels counted in the entry at ColorTable.index i */
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    /** @return the largest count of any entry */
+    public int getMax() {
+        if (max < 0) {
+            int m = 0;
+            for (int c : counts)
+                if (c > m)
+                    m = c;
+            max = m;
+        }
+        return max;
+    }
+
+    /** @return how many frames were counted */
+    public int getFrames() {
+        return frames;
+    }
+
+    /** @return how many pixels were counted */
+    public long getPixels() {
+        return pixels;
+    }
+
+    public int getYDimension() { return yMax; }
+    public int getUDimension() { return uMax; }
+    public int getVDimension() { return vMax; }
+    public int getYShift() { return yShift; }
+    public int getUShift() { return uShift; }
+    public int getVShift() { return vShift; }
+
+    /** @return the number of bytes the counts take up in memory */
+    public long getMemoryUsage() {
+        return 4L * counts.length;
+    }
+
+    /**
+     * Adds partial counts, laid out as here, of the given frames and
+     * pixels.  Safe to call from several threads at once.
+     */
+    synchronized void add(int[] partial, int moreFrames, long morePixels) {
+        for (int i = 0; i < counts.length; i++)
+            if (partial[i] != 0) {
+                long sum = (long) counts[i] + partial[i];
+                counts[i] = sum > Integer.MAX_VALUE ? Integer.MAX_VALUE :
+                    (int) sum;
+            }
+        frames += moreFrames;
+        pixels += morePixels;
+        max = -1;
+    }
+
+    /**
+     * Writes the histogram to path under key, going through a temporary
+     * file so a crash never leaves half a histogram behind.
+     */
+    public void write(File path, String key) throws IOException {
+        path.getParentFile().mkdirs();
+        File tmp = new File(path.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            out.writeInt(yMax);
+            out.writeInt(uMax);
+            out.writeInt(vMax);
+            out.writeInt(yShift);
+            out.writeInt(uShift);
+            out.writeInt(vShift);
+            out.writeInt(frames);
+            out.writeLong(pixels);
+            out.flush();
+
+            // one plane at a time, as big-endian ints
+            DeflaterOutputStream body = new DeflaterOutputStream(out);
+            int plane = uMax * vMax;
+            ByteBuffer bytes = ByteBuffer.allocate(4 * plane);
+            for (int y = 0; y < yMax; y++) {
+                bytes.clear();
+                bytes.asIntBuffer().put(counts, y * plane, plane);
+                body.write(bytes.array());
+            }
+            body.close();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(path)) {
+            path.delete();
+            if (!tmp.renameTo(path))
+                throw new IOException("could not rename " + tmp);
+        }
+    }
+
+    /**
+     * @return the histogram saved at path, or null if it was saved under
+     *         another key or in another format version
+     */
+    public static YUVHistogram read(File path, String key)
+        throws IOException {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(path)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION ||
+                !in.readUTF().equals(key))
+                return null;
+            YUVHistogram h = new YUVHistogram(in.readInt(), in.readInt(),
+                                              in.readInt(), in.readInt(),
+                                              in.readInt(), in.readInt());
+            h.frames = in.readInt();
+            h.pixels = in.readLong();
+
+            DataInputStream body =
+                new DataInputStream(new InflaterInputStream(in));
+            int plane = h.uMax * h.vMax;
+            byte[] bytes = new byte[4 * plane];
+            for (int y = 0; y < h.yMax; y++) {
+                body.readFully(bytes);
+                ByteBuffer.wrap(bytes).asIntBuffer()
+                    .get(h.counts, y * plane, plane);
+            }
+            return h;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -97,7 +97,7 @@ public class TOOL implements ActionListener, PropertyChangeListener{
     //temp menus to allow color table stuff
     JMenu actions;
     JMenuItem newColorTable, saveColorTable, saveColorTableAs,loadColorTable,
-        toggleAutoSave, toggleSoftColors;
+        recoverColorTable, toggleAutoSave, toggleSoftColors;
     JMenuItem addPane, removePane;
     //modules
     private Calibrate calibrate;
@@ -132,6 +132,8 @@ public class TOOL implements ActionListener, PropertyChangeListener{
     private static final String DEFAULT_COLOR_TABLE_STRING =
         "default_color_table";
 
+    private static final String UNDO_BUDGET_MB_STRING = "undo_budget_mb";
+
     //starts an instance of a tool, which ties together all the sub modules
     public TOOL(){
 
@@ -142,6 +144,10 @@ public class TOOL implements ActionListener, PropertyChangeListener{
 
         CONSOLE = new Console(this);
 
+        // Memory the undo/redo history of each color table may use
+        ColorTable.setUndoBudget((long) prefs.getInt(UNDO_BUDGET_MB_STRING,
+                                   ColorTable.DEFAULT_UNDO_BUDGET_MB) << 20);
+
         // Try to load the color table we used last
         // If the key does not exist, the method will return the second
         // parameter passed to .get().
@@ -301,6 +307,7 @@ public class TOOL implements ActionListener, PropertyChangeListener{
         loadColorTable = new JMenuItem("Load Color Table ");
         saveColorTable = new JMenuItem("Save Color Table");
         saveColorTableAs = new JMenuItem("Save Color Table As");
+        recoverColorTable = new JMenuItem("Recover Autosaved Color Table");
         toggleAutoSave = new JCheckBoxMenuItem("Autosave enabled");
         toggleSoftColors = new JCheckBoxMenuItem("Softcolors enabled");
         toggleSoftColors.setSelected(true);
@@ -312,6 +319,7 @@ public class TOOL implements ActionListener, PropertyChangeListener{
         loadColorTable.addActionListener(this);
         saveColorTable.addActionListener(this);
         saveColorTableAs.addActionListener(this);
+        recoverColorTable.addActionListener(this);
         toggleAutoSave.addActionListener(this);
         toggleSoftColors.addActionListener(this);
 
@@ -324,6 +332,7 @@ public class TOOL implements ActionListener, PropertyChangeListener{
         actions.add(saveColorTableAs);
 
         actions.addSeparator();
+        actions.add(recoverColorTable);
         actions.add(toggleAutoSave);
         actions.add(toggleSoftColors);
 
@@ -365,7 +374,13 @@ public class TOOL implements ActionListener, PropertyChangeListener{
         return colorTable;
     }
 
+    /**
+     * Makes t the table being edited.  The table it replaces stops
+     * autosaving.
+     */
     public void setColorTable(ColorTable t) {
+        if (colorTable != null && colorTable != t)
+            colorTable.closeJournal();
         colorTable = t;
     }
 
@@ -429,6 +444,9 @@ public class TOOL implements ActionListener, PropertyChangeListener{
         else if(e.getSource() == newColorTable){
             newColorTable();
         }
+        else if(e.getSource() == recoverColorTable){
+            recoverColorTable();
+        }
         else if (e.getSource() == addPane) {
             multiPane.addPane();
             if (multiPane.numPanes() > 1)
@@ -496,7 +514,7 @@ public class TOOL implements ActionListener, PropertyChangeListener{
             }
             // Create a color table of the correct size
             else {
-                colorTable = new ColorTable(ColorTable.EMPTY, d);
+                setColorTable(new ColorTable(ColorTable.EMPTY, d));
             }
 
             colorTable.setSoftColors(toggleSoftColors.isSelected());
@@ -530,7 +548,7 @@ public class TOOL implements ActionListener, PropertyChangeListener{
         if (path != null) {
             ColorTable temp = new ColorTable(path);
 
-            colorTable = temp;
+            setColorTable(temp);
             colorEdit.setTable(colorTable);
 
             colorTable.setSoftColors(toggleSoftColors.isSelected());
@@ -542,12 +560,29 @@ public class TOOL implements ActionListener, PropertyChangeListener{
 
     }
 
+    /**
+     * Prompts for an autosave journal and rebuilds the color table it
+     * describes, e.g. after a crash.
+     **/
+    public void recoverColorTable() {
+        String path = CONSOLE.promptFileOpen("Autosave Journal to Recover",
+                                             ColorTable.AUTO_SAVE_PATH);
+        if (path == null)
+            return;
+
+        ColorTable recovered = ColorTable.recover(path);
+        if (recovered != null) {
+            setColorTable(recovered);
+            updateColorTableReferences();
+        }
+    }
+
     /**
      * This method takes in a file name and tries to load a color table from it at startup
      **/
     public void loadStartColorTable(String fileName) {
 
-        colorTable = new ColorTable(fileName);
+        setColorTable(new ColorTable(fileName));
     }
 
     public void updateColorTableReferences() {
@@ -562,7 +597,7 @@ public class TOOL implements ActionListener, PropertyChangeListener{
      * This method takes in a file name and tries to load a color table from it
      **/
     public void loadColorTable(String fileName) {
-        colorTable = new ColorTable(fileName);
+        setColorTable(new ColorTable(fileName));
         colorEdit.setTable(colorTable);
 
         colorTable.setSoftColors(toggleSoftColors.isSelected());
@@ -35,8 +35,9 @@ using namespace boost;
  *
  * This is the central cpp method called by the Java TOOL to run vision
  * results. It takes in the raw image data, as well as the joint angles
- * and single byte array representation of the color table.
- * (possibly later it will also need to take other sensor values.)
+ * and sensor values. The color table is not sent with every frame: Java
+ * uploads it once with cppUploadTable, and sends only the entries which
+ * change after that with cppUpdateTable.
  *
  * Due to the difficulty of JNI, we currently also require that the thresholded
  * array which Java wants filled be passed in as well. This removes the need
@@ -65,9 +66,15 @@ extern "C" {
     static shared_ptr<Profiler> profiler(new Profiler(micro_time));
     static Vision vision(pose, profiler);
 
+    //The color table as last sent from java, so that single entries can be
+    //changed without java sending the whole table again. tableDirty is set
+    //when it differs from the table vision is using.
+    static byte table[YMAX*UMAX*VMAX];
+    static bool tableDirty = false;
+
     JNIEXPORT void JNICALL Java_TOOL_Vision_TOOLVisionLink_cppProcessImage
     (JNIEnv * env, jobject jobj, jbyteArray jimg, jfloatArray jjoints,
-     jfloatArray jsensors, jbyteArray jtable, jobjectArray thresh_target){
+     jfloatArray jsensors, jobjectArray thresh_target){
       
         //Size checking -- we expect the sizes of the arrays to match
         //Base these on the size cpp expects for the image
@@ -90,21 +97,17 @@ extern "C" {
             cout << "Error: the sensors array had incorrect dimensions" << endl;
             return;
         }
-        if (env->GetArrayLength(jtable) != YMAX*UMAX*VMAX) {
-            cout << "Error: the color table had incorrect dimensions" << endl;
-            return;
-        }
         if (env->GetArrayLength(thresh_target) != IMAGE_HEIGHT ||
             tlenw != IMAGE_WIDTH) {
             cout << "Error: the thresh_target had incorrect dimensions" << endl;
             return;
         }
 
-        //load the table
-        jbyte *buf_table = env->GetByteArrayElements( jtable, 0);
-        byte * table = (byte *)buf_table; //convert it to a reg. byte array
-        vision.thresh->initTableFromBuffer(table);
-        env->ReleaseByteArrayElements( jtable, buf_table, 0);
+        //pick up any entries changed since the last frame
+        if (tableDirty) {
+            vision.thresh->initTableFromBuffer(table);
+            tableDirty = false;
+        }
 
         // Set the joints data - Note: set visionBodyAngles not bodyAngles
         float * joints = env->GetFloatArrayElements(jjoints,0);
@@ -260,6 +263,47 @@ extern "C" {
 
     }
 
+    /**
+     * Replaces the whole color table. Called only when java's table is not
+     * the one we already hold, rather than once per frame. Returns false,
+     * keeping the table we hold, if jtable is the wrong size.
+     */
+    JNIEXPORT jboolean JNICALL Java_TOOL_Vision_TOOLVisionLink_cppUploadTable
+    (JNIEnv * env, jobject jobj, jbyteArray jtable){
+        if (env->GetArrayLength(jtable) != YMAX*UMAX*VMAX) {
+            cout << "Error: the color table had incorrect dimensions" << endl;
+            return JNI_FALSE;
+        }
+
+        env->GetByteArrayRegion(jtable, 0, YMAX*UMAX*VMAX, (jbyte *)table);
+        vision.thresh->initTableFromBuffer(table);
+        tableDirty = false;
+        return JNI_TRUE;
+    }
+
+    /**
+     * Sets table[indices[i]] = colors[i] for each i. The change is handed
+     * to vision on the next frame, so a burst of edits costs one reload.
+     */
+    JNIEXPORT void JNICALL Java_TOOL_Vision_TOOLVisionLink_cppUpdateTable
+    (JNIEnv * env, jobject jobj, jintArray jindices, jbyteArray jcolors){
+        jsize n = env->GetArrayLength(jindices);
+        if (env->GetArrayLength(jcolors) != n) {
+            cout << "Error: table update had mismatched arrays" << endl;
+            return;
+        }
+
+        jint *indices = env->GetIntArrayElements(jindices, 0);
+        jbyte *colors = env->GetByteArrayElements(jcolors, 0);
+        for (jsize i = 0; i < n; i++) {
+            if (indices[i] >= 0 && indices[i] < YMAX*UMAX*VMAX)
+                table[indices[i]] = (byte)colors[i];
+        }
+        env->ReleaseIntArrayElements(jindices, indices, JNI_ABORT);
+        env->ReleaseByteArrayElements(jcolors, colors, JNI_ABORT);
+        tableDirty = true;
+    }
+
     JNIEXPORT void JNICALL Java_TOOL_Vision_TOOLVisionLink_cppPixEstimate
     (JNIEnv * env, jobject jobj, jint pixelX, jint pixelY,
      jfloat objectHeight, jdoubleArray estimateResult) {
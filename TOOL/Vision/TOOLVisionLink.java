@@ -77,6 +77,9 @@ public class TOOLVisionLink {
     private double[] pointLineWidth;
     private int len, curEl;
     static private boolean visionLinkSuccessful;
+    //version of the color table the cpp side holds, -1 if none. Static
+    //since there is only one cpp vision, however many links there are
+    static private long tableVersion = -1;
     //processTime
     private int processTime;
 
@@ -109,14 +112,59 @@ public class TOOLVisionLink {
         return visionLinkSuccessful;
     }
 
-    //gets as params the raw image, the joint data and the color table
+    //returns the version of the color table the cpp side holds, as given
+    //to uploadTable or updateTable; -1 if it holds none
+    public long getTableVersion() {
+        return tableVersion;
+    }
+
+    //sends a whole color table, in ColorTable.getTableBuffer() layout, to
+    //cpp. It keeps it for every processImage call until the next upload.
+    //Returns false if cpp refused it, e.g. as it is the wrong size, in
+    //which case cpp holds no known version of the table
+    public boolean uploadTable(byte[] ct_data, long version) {
+        if (!visionLinkSuccessful)
+            return false;
+        try {
+            if (cppUploadTable(ct_data)) {
+                tableVersion = version;
+                return true;
+            }
+        }catch(Throwable e){
+            System.err.println("Error in c++ side of the vision link. \n");
+            e.printStackTrace();
+        }
+        tableVersion = -1;
+        return false;
+    }
+
+    //changes single entries of the table cpp holds - indices as in
+    //ColorTable.index(). Only does so if cpp holds the table at baseVersion,
+    //and returns false otherwise, in which case upload the table instead
+    public boolean updateTable(int[] indices, byte[] colors,
+                               long baseVersion, long version) {
+        if (!visionLinkSuccessful || tableVersion != baseVersion)
+            return false;
+        try {
+            cppUpdateTable(indices, colors);
+            tableVersion = version;
+            return true;
+        }catch(Throwable e){
+            System.err.println("Error in c++ side of the vision link. \n");
+            e.printStackTrace();
+            tableVersion = -1;
+            return false;
+        }
+    }
+
+    //gets as params the raw image and the joint data; the color table has
+    //to have been sent with uploadTable beforehand
     //returns a thresholded image
     //it also gets all the objects (ball etc) when the cpp calls the java setballinfo
     public byte[][] processImage(byte[] img_data, int imageWidth,
                                  int imageHeight,
                                  float[] joint_data,
-                                 float[] sensor_data,
-                                 byte[] ct_data)
+                                 float[] sensor_data)
     {
         byte[][] threshResult = new byte[imageHeight][imageWidth];
         if( visionLinkSuccessful){
@@ -128,7 +176,7 @@ public class TOOLVisionLink {
 
                 //call the jni function
                 cppProcessImage(img_data,joint_data,
-                                sensor_data,ct_data,
+                                sensor_data,
                                 threshResult);
             }catch(Throwable e){
                 System.err.println("Error in c++ side of the vision link. \n");
@@ -174,9 +222,12 @@ public class TOOLVisionLink {
     //Native methods:
     native private void cppProcessImage(byte[] img_data, float[] joint_data,
                                         float[] sensors_data,
-                                        byte[] table_data,
                                         byte[][] threshResult);
 
+    native private boolean cppUploadTable(byte[] table_data);
+
+    native private void cppUpdateTable(int[] indices, byte[] colors);
+
     native private void cppPixEstimate(int pixelX, int pixelY,
                                        float objectHeight,
                                        double[] estimateResult);
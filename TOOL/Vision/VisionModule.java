@@ -125,16 +125,15 @@ public class VisionModule extends TOOLModule implements ColorTableListener {
         byte[] rawImage = new byte[img.getWidth()*img.getHeight()*2];
         img.writeByteArray(rawImage);
 
-        //create the byte buffer for the 2MB color table
-        int ct_size =  currentTable.getYDimension()*
-            currentTable.getUDimension()*currentTable.getVDimension();
-        byte[] rawTable = new byte[ct_size];
-        currentTable.writeByteArray(rawTable);
+        //the cpp side keeps the 2MB color table; only send it if it changed
+        if (visionLink.getTableVersion() != currentTable.getVersion())
+            visionLink.uploadTable(currentTable.getTableBuffer(),
+                                   currentTable.getVersion());
 
         //If we've made it this far, everything is A OK, so process the image,
         // yields a thresh image
-        // byte[][] thresh = visionLink.processImage(rawImage,joints,
-        //                                           rawTable);
+        // byte[][] thresh = visionLink.processImage(rawImage,w,h,joints,
+        //                                           sensors);
         //Init a new Thresholded image to display
         // ThresholdedImage tImg = new ThresholdedImage(thresh,
         //                                              img.getWidth(),